@@ -21,6 +21,7 @@ import javax.inject.Singleton;
 import scala.collection.JavaConversions;
 import scala.collection.Seq$;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.PrivateModule;
@@ -53,6 +54,7 @@ import org.midonet.midolman.io.OneToOneDpConnManager;
 import org.midonet.midolman.io.OneToManyDpConnManager;
 import org.midonet.midolman.io.UpcallDatapathConnectionManager;
 import org.midonet.midolman.io.TokenBucketPolicy;
+import org.midonet.midolman.monitoring.metrics.DatapathMetrics;
 import org.midonet.midolman.services.DatapathConnectionService;
 import org.midonet.netlink.NetlinkChannel;
 import org.midonet.netlink.NetlinkChannelFactory;
@@ -108,30 +110,72 @@ public class DatapathModule extends PrivateModule {
             FlowProcessor flowProcessor,
             DatapathState dpState,
             OvsNetlinkFamilies families,
-            NetlinkChannelFactory channelFactory) {
+            NetlinkChannelFactory channelFactory,
+            DatapathMetrics metrics,
+            MidolmanConfig config) {
         threads = Math.max(threads, 1);
-        EventProcessor[] processors = new EventProcessor[threads];
+        int batchSize = config.datapath().packetExecuteBatchSize();
+        int batchBytes = config.datapath().packetExecuteBatchBytes();
+        int waitMode = backchannelWaitMode(
+            config.datapath().flowProcessorWaitStrategy());
+        EventProcessor[] processors;
         if (threads == 1) {
+            processors = new EventProcessor[1];
             EventPoller.Handler handler = new AggregateEventPollerHandler(
                 JavaConversions.asScalaBuffer(Arrays.asList(
                     flowProcessor,
                     new EventPollerHandlerAdapter(new PacketExecutor(
-                        dpState, families, 1, 0, channelFactory)))));
-            processors[0] = new BackchannelEventProcessor(
+                        dpState, families, 1, 0, channelFactory,
+                        batchSize, batchBytes, metrics)))));
+            BackchannelEventProcessor processor = new BackchannelEventProcessor(
                 ringBuffer, handler, flowProcessor, Seq$.MODULE$.empty());
+            processor.setWaitMode(waitMode);
+            processors[0] = processor;
         } else {
             int numPacketHandlers = threads - 1;
+            FlowProcessor[] shards = flowProcessor.shards();
+            processors = new EventProcessor[numPacketHandlers + shards.length];
             for (int i = 0; i < numPacketHandlers; ++i) {
                 PacketExecutor pexec = new PacketExecutor(
-                    dpState, families, numPacketHandlers, i, channelFactory);
+                    dpState, families, numPacketHandlers, i, channelFactory,
+                    batchSize, batchBytes, metrics);
                 processors[i] = new BatchEventProcessor(ringBuffer, barrier, pexec);
             }
-            processors[numPacketHandlers] = new BackchannelEventProcessor(
-                ringBuffer, flowProcessor, flowProcessor,  Seq$.MODULE$.empty());
+            for (int i = 0; i < shards.length; ++i) {
+                BackchannelEventProcessor processor = new BackchannelEventProcessor(
+                    ringBuffer, shards[i], shards[i], Seq$.MODULE$.empty());
+                processor.setWaitMode(waitMode);
+                processors[numPacketHandlers + i] = processor;
+            }
         }
         return processors;
     }
 
+    /**
+     * The CPUs to which the threads running the specified processors are
+     * pinned, laid out as in createProcessors(). Threads that are not pinned
+     * have a negative CPU.
+     */
+    private int[] processorCpus(int threads, int numProcessors,
+                                MidolmanConfig config) {
+        int[] packetExecutorCpus = config.datapath().packetExecutorCpus();
+        int[] flowProcessorCpus = config.datapath().flowProcessorCpus();
+        int[] cpus = new int[numProcessors];
+        int numPacketHandlers = threads <= 1 ? numProcessors : threads - 1;
+        for (int i = 0; i < numProcessors; ++i) {
+            int[] candidates = packetExecutorCpus;
+            int index = i;
+            if (i >= numPacketHandlers) {
+                candidates = flowProcessorCpus;
+                index = i - numPacketHandlers;
+            }
+            cpus[i] = candidates.length > 0
+                ? candidates[index % candidates.length]
+                : -1;
+        }
+        return cpus;
+    }
+
     protected void bindDatapathStateDriver() {
         bind(DatapathStateDriver.class).toProvider(new Provider<DatapathStateDriver>() {
             @Inject
@@ -167,7 +211,9 @@ public class DatapathModule extends PrivateModule {
                         ringBuffer =
                         RingBuffer.createMultiProducer(
                             Factory$.MODULE$,
-                            capacity);
+                            capacity,
+                            waitStrategy(config.datapath()
+                                             .packetExecutorWaitStrategy()));
                     SequenceBarrier barrier = ringBuffer.newBarrier();
                     EventProcessor processors[] = createProcessors(
                         config.outputChannels(),
@@ -175,8 +221,14 @@ public class DatapathModule extends PrivateModule {
                         injector.getInstance(FlowProcessor.class),
                         injector.getInstance(DatapathState.class),
                         injector.getInstance(OvsNetlinkFamilies.class),
-                        injector.getInstance(NetlinkChannelFactory.class));
-                    return new DisruptorDatapathChannel(ringBuffer, processors);
+                        injector.getInstance(NetlinkChannelFactory.class),
+                        new DatapathMetrics(
+                            injector.getInstance(MetricRegistry.class)),
+                        config);
+                    return new DisruptorDatapathChannel(
+                        ringBuffer, processors,
+                        processorCpus(config.outputChannels(),
+                                      processors.length, config));
                 }
             })
             .in(Singleton.class);
@@ -218,13 +270,31 @@ public class DatapathModule extends PrivateModule {
 
                 @Override
                 public FlowProcessor get() {
-                    return new FlowProcessor(
-                        injector.getInstance(DatapathState.class),
-                        injector.getInstance(OvsNetlinkFamilies.class),
-                        config.datapath().globalIncomingBurstCapacity() * 2,
-                        512, // Flow request size
-                        injector.getInstance(NetlinkChannelFactory.class),
-                        NanoClock$.MODULE$.DEFAULT());
+                    // The flow processors share the output thread with the
+                    // packet executor when there's a single output channel.
+                    int numShards = config.outputChannels() > 1
+                        ? Math.max(config.datapath().flowProcessorShards(), 1)
+                        : 1;
+                    DatapathMetrics metrics = new DatapathMetrics(
+                        injector.getInstance(MetricRegistry.class));
+                    FlowProcessor[] shards = new FlowProcessor[numShards];
+                    for (int i = 0; i < numShards; ++i) {
+                        shards[i] = new FlowProcessor(
+                            injector.getInstance(DatapathState.class),
+                            injector.getInstance(OvsNetlinkFamilies.class),
+                            config.datapath().globalIncomingBurstCapacity() * 2,
+                            512, // Flow request size
+                            injector.getInstance(NetlinkChannelFactory.class),
+                            NanoClock$.MODULE$.DEFAULT(),
+                            config.datapath().flowCreateBatchSize(),
+                            config.datapath().flowCreateBatchBytes(),
+                            numShards, i, metrics);
+                    }
+                    for (FlowProcessor shard : shards) {
+                        shard.setShards(shards);
+                    }
+                    log.debug("Created {} flow processors", numShards);
+                    return shards[0];
                 }
             })
             .in(Singleton.class);
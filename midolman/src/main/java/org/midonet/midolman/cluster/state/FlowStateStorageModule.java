@@ -15,6 +15,9 @@
  */
 package org.midonet.midolman.cluster.state;
 
+import java.io.File;
+
+import com.codahale.metrics.MetricRegistry;
 import com.datastax.driver.core.Session;
 import com.google.inject.Inject;
 import com.google.inject.PrivateModule;
@@ -22,12 +25,18 @@ import com.google.inject.Provider;
 
 import scala.concurrent.Future;
 import scala.runtime.AbstractFunction1;
+import scala.runtime.BoxedUnit;
 
 import org.midonet.cluster.backend.cassandra.CassandraClient;
+import org.midonet.midolman.config.FlowStateConfig;
 import org.midonet.midolman.config.MidolmanConfig;
+import org.midonet.midolman.state.FlowStateLog$;
 import org.midonet.midolman.state.FlowStateStorage;
 import org.midonet.midolman.state.FlowStateStorage$;
 import org.midonet.midolman.state.FlowStateStorageFactory;
+import org.midonet.midolman.state.FlowStateWriteBehind;
+import org.midonet.midolman.state.FlowStateWriteBehind$;
+import org.midonet.midolman.state.LocalFlowStateStorageFactory;
 import org.midonet.util.concurrent.CallingThreadExecutionContext$;
 
 public class FlowStateStorageModule extends PrivateModule {
@@ -36,6 +45,7 @@ public class FlowStateStorageModule extends PrivateModule {
         binder().requireExplicitBindings();
 
         requireBinding(MidolmanConfig.class);
+        requireBinding(MetricRegistry.class);
 
         bind(FlowStateStorageFactory.class).toProvider(FlowStateStorageFactoryProvider.class)
                 .asEagerSingleton();
@@ -46,31 +56,64 @@ public class FlowStateStorageModule extends PrivateModule {
         @Inject
         MidolmanConfig config;
 
+        @Inject
+        MetricRegistry metrics;
+
         @Override
         public FlowStateStorageFactory get() {
+            FlowStateConfig flowState = config.flowState();
+            if ("local".equals(flowState.storage())) {
+                return new LocalFlowStateStorageFactory(FlowStateLog$.MODULE$.apply(
+                    new File(flowState.localStorageDirectory()),
+                    flowState.localSegmentSize()));
+            }
             CassandraClient cass = new CassandraClient(
                     config.cassandra().servers(), config.cassandra().cluster(),
                     "MidonetFlowState", config.cassandra().replication_factor(),
                     FlowStateStorage$.MODULE$.SCHEMA());
-            return new FlowStateStorageFactoryImpl(cass.connect());
+            return new FlowStateStorageFactoryImpl(cass.connect(),
+                                                   flowState, metrics);
         }
     }
 
     private static class FlowStateStorageFactoryImpl implements FlowStateStorageFactory {
-        Future<Session> sessionF;
+        Future<FlowStateWriteBehind> writeBehindF;
 
-        public FlowStateStorageFactoryImpl(Future<Session> sessionF) {
-            this.sessionF = sessionF;
+        public FlowStateStorageFactoryImpl(Future<Session> sessionF,
+                                           final FlowStateConfig config,
+                                           final MetricRegistry metrics) {
+            // All storage instances share a single write-behind stage
+            this.writeBehindF = sessionF.map(
+                new AbstractFunction1<Session, FlowStateWriteBehind>() {
+                    @Override
+                    public FlowStateWriteBehind apply(Session session) {
+                        return FlowStateWriteBehind$.MODULE$.apply(
+                            session, config, metrics);
+                    }
+                }, CallingThreadExecutionContext$.MODULE$);
         }
 
         @Override
         public Future<FlowStateStorage> create() {
-            return sessionF.map(new AbstractFunction1<Session, FlowStateStorage>() {
+            return writeBehindF.map(new AbstractFunction1<FlowStateWriteBehind, FlowStateStorage>() {
                 @Override
-                public FlowStateStorage apply(Session session) {
-                    return FlowStateStorage$.MODULE$.apply(session);
+                public FlowStateStorage apply(FlowStateWriteBehind writeBehind) {
+                    return FlowStateStorage$.MODULE$.apply(
+                        writeBehind.session(), writeBehind);
                 }
             }, CallingThreadExecutionContext$.MODULE$);
         }
+
+        @Override
+        public void stop() {
+            writeBehindF.foreach(
+                new AbstractFunction1<FlowStateWriteBehind, BoxedUnit>() {
+                    @Override
+                    public BoxedUnit apply(FlowStateWriteBehind writeBehind) {
+                        writeBehind.stop();
+                        return BoxedUnit.UNIT;
+                    }
+                }, CallingThreadExecutionContext$.MODULE$);
+        }
     }
 }
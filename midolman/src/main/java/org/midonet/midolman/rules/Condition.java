@@ -290,6 +290,13 @@ public class Condition extends BaseConfig {
                 negate ^ condField.equals(pktField);
     }
 
+    // Same as above without boxing the packet field.
+    private boolean matchField(Integer condField, int pktField,
+                               boolean negate) {
+        return condField == null ||
+                negate ^ (condField == pktField);
+    }
+
     private boolean matchMAC(MAC condMAC, MAC pktMAC,
                              long mask, boolean negate) {
         return condMAC == null ||
@@ -325,10 +332,15 @@ public class Condition extends BaseConfig {
                 negate ^ (pktGroups != null && pktGroups.contains(condGroup));
     }
 
-    private <E extends Comparable<E>> boolean matchRange(
-            Range<E> range, E pktField, boolean negate) {
-        return range == null ||
-                negate ^ (null == pktField || range.isInside(pktField));
+    private boolean matchRange(Range<Integer> range, int pktField,
+                               boolean negate) {
+        if (range == null)
+            return true;
+        // Compares the bounds without boxing the packet field.
+        Integer start = range.start();
+        Integer end = range.end();
+        return negate ^ ((start == null || start <= pktField) &&
+                         (end == null || end >= pktField));
     }
 
     private void formatField(StringBuilder sb, boolean inverted, String name, Object value) {
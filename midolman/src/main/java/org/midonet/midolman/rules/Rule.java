@@ -168,9 +168,11 @@ public abstract class Rule extends BaseConfig {
     public void process(PacketContext pktCtx, RuleResult res, UUID ownerId,
                         boolean isPortFilter) {
         if (condition.matches(pktCtx, isPortFilter)) {
-            pktCtx.jlog().debug(
+            if (pktCtx.jlog().isDebugEnabled()) {
+                pktCtx.jlog().debug(
                     "Condition matched on device {} chain {} with action {} and match {}",
                     ownerId, chainId, action, condition);
+            }
 
             if (meter != null)
                 pktCtx.addFlowTag(meter);
@@ -28,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.midolman.host.services.HostService;
+import org.midonet.midolman.state.FlowStateStorageFactory;
 
 /**
  * Basic controller of the internal midolman services.
@@ -55,6 +56,9 @@ public class MidolmanService extends AbstractService {
     @Inject(optional = true)
     HostService hostService;
 
+    @Inject(optional = true)
+    FlowStateStorageFactory flowStateStorageFactory;
+
     private JmxReporter jmxReporter = null;
 
     @Override
@@ -113,6 +117,10 @@ public class MidolmanService extends AbstractService {
             }
         }
 
+        // The packet processing workers no longer touch the flow state
+        if (flowStateStorageFactory != null)
+            flowStateStorageFactory.stop();
+
         if (state() != State.FAILED)
             notifyStopped();
     }
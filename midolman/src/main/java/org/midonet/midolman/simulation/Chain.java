@@ -17,7 +17,7 @@ package org.midonet.midolman.simulation;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
@@ -41,6 +41,7 @@ public class Chain implements VirtualDevice {
     private final Map<UUID, Chain> jumpTargets;
     public final String name;
     public final FlowTagger.FlowTag flowInvTag;
+    private final RuleIndex index;
 
     public Chain(UUID id, List<Rule> rules, Map<UUID, Chain> jumpTargets,
                  String name) {
@@ -49,6 +50,7 @@ public class Chain implements VirtualDevice {
         this.jumpTargets = jumpTargets;
         this.name = name;
         flowInvTag = FlowTagger.tagForDevice(id);
+        index = RuleIndex.build(this.rules);
     }
 
     public int hashCode() {
@@ -106,36 +108,88 @@ public class Chain implements VirtualDevice {
         context.addFlowTag(flowInvTag);
         traversedChains.add(id);
 
-        Iterator<Rule> iter = rules.iterator();
         res.action = Action.CONTINUE;
-        while (iter.hasNext() && res.action == Action.CONTINUE) {
+        if (index != null) {
+            applyIndexed(context, ownerId, isPortFilter, res, depth,
+                         traversedChains);
+        } else {
+            for (int pos = 0; pos < rules.size() &&
+                              res.action == Action.CONTINUE; pos++) {
+                processRule(rules.get(pos), context, ownerId, isPortFilter,
+                            res, depth, traversedChains);
+            }
+        }
 
-            Rule r = iter.next();
-            r.process(context, res, ownerId, isPortFilter);
+        assert res.action != Action.JUMP;
+    }
 
-            if (res.action == Action.JUMP) {
-                Chain jumpChain = getJumpTarget(res.jumpToChain);
-                if (null == jumpChain) {
-                    context.jlog().error("ignoring jump to chain {} : not found.",
-                                        res.jumpToChain, context);
-                    res.action = Action.CONTINUE;
-                } else if (traversedChains.contains(jumpChain.id)) {
-                    context.jlog().warn(
-                        "cannot jump from chain {} to chain {} -- already visited",
-                        this, jumpChain, context);
-                    res.action = Action.CONTINUE;
-                } else {
-                    // Apply the jump chain and return if it produces a
-                    // decisive action. If not, on to the next rule.
-                    jumpChain.apply(context, ownerId, isPortFilter,
-                                    res, depth + 1, traversedChains);
-                    if (res.action == Action.RETURN)
-                        res.action = Action.CONTINUE;
-                }
+    /**
+     * Processes the rules that may match the packet according to the rule
+     * index, in chain order. The rules that depend on the packet's protocol
+     * and port are looked up again after a rule that may have rewritten it.
+     */
+    private void applyIndexed(PacketContext context, UUID ownerId,
+                              boolean isPortFilter, RuleResult res,
+                              int depth, List<UUID> traversedChains) {
+        int[] any = index.anyPacket;
+        int[] byProto = index.protocolRules(context.wcmatch());
+        int[] byPort = index.portRules(context.wcmatch());
+        int i = 0, j = 0, k = 0;
+        while (res.action == Action.CONTINUE) {
+            int pos = Integer.MAX_VALUE;
+            if (i < any.length)
+                pos = any[i];
+            if (j < byProto.length && byProto[j] < pos)
+                pos = byProto[j];
+            if (k < byPort.length && byPort[k] < pos)
+                pos = byPort[k];
+            if (pos == Integer.MAX_VALUE)
+                break;
+
+            if (i < any.length && any[i] == pos)
+                i++;
+            else if (j < byProto.length && byProto[j] == pos)
+                j++;
+            else
+                k++;
+
+            processRule(rules.get(pos), context, ownerId, isPortFilter, res,
+                        depth, traversedChains);
+
+            if (res.action == Action.CONTINUE && index.mayRewrite(pos)) {
+                byProto = index.protocolRules(context.wcmatch());
+                byPort = index.portRules(context.wcmatch());
+                j = RuleIndex.after(byProto, pos);
+                k = RuleIndex.after(byPort, pos);
             }
         }
+    }
 
-        assert res.action != Action.JUMP;
+    private void processRule(Rule r, PacketContext context, UUID ownerId,
+                             boolean isPortFilter, RuleResult res,
+                             int depth, List<UUID> traversedChains) {
+        r.process(context, res, ownerId, isPortFilter);
+
+        if (res.action == Action.JUMP) {
+            Chain jumpChain = getJumpTarget(res.jumpToChain);
+            if (null == jumpChain) {
+                context.jlog().error("ignoring jump to chain {} : not found.",
+                                    res.jumpToChain, context);
+                res.action = Action.CONTINUE;
+            } else if (traversedChains.contains(jumpChain.id)) {
+                context.jlog().warn(
+                    "cannot jump from chain {} to chain {} -- already visited",
+                    this, jumpChain, context);
+                res.action = Action.CONTINUE;
+            } else {
+                // Apply the jump chain and return if it produces a
+                // decisive action. If not, on to the next rule.
+                jumpChain.apply(context, ownerId, isPortFilter,
+                                res, depth + 1, traversedChains);
+                if (res.action == Action.RETURN)
+                    res.action = Action.CONTINUE;
+            }
+        }
     }
 
     /**
@@ -147,13 +201,18 @@ public class Chain implements VirtualDevice {
      *            UUID of the element using chainId.
      * @param isPortFilter
      *            whether the chain is being processed in a port filter context
+     * @return The result of the chain, which is owned by the packet context
+     *         and overwritten by the next chain applied to the packet.
      */
     public static RuleResult apply(
             Chain chain, PacketContext context,
             UUID ownerId, boolean isPortFilter) {
 
+        RuleResult res = context.chainResult();
+        res.jumpToChain = null;
         if (null == chain) {
-            return new RuleResult(Action.ACCEPT, null);
+            res.action = Action.ACCEPT;
+            return res;
         }
 
         if (context.jlog().isDebugEnabled()) {
@@ -161,14 +220,11 @@ public class Chain implements VirtualDevice {
         }
 
         // Use ArrayList rather than HashSet because the list will be
-        // short enough that O(N) lookup is still cheap, and this
-        // avoids per-chain allocation.
-        //
-        // TODO: We can count how many chains can be reached from a
-        // given root chain in the constructor and then use that to
-        // determine how big a list to allocate.
-        List<UUID> traversedChains = new ArrayList<>();
-        RuleResult res = new RuleResult(Action.CONTINUE, null);
+        // short enough that O(N) lookup is still cheap. The list is
+        // reused for every chain applied to the packet.
+        List<UUID> traversedChains = context.traversedChains();
+        traversedChains.clear();
+        res.action = Action.CONTINUE;
         chain.apply(context, ownerId, isPortFilter, res, 0, traversedChains);
 
         // Accept if the chain didn't make an explicit decision.
@@ -224,6 +280,6 @@ public class Chain implements VirtualDevice {
      * For unit testing.
      */
     public List<Rule> getRules() {
-        return rules;
+        return Collections.unmodifiableList(rules);
     }
 }
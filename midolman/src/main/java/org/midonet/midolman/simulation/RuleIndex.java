@@ -0,0 +1,227 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.midonet.midolman.rules.Condition;
+import org.midonet.midolman.rules.LiteralRule;
+import org.midonet.midolman.rules.Rule;
+import org.midonet.midolman.rules.TraceRule;
+import org.midonet.odp.FlowMatch;
+import org.midonet.util.Range;
+
+/**
+ * An index of the rules of a chain by the network protocol and the transport
+ * destination port they require, such as the rules of a security group.
+ * For a packet, the index yields three lists of rule positions, in ascending
+ * order: the rules that can match any packet, the rules that require the
+ * packet's protocol, and the rules that require its protocol and destination
+ * port. Merging them gives the rules that may match the packet, in chain
+ * order, so that the chain only tests the conditions of those rules and the
+ * first match is the same as when testing every rule.
+ *
+ * A rule is indexed only when its condition can't match a packet with a
+ * different protocol or port, whatever the rest of the packet. Rules that
+ * match on the flow direction are never indexed, so that the connection
+ * tracking lookups of the chain happen as they would without the index.
+ * Reading the protocol and port from the match marks them as seen, which
+ * keeps the flows that skip a rule from matching packets that the rule
+ * would match.
+ */
+final class RuleIndex {
+
+    /* The smallest chain worth indexing. */
+    static final int MIN_RULES = 8;
+
+    static final int[] NONE = new int[0];
+
+    private static final int[][] NO_PORTS = new int[0][];
+
+    final int[] anyPacket;
+    private final boolean[] mayRewrite;
+
+    /* The protocols that rules require, in ascending order, and for each of
+     * them the rules that require it, the ports that rules require along
+     * with it, in ascending order, and the rules that require each port.
+     * Chains only index a few protocols, so they are found by a linear
+     * scan. */
+    private final int[] protocols;
+    private final int[][] byProto;
+    private final int[][] ports;
+    private final int[][][] byPort;
+
+    /* The rules that require a protocol, while indexing. */
+    private static final class ProtocolRules {
+        final List<Integer> any = new ArrayList<>();
+        final TreeMap<Integer, List<Integer>> byPort = new TreeMap<>();
+    }
+
+    private RuleIndex(List<Rule> rules) {
+        int size = rules.size();
+        mayRewrite = new boolean[size];
+        List<Integer> any = new ArrayList<>();
+        TreeMap<Integer, ProtocolRules> protoRules = new TreeMap<>();
+
+        for (int pos = 0; pos < size; pos++) {
+            Rule rule = rules.get(pos);
+            mayRewrite[pos] = !(rule instanceof LiteralRule) &&
+                              !(rule instanceof TraceRule);
+            Condition cond = rule.getCondition();
+            int proto = protocolOf(cond);
+            if (proto < 0) {
+                any.add(pos);
+                continue;
+            }
+            ProtocolRules forProto = protoRules.get(proto);
+            if (forProto == null) {
+                forProto = new ProtocolRules();
+                protoRules.put(proto, forProto);
+            }
+            int port = portOf(cond);
+            if (port < 0) {
+                forProto.any.add(pos);
+                continue;
+            }
+            List<Integer> positions = forProto.byPort.get(port);
+            if (positions == null) {
+                positions = new ArrayList<>();
+                forProto.byPort.put(port, positions);
+            }
+            positions.add(pos);
+        }
+
+        anyPacket = toArray(any);
+        protocols = new int[protoRules.size()];
+        byProto = new int[protocols.length][];
+        ports = new int[protocols.length][];
+        byPort = new int[protocols.length][][];
+        int i = 0;
+        for (Map.Entry<Integer, ProtocolRules> e : protoRules.entrySet()) {
+            protocols[i] = e.getKey();
+            byProto[i] = toArray(e.getValue().any);
+            TreeMap<Integer, List<Integer>> rulesByPort = e.getValue().byPort;
+            if (rulesByPort.isEmpty()) {
+                ports[i] = NONE;
+                byPort[i] = NO_PORTS;
+            } else {
+                ports[i] = new int[rulesByPort.size()];
+                byPort[i] = new int[rulesByPort.size()][];
+                int j = 0;
+                for (Map.Entry<Integer, List<Integer>> p :
+                         rulesByPort.entrySet()) {
+                    ports[i][j] = p.getKey();
+                    byPort[i][j] = toArray(p.getValue());
+                    j++;
+                }
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Indexes the given rules, or returns null if the chain is too short or
+     * none of its rules can be indexed.
+     */
+    static RuleIndex build(List<Rule> rules) {
+        if (rules.size() < MIN_RULES)
+            return null;
+        for (Rule rule : rules) {
+            if (protocolOf(rule.getCondition()) >= 0)
+                return new RuleIndex(rules);
+        }
+        return null;
+    }
+
+    /* The protocol a condition requires, or -1 if it may match packets of
+     * any protocol. */
+    private static int protocolOf(Condition cond) {
+        if (cond == null || cond.getClass() != Condition.class ||
+            cond.conjunctionInv || cond.matchForwardFlow ||
+            cond.matchReturnFlow || cond.nwProto == null || cond.nwProtoInv)
+            return -1;
+        return cond.nwProto & 0xff;
+    }
+
+    /* The single destination port a condition requires, or -1. */
+    private static int portOf(Condition cond) {
+        Range<Integer> range = cond.tpDst;
+        if (range == null || cond.tpDstInv || range.start() == null ||
+            !range.start().equals(range.end()))
+            return -1;
+        return range.start();
+    }
+
+    private static int[] toArray(List<Integer> positions) {
+        if (positions.isEmpty())
+            return NONE;
+        int[] array = new int[positions.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = positions.get(i);
+        return array;
+    }
+
+    /* The slot of a protocol, or -1 if no rule requires it. */
+    private int slotOf(int proto) {
+        for (int i = 0; i < protocols.length; i++) {
+            if (protocols[i] == proto)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * The positions of the rules that require the protocol of the packet.
+     */
+    int[] protocolRules(FlowMatch wcmatch) {
+        int i = slotOf(wcmatch.getNetworkProto() & 0xff);
+        return i >= 0 ? byProto[i] : NONE;
+    }
+
+    /**
+     * The positions of the rules that require the protocol and destination
+     * port of the packet. The port is only read for protocols that have
+     * rules indexed by port.
+     */
+    int[] portRules(FlowMatch wcmatch) {
+        int i = slotOf(wcmatch.getNetworkProto() & 0xff);
+        if (i < 0 || ports[i].length == 0)
+            return NONE;
+        int j = Arrays.binarySearch(ports[i], wcmatch.getDstPort());
+        return j >= 0 ? byPort[i][j] : NONE;
+    }
+
+    /**
+     * Whether the rule at the given position may rewrite the packet, which
+     * requires looking up the rules that follow it again.
+     */
+    boolean mayRewrite(int pos) {
+        return mayRewrite[pos];
+    }
+
+    /**
+     * The index of the first position after the given one, or the length of
+     * the array.
+     */
+    static int after(int[] positions, int pos) {
+        int i = Arrays.binarySearch(positions, pos);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+}
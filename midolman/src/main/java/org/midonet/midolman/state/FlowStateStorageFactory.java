@@ -20,4 +20,10 @@ import scala.concurrent.Future;
 
 public interface FlowStateStorageFactory {
     Future<FlowStateStorage> create();
+
+    /**
+     * Releases the resources shared by the storage instances, once they are
+     * no longer used.
+     */
+    void stop();
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state;
+
+/**
+ * Encodes the keys and values of a per-flow state table into primitive
+ * words, so they can be stored without keeping the objects around. A key
+ * occupies a fixed number of words, and a value a single one.
+ *
+ * Decoding an encoded key or value must result in an object equal to the
+ * original one.
+ *
+ * @param <K> Type of the keys in the table
+ * @param <V> Type of the values in the table.
+ */
+public interface FlowStateCodec<K, V> {
+    /**
+     * The number of words an encoded key occupies.
+     */
+    int keyWords();
+
+    /**
+     * Encodes a key into keyWords() words starting at the specified offset.
+     * Returns false if the key can't be encoded, in which case the table
+     * stores it as an object.
+     */
+    boolean encodeKey(K key, long[] words, int offset);
+
+    /**
+     * Decodes the key stored at the specified offset.
+     */
+    K decodeKey(long[] words, int offset);
+
+    /**
+     * Encodes a value into a single word.
+     */
+    long encodeValue(V value);
+
+    /**
+     * Decodes an encoded value.
+     */
+    V decodeValue(long word);
+}
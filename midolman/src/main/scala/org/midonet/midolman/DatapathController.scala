@@ -174,7 +174,8 @@ class DatapathController @Inject() (val driver: DatapathStateDriver,
 
     private def subscribeToHost(id: UUID): Unit = {
         val props = Props(classOf[HostRequestProxy],
-                          id, storageFactory.create(), self)
+                          id, storageFactory.create(), self,
+                          config.flowState.importPageSize)
                         .withDispatcher(context.props.dispatcher)
         context.actorOf(props, s"HostRequestProxy-$id")
     }
@@ -16,7 +16,9 @@
 
 package org.midonet.midolman
 
-import java.util.{HashMap, ArrayList}
+import java.util.{Collections, Comparator, HashMap, ArrayList}
+
+import scala.concurrent.duration._
 
 import akka.actor.{Actor, ActorSystem}
 
@@ -39,8 +41,15 @@ import org.midonet.util.collection.{NoOpPool, ArrayObjectPool}
 import org.midonet.util.concurrent.{Backchannel, NanoClock}
 import org.midonet.util.concurrent.WakerUpper.Parkable
 
+object FlowController {
+    private val leastRecentlyUsed = new Comparator[ManagedFlow] {
+        override def compare(a: ManagedFlow, b: ManagedFlow): Int =
+            java.lang.Long.compare(a.lastUsedNanos, b.lastUsedNanos)
+    }
+}
+
 trait FlowController extends FlowIndexer with FlowTagIndexer
-                     with FlowExpirationIndexer with Backchannel { this: Actor =>
+                     with Backchannel { this: Actor =>
 
     protected val config: MidolmanConfig
     protected val clock: NanoClock
@@ -73,6 +82,77 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         override def getValue = dpFlows.size()
     }
 
+    /**
+     * Flow expiration. Flows are kept in FIFO queues per expiration type or,
+     * when timing_wheel_flow_expiration is enabled, in a timing wheel by
+     * their deadlines. The index removes the flows that expire through the
+     * flow controller, which cancels the flows it removes, and it evicts
+     * flows above the flow limit of the controller, starting with its idle
+     * flows.
+     */
+    private val expirationIndex: FlowExpiration =
+        if (config.datapath.timingWheelFlowExpiration)
+            new ControllerFlows with FlowTimingWheelIndexer with ControllerLimits
+        else
+            new ControllerFlows with FlowExpirationIndexer with ControllerLimits
+
+    private class ControllerFlows extends FlowIndexer {
+        val log = FlowController.this.log
+        val maxFlows = FlowController.this.maxFlows
+
+        override def removeFlow(flow: ManagedFlow): Unit =
+            if (dpFlows.get(flow.flowMatch) eq flow)
+                FlowController.this.removeFlow(flow)
+    }
+
+    private trait ControllerLimits extends FlowExpiration {
+        override protected def flowLimit: Int =
+            FlowController.this.flowLimit
+
+        override protected def evictIdleFlows(numFlowsToEvict: Int): Unit =
+            FlowController.this.evictIdleFlows(numFlowsToEvict)
+    }
+
+    /**
+     * Idle flow expiration. We periodically dump the datapath flows and
+     * compare their packet counters against the last ones we saw. A flow
+     * whose counter hasn't changed for idleFlowTimeout is removed. Flows
+     * that didn't see traffic since the previous dump are kept, from least
+     * to most recently used, as the first candidates for eviction when the
+     * flow table is oversubscribed. Flows not installed by this controller
+     * are ignored. The dump is shared by all the controllers, and whichever
+     * finds it due starts it. Flows are also given an idle deadline one check
+     * interval past the timeout, which the timing wheel enforces for the
+     * flows that the dumps miss, without removing them before a dump could
+     * have seen their traffic.
+     */
+    private val idleFlowTimeout =
+        config.datapath.idleFlowTimeout.millis.toNanos
+    private val idleFlowCheckInterval =
+        config.datapath.idleFlowCheckInterval.millis.toNanos
+    private val flowStatsDump = flowProcessor.flowStatsDump
+    private var lastFlowStatsDump =
+        if (idleFlowTimeout > 0) flowStatsDump.register(self) else 0L
+    private val idleFlows = new ArrayList[ManagedFlow]()
+
+    /**
+     * Adaptive flow table. We periodically sample the datapath statistics
+     * and let the FlowTableSizeController tune the flow limit, which
+     * replaces maxFlows when evicting flows, so that the upcall miss rate and
+     * the kernel lookup cost stay within their targets. The idle flow timeout
+     * is scaled along with the flow limit.
+     */
+    private val adaptiveFlowTable = config.datapath.adaptiveFlowTable
+    private val datapathStatsInterval =
+        config.datapath.adaptiveFlowTableInterval.millis.toNanos
+    private val flowTableSizeController = new FlowTableSizeController(
+        maxFlows,
+        config.datapath.adaptiveFlowTableMinFlows / config.simulationThreads,
+        config.datapath.adaptiveFlowTableTargetMissRate,
+        config.datapath.adaptiveFlowTableTargetMasksPerLookup)
+    private val datapathStatsRequest = new DatapathStatsRequest(self)
+    private var nextDatapathStatsRequest = clock.tick + datapathStatsInterval
+
     def tryAddFlow(context: PacketContext, expiration: Expiration): Boolean = {
         val flowMatch = context.origMatch
         val callbacks = context.flowRemovedCallbacks
@@ -81,6 +161,9 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
             if (flow eq null)
                 flow = oversubscriptionManagedFlowPool.take
             flow.reset(flowMatch, context.flowTags, callbacks, 0L, expiration, clock.tick)
+            if (idleFlowTimeout > 0)
+                flow.idleTimeoutNanos =
+                    effectiveIdleFlowTimeout + idleFlowCheckInterval
             registerFlow(flow)
             context.flow = flow
             context.log.debug(s"Added flow $flow")
@@ -94,16 +177,31 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
 
     override def shouldProcess() =
         completedFlowOperations.size > 0 ||
-        flowInvalidator.hasInvalidations
+        flowInvalidator.hasInvalidations ||
+        flowStatsDump.generation != lastFlowStatsDump ||
+        datapathStatsRequest.isCompleted
 
     override def process(): Unit = {
         processCompletedFlowOperations()
         flowInvalidator.process(this)
-        checkFlowsExpiration(clock.tick)
+        val now = clock.tick
+        checkDatapathStats(now)
+        checkIdleFlows(now)
+        expirationIndex.checkFlowsExpiration(now)
     }
 
+    private def flowLimit: Int =
+        if (adaptiveFlowTable) flowTableSizeController.flowLimit
+        else maxFlows
+
+    private def effectiveIdleFlowTimeout: Long =
+        if (adaptiveFlowTable)
+            (idleFlowTimeout * flowTableSizeController.expirationScale).toLong
+        else idleFlowTimeout
+
     override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
+        expirationIndex.registerFlow(flow)
         dpFlows.put(flow.flowMatch, flow)
         meters.trackFlow(flow.flowMatch, flow.tags)
         metrics.dpFlowsMetric.mark()
@@ -114,6 +212,7 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         val removedFlow = dpFlows.remove(flow.flowMatch)
         if (removedFlow eq flow) {
             super.removeFlow(flow)
+            expirationIndex.removeFlow(flow)
             flow.callbacks.runAndClear()
             removeFlowFromDatapath(flow)
             flow.unref()
@@ -122,6 +221,109 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         }
     }
 
+    private def checkDatapathStats(now: Long): Unit = {
+        if (!adaptiveFlowTable)
+            return
+
+        if (datapathStatsRequest.isCompleted) {
+            processDatapathStats()
+            datapathStatsRequest.clear()
+        }
+
+        if (datapathStatsRequest.isIdle && now >= nextDatapathStatsRequest) {
+            datapathStatsRequest.start()
+            if (flowProcessor.tryGetDatapath(datapathId, datapathStatsRequest)) {
+                nextDatapathStatsRequest = now + datapathStatsInterval
+            } else {
+                datapathStatsRequest.clear()
+            }
+        }
+    }
+
+    private def processDatapathStats(): Unit = {
+        if (datapathStatsRequest.isFailed) {
+            log.debug("Failed to get the datapath statistics",
+                      datapathStatsRequest.failure)
+            return
+        }
+
+        val stats = datapathStatsRequest.stats
+        val megaflowStats = datapathStatsRequest.megaflowStats
+        val maskHits = if (megaflowStats ne null) megaflowStats.maskHits else -1L
+        val ctrl = flowTableSizeController
+        if (ctrl.update(stats.getHits, stats.getMisses, stats.getLost, maskHits)) {
+            log.debug(s"Flow limit set to ${ctrl.flowLimit}: ${ctrl.upcalls} " +
+                      s"upcalls, miss rate ${ctrl.missRate}, " +
+                      s"${ctrl.masksPerLookup} masks per lookup")
+        }
+    }
+
+    private def checkIdleFlows(now: Long): Unit = {
+        if (idleFlowTimeout <= 0)
+            return
+
+        val generation = flowStatsDump.generation
+        if (generation != lastFlowStatsDump) {
+            lastFlowStatsDump = generation
+            if (!flowStatsDump.isFailed)
+                processFlowStatsDump(now)
+            flowStatsDump.release()
+        }
+
+        flowStatsDump.tryStart(datapathId, now, idleFlowCheckInterval)
+    }
+
+    private def processFlowStatsDump(now: Long): Unit = {
+        clearIdleFlows(idleFlows.size())
+        val timeout = effectiveIdleFlowTimeout
+        var expired = 0
+        var i = 0
+        while (i < flowStatsDump.size) {
+            val flow = dpFlows.get(flowStatsDump.flowMatch(i))
+            if (flow ne null) {
+                val packets = flowStatsDump.flowPackets(i)
+                if (packets != flow.dpPackets) {
+                    flow.dpPackets = packets
+                    flow.lastUsedNanos = now
+                } else if (now - flow.lastUsedNanos >= timeout) {
+                    log.debug(s"Removing idle flow $flow")
+                    removeFlow(flow)
+                    expired += 1
+                } else {
+                    idleFlows.add(flow)
+                    flow.ref()
+                }
+            }
+            i += 1
+        }
+        Collections.sort(idleFlows, FlowController.leastRecentlyUsed)
+        log.debug(s"Dumped ${flowStatsDump.size} datapath flows: removed " +
+                  s"$expired idle flows, ${idleFlows.size()} more are idle")
+    }
+
+    private def evictIdleFlows(numFlowsToEvict: Int): Unit = {
+        var evicted = 0
+        var i = 0
+        while (i < idleFlows.size() && evicted < numFlowsToEvict) {
+            val flow = idleFlows.get(i)
+            if (dpFlows.get(flow.flowMatch) eq flow) {
+                removeFlow(flow)
+                evicted += 1
+            }
+            i += 1
+        }
+        clearIdleFlows(i)
+    }
+
+    private def clearIdleFlows(numFlows: Int): Unit = {
+        var i = 0
+        while (i < numFlows) {
+            idleFlows.get(i).unref()
+            i += 1
+        }
+        idleFlows.subList(0, numFlows).clear()
+    }
+
     private def processCompletedFlowOperations(): Unit = {
         var req: FlowOperation = null
         while ({ req = completedFlowOperations.poll(); req } ne null) {
@@ -174,6 +376,7 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         val flowMetadata = req.flowMetadata
         val flowMatch = req.managedFlow.flowMatch
         log.debug(s"DP confirmed removal of ${req.managedFlow}")
+        flowProcessor.flowDeleted(flowMatch)
         meters.updateFlow(flowMatch, flowMetadata.getStats)
         meters.forgetFlow(flowMatch)
         req.clear()
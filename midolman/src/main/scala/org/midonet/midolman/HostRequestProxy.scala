@@ -18,9 +18,12 @@ package org.midonet.midolman
 import java.util.{HashMap => JHashMap, HashSet => JHashSet, Map => JMap, Set => JSet, UUID}
 
 import scala.concurrent.Future
+import scala.concurrent.duration._
 import scala.util.{Failure, Success}
 
 import akka.actor.{Actor, ActorRef}
+import akka.pattern.ask
+import akka.util.Timeout
 
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
@@ -33,13 +36,16 @@ import org.midonet.midolman.topology.{VirtualToPhysicalMapper => VTPM, VirtualTo
 import org.midonet.util.concurrent._
 
 object HostRequestProxy {
+    /* How long the packet processing threads may take to import a batch. */
+    val FlowStateBatchTimeout = Timeout(10 seconds)
+
     case class FlowStateBatch(strongConnTrack: JSet[ConnTrackKey],
                               weakConnTrack: JSet[ConnTrackKey],
                               strongNat: JMap[NatKey, NatBinding],
                               weakNat: JMap[NatKey, NatBinding]) {
         def merge(other: FlowStateBatch): FlowStateBatch = {
             strongConnTrack.addAll(other.strongConnTrack)
-            weakConnTrack.addAll(other.strongConnTrack)
+            weakConnTrack.addAll(other.weakConnTrack)
             strongNat.putAll(other.strongNat)
             weakNat.putAll(other.weakNat)
             this
@@ -62,12 +68,18 @@ object HostRequestProxy {
 /**
   * This actor creates a host subscription in the VTPM on behalf of another
   * subscriber. It will proxy requests making sure per-flow state for the
-  * host's ports is fetched from Cassandra before the subscriber receives
-  * the host object.
+  * host's ports is fetched from Cassandra when the subscriber receives
+  * the host object. The state is fetched in pages of `importPageSize` keys,
+  * each of which is handed to the packet processing threads as soon as it
+  * arrives, so that the packets of the connections whose state has been
+  * imported don't wait for the rest of the state. The next page of each
+  * table is only fetched once all the threads have imported the previous
+  * one, so that a page per table is held in memory at a time.
   */
 class HostRequestProxy(val hostId: UUID,
                        val storageFuture: Future[FlowStateStorage],
-                       val subscriber: ActorRef) extends Actor
+                       val subscriber: ActorRef,
+                       val importPageSize: Int) extends Actor
                                                  with ActorLogWithoutPath
                                                  with SingleThreadExecutionContextProvider {
 
@@ -85,23 +97,14 @@ class HostRequestProxy(val hostId: UUID,
         VTPM ! HostRequest(hostId)
     }
 
-    private def stateForPort(storage: FlowStateStorage,
-                             port: UUID): Future[FlowStateBatch] = {
-        val scf = storage.fetchStrongConnTrackRefs(port)
-        val wcf = storage.fetchWeakConnTrackRefs(port)
-        val snf = storage.fetchStrongNatRefs(port)
-        val wnf = storage.fetchWeakNatRefs(port)
-
-        ((scf zip wcf) zip (snf zip wnf)) map {
-            case ((sc, wc) , (sn, wn)) => FlowStateBatch(sc, wc, sn, wn)
-        }
-    }
-
     private def stateForPorts(storage: FlowStateStorage,
-                              ports: Iterable[UUID]): Future[FlowStateBatch] =
-        Future.fold(ports map (stateForPort(storage, _)))(EmptyFlowStateBatch()) {
-            (batch: FlowStateBatch, v: FlowStateBatch) => batch.merge(v)
-        }
+                              ports: Iterable[UUID]): Future[Int] = {
+        val packetsEntryPoint = PacketsEntryPoint.getRef()
+        Future.fold(ports map { port =>
+            storage.streamFlowState(port, importPageSize,
+                                    packetsEntryPoint.ask(_)(FlowStateBatchTimeout))
+        })(0)(_ + _)
+    }
 
     /* Resolve all ports into UUIDs, creating a ResolvedHost object.
      *
@@ -147,10 +150,9 @@ class HostRequestProxy(val hostId: UUID,
             belt.handle(() => {
                 val ps = h.portBindings.keySet -- lastPorts
                 storageFuture.flatMap(stateForPorts(_, ps)).andThen {
-                    case Success(stateBatch) =>
-                        log.debug(s"Fetched ${stateBatch.size()} pieces of flow state for ports $ps")
+                    case Success(stateSize) =>
+                        log.debug(s"Fetched $stateSize pieces of flow state for ports $ps")
                         lastPorts = ps
-                        PacketsEntryPoint ! stateBatch
                     case Failure(e) =>
                         log.warn("Failed to fetch state", e)
                 }(singleThreadExecutionContext)
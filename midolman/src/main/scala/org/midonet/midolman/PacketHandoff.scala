@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.concurrent.atomic.AtomicBoolean
+
+import akka.actor.ActorRef
+import org.jctools.queues.SpscArrayQueue
+
+import org.midonet.odp.Packet
+
+object PacketHandoff {
+
+    /**
+     * The ring through which a single upcall thread hands packets over to a
+     * packet processing worker. Only the thread that registered the producer
+     * may call offer() and flush().
+     */
+    final class Producer private[PacketHandoff] (handoff: PacketHandoff,
+                                                 capacity: Int) {
+        private[PacketHandoff] val ring = new SpscArrayQueue[Packet](capacity)
+        @volatile private[PacketHandoff] var closed = false
+        private var pending = false
+
+        /**
+         * Enqueues a packet for the worker. When the ring is full, the worker
+         * is woken up and the calling thread yields until there is room, so
+         * that no packet is lost.
+         */
+        def offer(packet: Packet): Unit = {
+            while (!ring.offer(packet)) {
+                handoff.wakeUp()
+                Thread.`yield`()
+            }
+            pending = true
+        }
+
+        /**
+         * Wakes up the worker if packets were enqueued since the last flush.
+         * Called at the end of each batch of upcalls.
+         */
+        def flush(): Unit =
+            if (pending) {
+                pending = false
+                handoff.wakeUp()
+            }
+
+        /**
+         * Releases the producer. The worker drains the packets left in the
+         * ring before discarding it.
+         */
+        def close(): Unit = {
+            closed = true
+            handoff.wakeUp()
+        }
+    }
+}
+
+/**
+ * Hands packets over from the upcall threads to a packet processing worker
+ * without going through the worker's mailbox. Each upcall thread registers a
+ * preallocated single-producer ring, and the worker drains all the rings when
+ * it processes its backchannels. The worker is sent a single CheckBackchannels
+ * message whenever it goes from idle to having packets, however many batches
+ * it is then handed.
+ */
+final class PacketHandoff(capacity: Int) {
+    import PacketHandoff._
+
+    @volatile private var producers = new Array[Producer](0)
+    @volatile private var worker: ActorRef = _
+    private val scheduled = new AtomicBoolean(false)
+
+    /**
+     * Sets the worker to wake up when there are new packets. Called by the
+     * worker when it starts.
+     */
+    def attach(worker: ActorRef): Unit = {
+        this.worker = worker
+        scheduled.set(false)
+        wakeUp()
+    }
+
+    /**
+     * Registers a new ring for the calling upcall thread.
+     */
+    def register(): Producer = synchronized {
+        val producer = new Producer(this, capacity)
+        producers = producers :+ producer
+        producer
+    }
+
+    private def unregister(producer: Producer): Unit = synchronized {
+        producers = producers filterNot (_ eq producer)
+    }
+
+    /* The ring stores packets with an ordered store, so the flag is always
+     * swapped, which acts as a full fence: either the worker sees the packet
+     * after clearing the flag, or we see the flag cleared and wake it up. */
+    private[PacketHandoff] def wakeUp(): Unit = {
+        val w = worker
+        if ((w ne null) && !scheduled.getAndSet(true))
+            w ! CheckBackchannels
+    }
+
+    def hasPendingPackets: Boolean = {
+        val ps = producers
+        var i = 0
+        while (i < ps.length) {
+            if (!ps(i).ring.isEmpty)
+                return true
+            i += 1
+        }
+        false
+    }
+
+    /**
+     * Hands the enqueued packets to the worker, at most a ring's capacity from
+     * each producer so that a busy upcall thread doesn't starve the others.
+     * Returns the number of packets handed. Called by the worker thread only.
+     */
+    def drain(handle: Packet => Unit): Int = {
+        // Cleared before polling so that any packet we miss is followed by a
+        // new wake up from its producer, and the rings are checked again
+        // below for the packets enqueued while we were polling.
+        scheduled.set(false)
+        val ps = producers
+        var handed = 0
+        var i = 0
+        while (i < ps.length) {
+            val producer = ps(i)
+            var n = 0
+            var packet: Packet = null
+            while (n < capacity && { packet = producer.ring.poll(); packet ne null }) {
+                handle(packet)
+                n += 1
+            }
+            if (producer.closed && producer.ring.isEmpty)
+                unregister(producer)
+            handed += n
+            i += 1
+        }
+        if (hasPendingPackets)
+            wakeUp()
+        handed
+    }
+}
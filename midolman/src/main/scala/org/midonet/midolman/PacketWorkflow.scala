@@ -16,7 +16,7 @@
 
 package org.midonet.midolman
 
-import java.util.UUID
+import java.util.{ArrayList, HashMap, UUID}
 
 import scala.concurrent.duration._
 import scala.concurrent.{ExecutionContext, Future}
@@ -148,7 +148,9 @@ class PacketWorkflow(
             val storage: Future[FlowStateStorage],
             val natLeaser: NatLeaser,
             val metrics: PacketPipelineMetrics,
-            val packetOut: Int => Unit)
+            val packetOut: Int => Unit,
+            val packetHandoff: PacketHandoff = null,
+            val simulationCache: SimulationCache = null)
         extends Actor with ActorLogWithoutPath with Stash with Backchannel
         with UnderlayTrafficHandler with FlowTranslator with RoutingWorkflow
         with FlowController {
@@ -168,6 +170,22 @@ class PacketWorkflow(
 
     private val genPacketEmitter = new PacketEmitter(new MpscArrayQueue(512), self)
 
+    /**
+     * Packets parked behind the postponed simulation of a packet with the
+     * same match, which is their owner.
+     */
+    private final class ParkedPackets(val owner: PacketContext)
+        extends ArrayList[Packet]
+
+    /* The parked packets by the match of their owner, and the packets whose
+     * owner completed without creating a flow, to be simulated on their own
+     * once the owner's workflow is done. */
+    private val maxParkedDuplicates = config.maxParkedDuplicates
+    private val parkedPackets = new HashMap[FlowMatch, ParkedPackets]()
+    private val unparkedPackets = new ArrayList[Packet]()
+
+    private val simulationCacheKey = new SimulationCache.Key()
+
     protected val connTrackTx = new FlowStateTransaction(connTrackStateTable)
     protected val natTx = new FlowStateTransaction(natStateTable)
     protected val traceStateTx = new FlowStateTransaction(traceStateTable)
@@ -179,7 +197,15 @@ class PacketWorkflow(
             hostId,
             dpState,
             this,
-            config.datapath.controlPacketTos)
+            config.datapath.controlPacketTos,
+            config.flowState.flatReplication,
+            config.flowState.coalesceReplication)
+
+    /* The packet of the contexts that carry coalesced state alone */
+    private val stateShell = {
+        val eth = FlowStatePackets.makeUdpShell(Array[Byte]())
+        new Packet(eth, FlowMatches.fromEthernetPacket(eth))
+    }
 
     protected val datapathId = dpState.datapath.getIndex
 
@@ -200,11 +226,17 @@ class PacketWorkflow(
             }
         }
 
+    private val handlePacketFromHandoff = handlePacket _
+
+    if (packetHandoff ne null)
+        packetHandoff.attach(self)
+
     system.scheduler.schedule(20 millis, 5 seconds, self, CheckBackchannels)
 
     override def receive = {
         case m: FlowStateBatch =>
             replicator.importFromStorage(m)
+            sender ! m
 
         case HandlePackets(packets) =>
             var i = 0
@@ -215,6 +247,8 @@ class PacketWorkflow(
             process()
 
         case CheckBackchannels =>
+            if (packetHandoff ne null)
+                packetHandoff.drain(handlePacketFromHandoff)
             process()
 
         case RestartWorkflow(pktCtx, error) =>
@@ -228,12 +262,15 @@ class PacketWorkflow(
                     handleErrorOn(pktCtx, error)
                 MDC.remove("cookie")
                 FlowTracingContext.clearContext()
+                flushReplicatedState()
+                simulateUnparkedPackets()
             }
             // Else the packet may have already been expired and dropped
     }
 
     override def shouldProcess(): Boolean =
         super.shouldProcess() ||
+        ((packetHandoff ne null) && packetHandoff.hasPendingPackets) ||
         genPacketEmitter.pendingPackets > 0 ||
         arpBroker.shouldProcess()
 
@@ -245,8 +282,20 @@ class PacketWorkflow(
         natLeaser.obliterateUnusedBlocks()
         traceStateTable.expireIdleEntries()
         arpBroker.process()
+        flushReplicatedState()
     }
 
+    /**
+     * Hands off the flow state that the replicator coalesced from the
+     * packets processed so far, in contexts of their own.
+     */
+    private def flushReplicatedState(): Unit =
+        while (replicator.hasPendingState) {
+            val context = new PacketContext(0, stateShell, stateShell.getMatch)
+            replicator.flushPendingState(context)
+            dpChannel.handoff(context)
+        }
+
     protected def packetContext(packet: Packet): PacketContext =
         initialize(packet, packet.getMatch, null)
 
@@ -279,9 +328,84 @@ class PacketWorkflow(
                 self ! RestartWorkflow(pktCtx, ex)
         }(ExecutionContext.callingThread)
         metrics.packetPostponed()
+        if (maxParkedDuplicates > 0 && pktCtx.ingressed &&
+            !parkedPackets.containsKey(pktCtx.origMatch)) {
+            parkedPackets.put(pktCtx.origMatch, new ParkedPackets(pktCtx))
+        }
         giveUpWorkflows(waitingRoom enter pktCtx)
     }
 
+    /**
+     * Parks a packet whose match is that of a postponed simulation, if there
+     * is room for it.
+     */
+    private def park(packet: Packet): Boolean =
+        if (parkedPackets.isEmpty ||
+            packet.getReason == Packet.Reason.FlowActionUserspace) {
+            false
+        } else {
+            val parked = parkedPackets.get(packet.getMatch)
+            if ((parked ne null) && parked.size < maxParkedDuplicates) {
+                parked.add(packet)
+                metrics.packetsParked.mark()
+                true
+            } else {
+                false
+            }
+        }
+
+    /**
+     * Releases the packets parked behind a workflow that is done. Drop means
+     * the workflow gave up on its packet, and the parked packets are dropped
+     * along with it. If the simulation created a flow, they are executed with
+     * its actions; otherwise, the simulation may depend on more than their
+     * match, and they are simulated on their own.
+     */
+    private def unpark(pktCtx: PacketContext, simRes: SimulationResult): Unit =
+        if (!parkedPackets.isEmpty) {
+            val parked = parkedPackets.get(pktCtx.origMatch)
+            if ((parked ne null) && (parked.owner eq pktCtx)) {
+                parkedPackets.remove(pktCtx.origMatch)
+                if (simRes == Drop) {
+                    metrics.packetsDropped.mark(parked.size)
+                    packetOut(parked.size)
+                } else if (simRes == FlowCreated) {
+                    executeParked(pktCtx, parked)
+                } else {
+                    unparkedPackets.addAll(parked)
+                }
+            }
+        }
+
+    private def executeParked(pktCtx: PacketContext,
+                              parked: ParkedPackets): Unit = {
+        if (!pktCtx.packetActions.isEmpty) {
+            var i = 0
+            while (i < parked.size) {
+                val packet = parked.get(i)
+                val context = new PacketContext(pktCtx.cookie, packet,
+                                                packet.getMatch)
+                context.log = pktCtx.log
+                context.packetActions.addAll(pktCtx.packetActions)
+                dpChannel.handoff(context)
+                i += 1
+            }
+        }
+        pktCtx.log.debug(s"Executed ${parked.size} parked packets")
+        metrics.packetsProcessed.mark(parked.size)
+        packetOut(parked.size)
+    }
+
+    private def simulateUnparkedPackets(): Unit =
+        if (!unparkedPackets.isEmpty) {
+            var i = 0
+            while (i < unparkedPackets.size) {
+                processPacket(unparkedPackets.get(i))
+                i += 1
+            }
+            unparkedPackets.clear()
+        }
+
     private def giveUpWorkflows(pktCtxs: IndexedSeq[PacketContext]) {
         var i = 0
         while (i < pktCtxs.size) {
@@ -309,6 +433,7 @@ class PacketWorkflow(
                 context.log.error("Failed to install drop flow", e)
         } finally {
             metrics.packetsDropped.mark()
+            unpark(context, Drop)
         }
 
     private def complete(pktCtx: PacketContext, simRes: SimulationResult): Unit = {
@@ -320,6 +445,7 @@ class PacketWorkflow(
         if (pktCtx.flow ne null) {
             pktCtx.flow.sequence = seq
         }
+        unpark(pktCtx, simRes)
 
         if (pktCtx.ingressed) {
             val latency = NanoClock.DEFAULT.tick - pktCtx.packet.startTimeNanos
@@ -395,7 +521,8 @@ class PacketWorkflow(
     }
 
     private def processPacket(packet: Packet): Unit =
-        startWorkflow(packetContext(packet))
+        if (!park(packet))
+            startWorkflow(packetContext(packet))
 
     private def flushTransactions(): Unit = {
         connTrackTx.flush()
@@ -522,9 +649,43 @@ class PacketWorkflow(
     protected def simulatePacketIn(context: PacketContext): SimulationResult =
         if (handleDHCP(context)) {
             NoOp
-        } else {
+        } else if (simulationCache eq null) {
             runSimulation(context)
+        } else {
+            simulateThroughCache(context)
+        }
+
+    /**
+     * Reuses the cached result of the simulation of a packet that agreed with
+     * this one on every field it read, or simulates the packet and caches
+     * the result if no packets were generated along the way.
+     */
+    private def simulateThroughCache(context: PacketContext): SimulationResult = {
+        val cached = simulationCache.get(context.origMatch, simulationCacheKey)
+        if (cached ne null) {
+            context.log.debug("Reusing a cached simulation result")
+            metrics.simulationCacheHits.mark()
+            cached.applyTo(context)
+        } else {
+            val generation = simulationCache.generation
+            val generated = genPacketEmitter.pendingPackets
+            val result = runSimulation(context)
+            if (genPacketEmitter.pendingPackets == generated)
+                simulationCache.put(context, result, generation)
+            result
         }
+    }
+
+    /* The first worker to process a tag drops the cached results tagged with
+     * it, and every worker starts a new generation of the cache so that no
+     * simulation that was running at that point caches a stale result. The flows that
+     * other workers create from a result cached before then are still tagged
+     * with it, and are invalidated when those workers process the tag. */
+    override def invalidateFlowsFor(tag: FlowTag): Unit = {
+        super.invalidateFlowsFor(tag)
+        if ((simulationCache ne null) && !tag.isInstanceOf[FlowStateTag])
+            simulationCache.invalidate(tag)
+    }
 
     protected def handleStateMessage(context: PacketContext): Unit = {
         context.log.debug("Accepting a state push message")
@@ -17,10 +17,12 @@
 package org.midonet.midolman
 
 import scala.collection.immutable
+import scala.concurrent.Future
 import scala.concurrent.duration._
 
 import akka.actor.{Actor, ActorRef, Props, _}
 import akka.event.LoggingReceive
+import akka.pattern.{ask, pipe}
 import com.codahale.metrics.MetricRegistry
 import com.google.inject.Inject
 import com.typesafe.scalalogging.Logger
@@ -28,17 +30,18 @@ import org.midonet.midolman.services.HostIdProviderService
 import org.slf4j.LoggerFactory
 
 import org.midonet.cluster.DataClient
-import org.midonet.midolman.HostRequestProxy.FlowStateBatch
+import org.midonet.midolman.HostRequestProxy.{FlowStateBatch, FlowStateBatchTimeout}
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.{DatapathChannel, FlowProcessor}
+import org.midonet.midolman.flows.FlowExpirationIndexer.FLOW_EXPIRATION
 import org.midonet.midolman.flows.{ShardedFlowInvalidator, FlowInvalidator}
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
-import org.midonet.midolman.simulation.{DhcpConfigFromDataclient, DhcpConfigFromZoom}
+import org.midonet.midolman.simulation.{DhcpConfigFromDataclient, DhcpConfigFromZoom, SimulationCache}
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
-import org.midonet.midolman.state.{FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
+import org.midonet.midolman.state.{ConnTrackState, FlowStateStorageFactory, NatBlockAllocator, NatLeaser, NatState}
 import org.midonet.midolman.topology.VirtualTopology
 import org.midonet.sdn.state.ShardedFlowStateTable
 import org.midonet.util.StatisticalCounter
@@ -49,7 +52,12 @@ object PacketsEntryPoint extends Referenceable {
 
     case object GetWorkers
 
-    case class Workers(list: IndexedSeq[ActorRef])
+    /**
+     * The packet processing workers and, when upcalls are handed over
+     * through rings rather than the workers' mailboxes, their handoffs.
+     */
+    case class Workers(list: IndexedSeq[ActorRef],
+                       handoffs: IndexedSeq[PacketHandoff] = IndexedSeq.empty)
 }
 
 class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
@@ -90,6 +98,8 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
     private var metrics: PacketPipelineMetrics = null
 
     protected var workers = immutable.IndexedSeq[ActorRef]()
+    protected var handoffs = immutable.IndexedSeq[PacketHandoff]()
+    protected var simulationCache: SimulationCache = null
 
     @Inject
     var counter: StatisticalCounter = null
@@ -125,15 +135,33 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
         NUM_WORKERS = config.simulationThreads
         metrics = new PacketPipelineMetrics(metricsRegistry, NUM_WORKERS)
 
-        connTrackStateTable = new ShardedFlowStateTable(clock)
-        natStateTable = new ShardedFlowStateTable(clock)
+        if (config.flowState.primitiveTables) {
+            val capacity = config.flowState.primitiveTableInitialCapacity
+            connTrackStateTable = new ShardedFlowStateTable(
+                clock, ConnTrackState.ConnTrackKeyCodec, capacity)
+            natStateTable = new ShardedFlowStateTable(
+                clock, NatState.NatKeyCodec, capacity)
+        } else {
+            connTrackStateTable = new ShardedFlowStateTable(clock)
+            natStateTable = new ShardedFlowStateTable(clock)
+        }
         natLeaser = new NatLeaser {
             val log: Logger = Logger(LoggerFactory.getLogger(classOf[NatLeaser]))
             val allocator = natBlockAllocator
             val clock = PacketsEntryPoint.this.clock
+            override val preleaseThreshold = config.natPreleaseThreshold
         }
         traceStateTable = new ShardedFlowStateTable(clock)
 
+        if (config.datapath.upcallHandoff == "ring") {
+            val capacity = config.datapath.upcallRingCapacity
+            handoffs = immutable.IndexedSeq.fill(NUM_WORKERS)(
+                new PacketHandoff(capacity))
+        }
+        if (config.simulationCacheSize > 0) {
+            simulationCache = new SimulationCache(
+                config.simulationCacheSize, FLOW_EXPIRATION.value, clock)
+        }
         for (i <- 0 until NUM_WORKERS) {
             workers :+= startWorker(i)
         }
@@ -178,17 +206,22 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
             storageFactory.create(),
             natLeaser,
             metrics,
-            counter.addAndGet(index, _: Int))
+            counter.addAndGet(index, _: Int),
+            if (handoffs.isEmpty) null else handoffs(index),
+            simulationCache)
     }
 
     private def broadcast(m: Any) { workers foreach ( _ ! m ) }
 
     override def receive = LoggingReceive {
 
-        case m: FlowStateBatch => broadcast(m)
+        case m: FlowStateBatch =>
+            // Acknowledged once every worker has imported the batch
+            Future.sequence(workers map { _.ask(m)(FlowStateBatchTimeout) })
+                .map { _ => m } pipeTo sender
 
         case CheckBackchannels => broadcast(CheckBackchannels)
 
-        case GetWorkers => sender ! Workers(workers)
+        case GetWorkers => sender ! Workers(workers, handoffs)
     }
 }
@@ -79,6 +79,10 @@ class MidolmanConfig(_conf: Config, val schema: Config = ConfigFactory.empty())
 
     def lockMemory = getBoolean(s"$PREFIX.midolman.lock_memory")
 
+    def natPreleaseThreshold = getInt(s"$PREFIX.midolman.nat_prelease_threshold")
+    def maxParkedDuplicates = getInt(s"$PREFIX.midolman.max_parked_duplicates")
+    def simulationCacheSize = getInt(s"$PREFIX.midolman.simulation_cache_size")
+
     val bridge = new BridgeConfig(conf, schema)
     val router = new RouterConfig(conf, schema)
     val zookeeper = new MidonetBackendConfig(conf)
@@ -86,6 +90,7 @@ class MidolmanConfig(_conf: Config, val schema: Config = ConfigFactory.empty())
     val datapath = new DatapathConfig(conf, schema)
     val arptable = new ArpTableConfig(conf, schema)
     val healthMonitor = new HealthMonitorConfig(conf, schema)
+    val flowState = new FlowStateConfig(conf, schema)
     val host = new HostConfig(conf, schema)
     val neutron = new NeutronConfig(conf, schema)
 }
@@ -123,6 +128,35 @@ class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFa
     def vtepIncomingBurstCapacity = getInt(s"$PREFIX.vtep_incoming_burst_capacity")
 
     def controlPacketTos: Byte = getInt(s"$PREFIX.control_packet_tos").toByte
+
+    def flowCreateBatchSize = getInt(s"$PREFIX.flow_create_batch_size")
+    def flowCreateBatchBytes = getInt(s"$PREFIX.flow_create_batch_bytes")
+    def flowProcessorShards = getInt(s"$PREFIX.flow_processor_shards")
+
+    def packetExecuteBatchSize = getInt(s"$PREFIX.packet_execute_batch_size")
+    def packetExecuteBatchBytes = getInt(s"$PREFIX.packet_execute_batch_bytes")
+
+    def upcallHandoff = getString(s"$PREFIX.upcall_handoff")
+    def upcallRingCapacity = getInt(s"$PREFIX.upcall_ring_capacity")
+
+    def packetExecutorWaitStrategy = getString(s"$PREFIX.packet_executor_wait_strategy")
+    def flowProcessorWaitStrategy = getString(s"$PREFIX.flow_processor_wait_strategy")
+    def packetExecutorCpus = cpuList(getString(s"$PREFIX.packet_executor_cpus"))
+    def flowProcessorCpus = cpuList(getString(s"$PREFIX.flow_processor_cpus"))
+
+    private def cpuList(cpus: String): Array[Int] =
+        cpus.split(",").map(_.trim).filter(_.nonEmpty).map(_.toInt)
+
+    def idleFlowTimeout = getDuration(s"$PREFIX.idle_flow_timeout", TimeUnit.MILLISECONDS)
+    def idleFlowCheckInterval = getDuration(s"$PREFIX.idle_flow_check_interval", TimeUnit.MILLISECONDS)
+
+    def adaptiveFlowTable = getBoolean(s"$PREFIX.adaptive_flow_table")
+    def adaptiveFlowTableInterval = getDuration(s"$PREFIX.adaptive_flow_table_interval", TimeUnit.MILLISECONDS)
+    def adaptiveFlowTableMinFlows = getInt(s"$PREFIX.adaptive_flow_table_min_flows")
+    def adaptiveFlowTableTargetMissRate = getDouble(s"$PREFIX.adaptive_flow_table_target_miss_rate")
+    def adaptiveFlowTableTargetMasksPerLookup = getDouble(s"$PREFIX.adaptive_flow_table_target_masks_per_lookup")
+
+    def timingWheelFlowExpiration = getBoolean(s"$PREFIX.timing_wheel_flow_expiration")
 }
 
 class ArpTableConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -134,6 +168,24 @@ class ArpTableConfig(val conf: Config, val schema: Config) extends TypeFailureFa
     def expiration = getDuration(s"$PREFIX.arp_expiration", TimeUnit.MILLISECONDS)
 }
 
+class FlowStateConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
+    val PREFIX = "agent.flow_state"
+
+    def primitiveTables = getBoolean(s"$PREFIX.primitive_tables")
+    def primitiveTableInitialCapacity = getInt(s"$PREFIX.primitive_table_initial_capacity")
+    def flatReplication = getBoolean(s"$PREFIX.flat_replication")
+    def coalesceReplication = getBoolean(s"$PREFIX.coalesce_replication")
+    def writeBehindInterval = getDuration(s"$PREFIX.write_behind_interval", TimeUnit.MILLISECONDS)
+    def writeBehindQueueSize = getInt(s"$PREFIX.write_behind_queue_size")
+    def writeBehindMaxPending = getInt(s"$PREFIX.write_behind_max_pending")
+    def writeBehindBatchSize = getInt(s"$PREFIX.write_behind_batch_size")
+    def writeBehindMaxInFlight = getInt(s"$PREFIX.write_behind_max_in_flight")
+    def importPageSize = getInt(s"$PREFIX.import_page_size")
+    def storage = getString(s"$PREFIX.storage")
+    def localStorageDirectory = getString(s"$PREFIX.local_storage_directory")
+    def localSegmentSize = getInt(s"$PREFIX.local_segment_size")
+}
+
 class HealthMonitorConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
     val PREFIX = "agent.haproxy_health_monitor"
 
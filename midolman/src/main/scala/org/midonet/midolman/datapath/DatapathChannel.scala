@@ -16,8 +16,14 @@
 package org.midonet.midolman.datapath
 
 import com.lmax.disruptor._
+import com.sun.jna.LastErrorException
+import com.typesafe.scalalogging.Logger
+import org.slf4j.LoggerFactory
+
 import org.midonet.midolman.datapath.DisruptorDatapathChannel.PacketContextHolder
 import org.midonet.midolman.simulation.PacketContext
+import org.midonet.util.CpuAffinity
+import org.midonet.util.concurrent.{BackchannelEventProcessor, NanoClock, WakerUpperWaitStrategy}
 
 trait DatapathChannel {
     def handoff(context: PacketContext): Long
@@ -33,10 +39,49 @@ object DisruptorDatapathChannel {
     object Factory extends EventFactory[PacketContextHolder] {
         override def newInstance() = new PacketContextHolder(null, null)
     }
+
+    /**
+     * The WaitStrategy with which the processors that wait on the ring
+     * buffer's barrier, such as the packet executors, wait for new events.
+     */
+    def waitStrategy(name: String): WaitStrategy = name match {
+        case "busy_spin" => new BusySpinWaitStrategy
+        case "yielding" => new YieldingWaitStrategy
+        case "waker_upper" => new WakerUpperWaitStrategy
+        case "blocking" => new BlockingWaitStrategy
+        case _ => throw new IllegalArgumentException(
+            s"Unknown wait strategy: $name")
+    }
+
+    /**
+     * The wait mode for BackchannelEventProcessors, such as the ones running
+     * the flow processors. These also poll their Backchannel, so they can't
+     * block on the ring buffer; a blocking wait parks the thread with the
+     * WakerUpper, same as the waker_upper strategy.
+     */
+    def backchannelWaitMode(name: String): Int = name match {
+        case "busy_spin" => BackchannelEventProcessor.BUSY_SPIN
+        case "yielding" => BackchannelEventProcessor.YIELD
+        case "waker_upper" | "blocking" => BackchannelEventProcessor.PARK
+        case _ => throw new IllegalArgumentException(
+            s"Unknown wait strategy: $name")
+    }
 }
 
+/**
+ * A DatapathChannel that hands off the simulation's output to the specified
+ * processors through a ring buffer, running each processor in its own thread.
+ * The thread of the processor at index i is pinned to cpus(i), if present
+ * and not negative.
+ */
 class DisruptorDatapathChannel(ringBuffer: RingBuffer[PacketContextHolder],
-                               processors: Array[_ <: EventProcessor]) extends DatapathChannel {
+                               processors: Array[_ <: EventProcessor],
+                               cpus: Array[Int] = Array())
+    extends DatapathChannel {
+
+    private val log = Logger(LoggerFactory.getLogger(
+        "org.midonet.datapath.output"))
+
     def start(): Unit = {
         processors foreach { proc =>
             ringBuffer.addGatingSequences(proc.getSequence)
@@ -45,6 +90,8 @@ class DisruptorDatapathChannel(ringBuffer: RingBuffer[PacketContextHolder],
         processors.zipWithIndex foreach { case (proc, idx) =>
             val t = new Thread("datapath-output-" + idx) {
                 override def run() {
+                    if (idx < cpus.length && cpus(idx) >= 0)
+                        pin(cpus(idx))
                     proc.run()
                 }
             }
@@ -56,7 +103,21 @@ class DisruptorDatapathChannel(ringBuffer: RingBuffer[PacketContextHolder],
     def stop(): Unit =
         processors foreach (_.halt())
 
+    private def pin(cpu: Int): Unit =
+        try {
+            CpuAffinity.pinCurrentThread(cpu)
+            log.info(s"Pinned ${Thread.currentThread().getName} to CPU $cpu")
+        } catch {
+            case e: LastErrorException =>
+                log.warn(s"Failed to pin ${Thread.currentThread().getName} " +
+                         s"to CPU $cpu: error ${e.getErrorCode}")
+            case t: Throwable =>
+                log.warn(s"Failed to pin ${Thread.currentThread().getName} " +
+                         s"to CPU $cpu", t)
+        }
+
     def handoff(context: PacketContext): Long = {
+        context.handoffNanos = NanoClock.DEFAULT.tick
         val seq = ringBuffer.next()
         val event = ringBuffer.get(seq)
         event.packetExecRef = context
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.datapath
+
+import java.nio.ByteBuffer
+import java.util.Arrays
+
+import scala.collection.mutable
+
+import org.midonet.netlink.NetlinkMessage
+import org.midonet.odp.{FlowMask, FlowMatch}
+import org.midonet.odp.OpenVSwitch.Flow.Attr
+
+object FlowMaskCache {
+    val DEFAULT_CAPACITY = 1024
+
+    /**
+     * A serialized mask attribute, ready to be appended to a flow create
+     * request, together with its key and its description for logging
+     * purposes.
+     */
+    final class CachedMask(val key: Long, val attr: Array[Byte],
+                           val description: String) {
+        override def toString = description
+    }
+}
+
+/**
+ * Caches the serialized megaflow masks, keyed by FlowMask.keyFor(). In
+ * practice there are only a handful of distinct masks, so most flow creates
+ * can copy the mask attribute instead of calculating and serializing it.
+ * When the cache is full, masks for new keys are still calculated but not
+ * cached.
+ *
+ * This class is not thread-safe.
+ */
+final class FlowMaskCache(capacity: Int = FlowMaskCache.DEFAULT_CAPACITY) {
+    import FlowMaskCache._
+
+    private val masks = new mutable.LongMap[CachedMask]()
+    private val flowMask = new FlowMask()
+    private val buf = ByteBuffer.allocate(4 * 1024)
+
+    def size: Int = masks.size
+
+    def maskFor(flowMatch: FlowMatch): CachedMask = {
+        val key = FlowMask.keyFor(flowMatch)
+        var mask = masks.getOrNull(key)
+        if (mask eq null) {
+            mask = calculate(key, flowMatch)
+            if (masks.size < capacity) {
+                masks.put(key, mask)
+            }
+        }
+        mask
+    }
+
+    private def calculate(key: Long, flowMatch: FlowMatch): CachedMask =
+        try {
+            flowMask.calculateFor(flowMatch)
+            NetlinkMessage.writeAttrNested(buf, Attr.Mask, flowMask)
+            new CachedMask(key, Arrays.copyOf(buf.array(), buf.position()),
+                           flowMask.toString)
+        } finally {
+            flowMask.clear()
+            buf.clear()
+        }
+}
@@ -18,7 +18,9 @@ package org.midonet.midolman.datapath
 
 import java.nio.{BufferOverflowException, ByteBuffer}
 import java.util.ArrayList
+import java.util.concurrent.atomic.AtomicLongArray
 
+import com.codahale.metrics.MetricRegistry
 import com.lmax.disruptor.{Sequencer, LifecycleAware, EventPoller}
 import org.midonet.midolman.DatapathState
 import rx.Observer
@@ -27,6 +29,10 @@ import org.slf4j.LoggerFactory
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.midolman.datapath.DisruptorDatapathChannel._
+import org.midonet.midolman.flows.FlowStatsDump
+import org.midonet.midolman.monitoring.metrics.DatapathMetrics
+import org.midonet.midolman.monitoring.metrics.DatapathMetrics.PendingLatencies
+import org.midonet.midolman.simulation.PacketContext
 import org.midonet.netlink._
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.odp._
@@ -46,6 +52,29 @@ object FlowProcessor {
         classOf[FlowProcessor].getDeclaredField("lastSequence"))
 
     private val MAX_BUF_CAPACITY = 4 * 1024 * 1024
+
+    /**
+     * Flow create requests are written directly to the channel instead of
+     * going through the NetlinkRequestBroker, and the kernel only answers
+     * them if they fail. We tag them with sequence numbers that have the high
+     * order bit set, which fall outside of the broker's range, so that errors
+     * are routed to the default observer. The remaining bits hold the
+     * Disruptor sequence of the flow, which allows correlating the error.
+     */
+    private val FLOW_CREATE_SEQ_FLAG = Int.MinValue
+
+    private def isFlowCreateSeq(seq: Int): Boolean =
+        (seq & FLOW_CREATE_SEQ_FLAG) != 0
+
+    private def flowCreateSeq(sequence: Long): Int =
+        FLOW_CREATE_SEQ_FLAG | (sequence.toInt & Int.MaxValue)
+
+    /**
+     * The shard responsible for creating and deleting the specified flow.
+     */
+    def shardOf(flowMatch: FlowMatch, numShards: Int): Int =
+        if (numShards == 1) 0
+        else (flowMatch.hashCode() & Int.MaxValue) % numShards
 }
 
 class FlowProcessor(dpState: DatapathState,
@@ -53,15 +82,24 @@ class FlowProcessor(dpState: DatapathState,
                     maxPendingRequests: Int,
                     maxRequestSize: Int,
                     channelFactory: NetlinkChannelFactory,
-                    clock: NanoClock)
+                    clock: NanoClock,
+                    maxBatchSize: Int = 1,
+                    maxBatchBytes: Int = 64 * 1024,
+                    numShards: Int = 1,
+                    shard: Int = 0,
+                    metrics: DatapathMetrics =
+                        new DatapathMetrics(new MetricRegistry))
     extends EventPoller.Handler[PacketContextHolder]
     with Backchannel
     with LifecycleAware {
 
     import FlowProcessor._
 
+    private val name =
+        if (numShards == 1) "flow-processor" else s"flow-processor-$shard"
+
     private val log = Logger(LoggerFactory.getLogger(
-        "org.midonet.datapath.flow-processor"))
+        s"org.midonet.datapath.$name"))
 
     private val datapathId = dpState.datapath.getIndex
     private val supportsMegaflow = dpState.datapath.supportsMegaflow()
@@ -85,42 +123,130 @@ class FlowProcessor(dpState: DatapathState,
 
     private val protocol = new OvsProtocol(pid, families)
 
-    private val flowMask = new FlowMask()
+    private val maskCache = new FlowMaskCache()
 
     private var lastSequence = Sequencer.INITIAL_CURSOR_VALUE
 
+    /**
+     * The flow dump shared by the workers that expire idle flows, so that
+     * the datapath flows are dumped once per interval over this channel.
+     */
+    val flowStatsDump = new FlowStatsDump(this)
+
+    /**
+     * The flow processors amongst which flows are partitioned, each one
+     * writing through its own channel and running on its own thread. All
+     * processors see every event, but only the owner of a flow, given by the
+     * hash of its FlowMatch, creates it. Requests concerning an existing
+     * flow, such as ejecting it, can be made through any processor and are
+     * routed to the flow's owner.
+     */
+    private var group = Array(this)
+
+    /**
+     * When batching is enabled, consecutive flow create messages are packed
+     * together and written with a single system call, either at the end of a
+     * Disruptor batch or when the count or byte thresholds are reached. The
+     * lastSequence is only advanced after the batch is written, so that a
+     * flow is never ejected before it has been created.
+     */
+    private val batching = maxBatchSize > 1
+    private val batch =
+        if (batching) new NetlinkBatchWriter(writer, maxBatchSize, maxBatchBytes)
+        else null
+    private var batchedSequence = Sequencer.INITIAL_CURSOR_VALUE
+    private val pendingLatencies =
+        if (batching) new PendingLatencies(metrics.flowInstallLatency,
+                                           maxBatchSize)
+        else null
+
+    /**
+     * Ring of the most recently written flow matches, indexed by Disruptor
+     * sequence, used by the reply thread to report which flow a failed create
+     * request corresponds to. The ring holds the matches of the flows, which
+     * aren't modified once created, so that they are only described when a
+     * create fails. Each position is guarded by the sequence it holds, which
+     * is invalidated while the match is being replaced. The ring also holds
+     * the key of the mask counted for each flow, which is released if the
+     * create fails.
+     */
+    private val createsCapacity = Util.findNextPositivePowerOfTwo(maxPendingRequests)
+    private val createsMask = createsCapacity - 1
+    private val createdMatches = new Array[FlowMatch](createsCapacity)
+    private val createdMaskKeys = new Array[Long](createsCapacity)
+    private val createdSequences = new AtomicLongArray(createsCapacity)
+
+    {
+        var i = 0
+        while (i < createsCapacity) {
+            createdSequences.set(i, -1L)
+            i += 1
+        }
+    }
+
     override def onEvent(event: PacketContextHolder, sequence: Long,
                          endOfBatch: Boolean): Boolean = {
         val context = event.flowCreateRef
-        val flowMatch = context.origMatch
-        event.flowCreateRef = null
-        if (context.flow ne null) {
-            try {
-                val mask = if (supportsMegaflow) {
-                    flowMask.calculateFor(flowMatch)
-                    context.log.debug(s"Applying mask $flowMask")
-                    flowMask
-                } else null
-                writeFlow(datapathId, flowMatch.getKeys,
-                          context.flowActions, mask)
-                context.log.debug("Created datapath flow")
-            } catch { case t: Throwable =>
-                context.log.error("Failed to create datapath flow", t)
-            } finally {
-                flowMask.clear()
-                writeBuf.clear()
-            }
+        if ((context ne null) && isOwner(context)) {
+            event.flowCreateRef = null
+            if (context.flow ne null) {
+                val flowMatch = context.origMatch
+                if (context.handoffNanos > 0) {
+                    metrics.flowCreationQueueLatency.update(
+                        NanoClock.DEFAULT.tick - context.handoffNanos)
+                }
+                try {
+                    val cached = if (supportsMegaflow) {
+                        val cached = maskCache.maskFor(flowMatch)
+                        metrics.flowMaskInstalled(cached.key)
+                        context.log.debug(s"Applying mask $cached")
+                        cached
+                    } else null
+                    trackFlowCreate(sequence, flowMatch, cached)
+                    writeFlow(datapathId, flowMatch.getKeys, context.flowActions,
+                              if (cached ne null) cached.attr else null, sequence)
+                    flowWritten(context.packet.startTimeNanos)
+                    context.log.debug("Created datapath flow")
+                } catch { case t: Throwable =>
+                    context.log.error("Failed to create datapath flow", t)
+                    releaseCreatedMask(sequence.toInt & Int.MaxValue)
+                } finally {
+                    writeBuf.clear()
+                }
 
-            lastSequence = sequence
+                if (batching)
+                    batchedSequence = sequence
+                else
+                    lastSequence = sequence
+            }
+        }
+        if (batching && batchedSequence > lastSequence &&
+            (endOfBatch || batch.isFull)) {
+            flushBatch()
         }
         true
     }
 
+    /**
+     * Whether this processor is responsible for the specified event. Events
+     * without a flow to create are cleared by the first shard.
+     */
+    private def isOwner(context: PacketContext): Boolean =
+        if (context.flow ne null) shardOf(context.origMatch, numShards) == shard
+        else shard == 0
+
     private def writeFlow(datapathId: Int, keys: ArrayList[FlowKey],
-                          actions: ArrayList[FlowAction], mask: FlowMask): Unit =
+                          actions: ArrayList[FlowAction], mask: Array[Byte],
+                          sequence: Long): Unit =
         try {
-            protocol.prepareFlowCreate(datapathId, keys, actions, mask, writeBuf)
-            writer.write(writeBuf)
+            if (mask ne null)
+                protocol.prepareMaskedFlowCreate(datapathId, keys, actions,
+                                                 mask, writeBuf)
+            else
+                protocol.prepareFlowCreate(datapathId, keys, actions, null,
+                                           writeBuf)
+            writeBuf.putInt(NetlinkMessage.NLMSG_SEQ_OFFSET, flowCreateSeq(sequence))
+            write(writeBuf)
         } catch { case e: BufferOverflowException =>
             val capacity = writeBuf.capacity()
             if (capacity >= MAX_BUF_CAPACITY)
@@ -128,20 +254,134 @@ class FlowProcessor(dpState: DatapathState,
             val newCapacity = capacity * 2
             writeBuf = BytesUtil.instance.allocateDirect(newCapacity)
             log.debug(s"Increasing buffer size to $newCapacity")
-            writeFlow(datapathId, keys, actions, mask)
+            writeFlow(datapathId, keys, actions, mask, sequence)
         }
 
+    /**
+     * Writes a flow create message, either directly or through the batch.
+     * Adding to the batch may write the previous messages to make room for
+     * the new one, in which case the pending latencies are recorded.
+     */
+    private def write(buf: ByteBuffer): Unit = {
+        val start = NanoClock.DEFAULT.tick
+        val written = if (batching) batch.add(buf) else writer.write(buf)
+        if (written > 0) {
+            val end = NanoClock.DEFAULT.tick
+            metrics.flowCreationWriteLatency.update(end - start)
+            if (batching)
+                pendingLatencies.record(end)
+        }
+    }
+
+    /**
+     * Records the latency from the upcall to the creation of the flow.
+     * When batching, the flow's message is either pending in the batch or
+     * it has been written on its own because it didn't fit in it.
+     */
+    private def flowWritten(startTimeNanos: Long): Unit =
+        if (batching) {
+            pendingLatencies.add(startTimeNanos)
+            if (batch.isEmpty)
+                pendingLatencies.record(NanoClock.DEFAULT.tick)
+        } else if (startTimeNanos > 0) {
+            metrics.flowInstallLatency.update(
+                NanoClock.DEFAULT.tick - startTimeNanos)
+        }
+
+    private def flushBatch(): Unit = {
+        val flows = batch.size
+        try {
+            val start = NanoClock.DEFAULT.tick
+            batch.flush()
+            val end = NanoClock.DEFAULT.tick
+            metrics.flowCreationWriteLatency.update(end - start)
+            pendingLatencies.record(end)
+            log.debug(s"Wrote a batch of $flows flow create requests")
+        } catch { case t: Throwable =>
+            pendingLatencies.clear()
+            log.error(s"Failed to write a batch of $flows flows", t)
+        } finally {
+            lastSequence = batchedSequence
+        }
+    }
+
+    private def trackFlowCreate(sequence: Long, flowMatch: FlowMatch,
+                                mask: FlowMaskCache.CachedMask): Unit = {
+        val pos = sequence.toInt & createsMask
+        createdSequences.set(pos, -1L)
+        createdMatches(pos) = flowMatch
+        createdMaskKeys(pos) = if (mask ne null) mask.key else 0L
+        createdSequences.lazySet(pos, sequence)
+    }
+
+    /* Releases the mask counted for a create that failed, identified by its
+     * sequence without the high order bit, unless it is no longer tracked.
+     * The mask is counted before the create is tracked and written, so a
+     * tracked create always holds a count, which is released only once. */
+    private def releaseCreatedMask(seq: Int): Unit =
+        if (supportsMegaflow) {
+            val pos = seq & createsMask
+            val trackedSeq = createdSequences.get(pos)
+            if ((trackedSeq.toInt & Int.MaxValue) == seq) {
+                val key = createdMaskKeys(pos)
+                if (createdSequences.compareAndSet(pos, trackedSeq, -1L))
+                    metrics.flowMaskRemoved(key)
+            }
+        }
+
+    private def flowCreateFailed(e: NetlinkException): Unit = {
+        val seq = e.getSeq & Int.MaxValue
+        val pos = seq & createsMask
+        val trackedSeq = createdSequences.get(pos)
+        val flowDesc = if ((trackedSeq.toInt & Int.MaxValue) == seq) {
+            val desc = createdMatches(pos).toString
+            if (createdSequences.get(pos) == trackedSeq) desc
+            else s"flow with sequence $seq"
+        } else s"flow with sequence $seq"
+        releaseCreatedMask(seq)
+
+        if (e.getErrorCodeEnum == NetlinkException.ErrorCode.EEXIST) {
+            log.debug(s"Tried to add duplicate DP flow: $flowDesc")
+        } else {
+            log.warn(s"Failed to create DP flow $flowDesc with error " +
+                     s"code ${e.getErrorCodeEnum}")
+        }
+    }
+
     def capacity = broker.capacity
 
     def hasPendingOperations = broker.hasRequestsToWrite
 
+    /**
+     * Makes this processor part of the specified group of shards, through
+     * which the requests for existing flows are routed. Must be called before
+     * the processors are started.
+     */
+    def setShards(shards: Array[FlowProcessor]): Unit = {
+        if (shards.length != numShards || (shards(shard) ne this))
+            throw new IllegalArgumentException(
+                s"$name is not part of a group of $numShards shards")
+        group = shards
+    }
+
+    def shards: Array[FlowProcessor] = group
+
+    private def ownerOf(flowMatch: FlowMatch): FlowProcessor =
+        group(shardOf(flowMatch, numShards))
+
     /**
      * Tries to eject a flow only if the corresponding Disruptor sequence is
      * greater than the one specified, meaning that the corresponding flow
-     * create operation hasn't been completed yet.
+     * create operation hasn't been completed yet. The request is made by the
+     * processor that created the flow.
      */
     def tryEject(sequence: Long, datapathId: Int, flowMatch: FlowMatch,
-                 obs: Observer[ByteBuffer]): Boolean = {
+                 obs: Observer[ByteBuffer]): Boolean =
+        ownerOf(flowMatch).tryEjectOwnFlow(sequence, datapathId, flowMatch, obs)
+
+    private def tryEjectOwnFlow(sequence: Long, datapathId: Int,
+                                flowMatch: FlowMatch,
+                                obs: Observer[ByteBuffer]): Boolean = {
         var brokerSeq = 0L
         val disruptorSeq = unsafe.getLongVolatile(this, sequenceAddress)
         if (disruptorSeq >= sequence && { brokerSeq = broker.nextSequence()
@@ -158,8 +398,21 @@ class FlowProcessor(dpState: DatapathState,
         }
     }
 
+    /**
+     * Releases the mask of a flow that the datapath confirmed was deleted.
+     * A delete that finds no flow, such as that of a flow whose create
+     * failed, releases nothing.
+     */
+    def flowDeleted(flowMatch: FlowMatch): Unit =
+        if (supportsMegaflow)
+            metrics.flowMaskRemoved(FlowMask.keyFor(flowMatch))
+
     def tryGet(datapathId: Int, flowMatch: FlowMatch,
-               obs: Observer[ByteBuffer]): Boolean = {
+               obs: Observer[ByteBuffer]): Boolean =
+        ownerOf(flowMatch).tryGetOwnFlow(datapathId, flowMatch, obs)
+
+    private def tryGetOwnFlow(datapathId: Int, flowMatch: FlowMatch,
+                              obs: Observer[ByteBuffer]): Boolean = {
         var seq = 0L
         if ({ seq = broker.nextSequence(); seq } != NetlinkRequestBroker.FULL) {
             try {
@@ -174,6 +427,47 @@ class FlowProcessor(dpState: DatapathState,
         }
     }
 
+    /**
+     * Requests a dump of all the flows in the datapath. The Observer's
+     * onNext() is called once for each flow, with the buffer positioned
+     * at the start of the flow's attributes, and onCompleted() is called at
+     * the end of the dump.
+     */
+    def tryDump(datapathId: Int, obs: Observer[ByteBuffer]): Boolean = {
+        var seq = 0L
+        if ({ seq = broker.nextSequence(); seq } != NetlinkRequestBroker.FULL) {
+            try {
+                protocol.prepareFlowEnum(datapathId, broker.get(seq))
+                broker.publishRequest(seq, obs)
+            } catch { case e: Throwable =>
+                obs.onError(e)
+            }
+            true
+        } else {
+            false
+        }
+    }
+
+    /**
+     * Requests the datapath, including its lookup and megaflow statistics.
+     * The Observer's onNext() is called with the buffer positioned at the
+     * datapath index, followed by onCompleted().
+     */
+    def tryGetDatapath(datapathId: Int, obs: Observer[ByteBuffer]): Boolean = {
+        var seq = 0L
+        if ({ seq = broker.nextSequence(); seq } != NetlinkRequestBroker.FULL) {
+            try {
+                protocol.prepareDatapathGet(datapathId, null, broker.get(seq))
+                broker.publishRequest(seq, obs)
+            } catch { case e: Throwable =>
+                obs.onError(e)
+            }
+            true
+        } else {
+            false
+        }
+    }
+
     override def shouldProcess(): Boolean =
         broker.hasRequestsToWrite
 
@@ -185,6 +479,8 @@ class FlowProcessor(dpState: DatapathState,
             log.warn("Unexpected reply; probably the late answer of a request that timed out")
 
         override def onError(e: Throwable): Unit = e match {
+            case ne: NetlinkException if isFlowCreateSeq(ne.getSeq) =>
+                flowCreateFailed(ne)
             case ne: NetlinkException if ne.getErrorCodeEnum == NetlinkException.ErrorCode.EEXIST =>
                 log.debug("Tried to add duplicate DP flow")
             case ne: NetlinkException =>
@@ -195,7 +491,7 @@ class FlowProcessor(dpState: DatapathState,
         override def onNext(t: ByteBuffer): Unit = { }
     }
 
-    val replies = new Thread("flow-processor-replies") {
+    val replies = new Thread(s"$name-replies") {
         override def run(): Unit =
             while (channel.isOpen) {
                 try {
@@ -16,11 +16,10 @@
 
 package org.midonet.midolman.datapath
 
-import java.nio.BufferOverflowException
+import java.nio.{BufferOverflowException, ByteBuffer}
 import java.util._
 
-import com.google.protobuf.{MessageLite, CodedOutputStream}
-
+import com.codahale.metrics.MetricRegistry
 import com.typesafe.scalalogging.Logger
 import org.midonet.midolman.DatapathState
 import org.slf4j.LoggerFactory
@@ -28,12 +27,14 @@ import org.slf4j.LoggerFactory
 import com.lmax.disruptor.{EventHandler, LifecycleAware}
 
 import org.midonet.midolman.datapath.DisruptorDatapathChannel._
+import org.midonet.midolman.monitoring.metrics.DatapathMetrics
+import org.midonet.midolman.monitoring.metrics.DatapathMetrics.PendingLatencies
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.netlink._
 import org.midonet.odp.flows.FlowAction
 import org.midonet.odp._
 import org.midonet.packets.FlowStateEthernet
-import org.midonet.util.FixedArrayOutputStream
+import org.midonet.util.concurrent.NanoClock
 
 trait StatePacketExecutor {
     val log: Logger
@@ -42,25 +43,16 @@ trait StatePacketExecutor {
      * TODO: Use MTU
      */
     private val stateBuf = new Array[Byte](FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH)
-    private val stream = new FixedArrayOutputStream(stateBuf)
     private val udpShell: FlowStateEthernet = new FlowStateEthernet(stateBuf)
     private val statePacket = new Packet(udpShell, FlowMatches.fromEthernetPacket(udpShell))
 
-    def prepareStatePacket(message: MessageLite): Packet = {
-        val messageSizeVariantLength = CodedOutputStream.computeRawVarint32Size(
-            message.getSerializedSize)
-        val messageLength = message.getSerializedSize + messageSizeVariantLength
-        stream.reset()
-        try {
-            message.writeDelimitedTo(stream)
-            udpShell.limit(messageLength)
-        } catch {
-            case _: IndexOutOfBoundsException =>
-                // TODO(guillermo) partition messages
-                log.warn(s"Skipping state packet, too large: $message")
-            case e: Throwable =>
-                log.warn("Failed to write state packet due to", e)
-        }
+    /**
+     * Copies the payload of a state message, which the replicator limits to
+     * the capacity of the state packet, into the UDP shell.
+     */
+    def prepareStatePacket(payload: Array[Byte]): Packet = {
+        System.arraycopy(payload, 0, stateBuf, 0, payload.length)
+        udpShell.limit(payload.length)
         statePacket
     }
 }
@@ -72,7 +64,11 @@ object PacketExecutor {
 sealed class PacketExecutor(dpState: DatapathState,
                             families: OvsNetlinkFamilies,
                             numHandlers: Int, index: Int,
-                            channelFactory: NetlinkChannelFactory)
+                            channelFactory: NetlinkChannelFactory,
+                            maxBatchSize: Int = 1,
+                            maxBatchBytes: Int = 64 * 1024,
+                            metrics: DatapathMetrics =
+                                new DatapathMetrics(new MetricRegistry))
     extends EventHandler[PacketContextHolder]
     with LifecycleAware with StatePacketExecutor {
 
@@ -94,34 +90,119 @@ sealed class PacketExecutor(dpState: DatapathState,
     private val writer = new NetlinkBlockingWriter(channel)
     private val reader = new NetlinkReader(channel)
 
+    /**
+     * When batching is enabled, the packet execute messages of the packets
+     * this handler owns are accumulated across a Disruptor batch and written
+     * with a single system call at the end of it, or before if the count or
+     * byte thresholds are reached. The kernel doesn't answer packet executions
+     * unless they fail, so errors are handled by the error handler thread
+     * exactly as in the non-batched case.
+     */
+    private val batching = maxBatchSize > 1
+    private val batch =
+        if (batching) new NetlinkBatchWriter(writer, maxBatchSize, maxBatchBytes)
+        else null
+    private val pendingLatencies =
+        if (batching) new PendingLatencies(metrics.packetExecutionLatency,
+                                           maxBatchSize)
+        else null
+
     override def onEvent(event: PacketContextHolder, sequence: Long,
-                         endOfBatch: Boolean): Unit =
+                         endOfBatch: Boolean): Unit = {
         if (sequence % numHandlers == index) {
             val context = event.packetExecRef
             event.packetExecRef = null
             val actions = context.packetActions
             val packet = context.packet
             if (actions.size > 0 && packet.getReason != Packet.Reason.FlowActionUserspace) {
+                if (context.handoffNanos > 0) {
+                    metrics.packetExecutionQueueLatency.update(
+                        NanoClock.DEFAULT.tick - context.handoffNanos)
+                }
                 try {
                     maybeExecuteStatePacket(datapathId, context)
                     executePacket(datapathId, packet, actions)
+                    packetWritten(packet)
                     context.log.debug(s"Executed packet")
                 } catch { case t: Throwable =>
                     context.log.error(s"Failed to execute packet", t)
                 }
+            } else if (!context.stateActions.isEmpty) {
+                // State coalesced from several packets, or whose packet
+                // was not executed
+                try {
+                    maybeExecuteStatePacket(datapathId, context)
+                } catch { case t: Throwable =>
+                    context.log.error(s"Failed to execute state packet", t)
+                }
             }
         }
+        if (batching && !batch.isEmpty && (endOfBatch || batch.isFull)) {
+            flushBatch()
+        }
+    }
+
+    private def flushBatch(): Unit = {
+        val packets = batch.size
+        try {
+            val start = NanoClock.DEFAULT.tick
+            batch.flush()
+            val end = NanoClock.DEFAULT.tick
+            metrics.packetExecutionWriteLatency.update(end - start)
+            pendingLatencies.record(end)
+            log.debug(s"Executed a batch of $packets packets")
+        } catch { case t: Throwable =>
+            pendingLatencies.clear()
+            log.error(s"Failed to execute a batch of $packets packets", t)
+        }
+    }
+
+    /**
+     * Records the latency from the upcall to the execution of the packet.
+     * When batching, the packet's message is either pending in the batch or
+     * it has been written on its own because it didn't fit in it.
+     */
+    private def packetWritten(packet: Packet): Unit =
+        if (batching) {
+            pendingLatencies.add(packet.startTimeNanos)
+            if (batch.isEmpty)
+                pendingLatencies.record(NanoClock.DEFAULT.tick)
+        } else if (packet.startTimeNanos > 0) {
+            metrics.packetExecutionLatency.update(
+                NanoClock.DEFAULT.tick - packet.startTimeNanos)
+        }
+
+    /**
+     * Writes a packet execute message, either directly or through the batch.
+     * Adding to the batch may write the previous messages to make room for
+     * the new one, in which case the pending latencies are recorded.
+     */
+    private def write(buf: ByteBuffer): Unit = {
+        val start = NanoClock.DEFAULT.tick
+        val written = if (batching) batch.add(buf) else writer.write(buf)
+        if (written > 0) {
+            val end = NanoClock.DEFAULT.tick
+            metrics.packetExecutionWriteLatency.update(end - start)
+            if (batching)
+                pendingLatencies.record(end)
+        }
+    }
 
     private def maybeExecuteStatePacket(datapathId: Int, context: PacketContext): Unit = {
         val actions = context.stateActions
         if (actions.size > 0) {
+            val messages = context.stateMessages
             try {
-                val statePacket = prepareStatePacket(context.stateMessage)
-                executePacket(datapathId, statePacket, actions)
-                context.log.debug(s"Executed flow state message")
+                var i = 0
+                while (i < messages.size) {
+                    val statePacket = prepareStatePacket(messages.get(i))
+                    executePacket(datapathId, statePacket, actions)
+                    i += 1
+                }
+                context.log.debug(s"Executed ${messages.size} flow state messages")
             } finally {
-                context.stateMessage = null
-                context.stateActions.clear()
+                messages.clear()
+                actions.clear()
             }
         }
     }
@@ -130,7 +211,7 @@ sealed class PacketExecutor(dpState: DatapathState,
                               actions: ArrayList[FlowAction]): Unit =
         try {
             protocol.preparePacketExecute(datapathId, packet, actions, writeBuf)
-            writer.write(writeBuf)
+            write(writeBuf)
         } catch { case e: BufferOverflowException =>
             val capacity = writeBuf.capacity()
             if (capacity >= PacketExecutor.MAX_BUF_CAPACITY)
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.nio.ByteBuffer
+
+import akka.actor.ActorRef
+import rx.Observer
+
+import org.midonet.midolman.CheckBackchannels
+import org.midonet.odp.Datapath
+
+object DatapathStatsRequest {
+    private val IDLE = 0
+    private val PENDING = 1
+    private val COMPLETED = 2
+}
+
+/**
+ * Retrieves the lookup statistics of the datapath. The reply is parsed by
+ * the FlowProcessor's reply thread and, once it completes, the owning actor
+ * is notified so it can read the statistics in its own thread. Instances are
+ * reused across requests; only one request can be outstanding at a time.
+ */
+final class DatapathStatsRequest(actor: ActorRef) extends Observer[ByteBuffer] {
+    import DatapathStatsRequest._
+
+    var stats: Datapath.Stats = _
+    var megaflowStats: Datapath.MegaflowStats = _
+    var failure: Throwable = _
+
+    @volatile private var state = IDLE
+
+    def isIdle = state == IDLE
+
+    def isCompleted = state == COMPLETED
+
+    def isFailed = (failure ne null) || (stats eq null)
+
+    def start(): Unit =
+        state = PENDING
+
+    def clear(): Unit = {
+        stats = null
+        megaflowStats = null
+        failure = null
+        state = IDLE
+    }
+
+    override def onNext(buf: ByteBuffer): Unit =
+        try {
+            val datapath = Datapath.buildFrom(buf)
+            stats = datapath.getStats
+            megaflowStats = datapath.getMegaflowStats
+        } catch { case e: Throwable =>
+            failure = e
+        }
+
+    override def onCompleted(): Unit = {
+        state = COMPLETED
+        actor ! CheckBackchannels
+    }
+
+    override def onError(e: Throwable): Unit = {
+        failure = e
+        onCompleted()
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.flows
+
+/**
+ * A flow index that removes the flows once they expire, and evicts flows
+ * when the flow table is oversubscribed. It is implemented by the
+ * FlowExpirationIndexer and the FlowTimingWheelIndexer.
+ */
+trait FlowExpiration extends FlowIndexer {
+
+    def indexedFlows: Int
+
+    def checkFlowsExpiration(now: Long): Unit
+
+    /**
+     * The number of flows above which flows are evicted. It must not be
+     * greater than maxFlows.
+     */
+    protected def flowLimit: Int
+
+    /**
+     * Called when the flow table is oversubscribed, before evicting flows
+     * in the order of the index. Implementations may remove up to the
+     * specified number of flows that are known not to be carrying traffic.
+     */
+    protected def evictIdleFlows(numFlowsToEvict: Int): Unit
+}
@@ -50,14 +50,22 @@ object FlowExpirationIndexer {
 /**
  * This trait deals with flow expiration. It registers all new flows and removes
  * them when the specified expiration time has elapsed.
+ *
+ * Flows removed by other means stay in the expiration queues until they are
+ * polled, but they no longer count towards the size of the flow table. When
+ * the table is oversubscribed, implementations can choose which flows to evict
+ * first through evictIdleFlows(); the oldest flows are evicted otherwise.
+ * Implementations can also lower the size of the flow table below maxFlows
+ * by overriding flowLimit.
  */
-trait FlowExpirationIndexer extends FlowIndexer {
+trait FlowExpirationIndexer extends FlowExpiration {
     import FlowExpirationIndexer._
 
     val log: Logger
     val maxFlows: Int
 
     private val expirationQueues = new Array[ArrayDeque[ManagedFlow]](maxType)
+    private var numFlows = 0
 
     {
         expirationQueues(ERROR_CONDITION_EXPIRATION.typeId) = new ArrayDeque(maxFlows / 3)
@@ -69,9 +77,27 @@ trait FlowExpirationIndexer extends FlowIndexer {
     abstract override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
         expirationQueues(flow.expirationType).addLast(flow)
+        flow.expirationIndexed = true
+        numFlows += 1
         flow.ref()
     }
 
+    abstract override def removeFlow(flow: ManagedFlow): Unit = {
+        if (flow.expirationIndexed) {
+            flow.expirationIndexed = false
+            numFlows -= 1
+        }
+        super.removeFlow(flow)
+    }
+
+    def indexedFlows: Int = numFlows
+
+    /**
+     * The number of flows above which the oldest flows are evicted. It must
+     * not be greater than maxFlows.
+     */
+    protected def flowLimit: Int = maxFlows
+
     def checkFlowsExpiration(now: Long): Unit = {
         checkHardTimeOutExpiration(now)
         manageFlowTableSize()
@@ -93,31 +119,31 @@ trait FlowExpirationIndexer extends FlowIndexer {
     }
 
     private def manageFlowTableSize(): Unit = {
-        var excessFlows = 0
-        var i = 0
-        while (i < maxType) {
-            excessFlows += expirationQueues(i).size()
-            i += 1
-        }
-        excessFlows -= maxFlows
-
+        val excessFlows = numFlows - flowLimit
         if (excessFlows > 0) {
             log.debug(s"Evicting $excessFlows excess flows")
-            removeOldestDpFlows(excessFlows)
+            evictIdleFlows(excessFlows)
+            removeOldestDpFlows()
         }
     }
 
-    private def removeOldestDpFlows(numFlowsToEvict: Int): Unit = {
+    /**
+     * Called when the flow table is oversubscribed, before evicting the
+     * oldest flows. Implementations may remove up to the specified number of
+     * flows that are known not to be carrying traffic.
+     */
+    protected def evictIdleFlows(numFlowsToEvict: Int): Unit = { }
+
+    private def removeOldestDpFlows(): Unit = {
+        val limit = flowLimit
         var i = 0
-        var evicted = 0
-        while (i < maxType) {
+        while (i < maxType && numFlows > limit) {
             val queue = expirationQueues(i)
             var flow: ManagedFlow = null
-            while (evicted < numFlowsToEvict &&
+            while (numFlows > limit &&
                    ({ flow = queue.pollFirst(); flow } ne null)) {
                 removeFlow(flow)
                 flow.unref()
-                evicted += 1
             }
             i += 1
         }
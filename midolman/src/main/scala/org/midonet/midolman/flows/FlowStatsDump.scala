@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.nio.ByteBuffer
+import java.util.ArrayList
+import java.util.concurrent.atomic.AtomicInteger
+
+import akka.actor.ActorRef
+import com.typesafe.scalalogging.Logger
+import org.slf4j.LoggerFactory
+import rx.Observer
+
+import org.midonet.midolman.CheckBackchannels
+import org.midonet.midolman.datapath.FlowProcessor
+import org.midonet.netlink.{AttributeHandler, NetlinkMessage}
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.OpenVSwitch.Flow.Attr
+import org.midonet.odp.flows.{FlowKey, FlowKeys, FlowStats}
+
+object FlowStatsDump {
+    private val IDLE = 0
+    private val PENDING = 1
+    private val COMPLETED = 2
+}
+
+/**
+ * Collects the matches and packet counters of the flows streamed by a
+ * datapath flow dump, on behalf of every packet processing worker. The kernel
+ * serves a single dump at a time on a netlink socket, so rather than having
+ * each worker dump the whole flow table, one dump runs per interval: the
+ * first worker that finds it due starts it, the FlowProcessor's reply thread
+ * parses it and, once it completes, every registered worker is notified so
+ * it can process the flows it owns in its own thread. The next dump can only
+ * start after all of them have released the current one, which allows the
+ * FlowMatches to be reused across dumps.
+ */
+final class FlowStatsDump(flowProcessor: FlowProcessor)
+    extends Observer[ByteBuffer] with AttributeHandler {
+    import FlowStatsDump._
+
+    private val log = Logger(LoggerFactory.getLogger(
+        "org.midonet.datapath.flow-stats-dump"))
+
+    private val matches = new ArrayList[FlowMatch]()
+    private var packets = new Array[Long](64)
+    private var numFlows = 0
+
+    private val keys = new ArrayList[FlowKey]()
+    private val stats = new FlowStats()
+
+    var failure: Throwable = _
+
+    private val readers = new ArrayList[ActorRef]()
+    private val pendingReaders = new AtomicInteger()
+    private val state = new AtomicInteger(IDLE)
+    @volatile private var nextDump = Long.MinValue
+    @volatile private var completedDumps = 0L
+
+    def isFailed = failure ne null
+
+    /**
+     * The number of completed dumps. A worker processes the current dump
+     * when this changes from the value it last saw.
+     */
+    def generation: Long = completedDumps
+
+    /**
+     * The number of flows in the dump.
+     */
+    def size: Int = numFlows
+
+    def flowMatch(i: Int): FlowMatch = matches.get(i)
+
+    def flowPackets(i: Int): Long = packets(i)
+
+    /**
+     * Registers a worker that must process every dump from now on, and
+     * returns the generation it has already seen.
+     */
+    def register(actor: ActorRef): Long = synchronized {
+        readers.add(actor)
+        completedDumps
+    }
+
+    /**
+     * Starts a dump of the datapath flows if no dump is in progress or
+     * waiting to be processed, and the previous one started at least the
+     * given interval ago.
+     */
+    def tryStart(datapathId: Int, now: Long, interval: Long): Boolean =
+        if (now >= nextDump && state.compareAndSet(IDLE, PENDING)) {
+            if (flowProcessor.tryDump(datapathId, this)) {
+                nextDump = now + interval
+                true
+            } else {
+                state.set(IDLE)
+                false
+            }
+        } else {
+            false
+        }
+
+    /**
+     * Called by each worker once it has processed the current dump.
+     */
+    def release(): Unit =
+        if (pendingReaders.decrementAndGet() == 0)
+            clear()
+
+    private def clear(): Unit = {
+        numFlows = 0
+        failure = null
+        state.set(IDLE)
+    }
+
+    override def onNext(buf: ByteBuffer): Unit =
+        try {
+            keys.clear()
+            stats.clear()
+            buf.getInt() // datapath index
+            NetlinkMessage.scanAttributes(buf, this)
+            if (!keys.isEmpty) {
+                addFlow()
+            }
+        } catch { case e: Throwable =>
+            failure = e
+        }
+
+    override def use(buf: ByteBuffer, id: Short): Unit =
+        NetlinkMessage.unnest(id) match {
+            case Attr.Key => FlowKeys.buildFrom(buf, keys)
+            case Attr.Stats => stats.deserialize(buf)
+            case _ =>
+        }
+
+    private def addFlow(): Unit = {
+        val fmatch = if (numFlows < matches.size()) {
+            val m = matches.get(numFlows)
+            m.clear()
+            m
+        } else {
+            val m = new FlowMatch()
+            matches.add(m)
+            m
+        }
+        fmatch.addKeys(keys)
+        if (numFlows == packets.length) {
+            val newPackets = new Array[Long](packets.length * 2)
+            System.arraycopy(packets, 0, newPackets, 0, numFlows)
+            packets = newPackets
+        }
+        packets(numFlows) = stats.packets
+        numFlows += 1
+    }
+
+    override def onCompleted(): Unit = {
+        if (failure ne null)
+            log.warn("Failed to dump the datapath flows", failure)
+        val actors = synchronized {
+            pendingReaders.set(readers.size())
+            completedDumps += 1
+            state.set(COMPLETED)
+            readers.toArray(new Array[ActorRef](readers.size()))
+        }
+        if (actors.length == 0) {
+            clear()
+        } else {
+            var i = 0
+            while (i < actors.length) {
+                actors(i) ! CheckBackchannels
+                i += 1
+            }
+        }
+    }
+
+    override def onError(e: Throwable): Unit = {
+        failure = e
+        onCompleted()
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+object FlowTableSizeController {
+    private final val GrowNumerator = 5
+    private final val ShrinkNumerator = 3
+    private final val Denominator = 4
+}
+
+/**
+ * Adapts the effective flow limit to the load observed by the datapath. It
+ * is fed periodic samples of the cumulative datapath counters, from which it
+ * computes the fraction of packets that missed the flow table, either
+ * resulting in an upcall or being lost, and the average number of masks the
+ * kernel checked for each lookup.
+ *
+ * When the lookup cost exceeds its target, the flow limit is decreased
+ * multiplicatively down to minFlows, as fewer flows mean fewer masks to check.
+ * Otherwise, when the miss rate exceeds its target, the flow limit is
+ * increased multiplicatively up to maxFlows so that flows stay installed for
+ * longer. Samples without traffic leave the limit unchanged.
+ *
+ * This class is not thread-safe.
+ */
+final class FlowTableSizeController(maxFlows: Int, minFlows: Int,
+                                    targetMissRate: Double,
+                                    targetMasksPerLookup: Double) {
+    import FlowTableSizeController._
+
+    private val lowerLimit = Math.max(1, Math.min(minFlows, maxFlows))
+
+    private var limit = maxFlows
+    private var sampled = false
+    private var prevHits = 0L
+    private var prevMisses = 0L
+    private var prevLost = 0L
+    private var prevMaskHits = 0L
+
+    /**
+     * The fraction of the packets that missed the flow table in the last
+     * sample.
+     */
+    var missRate = 0d
+
+    /**
+     * The average number of masks checked per lookup in the last sample, or
+     * a negative value if the datapath doesn't report megaflow statistics.
+     */
+    var masksPerLookup = -1d
+
+    /**
+     * The number of upcalls between the last two samples.
+     */
+    var upcalls = 0L
+
+    def flowLimit: Int = limit
+
+    /**
+     * The ratio by which the flow expiration values should be scaled,
+     * which follows the ratio between the current and the maximum limit.
+     */
+    def expirationScale: Double = limit.toDouble / maxFlows
+
+    /**
+     * Updates the flow limit from a new sample of the datapath counters.
+     * The maskHits must be negative when the datapath doesn't report them.
+     * Returns whether the flow limit changed.
+     */
+    def update(hits: Long, misses: Long, lost: Long, maskHits: Long): Boolean = {
+        val dh = hits - prevHits
+        val dm = misses - prevMisses
+        val dl = lost - prevLost
+        val dmh = maskHits - prevMaskHits
+        val wasSampled = sampled
+        prevHits = hits
+        prevMisses = misses
+        prevLost = lost
+        prevMaskHits = maskHits
+        sampled = true
+
+        val lookups = dh + dm
+        // Counters that went backwards mean the datapath was recreated
+        if (!wasSampled || dh < 0 || dm < 0 || dl < 0 || lookups + dl == 0)
+            return false
+
+        upcalls = dm
+        missRate = (dm + dl).toDouble / (lookups + dl)
+        masksPerLookup =
+            if (maskHits >= 0 && dmh >= 0 && lookups > 0) dmh.toDouble / lookups
+            else -1d
+
+        val oldLimit = limit
+        if (masksPerLookup > targetMasksPerLookup) {
+            limit = Math.max(lowerLimit,
+                             (limit.toLong * ShrinkNumerator / Denominator).toInt)
+        } else if (missRate > targetMissRate) {
+            limit = Math.min(maxFlows,
+                             (limit.toLong * GrowNumerator / Denominator + 1).toInt)
+        }
+        limit != oldLimit
+    }
+}
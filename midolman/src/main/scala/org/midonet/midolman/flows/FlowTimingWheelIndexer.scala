@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.flows
+
+import scala.concurrent.duration._
+
+import com.typesafe.scalalogging.Logger
+
+object FlowTimingWheelIndexer {
+    private final val SlotBits = 6
+    private final val SlotsPerLevel = 1 << SlotBits
+    private final val SlotMask = SlotsPerLevel - 1
+    private final val Levels = 4
+    private final val MaxTicks = 1L << (SlotBits * Levels)
+
+    val DEFAULT_TICK_NANOS = (10 millis).toNanos
+}
+
+/**
+ * An alternative to the FlowExpirationIndexer that keeps flows in a
+ * hierarchical timing wheel instead of FIFO queues per expiration type. Each
+ * flow expires at the earliest of its hard deadline, absoluteExpirationNanos,
+ * and of its idle deadline, lastUsedNanos + idleTimeoutNanos, when the latter
+ * is set. Any mix of deadlines can be expressed.
+ *
+ * The wheel has 4 levels of 64 slots. A slot in level L covers 64^L ticks, so
+ * with the default 10ms tick the wheel spans more than 46 hours; flows beyond
+ * that are parked in the last level and rescheduled when it cascades. Slots
+ * hold intrusive doubly linked lists of ManagedFlows, making registration and
+ * cancellation O(1). Advancing the wheel costs O(1) per tick plus the
+ * amortized cost of cascading flows to lower levels, which each flow incurs
+ * at most once per level.
+ *
+ * Touching a flow only updates its lastUsedNanos; the flow is lazily
+ * rescheduled if, when its slot fires, its idle deadline has moved.
+ *
+ * Flows are expired up to one tick late, but never early. When the number of
+ * flows exceeds the flow limit, implementations can first evict the flows
+ * they know not to be carrying traffic through evictIdleFlows(); those with
+ * the closest deadlines are evicted otherwise. Implementations can lower the
+ * flow limit below maxFlows by overriding flowLimit.
+ */
+trait FlowTimingWheelIndexer extends FlowExpiration {
+    import FlowTimingWheelIndexer._
+
+    val log: Logger
+    val maxFlows: Int
+
+    protected def wheelTickNanos: Long = DEFAULT_TICK_NANOS
+
+    private val slots = new Array[ManagedFlow](Levels * SlotsPerLevel)
+    private var currentTick = -1L
+    private var numFlows = 0
+
+    abstract override def registerFlow(flow: ManagedFlow): Unit = {
+        super.registerFlow(flow)
+        if (currentTick < 0) {
+            currentTick = flow.lastUsedNanos / wheelTickNanos
+        }
+        schedule(flow, currentTick + 1)
+        numFlows += 1
+        flow.ref()
+    }
+
+    abstract override def removeFlow(flow: ManagedFlow): Unit = {
+        super.removeFlow(flow)
+        if (flow.wheelSlot >= 0) {
+            unlink(flow)
+            numFlows -= 1
+            flow.unref()
+        }
+    }
+
+    /**
+     * Marks the flow as used at the specified time, pushing back its idle
+     * deadline if it has one.
+     */
+    def touchFlow(flow: ManagedFlow, now: Long): Unit =
+        flow.lastUsedNanos = now
+
+    def indexedFlows: Int = numFlows
+
+    /**
+     * The number of flows above which the flows closest to their deadlines
+     * are evicted. It must not be greater than maxFlows.
+     */
+    protected def flowLimit: Int = maxFlows
+
+    def checkFlowsExpiration(now: Long): Unit = {
+        advanceTo(now / wheelTickNanos)
+        manageFlowTableSize()
+    }
+
+    private def deadlineOf(flow: ManagedFlow): Long =
+        if (flow.idleTimeoutNanos > 0)
+            Math.min(flow.absoluteExpirationNanos,
+                     flow.lastUsedNanos + flow.idleTimeoutNanos)
+        else
+            flow.absoluteExpirationNanos
+
+    private def ticksFor(nanos: Long): Long = {
+        val ticks = nanos / wheelTickNanos
+        if (nanos % wheelTickNanos > 0) ticks + 1 else ticks
+    }
+
+    /**
+     * Places the flow in the slot corresponding to its deadline, which is
+     * rounded up to the specified minimum tick.
+     */
+    private def schedule(flow: ManagedFlow, minTick: Long): Unit = {
+        var tick = Math.max(ticksFor(deadlineOf(flow)), minTick)
+        val delta = tick - currentTick
+        if (delta >= MaxTicks) {
+            tick = currentTick + MaxTicks - 1
+        }
+        var level = 0
+        while (level < Levels - 1 &&
+               (tick - currentTick) >= (1L << (SlotBits * (level + 1)))) {
+            level += 1
+        }
+        link(flow, level * SlotsPerLevel +
+                   ((tick >>> (SlotBits * level)).toInt & SlotMask))
+    }
+
+    private def link(flow: ManagedFlow, slot: Int): Unit = {
+        val head = slots(slot)
+        flow.wheelSlot = slot
+        flow.wheelPrev = null
+        flow.wheelNext = head
+        if (head ne null)
+            head.wheelPrev = flow
+        slots(slot) = flow
+    }
+
+    private def unlink(flow: ManagedFlow): Unit = {
+        val prev = flow.wheelPrev
+        val next = flow.wheelNext
+        if (prev ne null)
+            prev.wheelNext = next
+        else
+            slots(flow.wheelSlot) = next
+        if (next ne null)
+            next.wheelPrev = prev
+        flow.wheelSlot = -1
+        flow.wheelPrev = null
+        flow.wheelNext = null
+    }
+
+    private def advanceTo(nowTick: Long): Unit = {
+        if (numFlows == 0 || currentTick < 0) {
+            currentTick = Math.max(currentTick, nowTick)
+            return
+        }
+        while (currentTick < nowTick && numFlows > 0) {
+            currentTick += 1
+            var level = Levels - 1
+            while (level > 0) {
+                val shift = SlotBits * level
+                if ((currentTick & ((1L << shift) - 1)) == 0) {
+                    cascade(level * SlotsPerLevel +
+                            ((currentTick >>> shift).toInt & SlotMask))
+                }
+                level -= 1
+            }
+            expireSlot((currentTick & SlotMask).toInt)
+        }
+        currentTick = Math.max(currentTick, nowTick)
+    }
+
+    /**
+     * Moves the flows in a slot to lower levels. Rescheduled flows never land
+     * in the slot being drained, so we can pop them from its head; this also
+     * protects against flows being removed while we iterate.
+     */
+    private def cascade(slot: Int): Unit = {
+        var flow: ManagedFlow = null
+        while ({ flow = slots(slot); flow } ne null) {
+            unlink(flow)
+            schedule(flow, currentTick)
+        }
+    }
+
+    private def expireSlot(slot: Int): Unit = {
+        var flow: ManagedFlow = null
+        while ({ flow = slots(slot); flow } ne null) {
+            unlink(flow)
+            if (ticksFor(deadlineOf(flow)) > currentTick) {
+                // The flow was used since it was scheduled
+                schedule(flow, currentTick + 1)
+            } else {
+                log.debug(s"Removing flow $flow for expiration")
+                expire(flow)
+            }
+        }
+    }
+
+    private def expire(flow: ManagedFlow): Unit = {
+        numFlows -= 1
+        removeFlow(flow)
+        flow.unref()
+    }
+
+    private def manageFlowTableSize(): Unit = {
+        val excessFlows = numFlows - flowLimit
+        if (excessFlows > 0) {
+            log.debug(s"Evicting $excessFlows excess flows")
+            evictIdleFlows(excessFlows)
+            val remainingFlows = numFlows - flowLimit
+            if (remainingFlows > 0)
+                evictClosestDeadlines(remainingFlows)
+        }
+    }
+
+    /**
+     * Called when the flow table is oversubscribed, before evicting the
+     * flows closest to their deadlines. Implementations may remove up to the
+     * specified number of flows that are known not to be carrying traffic.
+     */
+    protected def evictIdleFlows(numFlowsToEvict: Int): Unit = { }
+
+    /**
+     * Evicts flows in order of their deadline, starting with the slots
+     * closest to the current tick at each level.
+     */
+    private def evictClosestDeadlines(numFlowsToEvict: Int): Unit = {
+        var evicted = 0
+        var level = 0
+        while (level < Levels && evicted < numFlowsToEvict) {
+            val base = (currentTick >>> (SlotBits * level)).toInt
+            var i = 1
+            while (i <= SlotsPerLevel && evicted < numFlowsToEvict) {
+                val slot = level * SlotsPerLevel + ((base + i) & SlotMask)
+                var flow: ManagedFlow = null
+                while (evicted < numFlowsToEvict &&
+                       ({ flow = slots(slot); flow } ne null)) {
+                    unlink(flow)
+                    expire(flow)
+                    evicted += 1
+                }
+                i += 1
+            }
+            level += 1
+        }
+    }
+}
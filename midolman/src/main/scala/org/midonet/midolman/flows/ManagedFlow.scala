@@ -37,14 +37,28 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
     val flowMatch = new FlowMatch()
     var expirationType = 0
     var absoluteExpirationNanos = 0L
+    var idleTimeoutNanos = 0L
+    var lastUsedNanos = 0L
+    var dpPackets = 0L
     var sequence = 0L
 
+    // Whether the flow is counted by the FlowExpirationIndexer
+    var expirationIndexed = false
+
+    // Intrusive links used by the FlowTimingWheelIndexer
+    var wheelSlot = -1
+    var wheelPrev: ManagedFlow = _
+    var wheelNext: ManagedFlow = _
+
     def reset(flowMatch: FlowMatch, flowTags: HashSet[FlowTag],
               flowRemovedCallbacks: ArrayList[Callback0], sequence: Long,
               expiration: Expiration, now: Long): Unit = {
         this.flowMatch.reset(flowMatch)
         expirationType = expiration.typeId
         absoluteExpirationNanos = now + expiration.value
+        idleTimeoutNanos = 0L
+        lastUsedNanos = now
+        dpPackets = 0L
         tags.addAll(flowTags)
         callbacks.addAll(flowRemovedCallbacks)
         this.sequence = sequence
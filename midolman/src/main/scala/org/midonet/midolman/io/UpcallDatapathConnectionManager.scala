@@ -15,6 +15,7 @@
  */
 package org.midonet.midolman.io
 
+import java.io.Closeable
 import java.util.concurrent.{TimeUnit, ConcurrentHashMap}
 import java.util.concurrent.locks.ReentrantLock
 
@@ -26,7 +27,7 @@ import akka.util.Timeout
 import org.midonet.midolman.PacketsEntryPoint.{GetWorkers, Workers}
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.state.FlowStatePackets
-import org.midonet.midolman.{PacketWorkflow, NetlinkCallbackDispatcher, PacketsEntryPoint}
+import org.midonet.midolman.{PacketHandoff, PacketWorkflow, NetlinkCallbackDispatcher, PacketsEntryPoint}
 import org.midonet.netlink.BufferPool
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.netlink.exceptions.NetlinkException.ErrorCode.{EBUSY, EEXIST}
@@ -161,55 +162,106 @@ abstract class UpcallDatapathConnectionManagerBase(
         }
 
     protected def makeUpcallHandler(workers: Workers)
-                                   (implicit as: ActorSystem) =
-        new BatchCollector[Packet] {
-
-            val BATCH_SIZE: Int = 16
-            val NUM_WORKERS = workers.list.length
-            var packets = Array.ofDim[Packet](workers.list.length, BATCH_SIZE)
-            var cursors = Array.fill[Int](NUM_WORKERS)(0)
-            val log = LoggerFactory.getLogger("PacketInHook")
-
-            def endBatch(worker: Int) {
-                if (cursors(worker) > 0) {
-                    workers.list(worker) ! PacketWorkflow.HandlePackets(packets(worker))
-                    cursors(worker) = 0
-                    packets(worker) = new Array[Packet](BATCH_SIZE)
-                }
-            }
+                                   (implicit as: ActorSystem)
+    : BatchCollector[Packet] with Closeable =
+        if (workers.handoffs.isEmpty) new MailboxUpcallHandler(workers)
+        else new RingUpcallHandler(workers.handoffs)
+
+    /**
+     * Dispatches packets to the worker chosen by their connection hash, and
+     * state messages to all the workers.
+     */
+    private abstract class UpcallHandler(numWorkers: Int)
+        extends BatchCollector[Packet] with Closeable {
+
+        val log = LoggerFactory.getLogger("PacketInHook")
+
+        protected def addToWorker(worker: Int, data: Packet): Unit
+
+        override def submit(data: Packet) {
+            log.trace("accumulating packet: {}", data.getMatch)
+
+            data.startTimeNanos = NanoClock.DEFAULT.tick
 
-            override def endBatch() {
+            if (FlowStatePackets.isStateMessage(data.getMatch)) {
                 var i = 0
-                while (i < NUM_WORKERS) {
-                    endBatch(i)
+                while (i < numWorkers) {
+                    addToWorker(i, data)
                     i += 1
                 }
+            } else {
+                val worker = Math.abs(data.getMatch.connectionHash) % numWorkers
+                addToWorker(worker, data)
             }
+        }
 
-            override def submit(data: Packet) {
-                log.trace("accumulating packet: {}", data.getMatch)
+        override def close(): Unit = { }
+    }
 
-                data.startTimeNanos = NanoClock.DEFAULT.tick
+    /**
+     * Sends the packets in batches to the workers' mailboxes.
+     */
+    private class MailboxUpcallHandler(workers: Workers)
+                                      (implicit as: ActorSystem)
+        extends UpcallHandler(workers.list.length) {
+
+        val BATCH_SIZE: Int = 16
+        val NUM_WORKERS = workers.list.length
+        var packets = Array.ofDim[Packet](workers.list.length, BATCH_SIZE)
+        var cursors = Array.fill[Int](NUM_WORKERS)(0)
+
+        def endBatch(worker: Int) {
+            if (cursors(worker) > 0) {
+                workers.list(worker) ! PacketWorkflow.HandlePackets(packets(worker))
+                cursors(worker) = 0
+                packets(worker) = new Array[Packet](BATCH_SIZE)
+            }
+        }
 
-                if (FlowStatePackets.isStateMessage(data.getMatch)) {
-                    var i = 0
-                    while (i < NUM_WORKERS) {
-                        addToWorkerBatch(i, data)
-                        i += 1
-                    }
-                } else {
-                    val worker = Math.abs(data.getMatch.connectionHash) % NUM_WORKERS
-                    addToWorkerBatch(worker, data)
-                }
+        override def endBatch() {
+            var i = 0
+            while (i < NUM_WORKERS) {
+                endBatch(i)
+                i += 1
             }
+        }
+
+        override protected def addToWorker(worker: Int, data: Packet): Unit = {
+            packets(worker)(cursors(worker)) = data
+            cursors(worker) += 1
+            if (cursors(worker) == BATCH_SIZE)
+                endBatch(worker)
+        }
+    }
+
+    /**
+     * Hands the packets to the workers through a ring per worker, waking up
+     * the workers at the end of each batch.
+     */
+    private class RingUpcallHandler(handoffs: IndexedSeq[PacketHandoff])
+        extends UpcallHandler(handoffs.length) {
+
+        private val producers = handoffs.map(_.register()).toArray
 
-            private def addToWorkerBatch(worker: Int, data: Packet): Unit = {
-                packets(worker)(cursors(worker)) = data
-                cursors(worker) += 1
-                if (cursors(worker) == BATCH_SIZE)
-                    endBatch(worker)
+        override def endBatch() {
+            var i = 0
+            while (i < producers.length) {
+                producers(i).flush()
+                i += 1
             }
         }
+
+        override protected def addToWorker(worker: Int, data: Packet): Unit =
+            producers(worker).offer(data)
+
+        override def close(): Unit = {
+            var i = 0
+            while (i < producers.length) {
+                producers(i).close()
+                i += 1
+            }
+        }
+    }
 }
 
 /**
@@ -222,17 +274,25 @@ class OneToOneDpConnManager(c: MidolmanConfig,
 
     protected override val log = LoggerFactory.getLogger(this.getClass)
 
+    private val upcallHandlers =
+        new ConcurrentHashMap[OvsDatapathConnection, Closeable]()
+
     override def makeConnection(name: String, bucket: Bucket) =
         new SelectorBasedDatapathConnection(name, config, true, bucket, makeBufferPool())
 
     override def stopConnection(conn: ManagedDatapathConnection) {
         conn.stop()
+        val handler = upcallHandlers.remove(conn.getConnection)
+        if (handler ne null)
+            handler.close()
     }
 
     protected override def setUpcallHandler(conn: OvsDatapathConnection,
                                             w: Workers)
                                            (implicit as: ActorSystem) {
-        conn.datapathsSetNotificationHandler(makeUpcallHandler(w))
+        val handler = makeUpcallHandler(w)
+        upcallHandlers.put(conn, handler)
+        conn.datapathsSetNotificationHandler(handler)
     }
 }
 
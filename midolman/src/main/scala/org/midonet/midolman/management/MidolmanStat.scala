@@ -94,6 +94,12 @@ object MidolmanMetricCatalog {
     val SIM_LATENCY = s"$BASE.PacketPipelineHistogram.simulationLatency"
     val SIM_PACKETS = s"$BASE.PacketPipelineMeter.packetsSimulated.packets"
 
+    val EXEC_QUEUE_LATENCY = s"$BASE.PacketPipelineHistogram.packetExecutionQueueLatency"
+    val EXEC_LATENCY = s"$BASE.PacketPipelineHistogram.packetExecutionLatency"
+    val FLOW_QUEUE_LATENCY = s"$BASE.PacketPipelineHistogram.flowCreationQueueLatency"
+    val FLOW_WRITE_LATENCY = s"$BASE.PacketPipelineHistogram.flowCreationWriteLatency"
+    val FLOW_INSTALL_LATENCY = s"$BASE.PacketPipelineHistogram.flowInstallLatency"
+
     val CMS_GC= "java.lang:type=GarbageCollector,name=ConcurrentMarkSweep"
     val NEW_GC= "java.lang:type=GarbageCollector,name=ParNew"
 
@@ -105,6 +111,11 @@ object MidolmanMetricCatalog {
         val dpFlowsGauge = new Gauge(mbsc, DP_FLOWS_GAUGE)
         val latency = new Histogram(mbsc, SIM_LATENCY)
         val packets = new Meter(mbsc, SIM_PACKETS)
+        val execQueueLatency = new Histogram(mbsc, EXEC_QUEUE_LATENCY)
+        val execLatency = new Histogram(mbsc, EXEC_LATENCY)
+        val flowQueueLatency = new Histogram(mbsc, FLOW_QUEUE_LATENCY)
+        val flowWriteLatency = new Histogram(mbsc, FLOW_WRITE_LATENCY)
+        val flowInstallLatency = new Histogram(mbsc, FLOW_INSTALL_LATENCY)
         val gc = new GC(mbsc)
         val oldmem = new Pool(mbsc, OLD_MEM)
         val survivormem = new Pool(mbsc, SURVIVOR_MEM)
@@ -125,9 +136,17 @@ object MidolmanMetricCatalog {
                  new StatColumn("75th", 7, latency.get75th, 1000),
                  new StatColumn("95th", 7, latency.get95th, 1000)))
 
+        val stageLatencies = new ColumnGroup("95th latency (microsecs)",
+            List(new StatColumn("execq", 6, execQueueLatency.get95th, 1000),
+                 new StatColumn("exec", 6, execLatency.get95th, 1000),
+                 new StatColumn("flowq", 6, flowQueueLatency.get95th, 1000),
+                 new StatColumn("flowwr", 6, flowWriteLatency.get95th, 1000),
+                 new StatColumn("install", 7, flowInstallLatency.get95th, 1000)))
+
         val columns = List(
             new StatColumn("dpflows", 7, dpFlowsGauge.get),
             latencies,
+            stageLatencies,
             new StatColumn("packets", 7, packets.countDelta),
             new StatColumn("gc time", 8, gc.getDelta),
             edenGroup, survivorGroup, oldGroup)
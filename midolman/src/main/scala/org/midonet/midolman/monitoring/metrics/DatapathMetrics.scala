@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.monitoring.metrics
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.codahale.metrics.{Histogram, MetricRegistry}
+import com.codahale.metrics.MetricRegistry.name
+
+object DatapathMetrics {
+
+    /**
+     * Accumulates the upcall times of the packets whose netlink messages
+     * are batched together, so that their latency can be recorded once the
+     * batch is written. This class is not thread-safe.
+     */
+    final class PendingLatencies(histogram: Histogram, capacity: Int) {
+        private val startTimes = new Array[Long](Math.max(capacity, 1))
+        private var size = 0
+
+        /**
+         * Adds the upcall time of a packet whose message is pending. Times
+         * of zero, which correspond to packets not received from the
+         * datapath, are ignored.
+         */
+        def add(startTimeNanos: Long): Unit =
+            if (startTimeNanos > 0 && size < startTimes.length) {
+                startTimes(size) = startTimeNanos
+                size += 1
+            }
+
+        /**
+         * Records the latency of the pending packets, whose messages have
+         * been written at the specified time.
+         */
+        def record(now: Long): Unit = {
+            var i = 0
+            while (i < size) {
+                histogram.update(now - startTimes(i))
+                i += 1
+            }
+            size = 0
+        }
+
+        /**
+         * Discards the pending packets, such as when their batch could not
+         * be written.
+         */
+        def clear(): Unit =
+            size = 0
+
+        def isEmpty: Boolean = size == 0
+    }
+}
+
+/**
+ * Latency histograms, in nanoseconds, for the stages a packet goes through
+ * after being simulated: the time it waits in the output ring buffer until
+ * its packet executor or flow processor picks it up, the duration of the
+ * netlink writes, which for batches cover all their messages, and the total
+ * time from the upcall until the packet is executed or its flow is written
+ * to the datapath. The kernel doesn't answer successful requests, so a write
+ * is the last step we can observe.
+ *
+ * The histograms are shared by all the output threads.
+ */
+class DatapathMetrics(val registry: MetricRegistry) {
+
+    val packetExecutionQueueLatency = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "packetExecutionQueueLatency"))
+
+    val packetExecutionWriteLatency = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "packetExecutionWriteLatency"))
+
+    val packetExecutionLatency = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "packetExecutionLatency"))
+
+    val flowCreationQueueLatency = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "flowCreationQueueLatency"))
+
+    val flowCreationWriteLatency = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "flowCreationWriteLatency"))
+
+    val flowInstallLatency = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "flowInstallLatency"))
+
+    /**
+     * The number of distinct megaflow masks amongst the flows the flow
+     * processors have installed and not yet removed. The kernel's flow
+     * lookup cost grows with this number.
+     */
+    val distinctFlowMasks = registry.counter(name(
+        classOf[FlowTablesGauge], "distinctFlowMasks"))
+
+    /* The number of installed flows with each mask. A count that drops to
+     * zero is dead and is replaced by a new one when the mask is installed
+     * again. */
+    private val flowMaskRefs =
+        new ConcurrentHashMap[java.lang.Long, AtomicInteger]()
+
+    /**
+     * Records that a flow with the mask of the specified key was installed.
+     */
+    def flowMaskInstalled(key: Long): Unit = {
+        while (true) {
+            val refs = flowMaskRefs.get(key)
+            if (refs eq null) {
+                if (flowMaskRefs.putIfAbsent(key, new AtomicInteger(1)) eq null) {
+                    distinctFlowMasks.inc()
+                    return
+                }
+            } else {
+                val count = refs.get
+                if (count == 0) {
+                    flowMaskRefs.remove(key, refs)
+                } else if (refs.compareAndSet(count, count + 1)) {
+                    return
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that a flow with the mask of the specified key was removed.
+     */
+    def flowMaskRemoved(key: Long): Unit = {
+        val refs = flowMaskRefs.get(key)
+        if (refs eq null)
+            return
+        while (true) {
+            val count = refs.get
+            if (count == 0) {
+                return
+            } else if (refs.compareAndSet(count, count - 1)) {
+                if (count == 1) {
+                    flowMaskRefs.remove(key, refs)
+                    distinctFlowMasks.dec()
+                }
+                return
+            }
+        }
+    }
+}
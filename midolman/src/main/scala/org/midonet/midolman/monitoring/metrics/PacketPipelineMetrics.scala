@@ -56,6 +56,12 @@ class PacketPipelineMetrics(val registry: MetricRegistry,
     val packetsPostponed = registry.meter(name(
         classOf[PacketPipelineMeter], "packetsPostponed", "packets"))
 
+    val packetsParked = registry.meter(name(
+        classOf[PacketPipelineMeter], "packetsParked", "packets"))
+
+    val simulationCacheHits = registry.meter(name(
+        classOf[PacketPipelineMeter], "simulationCacheHits", "packets"))
+
     val packetsProcessed = registry.meter(name(
         classOf[PacketPipelineMeter], "packetsProcessed", "packets"))
 
@@ -24,6 +24,7 @@ import org.slf4j.LoggerFactory
 
 import org.midonet.midolman._
 import org.midonet.midolman.flows.ManagedFlow
+import org.midonet.midolman.rules.RuleResult
 import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
 import org.midonet.midolman.state.{ArpRequestBroker, FlowStatePackets}
 import org.midonet.odp.{FlowMatch, Packet}
@@ -211,6 +212,9 @@ class PacketContext(val cookie: Int,
     var idle: Boolean = true
     var runs: Int = 0
 
+    // When the packet was handed off to the datapath output threads
+    var handoffNanos: Long = 0L
+
     var inPortId: UUID = _
     var outPortId: UUID = _
     val outPorts = new ArrayList[UUID]()
@@ -222,6 +226,11 @@ class PacketContext(val cookie: Int,
     var packetEmitter: PacketEmitter = _
     var arpBroker: ArpRequestBroker = _
 
+    // The result of the chain being applied to the packet and the chains it
+    // has traversed, reused by every chain the packet goes through.
+    val chainResult = new RuleResult(RuleResult.Action.CONTINUE, null)
+    val traversedChains = new ArrayList[UUID]()
+
     // Stores the callback to call when this flow is removed.
     val flowRemovedCallbacks = new ArrayList[Callback0]()
     def addFlowRemovedCallback(cb: Callback0): Unit = {
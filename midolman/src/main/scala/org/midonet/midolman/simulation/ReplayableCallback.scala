@@ -0,0 +1,30 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import org.midonet.util.functors.Callback0
+
+/**
+ * A flow removed callback that releases a reference a device took while
+ * simulating a packet, such as the flow count of a MAC-port mapping. A packet
+ * that reuses the result of that simulation through the [[SimulationCache]]
+ * replays the callback, which takes the reference again on behalf of its own
+ * flow.
+ */
+trait ReplayableCallback extends Callback0 {
+    def replay(): Unit
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.{Collections, HashMap, IdentityHashMap, Set => JSet}
+
+import org.midonet.midolman.PacketWorkflow.{AddVirtualWildcardFlow, Drop, SimulationResult}
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.FlowMatch.Field
+import org.midonet.odp.flows.FlowAction
+import org.midonet.packets.IPv4
+import org.midonet.sdn.flows.FlowTagger.{FlowStateTag, FlowTag}
+import org.midonet.util.concurrent.NanoClock
+
+object SimulationCache {
+
+    private val Fields = Field.values()
+
+    /* The fields that determine the simulation of a packet without the
+     * devices reading them: the port it ingressed through, and the ether
+     * type and VLAN the packet context relies on. */
+    private val ImplicitFields =
+        (1L << Field.InputPortNumber.ordinal) |
+        (1L << Field.EtherType.ordinal) |
+        (1L << Field.VlanId.ordinal)
+
+    /* The number of distinct sets of fields a lookup tries. */
+    private val MaxMasks = 64
+
+    /**
+     * The key of a cached simulation: the values that a match has for a set
+     * of fields. A lookup key is reused by the thread that owns it, while a
+     * cached key keeps its own copy of the match.
+     */
+    final class Key {
+        private var fields = 0L
+        private var fmatch: FlowMatch = null
+        private var hash = 0
+
+        private[simulation] def reset(fields: Long,
+                                      fmatch: FlowMatch): Key = {
+            this.fields = fields & fmatch.getUsedFields
+            this.fmatch = fmatch
+            hash = 0
+            this
+        }
+
+        override def hashCode: Int = {
+            if (hash == 0) {
+                var h = (fields ^ (fields >>> 32)).toInt
+                var i = 0
+                while (i < Fields.length) {
+                    if ((fields & (1L << i)) != 0)
+                        h = 31 * h + Fields(i).hashCode(fmatch)
+                    i += 1
+                }
+                hash = h
+            }
+            hash
+        }
+
+        override def equals(o: Any): Boolean = o match {
+            case that: Key if fields == that.fields =>
+                var i = 0
+                while (i < Fields.length) {
+                    if ((fields & (1L << i)) != 0 &&
+                        !Fields(i).equals(fmatch, that.fmatch))
+                        return false
+                    i += 1
+                }
+                true
+            case _ => false
+        }
+    }
+
+    /**
+     * The result of a simulation, along with what the simulation left in
+     * the packet context, which are applied to the context of every packet
+     * that reuses it. The fields the key matches on are marked as seen, so
+     * that the flow of a packet that reuses the result only matches the
+     * packets that would reuse it too.
+     */
+    final class Entry private[simulation] (
+            private[simulation] val key: Key,
+            seenFields: Long,
+            val result: SimulationResult,
+            actions: Array[FlowAction],
+            private[simulation] val tags: Array[FlowTag],
+            callbacks: Array[ReplayableCallback],
+            private[simulation] val expiresAt: Long) {
+
+        /**
+         * Applies the outcome of the cached simulation to the given context
+         * as if it had been simulated, taking again the references the
+         * simulation took, and returns its result.
+         */
+        def applyTo(context: PacketContext): SimulationResult = {
+            context.wcmatch.markSeenFields(seenFields)
+            var i = 0
+            while (i < actions.length) {
+                context.addVirtualAction(actions(i))
+                i += 1
+            }
+            i = 0
+            while (i < tags.length) {
+                context.addFlowTag(tags(i))
+                i += 1
+            }
+            i = 0
+            while (i < callbacks.length) {
+                callbacks(i).replay()
+                context.addFlowRemovedCallback(callbacks(i))
+                i += 1
+            }
+            result
+        }
+    }
+
+    private def isCacheable(fmatch: FlowMatch): Boolean =
+        !fmatch.isFromTunnel && fmatch.getEtherType == IPv4.ETHERTYPE
+}
+
+/**
+ * Caches the results of the simulations of packets that traverse stateless
+ * device paths, so that a packet which agrees with a previous one on every
+ * field that its simulation read reuses that simulation's result. The cache
+ * is shared by the packet processing workers: lookups are lock-free, while
+ * insertions and invalidations are serialized.
+ *
+ * An entry is tagged with the flow tags of its simulation and is dropped
+ * when any of them is invalidated, so that it never outlives the flows it
+ * would have created. It also expires after the given time, in nanoseconds,
+ * like the flows that are created from it.
+ */
+final class SimulationCache(capacity: Int, expiration: Long, clock: NanoClock) {
+    import SimulationCache._
+
+    @volatile private var masks = new Array[Long](0)
+    @volatile private var currentGeneration = 0L
+    private val entries = new ConcurrentHashMap[Key, Entry]()
+    private val tagToEntries = new HashMap[FlowTag, JSet[Entry]]()
+
+    def size: Int = entries.size
+
+    /**
+     * The current generation, which a worker reads before simulating a
+     * packet whose result it may cache.
+     */
+    def generation: Long = currentGeneration
+
+    /**
+     * Returns the cached simulation for the given match, or null. The key is
+     * reused for each lookup, and belongs to the calling thread.
+     */
+    def get(fmatch: FlowMatch, key: Key): Entry = {
+        if (!isCacheable(fmatch))
+            return null
+        val ms = masks
+        var i = 0
+        while (i < ms.length) {
+            val entry = entries.get(key.reset(ms(i), fmatch))
+            if (entry ne null) {
+                if (entry.expiresAt - clock.tick > 0)
+                    return entry
+                remove(entry)
+            }
+            i += 1
+        }
+        null
+    }
+
+    /**
+     * Caches the result of the simulation of the given context, if it can be
+     * reused: it created a flow or a drop, read no userspace fields, touched
+     * no flow state, traced nothing, and all its flow removed callbacks can
+     * be replayed. The caller ensures it generated no packets, and passes
+     * the generation in which the simulation started: the result is dropped
+     * if a tag was invalidated since.
+     */
+    def put(context: PacketContext, result: SimulationResult,
+            generation: Long): Boolean = {
+        if (!isCacheable(context, result))
+            return false
+
+        val callbacks = new Array[ReplayableCallback](
+            context.flowRemovedCallbacks.size)
+        var i = 0
+        while (i < callbacks.length) {
+            context.flowRemovedCallbacks.get(i) match {
+                case cb: ReplayableCallback => callbacks(i) = cb
+                case _ => return false
+            }
+            i += 1
+        }
+
+        val tags = new Array[FlowTag](context.flowTags.size)
+        val it = context.flowTags.iterator()
+        i = 0
+        while (it.hasNext) {
+            val tag = it.next()
+            if (tag.isInstanceOf[FlowStateTag])
+                return false
+            tags(i) = tag
+            i += 1
+        }
+
+        val fmatch = new FlowMatch()
+        fmatch.reset(context.origMatch)
+        val mask = context.wcmatch.getSeenFields | ImplicitFields
+        val key = new Key().reset(mask, fmatch)
+        val entry = new Entry(
+            key, mask, result,
+            context.virtualFlowActions.toArray(new Array[FlowAction](0)),
+            tags, callbacks, clock.tick + expiration)
+
+        // Hashes the key out of the lock.
+        key.hashCode
+        val cached = synchronized {
+            generation == currentGeneration && addMask(mask) && {
+                if (entries.size >= capacity)
+                    evictOne()
+                val replaced = entries.put(key, entry)
+                if (replaced ne null)
+                    unindex(replaced)
+                index(entry)
+                true
+            }
+        }
+        // The flow of this packet matches on the same fields as the flows
+        // of the packets that reuse the result.
+        if (cached)
+            context.wcmatch.markSeenFields(mask)
+        cached
+    }
+
+    /**
+     * Drops the cached simulations tagged with the given tag.
+     */
+    def invalidate(tag: FlowTag): Unit = synchronized {
+        currentGeneration += 1
+        val set = tagToEntries.remove(tag)
+        if (set ne null) {
+            val it = set.iterator()
+            while (it.hasNext) {
+                val entry = it.next()
+                if (entries.remove(entry.key, entry))
+                    unindex(entry)
+            }
+        }
+    }
+
+    private def remove(entry: Entry): Unit = synchronized {
+        if (entries.remove(entry.key, entry))
+            unindex(entry)
+    }
+
+    private def evictOne(): Unit = {
+        val it = entries.values.iterator()
+        if (it.hasNext) {
+            val entry = it.next()
+            it.remove()
+            unindex(entry)
+        }
+    }
+
+    private def index(entry: Entry): Unit = {
+        var i = 0
+        while (i < entry.tags.length) {
+            var set = tagToEntries.get(entry.tags(i))
+            if (set eq null) {
+                set = Collections.newSetFromMap(new IdentityHashMap())
+                tagToEntries.put(entry.tags(i), set)
+            }
+            set.add(entry)
+            i += 1
+        }
+    }
+
+    private def unindex(entry: Entry): Unit = {
+        var i = 0
+        while (i < entry.tags.length) {
+            val set = tagToEntries.get(entry.tags(i))
+            if ((set ne null) && set.remove(entry) && set.isEmpty)
+                tagToEntries.remove(entry.tags(i))
+            i += 1
+        }
+    }
+
+    /* Adds a mask to the ones lookups try, unless there are too many. */
+    private def addMask(mask: Long): Boolean = {
+        val ms = masks
+        var i = 0
+        while (i < ms.length) {
+            if (ms(i) == mask)
+                return true
+            i += 1
+        }
+        if (ms.length < MaxMasks) {
+            masks = ms :+ mask
+            true
+        } else {
+            false
+        }
+    }
+
+    private def isCacheable(context: PacketContext,
+                            result: SimulationResult): Boolean =
+        (result match {
+            case AddVirtualWildcardFlow | Drop => true
+            case _ => false
+        }) &&
+        context.ingressed &&
+        isCacheable(context.origMatch) &&
+        !context.wcmatch.userspaceFieldsSeen &&
+        !context.containsFlowState &&
+        !context.tracingEnabled
+}
@@ -18,8 +18,6 @@ package org.midonet.midolman.simulation
 
 import java.util.ArrayList
 
-import com.google.protobuf.MessageLite
-
 import org.midonet.midolman.state.{NatLeaser, FlowState, ConnTrackState, NatState}
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackValue, ConnTrackKey}
 import org.midonet.midolman.state.NatState.{NatKey, NatBinding}
@@ -33,7 +31,8 @@ trait StateContext extends FlowState
                    with NatState
                    with TraceState { this: PacketContext =>
 
-    var stateMessage: MessageLite = _
+    /* The payloads of the state packets, built by the FlowStateReplicator */
+    val stateMessages = new ArrayList[Array[Byte]]()
     val stateActions = new ArrayList[FlowAction]()
 
     def initialize(conntrackTx: FlowStateTransaction[ConnTrackKey, ConnTrackValue],
@@ -57,6 +56,7 @@ trait StateContext extends FlowState
 
     override def clear(): Unit = {
         super.clear()
+        stateMessages.clear()
         stateActions.clear()
     }
 }
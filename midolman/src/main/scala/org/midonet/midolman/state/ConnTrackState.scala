@@ -25,8 +25,8 @@ import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.topology.devices.Port
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.{ICMP, IPAddr, IPv4, TCP, UDP}
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.packets.{ICMP, IPAddr, IPv4, IPv4Addr, TCP, UDP}
+import org.midonet.sdn.state.{FlowStateCodec, FlowStateTransaction}
 
 object ConnTrackState {
     type ConnTrackValue = java.lang.Boolean
@@ -54,6 +54,44 @@ object ConnTrackState {
                                 s"$networkProtocol:$deviceId"
     }
 
+    /**
+     * Encodes IPv4 connection tracking keys into five words: the addresses,
+     * the transport ports or ICMP identifiers, the protocol, and the device
+     * ID. The values are encoded as 1 for forward flows and 0 for return
+     * flows.
+     */
+    object ConnTrackKeyCodec extends FlowStateCodec[ConnTrackKey, ConnTrackValue] {
+        override def keyWords = 5
+
+        override def encodeKey(k: ConnTrackKey, words: Array[Long],
+                               offset: Int): Boolean = (k.networkSrc, k.networkDst) match {
+            case (src: IPv4Addr, dst: IPv4Addr) if k.deviceId ne null =>
+                words(offset) = (src.toInt.toLong << 32) | (dst.toInt & 0xffffffffL)
+                words(offset + 1) = (k.icmpIdOrTransportSrc.toLong << 32) |
+                                    (k.icmpIdOrTransportDst & 0xffffffffL)
+                words(offset + 2) = k.networkProtocol & 0xffL
+                words(offset + 3) = k.deviceId.getMostSignificantBits
+                words(offset + 4) = k.deviceId.getLeastSignificantBits
+                true
+            case _ =>
+                false
+        }
+
+        override def decodeKey(words: Array[Long], offset: Int) =
+            ConnTrackKey(IPv4Addr.fromInt((words(offset) >>> 32).toInt),
+                         (words(offset + 1) >>> 32).toInt,
+                         IPv4Addr.fromInt(words(offset).toInt),
+                         words(offset + 1).toInt,
+                         words(offset + 2).toByte,
+                         new UUID(words(offset + 3), words(offset + 4)))
+
+        override def encodeValue(v: ConnTrackValue): Long =
+            if (v.booleanValue) 1L else 0L
+
+        override def decodeValue(word: Long): ConnTrackValue =
+            java.lang.Boolean.valueOf(word != 0L)
+    }
+
     def EgressConnTrackKey(wcMatch: FlowMatch, egressDeviceId: UUID): ConnTrackKey =
         ConnTrackKey(wcMatch.getNetworkDstIP,
                      icmpIdOr(wcMatch, wcMatch.getDstPort),
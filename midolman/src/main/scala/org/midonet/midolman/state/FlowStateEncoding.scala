@@ -0,0 +1,371 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{Arrays, UUID}
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
+import org.midonet.odp.flows.FlowKeyEtherType
+import org.midonet.packets.{FlowStateEthernet, IPAddr, IPv4Addr, IPv6Addr, MAC}
+
+/**
+ * Flat binary encoding of the flow state replication messages, which is
+ * written and read directly against byte arrays instead of going through
+ * the protocol buffers objects. All the numbers are big-endian.
+ *
+ *     +------------------------------------------------+
+ *     | 0x00 | version | entry count (16) | sender (128)|
+ *     +------------------------------------------------+
+ *     | type | entry                                   |
+ *     +------------------------------------------------+
+ *     | ...                                            |
+ *     +------------------------------------------------+
+ *
+ * A protocol buffers message is prefixed by its length, which is never zero
+ * for a state message, so the leading zero byte tells both encodings apart.
+ *
+ * An ingress port entry starts a new flow state, to which the conntrack, NAT
+ * and trace entries that follow it belong:
+ *
+ *     INGRESS_PORT: port (128)
+ *     CONNTRACK:    src ip | src port (32) | dst ip | dst port (32) |
+ *                   protocol (8) | device (128)
+ *     NAT:          key type (8) | src ip (32) | src port (32) |
+ *                   dst ip (32) | dst port (32) | protocol (8) |
+ *                   device (128) | binding ip (32) | binding port (32)
+ *     TRACE:        field flags (8) | present fields | flow trace id (128) |
+ *                   request count (16) | request ids (128 each)
+ *
+ * where an ip is its version (8) followed by its 4 or 16 bytes.
+ */
+object FlowStateEncoding {
+
+    val MARKER: Byte = 0
+    val VERSION: Byte = 1
+    val HEADER_LENGTH = 20
+
+    val INGRESS_PORT = 1
+    val CONNTRACK = 2
+    val NAT = 3
+    val TRACE = 4
+
+    private val TRACE_ETH_SRC = 0x01
+    private val TRACE_ETH_DST = 0x02
+    private val TRACE_ETHER_TYPE = 0x04
+    private val TRACE_IP_SRC = 0x08
+    private val TRACE_IP_DST = 0x10
+    private val TRACE_IP_PROTO = 0x20
+    private val TRACE_TP_SRC = 0x40
+    private val TRACE_TP_DST = 0x80
+
+    private val NO_ETHER_TYPE = FlowKeyEtherType.Type.ETH_P_NONE.value.toShort
+
+    /**
+     * Receives the entries of a decoded message.
+     */
+    trait Handler {
+        def connTrackKey(k: ConnTrackKey): Unit
+        def natEntry(k: NatKey, v: NatBinding): Unit
+        def traceEntry(k: TraceKey, ctx: TraceContext): Unit
+    }
+
+    /**
+     * Whether the state message in the given payload uses this encoding.
+     */
+    def isFlat(data: Array[Byte]): Boolean =
+        data.length >= HEADER_LENGTH && data(0) == MARKER
+
+    /**
+     * Decodes the message in the given payload, passing its entries to the
+     * handler. Returns false if the message has an unknown version or is
+     * malformed, in which case the entries decoded up to that point will
+     * have been passed to the handler.
+     */
+    def decode(data: Array[Byte], handler: Handler): Boolean =
+        if (!isFlat(data) || data(1) != VERSION) {
+            false
+        } else try {
+            val reader = new Reader(data)
+            reader.pos = 2
+            val entries = reader.u16()
+            reader.pos = HEADER_LENGTH
+            var i = 0
+            while (i < entries) {
+                reader.u8() match {
+                    case INGRESS_PORT => reader.uuid()
+                    case CONNTRACK => handler.connTrackKey(reader.connTrackKey())
+                    case NAT => handler.natEntry(reader.natKey(), reader.natBinding())
+                    case TRACE => reader.traceEntry(handler)
+                    case _ => throw new IllegalArgumentException
+                }
+                i += 1
+            }
+            true
+        } catch {
+            case _: IndexOutOfBoundsException => false
+            case _: IllegalArgumentException => false
+        }
+
+    /**
+     * Returns the sender of the message in the given payload, which must
+     * use this encoding.
+     */
+    def sender(data: Array[Byte]): UUID = {
+        val reader = new Reader(data)
+        reader.pos = 4
+        reader.uuid()
+    }
+
+    private final class Reader(buf: Array[Byte]) {
+        var pos = 0
+
+        def u8(): Int = {
+            val v = buf(pos) & 0xff
+            pos += 1
+            v
+        }
+
+        def u16(): Int = (u8() << 8) | u8()
+
+        def u32(): Int = (u16() << 16) | u16()
+
+        def u48(): Long = (u16().toLong << 32) | (u32() & 0xffffffffL)
+
+        def u64(): Long = (u32().toLong << 32) | (u32() & 0xffffffffL)
+
+        def uuid(): UUID = new UUID(u64(), u64())
+
+        def ip(): IPAddr = u8() match {
+            case 4 => new IPv4Addr(u32())
+            case 6 => new IPv6Addr(u64(), u64())
+            case _ => throw new IllegalArgumentException
+        }
+
+        def connTrackKey(): ConnTrackKey =
+            ConnTrackKey(ip(), u32(), ip(), u32(), u8().toByte, uuid())
+
+        def natKey(): NatKey = {
+            val keyType = NatState.keyTypeFor(u8())
+            NatKey(keyType, new IPv4Addr(u32()), u32(), new IPv4Addr(u32()),
+                   u32(), u8().toByte, uuid())
+        }
+
+        def natBinding(): NatBinding = NatBinding(new IPv4Addr(u32()), u32())
+
+        def traceEntry(handler: Handler): Unit = {
+            val flags = u8()
+            val key = TraceKey(
+                if ((flags & TRACE_ETH_SRC) != 0) new MAC(u48()) else null,
+                if ((flags & TRACE_ETH_DST) != 0) new MAC(u48()) else null,
+                if ((flags & TRACE_ETHER_TYPE) != 0) u16().toShort
+                else NO_ETHER_TYPE,
+                if ((flags & TRACE_IP_SRC) != 0) ip() else null,
+                if ((flags & TRACE_IP_DST) != 0) ip() else null,
+                if ((flags & TRACE_IP_PROTO) != 0) u8().toByte else 0,
+                if ((flags & TRACE_TP_SRC) != 0) u32() else 0,
+                if ((flags & TRACE_TP_DST) != 0) u32() else 0)
+            val ctx = new TraceContext
+            ctx.enable(uuid())
+            var requests = u16()
+            while (requests > 0) {
+                ctx.addRequest(uuid())
+                requests -= 1
+            }
+            handler.traceEntry(key, ctx)
+        }
+    }
+}
+
+/**
+ * Writes flow state messages in the flat encoding to a reusable buffer,
+ * sized for the payload of a single state packet. Each add method returns
+ * false, leaving the message unchanged, when the entry doesn't fit.
+ *
+ * This class is not thread-safe.
+ */
+final class FlowStateEncoder(sender: UUID,
+        capacity: Int = FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH) {
+    import FlowStateEncoding._
+
+    private val buf = new Array[Byte](capacity)
+    private var pos = 0
+    private var entries = 0
+    private var truncated = false
+
+    reset()
+
+    /**
+     * The number of bytes of the message.
+     */
+    def length: Int = pos
+
+    /**
+     * Whether some entry was left out because it didn't fit.
+     */
+    def overflowed: Boolean = truncated
+
+    def reset(): Unit = {
+        pos = 0
+        entries = 0
+        truncated = false
+        u8(MARKER)
+        u8(VERSION)
+        u16(0)
+        uuid(sender)
+    }
+
+    def startState(ingressPort: UUID): Boolean =
+        if (fits(17)) {
+            u8(INGRESS_PORT)
+            uuid(ingressPort)
+            entry()
+        } else false
+
+    def addConnTrackKey(k: ConnTrackKey): Boolean =
+        if (fits(26 + ipLength(k.networkSrc) + ipLength(k.networkDst))) {
+            u8(CONNTRACK)
+            ip(k.networkSrc)
+            u32(k.icmpIdOrTransportSrc)
+            ip(k.networkDst)
+            u32(k.icmpIdOrTransportDst)
+            u8(k.networkProtocol)
+            uuid(k.deviceId)
+            entry()
+        } else false
+
+    def addNatEntry(k: NatKey, v: NatBinding): Boolean =
+        if (fits(43)) {
+            u8(NAT)
+            u8(k.keyType.id)
+            u32(k.networkSrc.addr)
+            u32(k.transportSrc)
+            u32(k.networkDst.addr)
+            u32(k.transportDst)
+            u8(k.networkProtocol)
+            uuid(k.deviceId)
+            u32(v.networkAddress.addr)
+            u32(v.transportPort)
+            entry()
+        } else false
+
+    def addTraceEntry(k: TraceKey, ctx: TraceContext): Boolean = {
+        var flags = 0
+        var size = 20 + 16 * ctx.requests.size
+        if (k.ethSrc ne null) { flags |= TRACE_ETH_SRC; size += 6 }
+        if (k.ethDst ne null) { flags |= TRACE_ETH_DST; size += 6 }
+        if (k.etherType != NO_ETHER_TYPE) { flags |= TRACE_ETHER_TYPE; size += 2 }
+        if (k.networkSrc ne null) {
+            flags |= TRACE_IP_SRC; size += ipLength(k.networkSrc)
+        }
+        if (k.networkDst ne null) {
+            flags |= TRACE_IP_DST; size += ipLength(k.networkDst)
+        }
+        if (k.networkProto != 0) { flags |= TRACE_IP_PROTO; size += 1 }
+        if (k.srcPort != 0) { flags |= TRACE_TP_SRC; size += 4 }
+        if (k.dstPort != 0) { flags |= TRACE_TP_DST; size += 4 }
+
+        if (fits(size)) {
+            u8(TRACE)
+            u8(flags)
+            if ((flags & TRACE_ETH_SRC) != 0) u48(k.ethSrc.asLong)
+            if ((flags & TRACE_ETH_DST) != 0) u48(k.ethDst.asLong)
+            if ((flags & TRACE_ETHER_TYPE) != 0) u16(k.etherType)
+            if ((flags & TRACE_IP_SRC) != 0) ip(k.networkSrc)
+            if ((flags & TRACE_IP_DST) != 0) ip(k.networkDst)
+            if ((flags & TRACE_IP_PROTO) != 0) u8(k.networkProto)
+            if ((flags & TRACE_TP_SRC) != 0) u32(k.srcPort)
+            if ((flags & TRACE_TP_DST) != 0) u32(k.dstPort)
+            uuid(ctx.flowTraceId)
+            u16(ctx.requests.size)
+            var i = 0
+            while (i < ctx.requests.size) {
+                uuid(ctx.requests.get(i))
+                i += 1
+            }
+            entry()
+        } else false
+    }
+
+    /**
+     * Copies the message to a new array, which can be handed to the packet
+     * executors while this encoder is reused.
+     */
+    def toByteArray: Array[Byte] = Arrays.copyOf(buf, pos)
+
+    private def entry(): Boolean = {
+        entries += 1
+        buf(2) = (entries >>> 8).toByte
+        buf(3) = entries.toByte
+        true
+    }
+
+    private def fits(size: Int): Boolean = {
+        val fit = pos + size <= buf.length && entries < 0xffff
+        if (!fit)
+            truncated = true
+        fit
+    }
+
+    private def ipLength(ip: IPAddr): Int = ip match {
+        case _: IPv4Addr => 5
+        case _: IPv6Addr => 17
+        case _ => throw new IllegalArgumentException
+    }
+
+    private def u8(v: Int): Unit = {
+        buf(pos) = v.toByte
+        pos += 1
+    }
+
+    private def u16(v: Int): Unit = {
+        u8(v >>> 8)
+        u8(v)
+    }
+
+    private def u32(v: Int): Unit = {
+        u16(v >>> 16)
+        u16(v)
+    }
+
+    private def u48(v: Long): Unit = {
+        u16((v >>> 32).toInt)
+        u32(v.toInt)
+    }
+
+    private def u64(v: Long): Unit = {
+        u32((v >>> 32).toInt)
+        u32(v.toInt)
+    }
+
+    private def uuid(id: UUID): Unit = {
+        u64(id.getMostSignificantBits)
+        u64(id.getLeastSignificantBits)
+    }
+
+    private def ip(ip: IPAddr): Unit = ip match {
+        case v4: IPv4Addr =>
+            u8(4)
+            u32(v4.addr)
+        case v6: IPv6Addr =>
+            u8(6)
+            u64(v6.upperWord)
+            u64(v6.lowerWord)
+        case _ => throw new IllegalArgumentException
+    }
+}
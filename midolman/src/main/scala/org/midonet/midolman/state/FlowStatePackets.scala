@@ -19,7 +19,7 @@ package org.midonet.midolman.state
 import java.io.ByteArrayInputStream
 import java.util.UUID
 
-import com.google.protobuf.ByteString
+import com.google.protobuf.{CodedOutputStream, MessageLite}
 
 import org.midonet.midolman.state.ConnTrackState._
 import org.midonet.midolman.state.NatState._
@@ -34,7 +34,7 @@ object FlowStatePackets {
      * Frame format for state replication messages:
      *
      *     +---------------------------------------+
-     *     | Payload (protobufs message)           |
+     *     | Payload (flat or protobufs message)   |
      *     +---------------------------------------+
      *     | UDP (arbitrary IANA-unnassigned port) |
      *     +---------------------------------------+
@@ -195,7 +195,12 @@ object FlowStatePackets {
                  if (proto.hasTpSrc) proto.getTpSrc else 0,
                  if (proto.hasTpDst) proto.getTpDst else 0)
 
-    def parseDatagram(p: Ethernet): Proto.StateMessage  = {
+    /**
+     * Returns the UDP payload of a state replication packet, or null if the
+     * ethernet addresses, ip addresses or udp ports don't match those of
+     * the state packets.
+     */
+    def statePayload(p: Ethernet): Array[Byte] = {
         if (p.getDestinationMACAddress != DST_MAC ||
             p.getSourceMACAddress != SRC_MAC) {
             return null
@@ -208,9 +213,7 @@ object FlowStatePackets {
                     case udp: UDP if udp.getDestinationPort == UDP_PORT &&
                         udp.getSourcePort == UDP_PORT =>
                         udp.getPayload match {
-                            case d: Data =>
-                                val input = new ByteArrayInputStream(d.getData)
-                                Proto.StateMessage.parseDelimitedFrom(input)
+                            case d: Data => d.getData
                             case _ => null
                         }
 
@@ -220,4 +223,28 @@ object FlowStatePackets {
             case _ => null
         }
     }
+
+    def parseDatagram(p: Ethernet): Proto.StateMessage = {
+        val data = statePayload(p)
+        if (data eq null) null
+        else parseDelimited(data)
+    }
+
+    def parseDelimited(data: Array[Byte]): Proto.StateMessage =
+        Proto.StateMessage.parseDelimitedFrom(new ByteArrayInputStream(data))
+
+    /**
+     * Serializes a message, prefixed by its length, as the payload of a
+     * state packet in the protocol buffers encoding.
+     */
+    def delimitedPayload(message: MessageLite): Array[Byte] = {
+        val size = message.getSerializedSize
+        val payload = new Array[Byte](
+            CodedOutputStream.computeRawVarint32Size(size) + size)
+        val out = CodedOutputStream.newInstance(payload)
+        out.writeRawVarint32(size)
+        message.writeTo(out)
+        out.checkNoSpaceLeft()
+        payload
+    }
 }
@@ -89,6 +89,16 @@ import org.midonet.util.functors.Callback0
  *
  *   5 Other threads' read operations will spill over to this shard for the
  *     received keys.
+ *
+ * State is sent in the flat encoding of FlowStateEncoding when flatEncoding
+ * is set, and in protocol buffers otherwise, which is what agents that
+ * predate the flat encoding understand. Both encodings are always accepted.
+ * State that doesn't fit in a single packet is split across several.
+ *
+ * When coalesce is set, the state of the flows headed to the same set of
+ * peers is accumulated until flushPendingState is called, rather than sent
+ * along with the packet of each flow, so that it is carried by as few
+ * packets as possible.
  */
 abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue],
                                        natTable: FlowStateTable[NatKey, NatBinding],
@@ -97,7 +107,9 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
                                        hostId: UUID,
                                        underlay: UnderlayResolver,
                                        flowInvalidation: FlowTagIndexer,
-                                       tos: Byte) {
+                                       tos: Byte,
+                                       flatEncoding: Boolean = false,
+                                       coalesce: Boolean = false) {
     import FlowStatePackets._
 
     protected def log: Logger
@@ -105,15 +117,16 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
     protected def getPortGroup(id: UUID): PortGroup
 
     /* Used for message building */
-    private[this] val txState = Proto.FlowState.newBuilder()
-    private[this] val txNatEntry = Proto.NatEntry.newBuilder()
-    private[this] val txTraceEntry = Proto.TraceEntry.newBuilder()
-    private[this] val currentMessage = Proto.StateMessage.newBuilder()
+    private[this] var txWriter: StatePayloadWriter = _
     private[this] var txIngressPort: UUID = _
     private[this] val txPeers: JSet[UUID] = new JHashSet[UUID]()
     private[this] val txPorts: JSet[UUID] = new JHashSet[UUID]()
 
-    private[this] val hostIdProto = uuidToProto(hostId)
+    /* The state pending to be sent, with a writer for each set of peers */
+    private[this] val pendingPeers = new ArrayList[JSet[UUID]]()
+    private[this] val pendingWriters = new ArrayList[StatePayloadWriter]()
+    private[this] var pending = 0
+
     private[this] var storage: FlowStateStorage = _
 
     storageFuture.onSuccess { case s => storage = s }(ExecutionContext.callingThread)
@@ -121,9 +134,9 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
     private val _conntrackAdder = new Reducer[ConnTrackKey, ConnTrackValue, ArrayList[Callback0]] {
         override def apply(callbacks: ArrayList[Callback0], k: ConnTrackKey,
                            v: ConnTrackValue): ArrayList[Callback0] = {
-            if (txPeers.size() > 0) {
+            if (txWriter ne null) {
                 log.debug("push conntrack key: {}", k)
-                txState.setConntrackKey(connTrackKeyToProto(k))
+                txWriter.addConnTrackKey(k)
             }
             log.debug("touch conntrack key: {}", k)
             if (storage ne null)
@@ -139,11 +152,9 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
     private val _natAdder = new Reducer[NatKey, NatBinding, ArrayList[Callback0]] {
         override def apply(callbacks: ArrayList[Callback0], k: NatKey,
                            v: NatBinding): ArrayList[Callback0] = {
-            if (txPeers.size() > 0) {
+            if (txWriter ne null) {
                 log.debug("push nat key: {}", k)
-                txNatEntry.clear()
-                txNatEntry.setK(natKeyToProto(k)).setV(natBindingToProto(v))
-                txState.addNatEntries(txNatEntry.build())
+                txWriter.addNatEntry(k, v)
             }
             log.debug("touch nat key: {}", k)
             if (storage ne null)
@@ -161,17 +172,9 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         override def apply(callbacks: ArrayList[Callback0],
                            k: TraceKey, ctx: TraceContext)
                 : ArrayList[Callback0] = {
-            if (txPeers.size() > 0) {
+            if (txWriter ne null) {
                 log.debug("push trace key: {}", k)
-                txTraceEntry.clear()
-
-                traceKeyToProto(k, txTraceEntry)
-                txTraceEntry.setFlowTraceId(ctx.flowTraceId)
-                val iter = ctx.requests.iterator
-                while (iter.hasNext) {
-                    txTraceEntry.addRequestId(iter.next())
-                }
-                txState.addTraceEntry(txTraceEntry.build())
+                txWriter.addTraceEntry(k, ctx)
             }
 
             callbacks.add(new Callback0 {
@@ -182,15 +185,6 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         }
     }
 
-    private def resetCurrentMessage() {
-        currentMessage.clear()
-        currentMessage.setSender(hostIdProto)
-        currentMessage.setEpoch(0L /* the epoch is not used*/)
-
-        /* We don't expect ACKs, seq is unused for now */
-        currentMessage.setSeq(0x1)
-    }
-
     def importFromStorage(batch: FlowStateBatch) {
         importConnTrack(batch.strongConnTrack.iterator(), ConnTrackState.RETURN_FLOW)
         importConnTrack(batch.weakConnTrack.iterator(), ConnTrackState.RETURN_FLOW)
@@ -231,26 +225,66 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         val egressPorts = context.outPorts
         resolvePeers(ingressPort, egressPorts, txPeers, txPorts, context.flowTags)
         txIngressPort = ingressPort
-        val callbacks = context.flowRemovedCallbacks
-        context.conntrackTx.fold(callbacks, _conntrackAdder)
-        context.natTx.fold(callbacks, _natAdder)
-        context.traceTx.fold(callbacks, _traceAdder)
-        buildMessage(context, ingressPort)
+        if (!txPeers.isEmpty) {
+            txWriter = writerFor(txPeers)
+            txWriter.startState(ingressPort)
+        }
+        try {
+            val callbacks = context.flowRemovedCallbacks
+            context.conntrackTx.fold(callbacks, _conntrackAdder)
+            context.natTx.fold(callbacks, _natAdder)
+            context.traceTx.fold(callbacks, _traceAdder)
+        } finally {
+            txWriter = null
+        }
+        if (!coalesce)
+            flushPendingState(context)
     }
 
-    def buildMessage(context: PacketContext, ingressPort: UUID): Unit =
-        if (!txPeers.isEmpty) {
-            try {
-                resetCurrentMessage()
-                txState.setIngressPort(uuidToProto(ingressPort))
-                currentMessage.addNewState(txState.build())
-                context.stateMessage = currentMessage.build()
-                hostsToActions(txPeers, context.stateActions)
-            } finally {
-                txState.clear()
-            }
+    /**
+     * Whether there is state waiting to be sent with flushPendingState.
+     */
+    def hasPendingState: Boolean = pending > 0
+
+    /**
+     * Moves the state pending to be sent to one set of peers into the state
+     * packets of the given context. When coalescing, this must be called
+     * until there is no pending state, at the latest by the end of each
+     * batch of packets the packet processing thread handles.
+     *
+     * EXPECTED CALLING THREADS: only the packet processing thread that owns
+     * this replicator.
+     */
+    def flushPendingState(context: PacketContext): Unit =
+        if (pending > 0) {
+            pending -= 1
+            val messages = context.stateMessages
+            val count = messages.size
+            pendingWriters.get(pending).drainTo(messages)
+            if (messages.size > count)
+                hostsToActions(pendingPeers.get(pending), context.stateActions)
         }
 
+    private def writerFor(peers: JSet[UUID]): StatePayloadWriter = {
+        var i = 0
+        while (i < pending) {
+            if (pendingPeers.get(i) == peers)
+                return pendingWriters.get(i)
+            i += 1
+        }
+        if (pending == pendingWriters.size) {
+            pendingPeers.add(new JHashSet[UUID]())
+            pendingWriters.add(
+                if (flatEncoding) new FlatPayloadWriter(hostId, log)
+                else new ProtoPayloadWriter(hostId, log))
+        }
+        val pendingSet = pendingPeers.get(pending)
+        pendingSet.clear()
+        pendingSet.addAll(peers)
+        pending += 1
+        pendingWriters.get(pending - 1)
+    }
+
     private def hostsToActions(hosts: JSet[UUID],
                                actions: ArrayList[FlowAction]): Unit = {
         val hostsIt = hosts.iterator
@@ -269,39 +303,51 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         if (storage ne null)
             storage.submit()
 
+    private val stateAcceptor = new FlowStateEncoding.Handler {
+        override def connTrackKey(k: ConnTrackKey): Unit = {
+            log.debug("got new conntrack key: {}", k)
+            conntrackTable.touch(k, ConnTrackState.RETURN_FLOW)
+            flowInvalidation.invalidateFlowsFor(k)
+        }
+
+        override def natEntry(k: NatKey, v: NatBinding): Unit = {
+            log.debug("Got new nat mapping: {} -> {}", k, v)
+            natTable.touch(k, v)
+            flowInvalidation.invalidateFlowsFor(k)
+        }
+
+        override def traceEntry(k: TraceKey, ctx: TraceContext): Unit = {
+            log.debug("Got new trace state: {} -> {}", k, ctx)
+            traceTable.touch(k, ctx)
+        }
+    }
+
     private def acceptNewState(msg: Proto.StateMessage) {
         val newStates = msg.getNewStateList.iterator
         while (newStates.hasNext) {
             val state = newStates.next()
             if (state.hasConntrackKey) {
-                val k = connTrackKeyFromProto(state.getConntrackKey)
-                log.debug("got new conntrack key: {}", k)
-                conntrackTable.touch(k, ConnTrackState.RETURN_FLOW)
-                flowInvalidation.invalidateFlowsFor(k)
+                stateAcceptor.connTrackKey(
+                    connTrackKeyFromProto(state.getConntrackKey))
             }
 
             val natEntries = state.getNatEntriesList.iterator
             while (natEntries.hasNext) {
                 val nat = natEntries.next()
-                val k = natKeyFromProto(nat.getK)
-                val v = natBindingFromProto(nat.getV)
-                log.debug("Got new nat mapping: {} -> {}", k, v)
-                natTable.touch(k, v)
-                flowInvalidation.invalidateFlowsFor(k)
+                stateAcceptor.natEntry(natKeyFromProto(nat.getK),
+                                       natBindingFromProto(nat.getV))
             }
 
             val traceEntries = state.getTraceEntryList.iterator
             while (traceEntries.hasNext) {
                 val trace = traceEntries.next
-                val k = traceKeyFromProto(trace)
                 val ctx = new TraceContext
                 ctx.enable(trace.getFlowTraceId)
                 val iter = trace.getRequestIdList.iterator
                 while (iter.hasNext) {
                     ctx.addRequest(iter.next)
                 }
-                log.debug("Got new trace state: {} -> {}", k, ctx)
-                traceTable.touch(k, ctx)
+                stateAcceptor.traceEntry(traceKeyFromProto(trace), ctx)
             }
         }
     }
@@ -319,14 +365,29 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
      */
     @throws(classOf[NotYetException])
     def accept(p: Ethernet) {
-        val msg = parseDatagram(p)
-        if (msg == null) {
+        val data = statePayload(p)
+        if (data == null) {
             log.info("Ignoring unexpected packet: {}", p)
             return
         }
 
-        log.debug("Got state replication message from: {}", msg.getSender)
-        acceptNewState(msg)
+        if (FlowStateEncoding.isFlat(data)) {
+            log.debug("Got state replication message from: {}",
+                      FlowStateEncoding.sender(data))
+            if (!FlowStateEncoding.decode(data, stateAcceptor)) {
+                log.warn("Ignoring malformed or unsupported state message " +
+                         "from: {}", FlowStateEncoding.sender(data))
+            }
+        } else {
+            val msg = parseDelimited(data)
+            if (msg == null) {
+                log.info("Ignoring unexpected packet: {}", p)
+                return
+            }
+
+            log.debug("Got state replication message from: {}", msg.getSender)
+            acceptNewState(msg)
+        }
     }
 
     @throws(classOf[NotYetException])
@@ -387,10 +448,13 @@ class FlowStateReplicator(
         hostId: UUID,
         underlay: UnderlayResolver,
         flowInvalidation: FlowTagIndexer,
-        tso: Byte)(implicit as: ActorSystem)
+        tso: Byte,
+        flatEncoding: Boolean = false,
+        coalesce: Boolean = false)(implicit as: ActorSystem)
         extends BaseFlowStateReplicator(conntrackTable, natTable, traceTable,
                                         storageFuture, hostId, underlay,
-                                        flowInvalidation, tso) {
+                                        flowInvalidation, tso, flatEncoding,
+                                        coalesce) {
     override val log = Logger(LoggerFactory.getLogger("org.midonet.state.replication"))
 
     @throws(classOf[NotYetException])
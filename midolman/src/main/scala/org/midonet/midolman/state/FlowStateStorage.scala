@@ -16,10 +16,10 @@
 
 package org.midonet.midolman.state
 
-import java.lang.{Integer => JInt}
 import java.net.InetAddress
-import java.util.{UUID, Set => JSet, Map => JMap, HashMap => JHashMap,
-                  HashSet => JHashSet, Iterator => JIterator}
+import java.util.{ArrayList, Collections, UUID, Set => JSet, Map => JMap,
+                  HashMap => JHashMap, HashSet => JHashSet,
+                  Iterator => JIterator}
 import java.util.concurrent.{TimeoutException, TimeUnit}
 
 import scala.concurrent.{ExecutionContext, Promise, Future}
@@ -27,9 +27,10 @@ import scala.concurrent.duration.Duration
 
 import akka.actor.ActorSystem
 import com.datastax.driver.core._
-import com.google.common.util.concurrent.{FutureCallback, Futures}
+import com.google.common.util.concurrent.{FutureCallback, Futures, ListenableFuture}
 import org.slf4j.{Logger, LoggerFactory}
 
+import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
 import org.midonet.midolman.state.NatState.{KeyType, NatKey, NatBinding}
 import org.midonet.packets.{IPv4Addr, IPAddr}
@@ -123,7 +124,8 @@ object FlowStateStorage {
             networkAddress = inetToIPAddr(r.getInet("translateIp")).asInstanceOf[IPv4Addr],
             transportPort = r.getInt("translatePort"))
 
-    def apply(session: Session): FlowStateStorage = new FlowStateStorageImpl(session)
+    def apply(session: Session, writeBehind: FlowStateWriteBehind): FlowStateStorage =
+        new FlowStateStorageImpl(session, writeBehind)
 }
 
 trait FlowStateStorage {
@@ -143,6 +145,32 @@ trait FlowStateStorage {
     def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID, weakRefs: JIterator[UUID])
 
     def submit()
+
+    /**
+     * Fetches the flow state of a port in pages of about `pageSize` keys,
+     * handing each page to `consumer` as soon as it arrives so that the
+     * state can be imported incrementally. The consumer returns a future
+     * that completes once the page has been imported, and only then is the
+     * next page fetched. The returned future completes with the number of
+     * keys once the last page has been imported.
+     *
+     * By default, the state is fetched at once and handed over as a single
+     * page.
+     */
+    def streamFlowState(portId: UUID, pageSize: Int,
+                        consumer: FlowStateBatch => Future[Any])
+                       (implicit ec: ExecutionContext, as: ActorSystem): Future[Int] = {
+        val scf = fetchStrongConnTrackRefs(portId)
+        val wcf = fetchWeakConnTrackRefs(portId)
+        val snf = fetchStrongNatRefs(portId)
+        val wnf = fetchWeakNatRefs(portId)
+
+        ((scf zip wcf) zip (snf zip wnf)) flatMap {
+            case ((sc, wc) , (sn, wn)) =>
+                val batch = FlowStateBatch(sc, wc, sn, wn)
+                consumer(batch) map { _ => batch.size() }
+        }
+    }
 }
 
 
@@ -152,64 +180,32 @@ trait FlowStateStorage {
  * This class is *NOT* thread safe, each thread that needs to submit or fetch
  * state keys from Cassandra should get its own instance. The only reason it
  * is not thread safe is because write operations are batched, a batch is
- * prepared by a series of touch*() method calls and it's then fired
- * by invoking submit.
+ * prepared by a series of touch*() method calls and it's then handed by
+ * submit to the write-behind stage shared by all instances, which writes
+ * it to Cassandra from its own thread.
  *
  * All operations are asynchronous, submit is meant to be fire-and-forget with
  * no error control and for this reason, returns Unit.
  */
-class FlowStateStorageImpl(val session: Session) extends FlowStateStorage {
+class FlowStateStorageImpl(val session: Session,
+                           writeBehind: FlowStateWriteBehind)
+        extends FlowStateStorage {
     private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
 
     import FlowStateStorage._
+    import FlowStateWriteBehind.Touch
 
-    var batch: BatchStatement = new BatchStatement()
+    private val touches = new ArrayList[Touch]()
     val ASYNC_REQUEST_TIMEOUT = Duration.create(3, TimeUnit.SECONDS)
 
     def fetchByPortStatement(table: String) =
             s"SELECT * FROM $table  WHERE port = ?;"
 
-    def touchConnTrackStatement(table: String) =
-            s"INSERT INTO $table " +
-                "  (port, proto, srcIp, srcPort, dstIp, dstPort, device) " +
-                " VALUES (?, ?, ?, ?, ?, ?, ?) " +
-                " USING TTL ?;"
-
-    def touchNatStatement(table: String) =
-            s"INSERT INTO $table " +
-                "  (port, type, proto, srcIp, srcPort, dstIp, dstPort, device, translateIp, translatePort) " +
-                " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
-                " USING TTL ?;"
-
-    val touchIngressConnTrack = session.prepare(touchConnTrackStatement(CONNTRACK_BY_INGRESS_TABLE))
-    val touchEgressConnTrack = session.prepare(touchConnTrackStatement(CONNTRACK_BY_EGRESS_TABLE))
-
-    val touchIngressNat = session.prepare(touchNatStatement(NAT_BY_INGRESS_TABLE))
-    val touchEgressNat = session.prepare(touchNatStatement(NAT_BY_EGRESS_TABLE))
-
     val fetchIngressConnTrack = session.prepare(fetchByPortStatement(CONNTRACK_BY_INGRESS_TABLE))
     val fetchEgressConnTrack = session.prepare(fetchByPortStatement(CONNTRACK_BY_EGRESS_TABLE))
     val fetchIngressNat = session.prepare(fetchByPortStatement(NAT_BY_INGRESS_TABLE))
     val fetchEgressNat = session.prepare(fetchByPortStatement(NAT_BY_EGRESS_TABLE))
 
-    private def bind(st: PreparedStatement, port: UUID, k: ConnTrackKey) = {
-        st.bind(port, k.networkProtocol.toInt.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkSrc), k.icmpIdOrTransportSrc.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkDst), k.icmpIdOrTransportDst.asInstanceOf[JInt],
-                      k.deviceId,
-                      k.expiresAfter.toSeconds.toInt: java.lang.Integer)
-    }
-
-    private def bind(st: PreparedStatement, port: UUID, k: NatKey, v: NatBinding) = {
-        st.bind(port, natKeyTypeToString(k.keyType).orNull,
-                      k.networkProtocol.toInt.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkSrc), k.transportSrc.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkDst), k.transportDst.asInstanceOf[JInt],
-                      k.deviceId,
-                      ipAddrToInet(v.networkAddress), v.transportPort.asInstanceOf[JInt],
-                      k.expiresAfter.toSeconds.toInt: java.lang.Integer)
-    }
-
     /**
      * Adds a connection tracking key to the next batch that will be sent
      * to cassandra.
@@ -221,9 +217,9 @@ class FlowStateStorageImpl(val session: Session) extends FlowStateStorage {
     override def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID,
             weakRefs: JIterator[UUID]): Unit = {
         if (strongRef ne null)
-            batch.add(bind(touchIngressConnTrack, strongRef, k))
+            touches.add(Touch(CONNTRACK_BY_INGRESS_TABLE, strongRef, k)(null))
         while (weakRefs.hasNext) {
-            batch.add(bind(touchEgressConnTrack, weakRefs.next(), k))
+            touches.add(Touch(CONNTRACK_BY_EGRESS_TABLE, weakRefs.next(), k)(null))
         }
     }
 
@@ -238,20 +234,22 @@ class FlowStateStorageImpl(val session: Session) extends FlowStateStorage {
     override def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID,
             weakRefs: JIterator[UUID]): Unit = {
         if (strongRef ne null)
-            batch.add(bind(touchIngressNat, strongRef, k, v))
+            touches.add(Touch(NAT_BY_INGRESS_TABLE, strongRef, k)(v))
         while (weakRefs.hasNext) {
-            batch.add(bind(touchEgressNat, weakRefs.next(), k, v))
+            touches.add(Touch(NAT_BY_EGRESS_TABLE, weakRefs.next(), k)(v))
         }
     }
 
     /**
-     * Sends all state accumulated through touchConnTrackKey() and touchNatKey()
-     * to Cassandra, asynchronously. Errors will be logged but ignored.
+     * Hands all state accumulated through touchConnTrackKey() and
+     * touchNatKey() to the write-behind stage, which writes it to Cassandra
+     * asynchronously. Errors will be logged but ignored.
      */
     override def submit(): Unit = {
-        val result = session.executeAsync(batch)
-        Futures.addCallback(result, touchCallback)
-        batch = new BatchStatement()
+        if (!touches.isEmpty) {
+            writeBehind.offer(touches)
+            touches.clear()
+        }
     }
 
     /**
@@ -278,6 +276,54 @@ class FlowStateStorageImpl(val session: Session) extends FlowStateStorage {
     override def fetchWeakNatRefs(port: UUID)(implicit ec: ExecutionContext, as: ActorSystem) =
         fetch(fetchEgressNat, port, resultSetToNatBindings)
 
+    /**
+     * Streams the state of a port from the four state tables, in parallel,
+     * without holding more than a page of each in memory. Rows are read as
+     * the driver fetches each page, and the next page is only requested
+     * once the consumer has imported the previous one.
+     */
+    override def streamFlowState(port: UUID, pageSize: Int,
+                                 consumer: FlowStateBatch => Future[Any])
+                                (implicit ec: ExecutionContext,
+                                          as: ActorSystem): Future[Int] = {
+        val noConnTrack = Collections.emptySet[ConnTrackKey]()
+        val noNat = Collections.emptyMap[NatKey, NatBinding]()
+        val scf = stream(fetchIngressConnTrack, port, pageSize) { (rs, rows) =>
+            consumer(FlowStateBatch(connTrackPage(rs, rows), noConnTrack, noNat, noNat))
+        }
+        val wcf = stream(fetchEgressConnTrack, port, pageSize) { (rs, rows) =>
+            consumer(FlowStateBatch(noConnTrack, connTrackPage(rs, rows), noNat, noNat))
+        }
+        val snf = stream(fetchIngressNat, port, pageSize) { (rs, rows) =>
+            consumer(FlowStateBatch(noConnTrack, noConnTrack, natPage(rs, rows), noNat))
+        }
+        val wnf = stream(fetchEgressNat, port, pageSize) { (rs, rows) =>
+            consumer(FlowStateBatch(noConnTrack, noConnTrack, noNat, natPage(rs, rows)))
+        }
+        for (sc <- scf; wc <- wcf; sn <- snf; wn <- wnf) yield sc + wc + sn + wn
+    }
+
+    private def connTrackPage(rs: ResultSet, rows: Int): JSet[ConnTrackKey] = {
+        val keys = new JHashSet[ConnTrackKey](rows * 2)
+        var i = 0
+        while (i < rows) {
+            keys.add(rowToConnTrack(rs.one()))
+            i += 1
+        }
+        keys
+    }
+
+    private def natPage(rs: ResultSet, rows: Int): JMap[NatKey, NatBinding] = {
+        val bindings = new JHashMap[NatKey, NatBinding](rows * 2)
+        var i = 0
+        while (i < rows) {
+            val row = rs.one()
+            bindings.put(rowToNatKey(row), rowToNatBinding(row))
+            i += 1
+        }
+        bindings
+    }
+
     private def resultSetToConnTrackKeys(rs: ResultSet): JSet[ConnTrackKey] = {
         val keys = new JHashSet[ConnTrackKey]()
         val rows = rs.iterator()
@@ -310,25 +356,44 @@ class FlowStateStorageImpl(val session: Session) extends FlowStateStorage {
         })
     }
 
-    private val touchCallback = new FutureCallback[ResultSet] {
-        override def onSuccess(result: ResultSet): Unit = {
-            log.debug("key touch success: {}", result)
-        }
+    private def stream(statement: PreparedStatement, portId: UUID, pageSize: Int)
+                      (page: (ResultSet, Int) => Future[Any])
+                      (implicit ec: ExecutionContext, as: ActorSystem): Future[Int] = {
+        peelResult (Option(session) map { s =>
+            val bound = statement.bind(portId)
+            bound.setFetchSize(pageSize)
+            toScalaFuture(s.executeAsync(bound)) flatMap { nextPage(_, page, 0) }
+        })
+    }
 
-        override def onFailure(t: Throwable): Unit = {
-            log.warn("failed to touch keys", t)
+    /**
+     * Hands the rows of the result set that have already been fetched to
+     * `page`, then fetches the next page, if any, once they are consumed.
+     */
+    private def nextPage(rs: ResultSet, page: (ResultSet, Int) => Future[Any],
+                         count: Int)
+                        (implicit ec: ExecutionContext, as: ActorSystem): Future[Int] = {
+        val rows = rs.getAvailableWithoutFetching
+        val consumed = if (rows > 0) page(rs, rows) else Future.successful(())
+        consumed flatMap { _ =>
+            if (rs.isFullyFetched)
+                Future.successful(count + rows)
+            else
+                toScalaFuture(rs.fetchMoreResults()) flatMap { _ =>
+                    nextPage(rs, page, count + rows)
+                }
         }
     }
 
-    private def toScalaFuture(f: ResultSetFuture)
+    private def toScalaFuture[T](f: ListenableFuture[T])
             (implicit ec: ExecutionContext,
-                      as: ActorSystem): Future[ResultSet] = {
+                      as: ActorSystem): Future[T] = {
 
-        val p: Promise[ResultSet] = Promise[ResultSet]()
-        Futures.addCallback(f, new FutureCallback[ResultSet](){
-            override def onSuccess(result: ResultSet): Unit = {
+        val p: Promise[T] = Promise[T]()
+        Futures.addCallback(f, new FutureCallback[T](){
+            override def onSuccess(result: T): Unit = {
                 if(!p.trySuccess(result)) {
-                    log.warn("failed to complete future with success {}", result)
+                    log.warn("failed to complete future with success {}", result.asInstanceOf[AnyRef])
                 }
             }
 
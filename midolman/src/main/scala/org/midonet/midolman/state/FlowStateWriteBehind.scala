@@ -0,0 +1,272 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.lang.{Integer => JInt}
+import java.util.{ArrayList, UUID, Collections, HashMap => JHashMap,
+                  List => JList}
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.LockSupport
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.codahale.metrics.MetricRegistry.name
+import com.datastax.driver.core._
+import com.google.common.util.concurrent.{FutureCallback, Futures}
+import org.jctools.queues.MpscArrayQueue
+import org.slf4j.{Logger, LoggerFactory}
+
+import org.midonet.midolman.config.FlowStateConfig
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+
+object FlowStateWriteBehind {
+
+    /**
+     * A refresh of a state key in one of the flow state tables. Touches are
+     * equal when they refer to the same row, regardless of the NAT binding,
+     * so that only the latest touch of a row in a write window is written.
+     */
+    case class Touch(table: String, port: UUID, key: AnyRef)
+                    (val binding: NatBinding)
+
+    def apply(session: Session, config: FlowStateConfig,
+              registry: MetricRegistry): FlowStateWriteBehind = {
+        val writeBehind = new FlowStateWriteBehind(
+            session, registry,
+            config.writeBehindInterval,
+            config.writeBehindQueueSize,
+            config.writeBehindMaxPending,
+            config.writeBehindBatchSize,
+            config.writeBehindMaxInFlight)
+        writeBehind.start()
+        writeBehind
+    }
+}
+
+/**
+ * Writes the flow state touched by the packet processing threads to
+ * Cassandra, off those threads.
+ *
+ * The packet processing threads hand the touches of each submit() to a
+ * bounded queue, from which a writer thread drains them once every write
+ * interval. Repeated touches of the same row within an interval are written
+ * once. The writer groups the rows by the replica that owns their partition
+ * and writes them in unlogged batches of up to `batchSize` statements, so
+ * that each batch is handled by a coordinator that holds all its rows.
+ *
+ * When Cassandra lags behind and `maxInFlight` batches are pending, the
+ * writer stops writing and keeps deduplicating up to `maxPending` rows; past
+ * that it stops draining the queue, and once the queue is full new touches
+ * are dropped. Touches only refresh the TTL of the rows, so a dropped touch
+ * costs, at worst, the state of a connection that is not touched again
+ * before its row expires.
+ */
+class FlowStateWriteBehind(val session: Session,
+                           registry: MetricRegistry,
+                           intervalMillis: Long,
+                           queueSize: Int,
+                           maxPending: Int,
+                           batchSize: Int,
+                           maxInFlight: Int) {
+    import FlowStateStorage._
+    import FlowStateWriteBehind._
+
+    private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
+
+    private val queue = new MpscArrayQueue[Touch](queueSize)
+    private val pending = new JHashMap[Touch, Touch]()
+    private val replicas = new JHashMap[Host, JList[Statement]]()
+    private val inFlight = new AtomicInteger()
+    @volatile private var running = false
+    @volatile private var pendingCount = 0
+
+    val queueDepth = registry.register(name(
+        classOf[FlowStateStorage], "writeBehindQueueDepth"),
+        new Gauge[Int] {
+            override def getValue = queue.size + pendingCount
+        })
+
+    val writeLatency = registry.timer(name(
+        classOf[FlowStateStorage], "writeBehindLatency"))
+
+    val touchesDropped = registry.counter(name(
+        classOf[FlowStateStorage], "writeBehindTouchesDropped"))
+
+    val touchesDeduplicated = registry.counter(name(
+        classOf[FlowStateStorage], "writeBehindTouchesDeduplicated"))
+
+    private def touchConnTrackStatement(table: String) =
+            s"INSERT INTO $table " +
+                "  (port, proto, srcIp, srcPort, dstIp, dstPort, device) " +
+                " VALUES (?, ?, ?, ?, ?, ?, ?) " +
+                " USING TTL ?;"
+
+    private def touchNatStatement(table: String) =
+            s"INSERT INTO $table " +
+                "  (port, type, proto, srcIp, srcPort, dstIp, dstPort, device, translateIp, translatePort) " +
+                " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+                " USING TTL ?;"
+
+    private val touchIngressConnTrack = session.prepare(touchConnTrackStatement(CONNTRACK_BY_INGRESS_TABLE))
+    private val touchEgressConnTrack = session.prepare(touchConnTrackStatement(CONNTRACK_BY_EGRESS_TABLE))
+
+    private val touchIngressNat = session.prepare(touchNatStatement(NAT_BY_INGRESS_TABLE))
+    private val touchEgressNat = session.prepare(touchNatStatement(NAT_BY_EGRESS_TABLE))
+
+    private val writer = new Thread("flow-state-write-behind") {
+        override def run(): Unit = {
+            val intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis)
+            while (running) {
+                LockSupport.parkNanos(intervalNanos)
+                try {
+                    flush()
+                } catch {
+                    case t: Throwable =>
+                        log.error("Failed to write flow state to Cassandra", t)
+                }
+            }
+        }
+    }
+    writer.setDaemon(true)
+
+    def start(): Unit = {
+        running = true
+        writer.start()
+    }
+
+    def stop(): Unit = {
+        running = false
+        writer.interrupt()
+    }
+
+    /**
+     * Hands the given touches to the writer thread, dropping those that
+     * don't fit in the queue. Safe to call from any thread.
+     */
+    def offer(touches: JList[Touch]): Unit = {
+        var i = 0
+        while (i < touches.size) {
+            if (!queue.offer(touches.get(i)))
+                touchesDropped.inc()
+            i += 1
+        }
+    }
+
+    /**
+     * Drains the queued touches and, unless Cassandra is lagging behind,
+     * writes the deduplicated rows. Only called from the writer thread, or
+     * from tests when the writer is not running.
+     */
+    def flush(): Unit = {
+        drain()
+        if (inFlight.get < maxInFlight && !pending.isEmpty) {
+            groupByReplica()
+            pending.clear()
+            val iter = replicas.values.iterator
+            while (iter.hasNext) {
+                write(iter.next())
+            }
+            replicas.clear()
+        }
+        pendingCount = pending.size
+    }
+
+    private def drain(): Unit = {
+        var touch: Touch = null
+        while (pending.size < maxPending && { touch = queue.poll(); touch ne null }) {
+            if (pending.put(touch, touch) ne null)
+                touchesDeduplicated.inc()
+        }
+    }
+
+    private def groupByReplica(): Unit = {
+        val metadata = session.getCluster.getMetadata
+        val keyspace = session.getLoggedKeyspace
+        val iter = pending.values.iterator
+        while (iter.hasNext) {
+            val statement = bind(iter.next())
+            val routingKey = statement.getRoutingKey
+            val owners = if ((keyspace ne null) && (routingKey ne null))
+                    metadata.getReplicas(keyspace, routingKey)
+                else Collections.emptySet[Host]()
+            val owner = if (owners.isEmpty) null else owners.iterator.next()
+            var statements = replicas.get(owner)
+            if (statements eq null) {
+                statements = new ArrayList[Statement]()
+                replicas.put(owner, statements)
+            }
+            statements.add(statement)
+        }
+    }
+
+    private def write(statements: JList[Statement]): Unit = {
+        var i = 0
+        while (i < statements.size) {
+            val batch = new BatchStatement(BatchStatement.Type.UNLOGGED)
+            val end = Math.min(i + batchSize, statements.size)
+            while (i < end) {
+                batch.add(statements.get(i))
+                i += 1
+            }
+            inFlight.incrementAndGet()
+            val context = writeLatency.time()
+            Futures.addCallback(session.executeAsync(batch),
+                new FutureCallback[ResultSet] {
+                    override def onSuccess(result: ResultSet): Unit = {
+                        context.stop()
+                        inFlight.decrementAndGet()
+                    }
+
+                    override def onFailure(t: Throwable): Unit = {
+                        context.stop()
+                        inFlight.decrementAndGet()
+                        log.warn("failed to touch keys", t)
+                    }
+                })
+        }
+    }
+
+    private def bind(touch: Touch): BoundStatement = touch.key match {
+        case k: ConnTrackKey if touch.table == CONNTRACK_BY_INGRESS_TABLE =>
+            bind(touchIngressConnTrack, touch.port, k)
+        case k: ConnTrackKey =>
+            bind(touchEgressConnTrack, touch.port, k)
+        case k: NatKey if touch.table == NAT_BY_INGRESS_TABLE =>
+            bind(touchIngressNat, touch.port, k, touch.binding)
+        case k: NatKey =>
+            bind(touchEgressNat, touch.port, k, touch.binding)
+    }
+
+    private def bind(st: PreparedStatement, port: UUID, k: ConnTrackKey) = {
+        st.bind(port, k.networkProtocol.toInt.asInstanceOf[JInt],
+                      ipAddrToInet(k.networkSrc), k.icmpIdOrTransportSrc.asInstanceOf[JInt],
+                      ipAddrToInet(k.networkDst), k.icmpIdOrTransportDst.asInstanceOf[JInt],
+                      k.deviceId,
+                      k.expiresAfter.toSeconds.toInt: java.lang.Integer)
+    }
+
+    private def bind(st: PreparedStatement, port: UUID, k: NatKey, v: NatBinding) = {
+        st.bind(port, natKeyTypeToString(k.keyType).orNull,
+                      k.networkProtocol.toInt.asInstanceOf[JInt],
+                      ipAddrToInet(k.networkSrc), k.transportSrc.asInstanceOf[JInt],
+                      ipAddrToInet(k.networkDst), k.transportDst.asInstanceOf[JInt],
+                      k.deviceId,
+                      ipAddrToInet(v.networkAddress), v.transportPort.asInstanceOf[JInt],
+                      k.expiresAfter.toSeconds.toInt: java.lang.Integer)
+    }
+}
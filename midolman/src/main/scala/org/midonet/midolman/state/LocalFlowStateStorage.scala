@@ -0,0 +1,692 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.io.{File, IOException, RandomAccessFile}
+import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.nio.channels.FileChannel
+import java.util.{UUID, Set => JSet, Map => JMap, HashMap => JHashMap,
+                  HashSet => JHashSet, LinkedHashMap => JLinkedHashMap,
+                  ArrayList => JArrayList, Iterator => JIterator}
+import java.util.concurrent.{ConcurrentHashMap, Executor, ExecutorService,
+                               Executors, RejectedExecutionException,
+                               ThreadFactory, TimeUnit}
+import java.util.concurrent.atomic.AtomicBoolean
+
+import scala.concurrent.{ExecutionContext, Future}
+
+import akka.actor.ActorSystem
+import org.slf4j.{Logger, LoggerFactory}
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.packets.{IPAddr, IPv4Addr}
+
+object LocalFlowStateStorage {
+    val SEGMENT_SUFFIX = ".seg"
+
+    val CONNTRACK_BY_INGRESS = 1
+    val CONNTRACK_BY_EGRESS = 2
+    val NAT_BY_INGRESS = 3
+    val NAT_BY_EGRESS = 4
+
+    private[state] val MAGIC = 0x4d46534c
+    private[state] val VERSION = 1
+    private[state] val HEADER_LENGTH = 8
+    private[state] val MAX_RECORD_LENGTH = 128
+}
+
+/**
+ * A FlowStateStorage that keeps the flow state in a log of memory-mapped
+ * segment files on the local disk, for the agents that don't have a
+ * Cassandra cluster to store it in. The state written to the log survives
+ * restarts of the agent, and is read back when the ports are bound again.
+ *
+ * All instances created over the same FlowStateLog share it, and the log is
+ * thread-safe, so each packet processing thread can get its own instance as
+ * with the Cassandra storage. Touches are appended to the mapped segments
+ * right away, from which the operating system writes them back to disk even
+ * if the agent dies, so submit() has nothing left to do. A touch that finds
+ * the segment of a port retired goes to the new segment of the port.
+ */
+class LocalFlowStateStorage(val log: FlowStateLog) extends FlowStateStorage {
+    import LocalFlowStateStorage._
+
+    override def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID,
+                                   weakRefs: JIterator[UUID]): Unit = {
+        if (strongRef ne null)
+            while (!log.segment(strongRef).append(CONNTRACK_BY_INGRESS, k)) { }
+        while (weakRefs.hasNext) {
+            val port = weakRefs.next()
+            while (!log.segment(port).append(CONNTRACK_BY_EGRESS, k)) { }
+        }
+    }
+
+    override def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID,
+                             weakRefs: JIterator[UUID]): Unit = {
+        if (strongRef ne null)
+            while (!log.segment(strongRef).append(NAT_BY_INGRESS, k, v)) { }
+        while (weakRefs.hasNext) {
+            val port = weakRefs.next()
+            while (!log.segment(port).append(NAT_BY_EGRESS, k, v)) { }
+        }
+    }
+
+    override def submit(): Unit = { }
+
+    override def fetchStrongConnTrackRefs(port: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        Future { connTrackKeys(port, CONNTRACK_BY_INGRESS) }
+
+    override def fetchWeakConnTrackRefs(port: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        Future { connTrackKeys(port, CONNTRACK_BY_EGRESS) }
+
+    override def fetchStrongNatRefs(port: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        Future { natBindings(port, NAT_BY_INGRESS) }
+
+    override def fetchWeakNatRefs(port: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        Future { natBindings(port, NAT_BY_EGRESS) }
+
+    private def connTrackKeys(port: UUID, table: Int): JSet[ConnTrackKey] = {
+        val keys = new JHashSet[ConnTrackKey]()
+        val segment = log.existingSegment(port)
+        if (segment ne null) {
+            segment.read(new FlowStateSegment.Reader {
+                override def connTrackKey(t: Int, k: ConnTrackKey): Unit =
+                    if (t == table) keys.add(k)
+                override def natEntry(t: Int, k: NatKey, v: NatBinding): Unit = { }
+            })
+        }
+        keys
+    }
+
+    private def natBindings(port: UUID, table: Int): JMap[NatKey, NatBinding] = {
+        val bindings = new JHashMap[NatKey, NatBinding]()
+        val segment = log.existingSegment(port)
+        if (segment ne null) {
+            segment.read(new FlowStateSegment.Reader {
+                override def connTrackKey(t: Int, k: ConnTrackKey): Unit = { }
+                override def natEntry(t: Int, k: NatKey, v: NatBinding): Unit =
+                    if (t == table) bindings.put(k, v)
+            })
+        }
+        bindings
+    }
+}
+
+/**
+ * Creates the storage instances over a single FlowStateLog.
+ */
+class LocalFlowStateStorageFactory(log: FlowStateLog)
+        extends FlowStateStorageFactory {
+    override def create(): Future[FlowStateStorage] =
+        Future.successful(new LocalFlowStateStorage(log))
+
+    override def stop(): Unit = log.close()
+}
+
+object FlowStateLog {
+    def apply(directory: File, segmentSize: Int): FlowStateLog =
+        new FlowStateLog(directory, segmentSize)
+
+    private def newCompactor(): ExecutorService =
+        Executors.newSingleThreadExecutor(new ThreadFactory {
+            override def newThread(r: Runnable): Thread = {
+                val thread = new Thread(r, "flow-state-compactor")
+                thread.setDaemon(true)
+                thread
+            }
+        })
+}
+
+/**
+ * The log of flow state kept in a local directory, with a segment file per
+ * port named after the port ID. Opening the log restores the segments left
+ * by a previous run in bulk, compacting away the state that has expired in
+ * the meantime and deleting the segments left empty. Afterwards, full
+ * segments are compacted by the given executor, which the log owns, so that
+ * the packet processing threads never wait for the disk. The same executor
+ * retires the segments whose records have all expired, such as those of the
+ * ports that are no longer bound, each time a segment is created.
+ */
+final class FlowStateLog(val directory: File, segmentSize: Int,
+                         clock: () => Long = () => System.currentTimeMillis,
+                         compactor: ExecutorService = FlowStateLog.newCompactor()) {
+    import LocalFlowStateStorage._
+
+    private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
+    private val segments = new ConcurrentHashMap[UUID, FlowStateSegment]()
+    private val retiring = new AtomicBoolean()
+
+    if (!directory.isDirectory && !directory.mkdirs())
+        throw new IOException(s"Cannot create flow state directory $directory")
+    restore()
+
+    /**
+     * Returns the segment of a port, creating it if it doesn't exist.
+     */
+    def segment(port: UUID): FlowStateSegment = {
+        val segment = segments.get(port)
+        if (segment ne null) segment
+        else synchronized {
+            val existing = segments.get(port)
+            if (existing ne null) existing
+            else {
+                retireExpiredInBackground()
+                val created = newSegment(fileFor(port))
+                segments.put(port, created)
+                created
+            }
+        }
+    }
+
+    /**
+     * Returns the segment of a port, or null if it has no state.
+     */
+    def existingSegment(port: UUID): FlowStateSegment = segments.get(port)
+
+    /**
+     * Deletes the segments whose records have all expired, in the calling
+     * thread.
+     */
+    def retireExpired(): Unit = {
+        var retired = 0
+        val iter = segments.entrySet.iterator
+        while (iter.hasNext) {
+            val entry = iter.next()
+            if (entry.getValue.retire()) {
+                segments.remove(entry.getKey, entry.getValue)
+                retired += 1
+            }
+        }
+        if (retired > 0)
+            log.debug(s"Retired the expired flow state of $retired ports")
+    }
+
+    /**
+     * Waits for the pending compactions and writes the segments back to
+     * disk.
+     */
+    def close(): Unit = {
+        compactor.shutdown()
+        compactor.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+        val iter = segments.values.iterator
+        while (iter.hasNext) {
+            iter.next().close()
+        }
+        segments.clear()
+    }
+
+    private def retireExpiredInBackground(): Unit =
+        if (retiring.compareAndSet(false, true)) {
+            try {
+                compactor.execute(new Runnable {
+                    override def run(): Unit =
+                        try retireExpired() finally retiring.set(false)
+                })
+            } catch { case e: RejectedExecutionException =>
+                // The log is closed
+                retiring.set(false)
+            }
+        }
+
+    private def fileFor(port: UUID) = new File(directory, port + SEGMENT_SUFFIX)
+
+    private def newSegment(file: File) =
+        new FlowStateSegment(file, segmentSize, clock, compactor)
+
+    private def restore(): Unit = {
+        val files = directory.listFiles()
+        var i = 0
+        while (i < files.length) {
+            val file = files(i)
+            val name = file.getName
+            if (name.endsWith(SEGMENT_SUFFIX + ".tmp")) {
+                // Left behind by a compaction interrupted by a crash
+                file.delete()
+            } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    val port = UUID.fromString(
+                        name.substring(0, name.length - SEGMENT_SUFFIX.length))
+                    val segment = newSegment(file)
+                    if (segment.compact()) {
+                        segments.put(port, segment)
+                    } else {
+                        segment.close()
+                        file.delete()
+                    }
+                } catch {
+                    case e: IllegalArgumentException =>
+                        log.warn(s"Ignoring unexpected file in the flow state directory: $file")
+                    case e: IOException =>
+                        log.warn(s"Discarding unreadable flow state segment: $file", e)
+                        file.delete()
+                }
+            }
+            i += 1
+        }
+        log.info(s"Restored the flow state of ${segments.size} ports from $directory")
+    }
+}
+
+object FlowStateSegment {
+    /* The records kept in memory while a segment is being compacted. */
+    private val MAX_SPILLED_RECORDS = 16384
+
+    /**
+     * Receives the live records of a segment, in the order they were
+     * appended.
+     */
+    trait Reader {
+        def connTrackKey(table: Int, k: ConnTrackKey): Unit
+        def natEntry(table: Int, k: NatKey, v: NatBinding): Unit
+    }
+}
+
+/**
+ * An append-only file of flow state records, mapped in memory. A record is
+ * its length followed by the table it belongs to, the time at which it
+ * expires and the key and, for NAT keys, the binding. The length is written
+ * last, so that a record torn by a crash of the agent reads as the end of
+ * the segment. All the numbers are big-endian.
+ *
+ * When a segment becomes full it is compacted by the compactor: the expired
+ * records and all but the last record of each key are dropped, and the rest
+ * are written to a new file that replaces the segment. The new file is twice
+ * as large when the live records fill more than half of it. The records
+ * appended in the meantime are kept in memory, where they are also read
+ * from, and written to the new file once it replaces the segment; they are
+ * lost if the agent dies before then, and dropped if the compaction falls
+ * too far behind.
+ *
+ * A segment whose records have all expired can be retired, which deletes
+ * its file. A retired segment takes no more records, and its mapping is
+ * released once it is garbage collected.
+ */
+final class FlowStateSegment(file: File, minSegmentSize: Int, clock: () => Long,
+                             compactor: Executor) {
+    import FlowStateSegment._
+    import LocalFlowStateStorage._
+
+    private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
+
+    private val minSize = Math.max(minSegmentSize,
+                                   HEADER_LENGTH + 2 * (4 + MAX_RECORD_LENGTH))
+    private val record = ByteBuffer.allocate(MAX_RECORD_LENGTH)
+    private var buffer = map(file, Math.max(file.length, minSize.toLong).toInt)
+    private var position = endOf(buffer)
+
+    private var compacting = false
+    private val spilled = new JArrayList[Array[Byte]]()
+
+    /* When the last of the records expires, never for a segment without
+     * records. */
+    private var expiresAt = latestExpiry(buffer, position)
+    private var retired = false
+
+    /**
+     * Appends a conntrack key, and returns false if the segment is retired.
+     */
+    def append(table: Int, k: ConnTrackKey): Boolean = synchronized {
+        if (!retired && (k.deviceId ne null)) {
+            startRecord(table, k.expiresAfter.toMillis)
+            ip(k.networkSrc)
+            record.putInt(k.icmpIdOrTransportSrc)
+            ip(k.networkDst)
+            record.putInt(k.icmpIdOrTransportDst)
+            record.put(k.networkProtocol)
+            uuid(k.deviceId)
+            appendRecord()
+        }
+        !retired
+    }
+
+    /**
+     * Appends a NAT key and its binding, and returns false if the segment
+     * is retired.
+     */
+    def append(table: Int, k: NatKey, v: NatBinding): Boolean = synchronized {
+        if (!retired && (k.deviceId ne null)) {
+            startRecord(table, k.expiresAfter.toMillis)
+            record.put(k.keyType.id.toByte)
+            record.putInt(k.networkSrc.toInt)
+            record.putInt(k.transportSrc)
+            record.putInt(k.networkDst.toInt)
+            record.putInt(k.transportDst)
+            record.put(k.networkProtocol)
+            uuid(k.deviceId)
+            record.putInt(v.networkAddress.toInt)
+            record.putInt(v.transportPort)
+            appendRecord()
+        }
+        !retired
+    }
+
+    /**
+     * Hands the records that haven't expired to the reader.
+     */
+    def read(reader: Reader): Unit = synchronized {
+        val now = clock()
+        val view = buffer.duplicate()
+        var pos = HEADER_LENGTH
+        while (pos < position) {
+            view.position(pos + 4)
+            readRecord(view, now, reader)
+            pos += 4 + view.getInt(pos)
+        }
+        var i = 0
+        while (i < spilled.size()) {
+            readRecord(ByteBuffer.wrap(spilled.get(i)), now, reader)
+            i += 1
+        }
+    }
+
+    /**
+     * Rewrites the segment with only the last live record of each key, in
+     * the calling thread. Returns whether any record was kept.
+     */
+    def compact(): Boolean = synchronized {
+        val live = liveRecords(buffer.duplicate(), position)
+        buffer = rewrite(live)
+        position = buffer.position
+        !live.isEmpty
+    }
+
+    /**
+     * Deletes the segment if all its records have expired and it isn't
+     * being compacted, and returns whether it is retired.
+     */
+    def retire(): Boolean = synchronized {
+        if (!retired && !compacting && expiresAt <= clock()) {
+            retired = true
+            position = HEADER_LENGTH
+            spilled.clear()
+            if (!file.delete())
+                log.warn(s"Failed to delete flow state segment $file")
+        }
+        retired
+    }
+
+    def close(): Unit = synchronized {
+        if (!retired)
+            buffer.force()
+    }
+
+    private def readRecord(view: ByteBuffer, now: Long, reader: Reader): Unit = {
+        val table = view.get().toInt
+        val expiresAt = view.getLong()
+        if (expiresAt > now) {
+            table match {
+                case CONNTRACK_BY_INGRESS | CONNTRACK_BY_EGRESS =>
+                    reader.connTrackKey(table, readConnTrackKey(view))
+                case NAT_BY_INGRESS | NAT_BY_EGRESS =>
+                    val k = readNatKey(view)
+                    reader.natEntry(table, k, readNatBinding(view))
+                case _ =>
+            }
+        }
+    }
+
+    /* The last live record of each key up to the given position, in the
+     * order they were appended. */
+    private def liveRecords(view: ByteBuffer, end: Int)
+    : JLinkedHashMap[AnyRef, Array[Byte]] = {
+        val live = new JLinkedHashMap[AnyRef, Array[Byte]]()
+        val now = clock()
+        var pos = HEADER_LENGTH
+        while (pos < end) {
+            val length = view.getInt(pos)
+            view.position(pos + 4)
+            val table = view.get().toInt
+            val expiresAt = view.getLong()
+            if (expiresAt > now) {
+                val key: AnyRef = table match {
+                    case CONNTRACK_BY_INGRESS | CONNTRACK_BY_EGRESS =>
+                        (table, readConnTrackKey(view))
+                    case NAT_BY_INGRESS | NAT_BY_EGRESS =>
+                        (table, readNatKey(view))
+                    case _ => null
+                }
+                if (key ne null) {
+                    val bytes = new Array[Byte](length)
+                    view.position(pos + 4)
+                    view.get(bytes)
+                    live.remove(key)
+                    live.put(key, bytes)
+                }
+            }
+            pos += 4 + length
+        }
+        live
+    }
+
+    /* Writes the records to a new file that replaces the segment, and
+     * returns its mapping positioned after the last record. */
+    private def rewrite(live: JLinkedHashMap[AnyRef, Array[Byte]])
+    : MappedByteBuffer = {
+        var liveLength = HEADER_LENGTH
+        var iter = live.values.iterator
+        while (iter.hasNext) {
+            liveLength += 4 + iter.next().length
+        }
+        var size = minSize
+        while (liveLength * 2 > size) {
+            size *= 2
+        }
+
+        val tmp = new File(file.getPath + ".tmp")
+        tmp.delete()
+        val mapped = map(tmp, size)
+        mapped.position(HEADER_LENGTH)
+        iter = live.values.iterator
+        while (iter.hasNext) {
+            val bytes = iter.next()
+            val pos = mapped.position
+            mapped.position(pos + 4)
+            mapped.put(bytes)
+            mapped.putInt(pos, bytes.length)
+        }
+        mapped.force()
+        if (!tmp.renameTo(file))
+            throw new IOException(s"Failed to replace flow state segment $file")
+        mapped
+    }
+
+    private def startCompaction(): Unit = {
+        compacting = true
+        val view = buffer.duplicate()
+        val end = position
+        try {
+            compactor.execute(new Runnable {
+                override def run(): Unit = compactInBackground(view, end)
+            })
+        } catch { case e: RejectedExecutionException =>
+            // The log is closed
+            compacting = false
+            spilled.clear()
+        }
+    }
+
+    /* Compacts the segment up to the given position, and again until the
+     * records spilled in the meantime fit in it. */
+    private def compactInBackground(segmentView: ByteBuffer,
+                                    segmentEnd: Int): Unit = {
+        var view = segmentView
+        var end = segmentEnd
+        while (view ne null) {
+            val compacted = try {
+                rewrite(liveRecords(view, end))
+            } catch { case e: IOException =>
+                log.warn(s"Failed to compact flow state segment $file", e)
+                null
+            }
+            synchronized {
+                view = null
+                if (compacted eq null) {
+                    spilled.clear()
+                } else {
+                    buffer = compacted
+                    position = compacted.position
+                    if (!appendSpilled()) {
+                        view = buffer.duplicate()
+                        end = position
+                    }
+                }
+                compacting = view ne null
+            }
+        }
+    }
+
+    /* Writes the records spilled during a compaction, and returns whether
+     * they all fit. A compacted segment is at most half full, so each
+     * compaction makes room for some of them. */
+    private def appendSpilled(): Boolean = {
+        var i = 0
+        while (i < spilled.size() && fits(spilled.get(i).length)) {
+            write(ByteBuffer.wrap(spilled.get(i)))
+            i += 1
+        }
+        spilled.subList(0, i).clear()
+        spilled.isEmpty
+    }
+
+    private def startRecord(table: Int, expiresAfter: Long): Unit = {
+        val expiry = clock() + expiresAfter
+        expiresAt = if (expiresAt == Long.MaxValue) expiry
+                    else Math.max(expiresAt, expiry)
+        record.clear()
+        record.put(table.toByte)
+        record.putLong(expiry)
+    }
+
+    private def appendRecord(): Unit = {
+        record.flip()
+        if (!compacting && fits(record.remaining)) {
+            write(record)
+        } else {
+            spill(record)
+            if (!compacting)
+                startCompaction()
+        }
+    }
+
+    private def fits(length: Int): Boolean =
+        position + 4 + length <= buffer.capacity
+
+    private def write(rec: ByteBuffer): Unit = {
+        val length = rec.remaining
+        buffer.position(position + 4)
+        buffer.put(rec)
+        buffer.putInt(position, length)
+        position += 4 + length
+    }
+
+    private def spill(rec: ByteBuffer): Unit =
+        if (spilled.size() < MAX_SPILLED_RECORDS) {
+            val bytes = new Array[Byte](rec.remaining)
+            rec.get(bytes)
+            spilled.add(bytes)
+        }
+
+    private def map(f: File, size: Int): MappedByteBuffer = {
+        val raf = new RandomAccessFile(f, "rw")
+        val mapped = try {
+            val valid = raf.length >= HEADER_LENGTH &&
+                        raf.readInt() == MAGIC && raf.readInt() == VERSION
+            if (!valid) {
+                // A new segment, or one in an unknown format: start afresh
+                raf.setLength(0)
+            }
+            raf.setLength(size)
+            raf.getChannel.map(FileChannel.MapMode.READ_WRITE, 0, size)
+        } finally {
+            raf.close()
+        }
+        mapped.putInt(0, MAGIC)
+        mapped.putInt(4, VERSION)
+        mapped
+    }
+
+    /* The position after the last complete record of a mapping. */
+    private def endOf(mapped: MappedByteBuffer): Int = {
+        val size = mapped.capacity
+        var end = HEADER_LENGTH
+        var length = 0
+        while (end + 4 <= size &&
+               { length = mapped.getInt(end); length > 0 } &&
+               end + 4 + length <= size) {
+            end += 4 + length
+        }
+        end
+    }
+
+    /* When the last of the records of a mapping expires. */
+    private def latestExpiry(mapped: MappedByteBuffer, end: Int): Long = {
+        var latest = Long.MaxValue
+        var pos = HEADER_LENGTH
+        while (pos < end) {
+            val expiry = mapped.getLong(pos + 5)
+            latest = if (latest == Long.MaxValue) expiry
+                     else Math.max(latest, expiry)
+            pos += 4 + mapped.getInt(pos)
+        }
+        latest
+    }
+
+    private def ip(ip: IPAddr): Unit = {
+        val bytes = ip.toBytes
+        record.put(bytes.length.toByte)
+        record.put(bytes)
+    }
+
+    private def uuid(id: UUID): Unit = {
+        record.putLong(id.getMostSignificantBits)
+        record.putLong(id.getLeastSignificantBits)
+    }
+
+    private def readIp(view: ByteBuffer): IPAddr = {
+        val bytes = new Array[Byte](view.get())
+        view.get(bytes)
+        IPAddr.fromBytes(bytes)
+    }
+
+    private def readUuid(view: ByteBuffer): UUID =
+        new UUID(view.getLong(), view.getLong())
+
+    private def readConnTrackKey(view: ByteBuffer): ConnTrackKey = {
+        val src = readIp(view)
+        val srcPort = view.getInt()
+        val dst = readIp(view)
+        val dstPort = view.getInt()
+        ConnTrackKey(src, srcPort, dst, dstPort, view.get(), readUuid(view))
+    }
+
+    private def readNatKey(view: ByteBuffer): NatKey = {
+        val keyType = NatState.keyTypeFor(view.get())
+        val src = new IPv4Addr(view.getInt())
+        val srcPort = view.getInt()
+        val dst = new IPv4Addr(view.getInt())
+        val dstPort = view.getInt()
+        NatKey(keyType, src, srcPort, dst, dstPort, view.get(), readUuid(view))
+    }
+
+    private def readNatBinding(view: ByteBuffer): NatBinding =
+        NatBinding(new IPv4Addr(view.getInt()), view.getInt())
+}
@@ -28,31 +28,31 @@ import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.odp.FlowMatch
 import org.midonet.odp.FlowMatch.Field
 import org.midonet.packets.{IPv4Addr, IPv4, ICMP, TCP, UDP}
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.sdn.state.{FlowStateCodec, FlowStateTransaction}
 
 object NatState {
     private val WILDCARD_PORT = 0
 
-    sealed abstract class KeyType {
+    sealed abstract class KeyType(val id: Int) {
         def inverse: KeyType
     }
 
-    case object FWD_SNAT extends KeyType {
+    case object FWD_SNAT extends KeyType(0) {
         def inverse = REV_SNAT
     }
-    case object FWD_DNAT extends KeyType {
+    case object FWD_DNAT extends KeyType(1) {
         def inverse = REV_DNAT
     }
-    case object FWD_STICKY_DNAT extends KeyType {
+    case object FWD_STICKY_DNAT extends KeyType(2) {
         def inverse = REV_STICKY_DNAT
     }
-    case object REV_SNAT extends KeyType {
+    case object REV_SNAT extends KeyType(3) {
         def inverse = FWD_SNAT
     }
-    case object REV_DNAT extends KeyType {
+    case object REV_DNAT extends KeyType(4) {
         def inverse = FWD_DNAT
     }
-    case object REV_STICKY_DNAT extends KeyType {
+    case object REV_STICKY_DNAT extends KeyType(5) {
         def inverse = FWD_STICKY_DNAT
     }
 
@@ -160,6 +160,51 @@ object NatState {
 
     case class NatBinding(var networkAddress: IPv4Addr, var transportPort: Int)
 
+    private val keyTypes = Array[KeyType](FWD_SNAT, FWD_DNAT, FWD_STICKY_DNAT,
+                                          REV_SNAT, REV_DNAT, REV_STICKY_DNAT)
+
+    def keyTypeFor(id: Int): KeyType = keyTypes(id)
+
+    /**
+     * Encodes NAT keys into five words: the addresses, the transport ports,
+     * the protocol together with the key type, and the device ID. A binding
+     * is encoded into a single word holding its address and port.
+     */
+    object NatKeyCodec extends FlowStateCodec[NatKey, NatBinding] {
+        override def keyWords = 5
+
+        override def encodeKey(k: NatKey, words: Array[Long],
+                               offset: Int): Boolean = {
+            if ((k.networkSrc eq null) || (k.networkDst eq null) ||
+                (k.deviceId eq null))
+                return false
+            words(offset) = (k.networkSrc.toInt.toLong << 32) |
+                            (k.networkDst.toInt & 0xffffffffL)
+            words(offset + 1) = (k.transportSrc.toLong << 32) |
+                                (k.transportDst & 0xffffffffL)
+            words(offset + 2) = (k.networkProtocol & 0xffL) |
+                                (k.keyType.id.toLong << 8)
+            words(offset + 3) = k.deviceId.getMostSignificantBits
+            words(offset + 4) = k.deviceId.getLeastSignificantBits
+            true
+        }
+
+        override def decodeKey(words: Array[Long], offset: Int) =
+            NatKey(keyTypeFor((words(offset + 2) >>> 8).toInt),
+                   IPv4Addr.fromInt((words(offset) >>> 32).toInt),
+                   (words(offset + 1) >>> 32).toInt,
+                   IPv4Addr.fromInt(words(offset).toInt),
+                   words(offset + 1).toInt,
+                   words(offset + 2).toByte,
+                   new UUID(words(offset + 3), words(offset + 4)))
+
+        override def encodeValue(v: NatBinding): Long =
+            (v.networkAddress.toInt.toLong << 32) | (v.transportPort & 0xffffffffL)
+
+        override def decodeValue(word: Long): NatBinding =
+            NatBinding(IPv4Addr.fromInt((word >>> 32).toInt), word.toInt)
+    }
+
     def releaseBinding(key: NatKey, binding: NatBinding, natLeaser: NatLeaser): Unit =
         if ((key.keyType eq NatState.FWD_SNAT) &&
             key.networkProtocol != ICMP.PROTOCOL_NUMBER) {
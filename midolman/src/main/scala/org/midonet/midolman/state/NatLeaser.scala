@@ -19,6 +19,7 @@ package org.midonet.midolman.state
 import java.lang.{Integer => JInt, Long => JLong}
 import java.util.UUID
 import java.util.concurrent.{TimeoutException, ThreadLocalRandom, ConcurrentHashMap}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicLong, AtomicLongArray}
 
 import scala.concurrent.{Promise, Future}
 import scala.concurrent.duration._
@@ -39,6 +40,11 @@ object NatLeaser {
     private val BLOCK_MASK = BLOCK_SIZE - 1
     val BLOCK_EXPIRATION = 5 minutes
     private val OBLITERATION_CYCLE = (1 minute).toNanos
+    private val PRELEASE_BACKOFF = (1 second).toNanos
+
+    // The port bitmaps hold a block in a single word
+    private val FULL_BLOCK = -1L
+    private val MAX_BLOCKS = (1 << 16) / BLOCK_SIZE
 
     private def blend(ip: IPv4Addr, port: Int): Long =
         (ip.toInt.toLong << 32) | port
@@ -53,11 +59,14 @@ object NatLeaser {
      * the leasedPorts array, can be oversubscribed based on a unique number,
      * a combination of the destination IP and port.
      * It also holds a port index to enable round-robin allocation
-     * of the ports in the block.
+     * of the ports in the block, and a bitmap of the ports that have at least
+     * one binding. The bitmap is a hint kept in step with the leasedPorts
+     * maps, which are the authority on whether a port is bound.
      */
-    sealed class LeasedBlock(val block: NatBlock) {
+    sealed class LeasedBlock(val block: NatBlock, val index: PortIndex) {
         val leasedPorts = new Array[ConcurrentHashMap[JLong, AnyRef]](BLOCK_SIZE)
         var portIndex = ThreadLocalRandom.current().nextLong()
+        val usedPorts = new AtomicLong()
 
         {
             var i = 0
@@ -66,6 +75,105 @@ object NatLeaser {
                 i += 1
             }
         }
+
+        def markUsed(portOffset: Int): Unit = {
+            val bit = 1L << portOffset
+            var used = usedPorts.get
+            while ((used & bit) == 0 && !usedPorts.compareAndSet(used, used | bit)) {
+                used = usedPorts.get
+            }
+            if ((used & bit) == 0) {
+                index.freePorts.decrementAndGet()
+                if ((used | bit) == FULL_BLOCK)
+                    index.clearFree(this)
+            }
+        }
+
+        def markUnused(portOffset: Int): Unit = {
+            val bit = 1L << portOffset
+            var used = usedPorts.get
+            while ((used & bit) != 0 && !usedPorts.compareAndSet(used, used & ~bit)) {
+                used = usedPorts.get
+            }
+            if ((used & bit) != 0) {
+                index.freePorts.incrementAndGet()
+                if (used == FULL_BLOCK)
+                    index.setFree(this)
+            }
+        }
+    }
+
+    /**
+     * The port blocks leased for a device and NatTarget IP, indexed by a
+     * bitmap of the blocks that have ports without bindings, so that such
+     * ports are found with a few word scans starting at a rotating cursor
+     * rather than by probing the ports of each block. It also counts those
+     * ports, to lease the next block before the leased ones fill up.
+     */
+    final class PortIndex(log: Logger) {
+        val blocks: LeasedBlocks = LeasedBlocks(log)
+        val freePorts = new AtomicInteger()
+        val preleasing = new AtomicBoolean()
+        @volatile var preleaseAfter = Long.MinValue
+        @volatile var cursor = 0
+        private val free = new AtomicLongArray(MAX_BLOCKS / 64)
+
+        /**
+         * Accounts for a new block, whose ports may already have been bound
+         * through the leased blocks map, in which case markUsed has already
+         * discounted them.
+         */
+        def added(lease: LeasedBlock): Unit = {
+            freePorts.addAndGet(BLOCK_SIZE)
+            setFree(lease)
+        }
+
+        def removed(lease: LeasedBlock): Unit = {
+            update(lease.block.blockIndex, set = false)
+            freePorts.addAndGet(JLong.bitCount(lease.usedPorts.get) - BLOCK_SIZE)
+        }
+
+        /**
+         * Marks a block as having free ports, unless it has filled up since.
+         * Together with clearFree, this leaves the bit of a block in
+         * agreement with its bitmap once the concurrent updates are done.
+         */
+        def setFree(lease: LeasedBlock): Unit = {
+            update(lease.block.blockIndex, set = true)
+            if (lease.usedPorts.get == FULL_BLOCK)
+                update(lease.block.blockIndex, set = false)
+        }
+
+        def clearFree(lease: LeasedBlock): Unit = {
+            update(lease.block.blockIndex, set = false)
+            if (lease.usedPorts.get != FULL_BLOCK)
+                update(lease.block.blockIndex, set = true)
+        }
+
+        /**
+         * Returns the first block in [from, to] that has free ports, or -1.
+         */
+        def nextFree(from: Int, to: Int): Int = {
+            var block = from
+            while (block <= to) {
+                val word = free.get(block >> 6) & (FULL_BLOCK << (block & 63))
+                if (word != 0) {
+                    val found = (block & ~63) + JLong.numberOfTrailingZeros(word)
+                    return if (found <= to) found else -1
+                }
+                block = (block & ~63) + 64
+            }
+            -1
+        }
+
+        private def update(block: Int, set: Boolean): Unit = {
+            val bit = 1L << (block & 63)
+            var word = free.get(block >> 6)
+            while (((word & bit) == 0) == set &&
+                   !free.compareAndSet(block >> 6, word, word ^ bit)) {
+                word = free.get(block >> 6)
+            }
+        }
     }
 
     /**
@@ -85,7 +193,7 @@ object NatLeaser {
      * BLOCK_SIZE each. Each IP address can have at most 1024 port blocks
      * leased, for a BLOCK_SIZE of 64.
      */
-    type IpLeases = ConcurrentHashMap[IPAddr, LeasedBlocks]
+    type IpLeases = ConcurrentHashMap[IPAddr, PortIndex]
 
     /**
      * This type is a map of device IDs to leased port blocks scoped by IP.
@@ -100,7 +208,12 @@ object NatLeaser {
 /**
  * Allocates a particular NatBinding for an SNAT operation. NatBindings are
  * scoped by device and by NatTarget IP and they are oversubscribed based on
- * both destination IP and destination port.
+ * both destination IP and destination port. Ports without bindings are
+ * preferred, and are only oversubscribed once the leased blocks fill up.
+ *
+ * When a device and NatTarget IP have fewer than preleaseThreshold ports
+ * without bindings left, the next block is leased in the background, so that
+ * the simulations don't wait for the allocator once the leased blocks fill.
  */
 trait NatLeaser {
     import NatLeaser._
@@ -111,6 +224,12 @@ trait NatLeaser {
     private val deviceLeases = new DeviceLeases
     private var lastObliterated = 0L
 
+    /**
+     * The number of ports without bindings below which the next block is
+     * leased in advance, 0 to only lease blocks when they're needed.
+     */
+    def preleaseThreshold: Int = 0
+
     /**
      *  Allocates a NatBinding for a particular device. We further scope the
      *  NatBinding by the destination IP and port. This method is optimized
@@ -128,10 +247,16 @@ trait NatLeaser {
             val target = natTargets(i)
             var ip = target.nwStart
             while (ip <= target.nwEnd) {
-                val leasedBlocks = getLeasedBlocks(deviceId, ip)
-                val binding = allocateInPortRange(leasedBlocks, uniquefier, ip,
+                val index = getPortIndex(deviceId, ip)
+                var binding = allocateFreePort(index, uniquefier, ip,
+                                               target.tpStart, target.tpEnd)
+                if (binding eq null) {
+                    binding = allocateInPortRange(index.blocks, uniquefier, ip,
                                                   target.tpStart, target.tpEnd)
+                }
                 if (binding ne null) {
+                    if (index.freePorts.get < preleaseThreshold)
+                        prelease(index, deviceId, ip, target)
                     return binding
                 }
                 ip = ip.next
@@ -156,15 +281,18 @@ trait NatLeaser {
         if (ipLeases eq null)
             return
 
-        val leasedBlocks = ipLeases.get(binding.networkAddress)
-        if (leasedBlocks eq null)
+        val index = ipLeases.get(binding.networkAddress)
+        if (index eq null)
             return
 
-        val leasedBlock = leasedBlocks.unref(blockOf(binding.transportPort), clock.tick)
+        val leasedBlock = index.blocks.unref(blockOf(binding.transportPort), clock.tick)
         if (leasedBlock ne null) {
             val portOffset = binding.transportPort - leasedBlock.block.tpPortStart
             val uniquefier = blend(destinationIp, destinationPort)
-            leasedBlock.leasedPorts(portOffset).remove(uniquefier)
+            val sharedBinding = leasedBlock.leasedPorts(portOffset)
+            sharedBinding.remove(uniquefier)
+            if (sharedBinding.isEmpty)
+                leasedBlock.markUnused(portOffset)
         }
     }
 
@@ -173,6 +301,7 @@ trait NatLeaser {
                            value: LeasedBlock): NatBlockAllocator = {
             val block = value.block
             log.debug("Releasing NAT block {}", block)
+            value.index.removed(value)
             acc.freeBlock(block)
             acc
         }
@@ -189,8 +318,8 @@ trait NatLeaser {
             while (itDevs.hasNext) {
                 val itIps = itDevs.next().values().iterator()
                 while (itIps.hasNext) {
-                    itIps.next().obliterateIdleEntries(clock.tick, allocator,
-                                                       blockObliterator)
+                    itIps.next().blocks.obliterateIdleEntries(clock.tick, allocator,
+                                                              blockObliterator)
                 }
             }
 
@@ -198,6 +327,80 @@ trait NatLeaser {
         }
     }
 
+    /**
+     * Binds a port without bindings in the given range, searching the blocks
+     * that have such ports from the last block a port was bound in.
+     */
+    private def allocateFreePort(index: PortIndex, uniquefier: Long,
+                                 targetIp: IPv4Addr, targetPortStart: Int,
+                                 targetPortEnd: Int): NatBinding = {
+        val firstBlock = blockOf(targetPortStart)
+        val lastBlock = blockOf(targetPortEnd)
+        val cursor = index.cursor
+        val start = if (cursor >= firstBlock && cursor <= lastBlock) cursor
+                    else firstBlock
+        var binding = allocateFreePort(index, uniquefier, targetIp,
+                                       targetPortStart, targetPortEnd,
+                                       start, lastBlock)
+        if ((binding eq null) && start > firstBlock) {
+            binding = allocateFreePort(index, uniquefier, targetIp,
+                                       targetPortStart, targetPortEnd,
+                                       firstBlock, start - 1)
+        }
+        binding
+    }
+
+    private def allocateFreePort(index: PortIndex, uniquefier: Long,
+                                 targetIp: IPv4Addr, targetPortStart: Int,
+                                 targetPortEnd: Int, fromBlock: Int,
+                                 toBlock: Int): NatBinding = {
+        var block = index.nextFree(fromBlock, toBlock)
+        while (block >= 0) {
+            val leasedBlock = index.blocks.ref(block)
+            if (leasedBlock ne null) {
+                val binding = allocateFreePortInBlock(leasedBlock, uniquefier,
+                                                      targetIp, targetPortStart,
+                                                      targetPortEnd)
+                if (binding ne null) {
+                    index.cursor = block
+                    return binding
+                }
+
+                index.blocks.unref(block, clock.tick)
+            }
+            block = if (block < toBlock) index.nextFree(block + 1, toBlock)
+                    else -1
+        }
+        null
+    }
+
+    private def allocateFreePortInBlock(lease: LeasedBlock, uniquefier: Long,
+                                        ip: IPv4Addr, tpStart: Int, tpEnd: Int)
+    : NatBinding = {
+        val firstPortInBlock = lease.block.tpPortStart
+        val lo = Math.max(tpStart - firstPortInBlock, 0)
+        val hi = Math.min(tpEnd - firstPortInBlock, BLOCK_MASK)
+        if (lo > hi)
+            return null
+
+        val inRange = (FULL_BLOCK << lo) & (FULL_BLOCK >>> (BLOCK_MASK - hi))
+        var candidates = ~lease.usedPorts.get & inRange
+        while (candidates != 0) {
+            // Take the first candidate from the round-robin index onwards
+            val next = lease.portIndex.toInt & BLOCK_MASK
+            val portOffset = (next + JLong.numberOfTrailingZeros(
+                JLong.rotateRight(candidates, next))) & BLOCK_MASK
+            val bound = lease.leasedPorts(portOffset).putIfAbsent(uniquefier, this) eq null
+            lease.markUsed(portOffset)
+            if (bound) {
+                lease.portIndex += ((portOffset - next) & BLOCK_MASK) + 31
+                return NatBinding(ip, firstPortInBlock + portOffset)
+            }
+            candidates &= ~(1L << portOffset)
+        }
+        null
+    }
+
     private def allocateInPortRange(leasedBlocks: LeasedBlocks, uniquefier: Long,
                                     targetIp: IPv4Addr, targetPortStart: Int,
                                     targetPortEnd: Int): NatBinding = {
@@ -233,6 +436,7 @@ trait NatLeaser {
             if (port >= tpStart && port <= tpEnd) {
                 val sharedBinding = lease.leasedPorts(portOffset)
                 if (sharedBinding.putIfAbsent(uniquefier, this) eq null) {
+                    lease.markUsed(portOffset)
                     lease.portIndex += i + 31
                     return NatBinding(ip, port)
                 }
@@ -280,15 +484,51 @@ trait NatLeaser {
         })
     }
 
+    /**
+     * Leases a block for the given NatTarget IP in the background. A single
+     * block is leased at a time, and after a failure no block is leased for
+     * PRELEASE_BACKOFF, so that a depleted range doesn't cost an allocator
+     * request per binding.
+     */
+    private def prelease(index: PortIndex, deviceId: UUID, targetIp: IPv4Addr,
+                         target: NatTarget): Unit = {
+        if (clock.tick < index.preleaseAfter ||
+            !index.preleasing.compareAndSet(false, true))
+            return
+
+        log.debug("Pre-leasing a NAT block for {}", targetIp)
+        val range = new NatRange(deviceId, targetIp, target.tpStart, target.tpEnd)
+        allocator.allocateBlockInRange(range, new Callback[NatBlock, Exception]() {
+            override def onSuccess(data: NatBlock): Unit =
+                if (data eq NatBlock.NO_BLOCK) {
+                    done(failed = true)
+                } else {
+                    registerNewBlock(data)
+                    done(failed = false)
+                }
+
+            override def onError(e: Exception): Unit = done(failed = true)
+
+            override def onTimeout(): Unit = done(failed = true)
+
+            private def done(failed: Boolean): Unit = {
+                if (failed)
+                    index.preleaseAfter = clock.tick + PRELEASE_BACKOFF
+                index.preleasing.set(false)
+            }
+        })
+    }
+
     private def registerNewBlock(block: NatBlock): Unit = {
         log.debug("Acquiring NAT block {}", block)
-        val leasedBlocks = getLeasedBlocks(block.deviceId, block.ip)
-        val leasedBlock = new LeasedBlock(block)
-        leasedBlocks.putAndRef(block.blockIndex, leasedBlock)
-        leasedBlocks.unref(block.blockIndex, clock.tick)
+        val index = getPortIndex(block.deviceId, block.ip)
+        val leasedBlock = new LeasedBlock(block, index)
+        index.blocks.putAndRef(block.blockIndex, leasedBlock)
+        index.added(leasedBlock)
+        index.blocks.unref(block.blockIndex, clock.tick)
     }
 
-    private def getLeasedBlocks(deviceId: UUID, targetIp: IPAddr): LeasedBlocks = {
+    private def getPortIndex(deviceId: UUID, targetIp: IPAddr): PortIndex = {
         val ipLeases = getOrCreateDeviceLeases(deviceId)
         getOrCreateIpLeases(ipLeases, targetIp)
     }
@@ -307,7 +547,7 @@ trait NatLeaser {
     private def getOrCreateIpLeases(ipLeases: IpLeases, targetIp: IPAddr) = {
         var value = ipLeases.get(targetIp)
         if (value eq null) {
-            value = LeasedBlocks(log)
+            value = new PortIndex(log)
             val cur = ipLeases.putIfAbsent(targetIp, value)
             if (cur ne null)
                 value = cur
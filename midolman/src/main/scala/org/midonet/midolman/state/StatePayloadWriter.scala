@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{ArrayList, UUID}
+
+import com.google.protobuf.CodedOutputStream
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
+import org.midonet.packets.FlowStateEthernet
+import org.midonet.rpc.{FlowStateProto => Proto}
+
+/**
+ * Accumulates the flow state of one or more flows into the payloads of state
+ * packets. The state that doesn't fit in the current payload is continued in
+ * a new one, so that state is only left out when a single entry is larger
+ * than a state packet.
+ *
+ * This class is not thread-safe.
+ */
+sealed abstract class StatePayloadWriter(log: Logger) {
+
+    private val payloads = new ArrayList[Array[Byte]]()
+
+    /**
+     * Starts the state of a new flow, to which the entries added next belong.
+     */
+    def startState(ingressPort: UUID): Unit
+
+    def addConnTrackKey(k: ConnTrackKey): Unit
+
+    def addNatEntry(k: NatKey, v: NatBinding): Unit
+
+    def addTraceEntry(k: TraceKey, ctx: TraceContext): Unit
+
+    /**
+     * Whether no state has been added since the last drain.
+     */
+    def isEmpty: Boolean = payloads.isEmpty && !hasState
+
+    /**
+     * Moves the payloads holding the state added since the last drain to the
+     * given list, leaving the writer empty.
+     */
+    def drainTo(out: ArrayList[Array[Byte]]): Unit = {
+        if (hasState)
+            finishPayload()
+        reset()
+        out.addAll(payloads)
+        payloads.clear()
+    }
+
+    /**
+     * Whether the current payload holds state.
+     */
+    protected def hasState: Boolean
+
+    /**
+     * Completes the current payload, which must be added with addPayload,
+     * and starts a new one that continues the current flow state.
+     */
+    protected def finishPayload(): Unit
+
+    /**
+     * Discards the current payload and flow state.
+     */
+    protected def reset(): Unit
+
+    protected def addPayload(payload: Array[Byte]): Unit =
+        payloads.add(payload)
+
+    protected def tooLarge(entry: AnyRef): Unit =
+        log.warn(s"Skipping state entry, too large for a state packet: $entry")
+}
+
+/**
+ * Writes the payloads in the flat encoding of FlowStateEncoding.
+ */
+final class FlatPayloadWriter(hostId: UUID, log: Logger,
+        capacity: Int = FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH)
+    extends StatePayloadWriter(log) {
+
+    private val encoder = new FlowStateEncoder(hostId, capacity)
+    private var ingressPort: UUID = _
+    private var state = false
+
+    override def startState(ingressPort: UUID): Unit = {
+        this.ingressPort = ingressPort
+        if (!encoder.startState(ingressPort)) {
+            finishPayload()
+        }
+    }
+
+    override def addConnTrackKey(k: ConnTrackKey): Unit =
+        if (encoder.addConnTrackKey(k) ||
+            (nextPayload() && encoder.addConnTrackKey(k))) {
+            state = true
+        } else {
+            tooLarge(k)
+        }
+
+    override def addNatEntry(k: NatKey, v: NatBinding): Unit =
+        if (encoder.addNatEntry(k, v) ||
+            (nextPayload() && encoder.addNatEntry(k, v))) {
+            state = true
+        } else {
+            tooLarge(k)
+        }
+
+    override def addTraceEntry(k: TraceKey, ctx: TraceContext): Unit =
+        if (encoder.addTraceEntry(k, ctx) ||
+            (nextPayload() && encoder.addTraceEntry(k, ctx))) {
+            state = true
+        } else {
+            tooLarge(k)
+        }
+
+    override protected def hasState = state
+
+    override protected def finishPayload(): Unit = {
+        if (state)
+            addPayload(encoder.toByteArray)
+        state = false
+        encoder.reset()
+        if (ingressPort ne null)
+            encoder.startState(ingressPort)
+    }
+
+    override protected def reset(): Unit = {
+        ingressPort = null
+        state = false
+        encoder.reset()
+    }
+
+    /**
+     * Continues in a new payload, unless the current one holds no state,
+     * in which case the entry will not fit in a new one either.
+     */
+    private def nextPayload(): Boolean =
+        state && { finishPayload(); true }
+}
+
+/**
+ * Writes the payloads as protocol buffers messages, which agents that don't
+ * understand the flat encoding can read. Several flow states are written as
+ * the repeated new_state field of a message, which those agents also accept.
+ */
+final class ProtoPayloadWriter(hostId: UUID, log: Logger,
+        capacity: Int = FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH)
+    extends StatePayloadWriter(log) {
+    import FlowStatePackets._
+
+    private val message = Proto.StateMessage.newBuilder()
+    private val state = Proto.FlowState.newBuilder()
+    private val natEntry = Proto.NatEntry.newBuilder()
+    private val traceEntry = Proto.TraceEntry.newBuilder()
+    private val sender = uuidToProto(hostId)
+
+    private var ingressPort: Proto.UUID = _
+    private var states = 0
+    private var messageSize = 0
+    private var stateSize = 0
+    private var stateEntries = 0
+
+    resetMessage()
+
+    override def startState(ingressPort: UUID): Unit = {
+        closeState()
+        this.ingressPort = uuidToProto(ingressPort)
+        openState()
+    }
+
+    override def addConnTrackKey(k: ConnTrackKey): Unit = {
+        // A flow state holds a single conntrack key
+        if (state.hasConntrackKey)
+            closeState()
+        val key = connTrackKeyToProto(k)
+        if (makeRoom(CodedOutputStream.computeMessageSize(1, key))) {
+            state.setConntrackKey(key)
+        } else {
+            tooLarge(k)
+        }
+    }
+
+    override def addNatEntry(k: NatKey, v: NatBinding): Unit = {
+        natEntry.clear()
+        val entry = natEntry.setK(natKeyToProto(k))
+                            .setV(natBindingToProto(v)).build()
+        if (makeRoom(CodedOutputStream.computeMessageSize(2, entry))) {
+            state.addNatEntries(entry)
+        } else {
+            tooLarge(k)
+        }
+    }
+
+    override def addTraceEntry(k: TraceKey, ctx: TraceContext): Unit = {
+        traceEntry.clear()
+        traceKeyToProto(k, traceEntry)
+        traceEntry.setFlowTraceId(ctx.flowTraceId)
+        val iter = ctx.requests.iterator
+        while (iter.hasNext) {
+            traceEntry.addRequestId(iter.next())
+        }
+        val entry = traceEntry.build()
+        if (makeRoom(CodedOutputStream.computeMessageSize(6, entry))) {
+            state.addTraceEntry(entry)
+        } else {
+            tooLarge(k)
+        }
+    }
+
+    override protected def hasState = states > 0 || stateEntries > 0
+
+    override protected def finishPayload(): Unit = {
+        closeState()
+        if (states > 0)
+            addPayload(delimitedPayload(message.build()))
+        resetMessage()
+        openState()
+    }
+
+    override protected def reset(): Unit = {
+        ingressPort = null
+        resetMessage()
+        openState()
+    }
+
+    private def resetMessage(): Unit = {
+        message.clear()
+        message.setSender(sender)
+        message.setEpoch(0L /* the epoch is not used*/)
+
+        /* We don't expect ACKs, seq is unused for now */
+        message.setSeq(0x1)
+        messageSize = message.build().getSerializedSize
+        states = 0
+    }
+
+    private def openState(): Unit = {
+        state.clear()
+        stateEntries = 0
+        stateSize = 0
+        if (ingressPort ne null) {
+            state.setIngressPort(ingressPort)
+            stateSize = CodedOutputStream.computeMessageSize(3, ingressPort)
+        }
+    }
+
+    private def closeState(): Unit = {
+        if (stateEntries > 0) {
+            message.addNewState(state.build())
+            messageSize += nestedSize(stateSize)
+            states += 1
+        }
+        openState()
+    }
+
+    /**
+     * Accounts for an entry of the given size in the current flow state,
+     * continuing in a new payload if the current one can't hold it. Returns
+     * false if the entry doesn't fit in a payload on its own.
+     */
+    private def makeRoom(entrySize: Int): Boolean = {
+        if (!fits(entrySize) && hasState)
+            finishPayload()
+        if (fits(entrySize)) {
+            stateSize += entrySize
+            stateEntries += 1
+            true
+        } else false
+    }
+
+    private def fits(entrySize: Int): Boolean = {
+        val size = messageSize + nestedSize(stateSize + entrySize)
+        CodedOutputStream.computeRawVarint32Size(size) + size <= capacity
+    }
+
+    private def nestedSize(size: Int): Int =
+        1 + CodedOutputStream.computeRawVarint32Size(size) + size
+}
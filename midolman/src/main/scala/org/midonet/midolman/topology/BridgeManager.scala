@@ -30,7 +30,7 @@ import org.midonet.cluster.Client
 import org.midonet.cluster.client._
 import org.midonet.midolman.topology.VirtualTopologyActor.InvalidateFlowsByTag
 import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.simulation.Bridge
+import org.midonet.midolman.simulation.{Bridge, ReplayableCallback}
 import org.midonet.midolman.topology.BridgeManager.MacPortMapping
 import org.midonet.midolman.topology.builders.BridgeBuilderImpl
 import org.midonet.packets.{IPAddr, IPv4Addr, MAC}
@@ -207,11 +207,14 @@ import org.midonet.midolman.topology.BridgeManager._
 
     class RemoveFlowCallbackGeneratorImpl() extends RemoveFlowCallbackGenerator{
         def getCallback(mac: MAC, vlanId: Short, port: UUID): Callback0 = {
-            new Callback0() {
+            new ReplayableCallback() {
                 override def call() {
                     learningMgr.decRefCount(MacPortMapping(mac, vlanId, port),
                                             Platform.currentTime)
                 }
+                override def replay() {
+                    learningMgr.incRefCount(MacPortMapping(mac, vlanId, port))
+                }
             }
         }
     }
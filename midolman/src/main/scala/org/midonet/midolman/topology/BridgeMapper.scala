@@ -38,6 +38,7 @@ import org.midonet.cluster.models.Topology.{Network => TopologyBridge}
 import org.midonet.cluster.util.UUIDUtil._
 import org.midonet.midolman.logging.MidolmanLogging
 import org.midonet.midolman.simulation.{Bridge => SimulationBridge, Chain}
+import org.midonet.midolman.simulation.ReplayableCallback
 import org.midonet.midolman.simulation.Bridge.UntaggedVlanId
 import org.midonet.midolman.state.ReplicatedMap.Watcher
 import org.midonet.midolman.state.{ReplicatedMap, StateAccessException}
@@ -250,9 +251,12 @@ object BridgeMapper {
     private class BridgeRemoveFlowCallbackGenerator(macLearning: MacLearning)
         extends RemoveFlowCallbackGenerator {
         override def getCallback(mac: MAC, vlanId: Short, portId: UUID)
-        : Callback0 = makeCallback0 {
-            macLearning.decrementRefCount(MacPortMapping(vlanId, mac, portId),
-                                          Platform.currentTime)
+        : Callback0 = new ReplayableCallback {
+            override def call(): Unit =
+                macLearning.decrementRefCount(MacPortMapping(vlanId, mac, portId),
+                                              Platform.currentTime)
+            override def replay(): Unit =
+                macLearning.incrementRefCount(MacPortMapping(vlanId, mac, portId))
         }
     }
 
@@ -25,7 +25,7 @@ import com.typesafe.scalalogging.Logger
 import org.midonet.cluster.Client
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.layer3.{InvalidationTrie, Route, RoutingTableIfc}
-import org.midonet.midolman.simulation.Router
+import org.midonet.midolman.simulation.{ReplayableCallback, Router}
 import org.midonet.midolman.simulation.Router.{Config, RoutingTable, TagManager}
 import org.midonet.midolman.state.ArpCache
 import org.midonet.midolman.topology.RouterManager._
@@ -34,7 +34,6 @@ import org.midonet.midolman.topology.builders.RouterBuilderImpl
 import org.midonet.odp.FlowMatch
 import org.midonet.packets.{IPAddr, IPv4Addr}
 import org.midonet.sdn.flows.FlowTagger
-import org.midonet.util.functors.Callback0
 
 class RoutingTableWrapper[IP <: IPAddr](val rTable: RoutingTableIfc[IP])
     extends RoutingTable {
@@ -222,10 +221,13 @@ class RouterManager(id: UUID, val client: Client, val config: MidolmanConfig)
         }
 
         def getFlowRemovalCallback(dstIp: IPAddr) = {
-            new Callback0 {
+            new ReplayableCallback {
                 def call() {
                     self ! RemoveTag(dstIp)
                 }
+                def replay() {
+                    self ! AddTag(dstIp)
+                }
             }
         }
     }
@@ -34,6 +34,7 @@ import org.midonet.cluster.util.UUIDUtil._
 import org.midonet.midolman.layer3.{IPv4RoutingTable, InvalidationTrie, Route}
 import org.midonet.midolman.simulation.Router.{Config, RoutingTable, TagManager}
 import org.midonet.midolman.simulation.{LoadBalancer, Router => SimulationRouter}
+import org.midonet.midolman.simulation.ReplayableCallback
 import org.midonet.midolman.state.{ArpCache, ArpTable => SimulationArpTable}
 import org.midonet.midolman.topology.RouterMapper._
 import org.midonet.midolman.topology.devices.RouterPort
@@ -323,8 +324,10 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology)
 
     override def logSource = s"org.midonet.devices.router.router-$routerId"
 
-    private class RemoveTagCallback(dstAddress: IPAddr) extends Callback0 {
+    private class RemoveTagCallback(dstAddress: IPAddr)
+        extends ReplayableCallback {
         override def call(): Unit = vt.executeVt { removeTag(dstAddress) }
+        override def replay(): Unit = vt.executeVt { addTag(dstAddress) }
     }
 
     private implicit val ec: ExecutionContext = actorSystem.dispatcher
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import java.util.Arrays
+
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.sdn.state.ShardedFlowStateTable.ShardStorage
+import org.midonet.util.collection.Reducer
+import org.midonet.util.concurrent.TimedExpirationMap
+
+object PrimitiveExpirationMap {
+    final val DEFAULT_CAPACITY = 1 << 14
+
+    // Leaves some room for the array header
+    private final val MaxArrayLength = Int.MaxValue - 8
+
+    // An empty slot has a zero in its reference count word, which holds
+    // the reference count plus one.
+    private final val Empty = 0L
+}
+
+/**
+ * A storage for the entries of a FlowStateShard that keeps them in a
+ * primitive array instead of as objects. Each key is encoded by the
+ * FlowStateCodec into a fixed number of words, which are followed by the
+ * encoded value, the reference count and the expiration time. Collisions are
+ * resolved with linear probing, and removals shift back the following entries
+ * so there are no tombstones. The keys of idle entries are queued for
+ * expiration in a ring of primitive words too. This way a table with millions
+ * of entries consists of a handful of objects for the garbage collector to
+ * trace, instead of several per entry. Keys the codec cannot encode are kept
+ * in a TimedExpirationMap.
+ *
+ * Entries follow the same lifecycle as in the TimedExpirationMap: when the
+ * reference count of an entry drops to zero, it is scheduled for removal
+ * after its key's idle expiration, unless it's referenced again in the
+ * meantime. The reducer passed to obliterateIdleEntries() is called before
+ * the entry is removed, and while no other thread can add it back.
+ *
+ * Operations are synchronized. A shard is mostly accessed by the thread that
+ * owns it, so the lock is seldom contended. Values and keys are decoded into
+ * new objects when they are returned.
+ */
+final class PrimitiveExpirationMap[K <: IdleExpiration, V >: Null](
+        codec: FlowStateCodec[K, V], log: Logger,
+        initialCapacity: Int = PrimitiveExpirationMap.DEFAULT_CAPACITY)
+    extends ShardStorage[K, V] {
+    import PrimitiveExpirationMap._
+
+    private val keyWords = codec.keyWords
+    private val stride = keyWords + 3
+    private val valueOffset = keyWords
+    private val refsOffset = keyWords + 1
+    private val expirationOffset = keyWords + 2
+    private val maxCapacity = Integer.highestOneBit(MaxArrayLength / stride)
+
+    private var capacity = Math.min(maxCapacity, powerOfTwo(initialCapacity))
+    private var entries = new Array[Long](capacity * stride)
+    private var numEntries = 0
+
+    // The keys of the entries to check for expiration, followed by their
+    // expiration time, in the order they became idle.
+    private val queueStride = keyWords + 1
+    private var queue = new Array[Long](64 * queueStride)
+    private var queueHead = 0
+    private var queueSize = 0
+
+    private val keyBuf = new Array[Long](keyWords)
+    private val expiredKeyBuf = new Array[Long](keyWords)
+
+    private val objects = new TimedExpirationMap[K, V](log, _.expiresAfter)
+
+    private def powerOfTwo(n: Int): Int =
+        if (n <= 1) 1 else Integer.highestOneBit(n - 1) << 1
+
+    /**
+     * The number of encoded entries in the table.
+     */
+    def size: Int = synchronized { numEntries }
+
+    override def putAndRef(key: K, value: V): V = synchronized {
+        if (codec.encodeKey(key, keyBuf, 0)) {
+            val encodedValue = codec.encodeValue(value)
+            val slot = find(keyBuf)
+            if (slot >= 0) {
+                val oldValue = codec.decodeValue(entries(slot + valueOffset))
+                entries(slot + valueOffset) = encodedValue
+                incrementRefCount(slot, key)
+                oldValue
+            } else {
+                insert(keyBuf, encodedValue)
+                log.debug(s"Incrementing reference count of $key to 1")
+                null
+            }
+        } else {
+            objects.putAndRef(key, value)
+        }
+    }
+
+    override def get(key: K): V = synchronized {
+        if (codec.encodeKey(key, keyBuf, 0)) {
+            val slot = find(keyBuf)
+            if (slot >= 0) codec.decodeValue(entries(slot + valueOffset))
+            else null
+        } else {
+            objects.get(key)
+        }
+    }
+
+    override def ref(key: K): V = synchronized {
+        if (codec.encodeKey(key, keyBuf, 0)) {
+            val slot = find(keyBuf)
+            if (slot >= 0) {
+                incrementRefCount(slot, key)
+                codec.decodeValue(entries(slot + valueOffset))
+            } else {
+                null
+            }
+        } else {
+            objects.ref(key)
+        }
+    }
+
+    override def getRefCount(key: K): Int = synchronized {
+        if (codec.encodeKey(key, keyBuf, 0)) {
+            val slot = find(keyBuf)
+            if (slot >= 0) refCount(slot) else 0
+        } else {
+            objects.getRefCount(key)
+        }
+    }
+
+    override def unref(key: K, currentTimeMillis: Long): Unit = synchronized {
+        if (codec.encodeKey(key, keyBuf, 0)) {
+            val slot = find(keyBuf)
+            if (slot >= 0) {
+                unrefSlot(slot, key, currentTimeMillis)
+            }
+        } else {
+            objects.unref(key, currentTimeMillis)
+        }
+    }
+
+    /**
+     * Folds over all the entries. The reducer must not modify this map.
+     */
+    override def fold[U](seed: U, func: Reducer[K, V, U]): U = synchronized {
+        var acc = seed
+        var slot = 0
+        while (slot < entries.length) {
+            if (entries(slot + refsOffset) != Empty) {
+                acc = func(acc, codec.decodeKey(entries, slot),
+                           codec.decodeValue(entries(slot + valueOffset)))
+            }
+            slot += stride
+        }
+        objects.fold(acc, func)
+    }
+
+    override def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                          func: Reducer[K, V, U],
+                                          maxEntries: Int): U = synchronized {
+        var acc = seed
+        var budget = maxEntries
+        while (budget > 0 && queueSize > 0 &&
+               queue(queueHead * queueStride + keyWords) <= currentTimeMillis) {
+            budget -= 1
+            System.arraycopy(queue, queueHead * queueStride, expiredKeyBuf, 0,
+                             keyWords)
+            queueHead = (queueHead + 1) & (queue.length / queueStride - 1)
+            queueSize -= 1
+
+            val slot = find(expiredKeyBuf)
+            if (slot >= 0 && refCount(slot) == 0 &&
+                entries(slot + expirationOffset) <= currentTimeMillis) {
+                val key = codec.decodeKey(expiredKeyBuf, 0)
+                log.debug(s"Forgetting entry $key")
+                acc = func(acc, key, codec.decodeValue(entries(slot + valueOffset)))
+                // The reducer runs with the lock held, but it may have
+                // modified the table from this same thread.
+                val current = find(expiredKeyBuf)
+                if (current >= 0 && refCount(current) == 0) {
+                    remove(current)
+                }
+            }
+        }
+        objects.obliterateIdleEntries(currentTimeMillis, acc, func, maxEntries)
+    }
+
+    private def unrefSlot(slot: Int, key: K, currentTimeMillis: Long): Unit = {
+        val count = refCount(slot) - 1
+        if (count < 0) {
+            log.error(s"Decrement a ref count past 0 for $key")
+        } else {
+            log.debug(s"Decrementing reference count of $key to $count")
+            entries(slot + refsOffset) = count + 1
+            if (count == 0) {
+                log.debug(s"Scheduling removal of $key")
+                val expiration = currentTimeMillis + key.expiresAfter.toMillis
+                entries(slot + expirationOffset) = expiration
+                enqueue(keyBuf, expiration)
+            }
+        }
+    }
+
+    private def refCount(slot: Int): Int =
+        (entries(slot + refsOffset) - 1).toInt
+
+    private def incrementRefCount(slot: Int, key: K): Unit = {
+        val count = refCount(slot) + 1
+        entries(slot + refsOffset) = count + 1
+        log.debug(s"Incrementing ref count of $key to $count")
+        if (count == 1)
+            log.debug(s"Unscheduling removal of $key")
+    }
+
+    private def hash(words: Array[Long], offset: Int): Int = {
+        var h = 0L
+        var i = 0
+        while (i < keyWords) {
+            h = (h ^ words(offset + i)) * 0x9E3779B97F4A7C15L
+            h ^= h >>> 32
+            i += 1
+        }
+        (h ^ (h >>> 16)).toInt
+    }
+
+    private def keyEquals(slot: Int, key: Array[Long]): Boolean = {
+        var i = 0
+        while (i < keyWords) {
+            if (entries(slot + i) != key(i))
+                return false
+            i += 1
+        }
+        true
+    }
+
+    /**
+     * Returns the offset of the slot holding the specified encoded key, or
+     * -1 if there is no such entry.
+     */
+    private def find(key: Array[Long]): Int = {
+        val mask = capacity - 1
+        var index = hash(key, 0) & mask
+        var probes = 0
+        while (probes < capacity) {
+            val slot = index * stride
+            if (entries(slot + refsOffset) == Empty)
+                return -1
+            if (keyEquals(slot, key))
+                return slot
+            index = (index + 1) & mask
+            probes += 1
+        }
+        -1
+    }
+
+    private def insert(key: Array[Long], value: Long): Unit = {
+        if ((numEntries + 1).toLong * 4 > capacity.toLong * 3) {
+            grow()
+        }
+        val mask = capacity - 1
+        var index = hash(key, 0) & mask
+        while (entries(index * stride + refsOffset) != Empty) {
+            index = (index + 1) & mask
+        }
+        val slot = index * stride
+        System.arraycopy(key, 0, entries, slot, keyWords)
+        entries(slot + valueOffset) = value
+        entries(slot + refsOffset) = 2L
+        entries(slot + expirationOffset) = Long.MaxValue
+        numEntries += 1
+    }
+
+    private def grow(): Unit = {
+        if (capacity >= maxCapacity) {
+            if (numEntries + 1 >= capacity)
+                throw new IllegalStateException(
+                    s"The flow state table is full with $numEntries entries")
+            return
+        }
+
+        val oldEntries = entries
+        capacity <<= 1
+        entries = new Array[Long](capacity * stride)
+        val mask = capacity - 1
+        var slot = 0
+        while (slot < oldEntries.length) {
+            if (oldEntries(slot + refsOffset) != Empty) {
+                var index = hash(oldEntries, slot) & mask
+                while (entries(index * stride + refsOffset) != Empty) {
+                    index = (index + 1) & mask
+                }
+                System.arraycopy(oldEntries, slot, entries, index * stride, stride)
+            }
+            slot += stride
+        }
+    }
+
+    /**
+     * Removes the entry in the specified slot, shifting back the entries
+     * that follow it in the probe sequence.
+     */
+    private def remove(slot: Int): Unit = {
+        val mask = capacity - 1
+        var hole = slot / stride
+        var index = (hole + 1) & mask
+        while (entries(index * stride + refsOffset) != Empty) {
+            val home = hash(entries, index * stride) & mask
+            if (((index - home) & mask) >= ((index - hole) & mask)) {
+                System.arraycopy(entries, index * stride, entries, hole * stride,
+                                 stride)
+                hole = index
+            }
+            index = (index + 1) & mask
+        }
+        Arrays.fill(entries, hole * stride, (hole + 1) * stride, Empty)
+        numEntries -= 1
+    }
+
+    private def enqueue(key: Array[Long], expiration: Long): Unit = {
+        var queueCapacity = queue.length / queueStride
+        if (queueSize == queueCapacity) {
+            val newQueue = new Array[Long](queue.length * 2)
+            val first = Math.min(queueSize, queueCapacity - queueHead)
+            System.arraycopy(queue, queueHead * queueStride, newQueue, 0,
+                             first * queueStride)
+            System.arraycopy(queue, 0, newQueue, first * queueStride,
+                             (queueSize - first) * queueStride)
+            queue = newQueue
+            queueHead = 0
+            queueCapacity *= 2
+        }
+        val offset = ((queueHead + queueSize) & (queueCapacity - 1)) * queueStride
+        System.arraycopy(key, 0, queue, offset, keyWords)
+        queue(offset + keyWords) = expiration
+        queueSize += 1
+    }
+}
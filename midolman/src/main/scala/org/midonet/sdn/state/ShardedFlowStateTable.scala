@@ -18,10 +18,12 @@ package org.midonet.sdn.state
 
 import java.util.ArrayList
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLongArray
 
 import org.slf4j.LoggerFactory
 import com.typesafe.scalalogging.Logger
 
+import org.midonet.Util
 import org.midonet.util.collection.Reducer
 import org.midonet.util.concurrent.{NanoClock, TimedExpirationMap}
 
@@ -31,6 +33,63 @@ object ShardedFlowStateTable {
 
     def create[K <: IdleExpiration, V >: Null](clock: NanoClock):
             ShardedFlowStateTable[K, V] = new ShardedFlowStateTable[K, V](clock)
+
+    /**
+     * The storage of the entries of a FlowStateShard.
+     */
+    private[state] trait ShardStorage[K, V] {
+        def putAndRef(key: K, value: V): V
+        def get(key: K): V
+        def ref(key: K): V
+        def getRefCount(key: K): Int
+        def unref(key: K, currentTimeMillis: Long): Unit
+        def fold[U](seed: U, func: Reducer[K, V, U]): U
+        def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                     func: Reducer[K, V, U]): U =
+            obliterateIdleEntries(currentTimeMillis, seed, func, Int.MaxValue)
+
+        /**
+         * Expires the idle entries, checking at most `maxEntries` of the
+         * entries scheduled for expiration.
+         */
+        def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                     func: Reducer[K, V, U], maxEntries: Int): U
+    }
+
+    /**
+     * The maximum number of entries a shard checks for expiration each time
+     * its worker expires idle entries, so that a burst of expirations is
+     * spread over several rounds instead of stalling the worker.
+     */
+    val MaxExpirationsPerRound = 1024
+
+    /**
+     * The number of slots of the directory of a table for each entry of the
+     * initial capacity of a shard.
+     */
+    val DirectorySlotsPerEntry = 4
+
+    /* The shards past the last bit of a slot share it. */
+    private final val LastShardBit = 63
+
+    private final class TimedShardStorage[K <: IdleExpiration, V >: Null](log: Logger)
+        extends ShardStorage[K, V] {
+
+        private val map = new TimedExpirationMap[K, V](log, _.expiresAfter)
+
+        override def putAndRef(key: K, value: V): V = map.putAndRef(key, value)
+        override def get(key: K): V = map.get(key)
+        override def ref(key: K): V = map.ref(key)
+        override def getRefCount(key: K): Int = map.getRefCount(key)
+        override def unref(key: K, currentTimeMillis: Long): Unit =
+            map.unref(key, currentTimeMillis)
+        override def fold[U](seed: U, func: Reducer[K, V, U]): U =
+            map.fold(seed, func)
+        override def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                              func: Reducer[K, V, U],
+                                              maxEntries: Int): U =
+            map.obliterateIdleEntries(currentTimeMillis, seed, func, maxEntries)
+    }
 }
 
 /**
@@ -48,15 +107,47 @@ object ShardedFlowStateTable {
  * distribute shards among threads in a way that results in no keyspace overlap.
  *
  * Gets, on the other hand, will fall back to the parent and the other shards
- * if a key is not found locally.
+ * if a key is not found locally. The parent keeps a directory of the shards
+ * that may hold a key, so that these lookups, as well as the parent's ref(),
+ * unref() and getRefCount(), only query those shards instead of all of them.
+ * The directory is a fixed array of slots indexed by the hash of the keys,
+ * with a bit per shard that is set while the shard holds a key of that slot.
+ * Each shard counts its keys per slot in a plain array, which only its
+ * thread writes, setting the bit when it inserts the first key of a slot and
+ * clearing it when it expires the last one. The shards past the 63rd share
+ * the last bit, which is never cleared. The directory is sized from the
+ * initial capacity of the shards: as they outgrow it, more bits are set and
+ * lookups query more shards, but never miss a key.
+ *
+ * The parent's touch() inserts the key in every shard.
  *
  * unref() calls may require coordination, but they are meant to happen in an
  * external thread or pool, not a shard-owning thread.
+ *
+ * STORAGE:
+ *
+ * By default, shards store their entries as objects in a TimedExpirationMap.
+ * When a FlowStateCodec is specified, shards store them encoded in a
+ * PrimitiveExpirationMap instead, which reduces the heap footprint and the
+ * garbage collection cost of large tables.
  */
 class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
-        (val clock: NanoClock = NanoClock.DEFAULT) extends FlowStateTable[K, V] {
+        (val clock: NanoClock, codec: FlowStateCodec[K, V],
+         initialShardCapacity: Int) extends FlowStateTable[K, V] {
+    import ShardedFlowStateTable._
+
+    def this(clock: NanoClock, codec: FlowStateCodec[K, V]) =
+        this(clock, codec, PrimitiveExpirationMap.DEFAULT_CAPACITY)
+
+    def this(clock: NanoClock) = this(clock, null)
+
+    def this() = this(NanoClock.DEFAULT)
 
     private val shards = new ArrayList[FlowStateShard]()
+    private val directory = new AtomicLongArray(
+        Util.findNextPositivePowerOfTwo(initialShardCapacity) *
+        DirectorySlotsPerEntry)
+    private val directoryMask = directory.length - 1
     private val SHARD_NONE: Int = -1
 
     private val defaultLogger =
@@ -68,6 +159,15 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         s
     }
 
+    private def slotOf(key: K): Int = {
+        val h = key.hashCode
+        (h ^ (h >>> 16)) & directoryMask
+    }
+
+    /* Whether a shard may hold a key, given the holders of the key's slot. */
+    private def mayHold(holders: Long, shard: Int): Boolean =
+        (holders & (1L << Math.min(shard, LastShardBit))) != 0
+
     /**
      * Fetches a the value associated with a key, skipping the given shard
      * index.
@@ -76,9 +176,10 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         assert(shardToSkip == SHARD_NONE ||
                 (shardToSkip >= 0 && shardToSkip < shards.size))
 
+        val holders = directory.get(slotOf(key))
         var i = 0
         while (i < shards.size) {
-            if (i != shardToSkip) {
+            if (i != shardToSkip && mayHold(holders, i)) {
                 val v: V = shards.get(i).shallowGet(key)
                 if (v != null)
                     return v
@@ -93,11 +194,14 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
     override def get(key: K): V = get(key, SHARD_NONE)
 
     override def ref(key: K): V = {
+        val holders = directory.get(slotOf(key))
         var i = 0
         while (i < shards.size) {
-            val v = shards.get(i).ref(key)
-            if (v != null)
-                return v
+            if (mayHold(holders, i)) {
+                val v = shards.get(i).ref(key)
+                if (v != null)
+                    return v
+            }
             i += 1
         }
         null
@@ -112,21 +216,26 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
     }
 
     override def getRefCount(key: K): Int = {
+        val holders = directory.get(slotOf(key))
         var count = 0
         var i = 0
         while (i < shards.size) {
-            count += shards.get(i).getRefCount(key)
+            if (mayHold(holders, i))
+                count += shards.get(i).getRefCount(key)
             i += 1
         }
         count
     }
 
     override def unref(key: K) {
+        val holders = directory.get(slotOf(key))
         var i: Int = 0
         while (i < shards.size) {
-            val v: V = shards.get(i).shallowGet(key)
-            if (v != null)
-                shards.get(i).unref(key)
+            if (mayHold(holders, i)) {
+                val v: V = shards.get(i).shallowGet(key)
+                if (v != null)
+                    shards.get(i).unref(key)
+            }
             i += 1
         }
     }
@@ -165,11 +274,55 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
      * It stores entries locally but forwards queries to the parent table for
      * aggregation. Reference counting is also delegated on the parent.
      */
-    class FlowStateShard(workerId: Int, log: Logger) extends FlowStateTable[K, V] {
-        private val map = new TimedExpirationMap[K, V](log, _.expiresAfter)
+    class FlowStateShard(val workerId: Int, log: Logger) extends FlowStateTable[K, V] {
+        private val map: ShardStorage[K, V] =
+            if (codec eq null) new TimedShardStorage[K, V](log)
+            else new PrimitiveExpirationMap[K, V](codec, log, initialShardCapacity)
+
+        /* The number of keys of this shard in each slot of the directory, and
+         * the bit of this shard in the slots. */
+        private val slotKeys = new Array[Int](directory.length)
+        private val bit = 1L << Math.min(workerId, LastShardBit)
+
+        /**
+         * Releases the directory slots of the expired keys before handing
+         * them to the caller's reducer, if any. Expiration is limited to one
+         * caller at a time, so the instance is reused.
+         */
+        private val forget = new Reducer[K, V, Any] {
+            var func: Reducer[K, V, Any] = _
+
+            override def apply(acc: Any, key: K, value: V): Any = {
+                release(slotOf(key))
+                if (func ne null) func(acc, key, value) else acc
+            }
+        }
 
-        override def putAndRef(key: K, value: V): V =
-            map.putAndRef(key, value)
+        private def hold(slot: Int): Unit = {
+            slotKeys(slot) += 1
+            if (slotKeys(slot) == 1) {
+                var holders = directory.get(slot)
+                while ((holders & bit) == 0 &&
+                       !directory.compareAndSet(slot, holders, holders | bit))
+                    holders = directory.get(slot)
+            }
+        }
+
+        private def release(slot: Int): Unit = {
+            slotKeys(slot) -= 1
+            if (slotKeys(slot) == 0 && workerId < LastShardBit) {
+                var holders = directory.get(slot)
+                while (!directory.compareAndSet(slot, holders, holders & ~bit))
+                    holders = directory.get(slot)
+            }
+        }
+
+        override def putAndRef(key: K, value: V): V = {
+            val oldValue = map.putAndRef(key, value)
+            if (oldValue == null)
+                hold(slotOf(key))
+            oldValue
+        }
 
         override def get(key: K) = {
             val v = map.get(key)
@@ -201,10 +354,17 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         override def fold[U](seed: U, func: Reducer[K, V, U]): U =
             map.fold(seed, func)
 
-        override def expireIdleEntries() =
-            map.obliterateIdleEntries(tickMillis)
+        override def expireIdleEntries(): Unit =
+            expireIdleEntries((), null)
 
-        override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U =
-            map.obliterateIdleEntries(tickMillis, seed, func)
+        override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U = {
+            forget.func = func.asInstanceOf[Reducer[K, V, Any]]
+            try {
+                map.obliterateIdleEntries(tickMillis, seed, forget,
+                                          MaxExpirationsPerRound).asInstanceOf[U]
+            } finally {
+                forget.func = null
+            }
+        }
     }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.rules.{Condition, LiteralRule, Rule, RuleResult}
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4Addr, IPv4Subnet, MAC}
+import org.midonet.util.Range
+
+object ChainBenchmark {
+    val TCP = 6.toByte
+    val UDP = 17.toByte
+    val FirstPort = 1024
+    val Remote = new IPv4Subnet("10.0.0.0", 8)
+}
+
+/**
+ * Measures the evaluation of a security group chain against a packet that
+ * matches its first rule, its last rule, or none of its rules. Each rule
+ * accepts the TCP or UDP traffic from a remote subnet to a destination port,
+ * and the chain ends with a rule that drops everything else.
+ *
+ * The gc.alloc.rate.norm reported by the GC profiler is the garbage produced
+ * per evaluation, which should be zero.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Thread)
+class ChainBenchmark {
+    import ChainBenchmark._
+
+    @Param(Array("4", "64", "512"))
+    var rules: Int = _
+
+    @Param(Array("first", "last", "none"))
+    var matching: String = _
+
+    val ownerId = UUID.randomUUID()
+
+    var chain: Chain = _
+    var context: PacketContext = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        val chainId = UUID.randomUUID()
+        val accepts = (0 until rules) map { i =>
+            rule(if (i % 4 == 3) UDP else TCP, FirstPort + i, Action.ACCEPT)
+        }
+        val drop = new LiteralRule(Condition.TRUE, Action.DROP)
+        val all = (accepts :+ drop).toList
+        all foreach (_.chainId = chainId)
+        chain = new Chain(chainId, all.asJava, Map.empty[UUID, Chain],
+                          s"sg-$chainId")
+
+        val (proto, port) = matching match {
+            case "first" => (TCP, FirstPort)
+            case "last" =>
+                val last = rules - 1
+                (if (last % 4 == 3) UDP else TCP, FirstPort + last)
+            case _ => (TCP, 80)
+        }
+        val fmatch = new FlowMatch()
+            .setEthSrc(MAC.random())
+            .setEthDst(MAC.random())
+            .setEtherType(0x0800.toShort)
+            .setNetworkSrc(IPv4Addr.fromString("10.0.0.1"))
+            .setNetworkDst(IPv4Addr.fromString("192.168.0.1"))
+            .setNetworkProto(proto)
+            .setSrcPort(40000)
+            .setDstPort(port)
+        context = new PacketContext(1, null, fmatch)
+    }
+
+    private def rule(proto: Byte, port: Int, action: Action): Rule = {
+        val cond = new Condition()
+        cond.etherType = 0x0800
+        cond.nwProto = proto
+        cond.nwSrcIp = Remote
+        cond.tpDst = new Range[Integer](port)
+        new LiteralRule(cond, action)
+    }
+
+    @Benchmark
+    def apply(): RuleResult =
+        Chain.apply(chain, context, ownerId, true)
+}
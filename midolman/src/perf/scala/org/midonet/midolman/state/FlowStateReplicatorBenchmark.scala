@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{ArrayList, Random, UUID}
+import java.util.concurrent.TimeUnit
+
+import scala.concurrent.Future
+
+import com.typesafe.scalalogging.Logger
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.UnderlayResolver
+import org.midonet.midolman.UnderlayResolver.Route
+import org.midonet.midolman.datapath.StatePacketExecutor
+import org.midonet.midolman.flows.FlowTagIndexer
+import org.midonet.midolman.simulation.{PacketContext, PortGroup}
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
+import org.midonet.midolman.topology.devices.{BridgePort, Port}
+import org.midonet.odp.flows.{FlowActionOutput, FlowActions}
+import org.midonet.odp.{FlowMatches, Packet}
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.sdn.state.{FlowStateTable, FlowStateTransaction, ShardedFlowStateTable}
+
+object FlowStateReplicatorBenchmark {
+    val NumFlows = 1024
+    val FlowMask = NumFlows - 1
+
+    val log = Logger(NOPLogger.NOP_LOGGER)
+
+    def makePort(host: UUID): Port =
+        new BridgePort() {
+            id = UUID.randomUUID()
+            hostId = host
+        }
+}
+
+/**
+ * Measures the encoding of the flow state of a new flow into state packets,
+ * as the packet processing threads do for each flow that creates state, and
+ * the decoding of a state packet received from a peer into the flow state
+ * tables. The state of a flow is a conntrack key and some NAT entries.
+ *
+ * The gc.alloc.rate.norm reported by the GC profiler compares the garbage
+ * each encoding produces per flow.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Thread)
+class FlowStateReplicatorBenchmark {
+    import FlowStateReplicatorBenchmark._
+
+    type ConnTrackTx = FlowStateTransaction[ConnTrackKey, ConnTrackValue]
+    type NatTx = FlowStateTransaction[NatKey, NatBinding]
+    type TraceTx = FlowStateTransaction[TraceKey, TraceContext]
+
+    @Param(Array("proto", "flat"))
+    var encoding: String = _
+
+    @Param(Array("1", "4"))
+    var natEntries: Int = _
+
+    val hostId = UUID.randomUUID()
+    val peerId = UUID.randomUUID()
+    val ingressPort = makePort(hostId)
+    val egressPort = makePort(peerId)
+
+    val underlay = new UnderlayResolver {
+        val route = Route(IPv4Addr.fromString("192.168.1.1").toInt,
+                          IPv4Addr.fromString("192.168.1.2").toInt,
+                          FlowActions.output(1))
+        override def peerTunnelInfo(peer: UUID): Option[Route] =
+            if (peer == peerId) Some(route) else None
+        override def isVtepTunnellingPort(portNumber: Integer): Boolean = false
+        override def isOverlayTunnellingPort(portNumber: Integer): Boolean = false
+        override def vtepTunnellingOutputAction: FlowActionOutput = null
+    }
+
+    val flowInvalidation = new FlowTagIndexer {
+        override val log = FlowStateReplicatorBenchmark.log
+    }
+
+    val statePacketExecutor = new StatePacketExecutor {
+        override val log = FlowStateReplicatorBenchmark.log
+    }
+
+    var sender: BenchmarkReplicator = _
+    var recipient: BenchmarkReplicator = _
+    var conntrackTx: ConnTrackTx = _
+    var natTx: NatTx = _
+    var traceTx: TraceTx = _
+    var context: PacketContext = _
+
+    val connTrackKeys = new Array[ConnTrackKey](NumFlows)
+    val natKeys = new Array[Array[NatKey]](NumFlows)
+    val natBindings = new Array[Array[NatBinding]](NumFlows)
+    val payloads = new Array[Array[Byte]](NumFlows)
+    var i = 0
+
+    class BenchmarkReplicator(
+            val conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue],
+            val natTable: FlowStateTable[NatKey, NatBinding],
+            val traceTable: FlowStateTable[TraceKey, TraceContext],
+            flat: Boolean)
+        extends BaseFlowStateReplicator(conntrackTable, natTable, traceTable,
+                                        Future.successful(new MockStateStorage),
+                                        hostId, underlay, flowInvalidation,
+                                        0, flat) {
+        override val log = FlowStateReplicatorBenchmark.log
+
+        override def getPort(id: UUID): Port =
+            if (id == ingressPort.id) ingressPort else egressPort
+
+        override def getPortGroup(id: UUID): PortGroup = null
+    }
+
+    private def newReplicator(): BenchmarkReplicator =
+        new BenchmarkReplicator(
+            new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]().addShard(),
+            new ShardedFlowStateTable[NatKey, NatBinding]().addShard(),
+            new ShardedFlowStateTable[TraceKey, TraceContext]().addShard(),
+            encoding == "flat")
+
+    @JmhSetup
+    def setup(): Unit = {
+        sender = newReplicator()
+        recipient = newReplicator()
+        conntrackTx = new ConnTrackTx(sender.conntrackTable)
+        natTx = new NatTx(sender.natTable)
+        traceTx = new TraceTx(sender.traceTable)
+
+        val frame: Ethernet = { eth src MAC.random() dst MAC.random() } <<
+                              { ip4 src IPv4Addr.random dst IPv4Addr.random } <<
+                              { udp src 1234 dst 53 }
+        val fmatch = FlowMatches.fromEthernetPacket(frame)
+        context = new PacketContext(-1, new Packet(frame, fmatch), fmatch)
+        context.initialize(conntrackTx, natTx, null, traceTx)
+        context.inputPort = ingressPort.id
+        context.outPorts.add(egressPort.id)
+
+        val rand = new Random(42)
+        val device = new UUID(rand.nextLong(), rand.nextLong())
+        var f = 0
+        while (f < NumFlows) {
+            val src = IPv4Addr.fromInt(rand.nextInt())
+            val dst = IPv4Addr.fromInt(rand.nextInt())
+            connTrackKeys(f) = ConnTrackKey(src, f, dst, 80, 6, device)
+            natKeys(f) = new Array(natEntries)
+            natBindings(f) = new Array(natEntries)
+            var n = 0
+            while (n < natEntries) {
+                natKeys(f)(n) = NatKey(NatState.FWD_SNAT, src, f + n, dst, 80,
+                                       6, device)
+                natBindings(f)(n) = NatBinding(IPv4Addr.fromInt(rand.nextInt()),
+                                               1024 + rand.nextInt(60000))
+                n += 1
+            }
+            encodeFlow(f)
+            payloads(f) = context.stateMessages.get(0)
+            clear()
+            f += 1
+        }
+    }
+
+    private def encodeFlow(flow: Int): ArrayList[Array[Byte]] = {
+        conntrackTx.putAndRef(connTrackKeys(flow), ConnTrackState.RETURN_FLOW)
+        var n = 0
+        while (n < natEntries) {
+            natTx.putAndRef(natKeys(flow)(n), natBindings(flow)(n))
+            n += 1
+        }
+        sender.accumulateNewKeys(context)
+        context.stateMessages
+    }
+
+    private def clear(): Unit = {
+        conntrackTx.flush()
+        natTx.flush()
+        context.stateMessages.clear()
+        context.stateActions.clear()
+        context.flowRemovedCallbacks.clear()
+        context.flowTags.clear()
+    }
+
+    private def nextFlow(): Int = {
+        i += 1
+        i & FlowMask
+    }
+
+    /**
+     * Encodes the flow state of a new flow into a state packet.
+     */
+    @Benchmark
+    def encode(): Int = {
+        val size = encodeFlow(nextFlow()).size
+        clear()
+        size
+    }
+
+    /**
+     * Decodes a state packet into the flow state tables of the recipient.
+     */
+    @Benchmark
+    def accept(): Packet = {
+        val packet = statePacketExecutor.prepareStatePacket(payloads(nextFlow()))
+        recipient.accept(packet.getEthernet)
+        packet
+    }
+}
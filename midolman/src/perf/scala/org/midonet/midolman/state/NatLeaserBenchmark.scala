@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.mutable
+
+import com.typesafe.scalalogging.Logger
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.NotYetException
+import org.midonet.midolman.rules.NatTarget
+import org.midonet.midolman.state.NatLeaser.{blockOf, firstPortIn}
+import org.midonet.midolman.state.NatState.NatBinding
+import org.midonet.packets.IPv4Addr
+import org.midonet.util.concurrent.NanoClock
+import org.midonet.util.functors.Callback
+
+object NatLeaserBenchmark {
+    val FirstPort = 1024
+    val Destination = IPv4Addr.fromString("17.16.15.1")
+    val DestinationPort = 80
+}
+
+/**
+ * Measures the allocation of a SNAT binding for a new connection to a single
+ * destination, when a share of the ports of the NAT target are already bound
+ * to connections to that destination. As the ports run out, each allocation
+ * searches more of the leased blocks; once they are exhausted, it also asks
+ * the block allocator for a new block, which fails.
+ *
+ * The gc.alloc.rate.norm reported by the GC profiler is the garbage produced
+ * per binding.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Thread)
+class NatLeaserBenchmark {
+    import NatLeaserBenchmark._
+
+    @Param(Array("16", "256"))
+    var blocks: Int = _
+
+    @Param(Array("0", "50", "90", "99", "100"))
+    var occupancy: Int = _
+
+    val device = UUID.randomUUID()
+    val allocatedBlocks = mutable.Set[NatBlock]()
+
+    val leaser = new NatLeaser {
+        override val log = Logger(NOPLogger.NOP_LOGGER)
+        override val clock = NanoClock.DEFAULT
+        override val allocator = new NatBlockAllocator {
+            override def allocateBlockInRange(natRange: NatRange,
+                                              callback: Callback[NatBlock, Exception]): Unit =
+                callback.onSuccess(
+                    (natRange.tpPortStart to natRange.tpPortEnd by NatBlock.BLOCK_SIZE) map { port =>
+                        new NatBlock(natRange.deviceId, natRange.ip, blockOf(port))
+                    } find { block =>
+                        allocatedBlocks.add(block)
+                    } getOrElse NatBlock.NO_BLOCK)
+
+            override def freeBlock(natBlock: NatBlock): Unit =
+                allocatedBlocks.remove(natBlock)
+        }
+    }
+
+    var targets: Array[NatTarget] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        val ip = IPv4Addr.fromString("10.0.1.1").addr
+        val lastPort = firstPortIn(blockOf(FirstPort) + blocks) - 1
+        targets = Array(new NatTarget(ip, ip, FirstPort, lastPort))
+
+        val bound = (lastPort - FirstPort + 1) * occupancy / 100
+        var i = 0
+        while (i < bound) {
+            if (allocate() ne null)
+                i += 1
+        }
+    }
+
+    /**
+     * Allocates a binding, leasing a new block if needed as the simulation
+     * does when it is postponed, or returns null if the ports are exhausted.
+     */
+    private def allocate(): NatBinding =
+        try {
+            leaser.allocateNatBinding(device, Destination, DestinationPort,
+                                      targets)
+        } catch {
+            case NotYetException(f, _) if f.isCompleted && f.value.get.isSuccess =>
+                allocate()
+            case _: NotYetException =>
+                null
+        }
+
+    /**
+     * Binds a new connection and releases the binding right away, so that
+     * the occupancy of the ports doesn't change.
+     */
+    @Benchmark
+    def allocateNatBinding(): NatBinding = {
+        val binding = allocate()
+        if (binding ne null) {
+            leaser.freeNatBinding(device, Destination, DestinationPort,
+                                  binding)
+        }
+        binding
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import java.util.{Random, UUID}
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.state.ConnTrackState._
+import org.midonet.packets.IPv4Addr
+import org.midonet.util.concurrent.NanoClock
+
+object FlowStateTableBenchmark {
+    val KeysPerShard = 64 * 1024
+    val KeyMask = KeysPerShard - 1
+
+    val ThreadIndex = new AtomicInteger(0)
+
+    def makeKeys(rand: Random, device: UUID): Array[ConnTrackKey] = {
+        val keys = new Array[ConnTrackKey](KeysPerShard)
+        var i = 0
+        while (i < KeysPerShard) {
+            keys(i) = ConnTrackKey(IPv4Addr.fromInt(rand.nextInt()),
+                                   rand.nextInt(0xffff),
+                                   IPv4Addr.fromInt(rand.nextInt()), 80,
+                                   6, device)
+            i += 1
+        }
+        keys
+    }
+}
+
+/**
+ * The shard owned by each benchmark thread, and its position in the keys of
+ * the shard.
+ */
+@State(Scope.Thread)
+class ShardThreadState {
+    import FlowStateTableBenchmark._
+
+    val index = ThreadIndex.getAndIncrement()
+    var i = 0
+
+    def next(): Int = {
+        i += 1
+        i & KeyMask
+    }
+}
+
+/**
+ * Measures the operations the packet processing threads perform on a sharded
+ * flow state table: lookups of keys owned by the thread's shard and by other
+ * shards, the reference counting of the keys of its shard, and the commit of
+ * a flow state transaction. Each thread owns a shard, so there must be at
+ * least as many shards as threads; the threads contend on the directory of
+ * key owners shared by the shards.
+ *
+ * The gc.alloc.rate.norm reported by the GC profiler compares the garbage
+ * each storage produces per operation.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@Threads(4)
+@State(Scope.Benchmark)
+class FlowStateTableBenchmark {
+    import FlowStateTableBenchmark._
+
+    type ConnTrackTx = FlowStateTransaction[ConnTrackKey, ConnTrackValue]
+
+    @Param(Array("4", "16"))
+    var shards: Int = _
+
+    @Param(Array("objects", "primitive"))
+    var storage: String = _
+
+    var table: ShardedFlowStateTable[ConnTrackKey, ConnTrackValue] = _
+    var tables: Array[FlowStateTable[ConnTrackKey, ConnTrackValue]] = _
+    var transactions: Array[ConnTrackTx] = _
+    var keys: Array[Array[ConnTrackKey]] = _
+    var txKeys: Array[Array[ConnTrackKey]] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        table = if (storage == "primitive")
+                    new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](
+                        NanoClock.DEFAULT, ConnTrackKeyCodec)
+                else
+                    new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](
+                        NanoClock.DEFAULT)
+        tables = new Array(shards)
+        transactions = new Array(shards)
+        keys = new Array(shards)
+        txKeys = new Array(shards)
+
+        val rand = new Random(42)
+        val device = new UUID(rand.nextLong(), rand.nextLong())
+        var s = 0
+        while (s < shards) {
+            val shard = table.addShard()
+            tables(s) = shard
+            transactions(s) = new ConnTrackTx(shard)
+            keys(s) = makeKeys(rand, device)
+            txKeys(s) = makeKeys(rand, device)
+            var i = 0
+            while (i < KeysPerShard) {
+                shard.putAndRef(keys(s)(i), RETURN_FLOW)
+                i += 1
+            }
+            s += 1
+        }
+    }
+
+    /**
+     * Looks up a key owned by the thread's shard.
+     */
+    @Benchmark
+    def getLocal(t: ShardThreadState): ConnTrackValue =
+        tables(t.index).get(keys(t.index)(t.next()))
+
+    /**
+     * Looks up a key owned by another shard, which goes through the
+     * directory of key owners.
+     */
+    @Benchmark
+    def getRemote(t: ShardThreadState): ConnTrackValue =
+        tables(t.index).get(keys((t.index + 1) % shards)(t.next()))
+
+    /**
+     * References and releases a key of the thread's shard, as a flow does
+     * for each key it matches.
+     */
+    @Benchmark
+    def refUnref(t: ShardThreadState): ConnTrackValue = {
+        val shard = tables(t.index)
+        val key = keys(t.index)(t.next())
+        val v = shard.ref(key)
+        shard.unref(key)
+        v
+    }
+
+    /**
+     * Commits a transaction holding a new key and releases the key, as a
+     * flow that creates a connection does when it is installed and removed.
+     */
+    @Benchmark
+    def commit(t: ShardThreadState): Int = {
+        val tx = transactions(t.index)
+        val key = txKeys(t.index)(t.next())
+        tx.putAndRef(key, RETURN_FLOW)
+        val size = tx.size()
+        tx.commit()
+        tx.flush()
+        tables(t.index).unref(key)
+        size
+    }
+}
@@ -44,6 +44,9 @@ public class MockFlowStateStorageModule extends PrivateModule {
                     return Future$.MODULE$.successful(
                         (FlowStateStorage)new MockStateStorage());
                 }
+
+                @Override
+                public void stop() { }
             };
         }
     }
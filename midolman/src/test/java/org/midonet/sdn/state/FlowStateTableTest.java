@@ -125,6 +125,53 @@ public class FlowStateTableTest {
         }
     }
 
+    @Test
+    public void testExpiredKeyMovesToAnotherShard() {
+        shards.get(0).putAndRef(keys[0], vals[0]);
+        shards.get(0).unref(keys[0]);
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        global.expireIdleEntries();
+        assertThat(global.get(keys[0]), nullValue());
+
+        shards.get(1).putAndRef(keys[0], vals[1]);
+        assertThat(shards.get(0).get(keys[0]), equalTo(vals[1]));
+        assertThat(global.get(keys[0]), equalTo(vals[1]));
+        assertThat(global.getRefCount(keys[0]), equalTo(1));
+        global.unref(keys[0]);
+        assertThat(shards.get(1).getRefCount(keys[0]), equalTo(0));
+    }
+
+    @Test
+    public void testKeyHeldByAnotherShardOutlivesItsOwner() {
+        shards.get(0).putAndRef(keys[0], vals[0]);
+        shards.get(1).putAndRef(keys[0], vals[1]);
+        shards.get(0).unref(keys[0]);
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        global.expireIdleEntries();
+
+        assertThat(global.get(keys[0]), equalTo(vals[1]));
+        assertThat(shards.get(2).get(keys[0]), equalTo(vals[1]));
+        assertThat(global.getRefCount(keys[0]), equalTo(1));
+        global.unref(keys[0]);
+        assertThat(shards.get(1).getRefCount(keys[0]), equalTo(0));
+    }
+
+    @Test
+    public void testRefCountsAddUpAcrossShards() {
+        shards.get(0).putAndRef(keys[0], vals[0]);
+        shards.get(2).putAndRef(keys[0], vals[1]);
+        assertThat(global.getRefCount(keys[0]), equalTo(2));
+
+        global.unref(keys[0]);
+        assertThat(shards.get(0).getRefCount(keys[0]), equalTo(0));
+        assertThat(shards.get(2).getRefCount(keys[0]), equalTo(0));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        global.expireIdleEntries();
+        assertThat(global.get(keys[0]), nullValue());
+        assertThat(global.getRefCount(keys[0]), equalTo(0));
+    }
+
     @Test
     public void testTransactionSetGet() {
         FlowStateTable<TestKey, Integer> shard = shards.get(0);
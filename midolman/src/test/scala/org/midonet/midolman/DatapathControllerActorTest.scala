@@ -90,6 +90,7 @@ class DatapathControllerActorTest extends MidolmanSpec {
             clock,
             new FlowStateStorageFactory() {
                 override def create() = Future.successful(new MockStateStorage())
+                override def stop(): Unit = { }
             })
 
     var dpc: TestableDpC = _
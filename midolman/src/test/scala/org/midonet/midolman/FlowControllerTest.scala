@@ -19,16 +19,20 @@ package org.midonet.midolman
 import akka.actor.Actor
 import akka.testkit.{TestActorRef, TestProbe}
 
+import com.typesafe.config.{Config, ConfigFactory}
+
 import org.slf4j.helpers.NOPLogger
 import com.typesafe.scalalogging.Logger
 
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
+import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.flows.{ManagedFlow, FlowExpirationIndexer}
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.util.MidolmanSpec
-import org.midonet.odp.FlowMatch
+import org.midonet.odp.{Flow, FlowMatch}
+import org.midonet.odp.flows.FlowKeys
 import org.midonet.util.functors.Callback0
 
 @RunWith(classOf[JUnitRunner])
@@ -38,12 +42,25 @@ class FlowControllerTest extends MidolmanSpec {
 
     var flowController: FlowController = _
 
+    override def fillConfig(config: Config) = {
+        super.fillConfig(config.withFallback(ConfigFactory.parseString(
+            """
+              |agent.datapath.max_flow_count : 2
+              |agent.datapath.idle_flow_timeout : 5s
+              |agent.datapath.idle_flow_check_interval : 1s
+            """.stripMargin)))
+    }
+
     override def beforeTest(): Unit =
-        flowController = TestActorRef(new {
+        flowController = newFlowController()
+
+    private def newFlowController(flowConfig: MidolmanConfig = config)
+    : FlowController =
+        TestActorRef(new {
              val id = 0
              val flowProcessor = FlowControllerTest.this.flowProcessor
              val flowInvalidator = FlowControllerTest.this.flowInvalidator
-             val config = FlowControllerTest.this.config
+             val config = flowConfig
              val metrics = FlowControllerTest.this.metrics
              val clock = FlowControllerTest.this.clock
              val datapathId = 0
@@ -97,21 +114,194 @@ class FlowControllerTest extends MidolmanSpec {
             And("The flow removed callbacks should be called")
             flow2.flowRemoved should be (true)
         }
+
+        scenario("A flow is removed at its hard deadline") {
+            Given("A flow in the flow controller")
+            val flow = new TestableFlow()
+            flow.add() should not be null
+
+            When("The flow controller runs before the flow expires")
+            clock.time = FlowExpirationIndexer.FLOW_EXPIRATION.value - 1
+            flowController.process()
+
+            Then("The flow is kept")
+            flow.flowRemoved should be (false)
+
+            When("The flow controller runs once the flow expires")
+            clock.time = FlowExpirationIndexer.FLOW_EXPIRATION.value
+            flowController.process()
+
+            Then("The flow is removed")
+            flow.flowRemoved should be (true)
+            flowController.metrics.currentDpFlowsMetric.getValue should be (0)
+        }
     }
 
-    final class TestableFlow {
+    feature("The flow controller expires idle flows") {
+        scenario("An idle flow is removed") {
+            Given("A flow in the flow controller and in the datapath")
+            val flow = new TestableFlow(1)
+            flow.add() should not be null
+            flow.install()
+
+            When("The datapath flows are dumped")
+            dumpAt(1)
+
+            Then("The flow is not removed until it is idle for long enough")
+            dumpAt(4)
+            flow.flowRemoved should be (false)
+            dumpAt(6)
+            flow.flowRemoved should be (true)
+            flowController.metrics.currentDpFlowsMetric.getValue should be (0)
+        }
+
+        scenario("A flow carrying traffic is kept") {
+            Given("A flow in the flow controller and in the datapath")
+            val flow = new TestableFlow(1)
+            flow.add() should not be null
+            val dpFlow = flow.install()
+
+            When("The flow matches packets between dumps")
+            dumpAt(1)
+            dpFlow.getStats.packets = 10
+            dumpAt(4)
+            dpFlow.getStats.packets = 20
+            dumpAt(8)
+
+            Then("The flow is not removed")
+            flow.flowRemoved should be (false)
+
+            And("It is removed once it becomes idle")
+            dumpAt(13)
+            flow.flowRemoved should be (true)
+        }
+
+        scenario("Idle flows are evicted first") {
+            Given("A flow carrying traffic and a more recent idle flow")
+            val activeFlow = new TestableFlow(1)
+            activeFlow.add() should not be null
+            val dpFlow = activeFlow.install()
+            clock.time = 1
+            val idleFlow = new TestableFlow(2)
+            idleFlow.add() should not be null
+            idleFlow.install()
+            dumpAt(1)
+            dpFlow.getStats.packets = 10
+            dumpAt(2)
+
+            When("The flow table is oversubscribed")
+            new TestableFlow(3).add() should not be null
+            flowController.process()
+
+            Then("The idle flow is evicted instead of the oldest one")
+            idleFlow.flowRemoved should be (true)
+            activeFlow.flowRemoved should be (false)
+            flowController.metrics.currentDpFlowsMetric.getValue should be (2)
+        }
+
+        scenario("The flow controllers share a single dump") {
+            Given("Two flow controllers with an idle flow each")
+            val otherController = newFlowController()
+            val flow = new TestableFlow(1)
+            flow.add() should not be null
+            flow.install()
+            val otherFlow = new TestableFlow(2, otherController)
+            otherFlow.add() should not be null
+            otherFlow.install()
+
+            When("Both process the datapath flows")
+            dumpAt(1)
+            otherController.process()
+
+            Then("The datapath flows were dumped once")
+            flowProcessor.dumps should be (1)
+
+            And("Both remove their flow once it is idle")
+            dumpAt(6)
+            otherController.process()
+            flowProcessor.dumps should be (2)
+            flow.flowRemoved should be (true)
+            otherFlow.flowRemoved should be (true)
+        }
+    }
+
+    feature("The flow controller can expire flows in a timing wheel") {
+        scenario("A flow the dumps miss is removed once idle") {
+            Given("A flow in the flow controller but not in the datapath")
+            val controller = newFlowController(wheelConfig)
+            val flow = new TestableFlow(controller = controller)
+            flow.add() should not be null
+
+            When("The flow is idle for the timeout and a check interval")
+            clock.time = 6000000000L - 1
+            controller.process()
+            flow.flowRemoved should be (false)
+            clock.time = 6000000000L
+            controller.process()
+
+            Then("The flow is removed")
+            flow.flowRemoved should be (true)
+        }
+
+        scenario("A flow carrying traffic is kept") {
+            Given("A flow in the flow controller and in the datapath")
+            val controller = newFlowController(wheelConfig)
+            val flow = new TestableFlow(1, controller)
+            flow.add() should not be null
+            val dpFlow = flow.install()
+
+            When("The flow matches packets between dumps")
+            dumpAt(1, controller)
+            dpFlow.getStats.packets = 10
+            dumpAt(4, controller)
+            dpFlow.getStats.packets = 20
+            dumpAt(8, controller)
+
+            Then("The flow is not removed")
+            flow.flowRemoved should be (false)
+
+            And("It is removed once it becomes idle")
+            dumpAt(13, controller)
+            flow.flowRemoved should be (true)
+        }
+    }
+
+    private def wheelConfig = new MidolmanConfig(
+        ConfigFactory.parseString(
+            "agent.datapath.timing_wheel_flow_expiration : true")
+            .withFallback(config.conf), config.schema)
+
+    private def dumpAt(seconds: Long,
+                       controller: FlowController = flowController): Unit = {
+        clock.time = seconds * 1000000000L
+        controller.process()
+        controller.process()
+    }
+
+    final class TestableFlow(inPort: Int = -1,
+                             controller: FlowController = flowController) {
         var flowRemoved = false
 
+        val flowMatch = new FlowMatch()
+        if (inPort >= 0)
+            flowMatch.addKey(FlowKeys.inPort(inPort))
+
+        def install(): Flow = {
+            val flow = new Flow(flowMatch)
+            flowProcessor.flowsTable.put(flowMatch, flow)
+            flow
+        }
+
         def add(): ManagedFlow = {
-            val context = new PacketContext(0, null, new FlowMatch())
+            val context = new PacketContext(0, null, flowMatch)
             context addFlowRemovedCallback new Callback0 {
                 def call() = flowRemoved = true
             }
-            flowController.tryAddFlow(context, FlowExpirationIndexer.FLOW_EXPIRATION)
+            controller.tryAddFlow(context, FlowExpirationIndexer.FLOW_EXPIRATION)
             context.flow
         }
 
         def remove(flow: ManagedFlow): Unit =
-            flowController.removeFlow(flow)
+            controller.removeFlow(flow)
     }
 }
@@ -99,6 +99,46 @@ class FlowExpirationIndexerTest extends MidolmanSpec {
             removedFlows.dequeue() should be (flows(0))
             removedFlows.dequeue() should be (flows(1))
         }
+
+        scenario ("Removed flows don't count towards the limit") {
+            val flows = List(
+                createFlow(FlowExpirationIndexer.FLOW_EXPIRATION),
+                createFlow(FlowExpirationIndexer.FLOW_EXPIRATION),
+                createFlow(FlowExpirationIndexer.FLOW_EXPIRATION),
+                createFlow(FlowExpirationIndexer.FLOW_EXPIRATION),
+                createFlow(FlowExpirationIndexer.FLOW_EXPIRATION),
+                createFlow(FlowExpirationIndexer.FLOW_EXPIRATION))
+            flows foreach flowExpiration.registerFlow
+            flowExpiration.removeFlow(flows(4))
+            flowExpiration.removeFlow(flows(5))
+            flowExpiration.indexedFlows should be (4)
+            removedFlows.clear()
+            flowExpiration.checkFlowsExpiration(0)
+            removedFlows should be (empty)
+        }
+
+        scenario ("The flow limit can be lower than maxFlows") {
+            var limit = 2
+            val limitedExpiration = new FlowAddRemover(removedFlows)
+                                        with FlowExpirationIndexer {
+                override protected def flowLimit = limit
+            }
+            val flows = List(
+                createFlow(FlowExpirationIndexer.FLOW_EXPIRATION),
+                createFlow(FlowExpirationIndexer.FLOW_EXPIRATION),
+                createFlow(FlowExpirationIndexer.FLOW_EXPIRATION),
+                createFlow(FlowExpirationIndexer.FLOW_EXPIRATION))
+            flows foreach limitedExpiration.registerFlow
+            limitedExpiration.checkFlowsExpiration(0)
+            removedFlows should have size 2
+            removedFlows.dequeue() should be (flows(0))
+            removedFlows.dequeue() should be (flows(1))
+
+            limit = 1
+            limitedExpiration.checkFlowsExpiration(0)
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (flows(2))
+        }
     }
 
     private def createFlow(exp: FlowExpirationIndexer.Expiration) = {
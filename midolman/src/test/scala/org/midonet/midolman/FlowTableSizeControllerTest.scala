@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.flows.FlowTableSizeController
+
+@RunWith(classOf[JUnitRunner])
+class FlowTableSizeControllerTest extends FeatureSpec with Matchers {
+
+    private def controller() = new FlowTableSizeController(
+        maxFlows = 1000, minFlows = 100, targetMissRate = 0.1,
+        targetMasksPerLookup = 4)
+
+    feature ("The flow limit adapts to the datapath statistics") {
+        scenario ("The limit starts at maxFlows and the first sample is a baseline") {
+            val ctrl = controller()
+            ctrl.flowLimit should be (1000)
+            ctrl.expirationScale should be (1.0)
+            ctrl.update(hits = 100, misses = 900, lost = 0, maskHits = 10000) should be (false)
+            ctrl.flowLimit should be (1000)
+        }
+
+        scenario ("A high lookup cost shrinks the limit down to minFlows") {
+            val ctrl = controller()
+            ctrl.update(0, 0, 0, 0)
+            ctrl.update(hits = 1000, misses = 0, lost = 0, maskHits = 8000) should be (true)
+            ctrl.masksPerLookup should be (8.0)
+            ctrl.flowLimit should be (750)
+            ctrl.expirationScale should be (0.75)
+
+            var hits = 1000L
+            var maskHits = 8000L
+            for (i <- 0 until 20) {
+                hits += 1000
+                maskHits += 8000
+                ctrl.update(hits, 0, 0, maskHits)
+            }
+            ctrl.flowLimit should be (100)
+        }
+
+        scenario ("A high miss rate grows the limit up to maxFlows") {
+            val ctrl = controller()
+            ctrl.update(0, 0, 0, 0)
+            ctrl.update(1000, 0, 0, 8000)
+            ctrl.flowLimit should be (750)
+
+            ctrl.update(hits = 1500, misses = 400, lost = 100, maskHits = 9000) should be (true)
+            ctrl.missRate should be (0.5)
+            ctrl.upcalls should be (400)
+            ctrl.flowLimit should be (938)
+
+            ctrl.update(2000, 800, 200, 10000)
+            ctrl.flowLimit should be (1000)
+        }
+
+        scenario ("The limit is kept when the targets are met") {
+            val ctrl = controller()
+            ctrl.update(0, 0, 0, 0)
+            ctrl.update(1000, 0, 0, 8000)
+            ctrl.update(hits = 2000, misses = 10, lost = 0, maskHits = 10000) should be (false)
+            ctrl.flowLimit should be (750)
+        }
+
+        scenario ("The lookup cost is ignored without megaflow statistics") {
+            val ctrl = controller()
+            ctrl.update(0, 0, 0, -1)
+            ctrl.update(hits = 1000, misses = 0, lost = 0, maskHits = -1) should be (false)
+            ctrl.masksPerLookup should be (-1.0)
+            ctrl.flowLimit should be (1000)
+        }
+
+        scenario ("Samples without traffic or from a new datapath are ignored") {
+            val ctrl = controller()
+            ctrl.update(1000, 0, 0, 0)
+            ctrl.update(1000, 0, 0, 0) should be (false)
+            ctrl.update(0, 0, 0, 0) should be (false)
+            ctrl.update(1000, 0, 0, 8000) should be (true)
+            ctrl.flowLimit should be (750)
+        }
+    }
+}
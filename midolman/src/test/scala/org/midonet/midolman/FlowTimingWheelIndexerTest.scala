@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman
+
+import scala.collection.mutable.Queue
+import scala.concurrent.duration._
+
+import com.typesafe.scalalogging.Logger
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.flows.{FlowExpirationIndexer, FlowIndexer, FlowTimingWheelIndexer, ManagedFlow}
+import org.midonet.midolman.util.MidolmanSpec
+
+@RunWith(classOf[JUnitRunner])
+class FlowTimingWheelIndexerTest extends MidolmanSpec {
+
+    class FlowAddRemover(flowsRemoved: Queue[ManagedFlow]) extends FlowIndexer {
+        val log = Logger(NOPLogger.NOP_LOGGER)
+
+        val maxFlows = 4
+
+        override def removeFlow(flow: ManagedFlow): Unit =
+            flowsRemoved += flow
+    }
+
+    val removedFlows = Queue[ManagedFlow]()
+    val flowExpiration = new FlowAddRemover(removedFlows) with FlowTimingWheelIndexer
+
+    feature ("Flows are expired with a hard timeout") {
+
+        scenario ("A flow is removed upon a hard timeout") {
+            val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION.value)
+            flowExpiration.registerFlow(flow)
+            flow.currentRefCount should be (2)
+            clock.time = FlowExpirationIndexer.FLOW_EXPIRATION.value - 1
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should be (empty)
+            clock.time = FlowExpirationIndexer.FLOW_EXPIRATION.value
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (flow)
+            flow.currentRefCount should be (1)
+        }
+
+        scenario ("A removed flow is cancelled") {
+            val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION.value)
+            flowExpiration.registerFlow(flow)
+            flow.currentRefCount should be (2)
+            flowExpiration.removeFlow(flow)
+            flow.currentRefCount should be (1)
+            flowExpiration.indexedFlows should be (0)
+            removedFlows.clear()
+            clock.time = FlowExpirationIndexer.FLOW_EXPIRATION.value + 1
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should be (empty)
+        }
+
+        scenario ("Flows with arbitrary deadlines expire in order") {
+            val deadlines = List((3 hours).toNanos, (5 millis).toNanos,
+                                 (2 seconds).toNanos, (90 seconds).toNanos)
+            val flows = deadlines map createFlow
+            flows foreach flowExpiration.registerFlow
+
+            deadlines.sorted foreach { deadline =>
+                clock.time = deadline - 1
+                flowExpiration.checkFlowsExpiration(clock.tick)
+                removedFlows should be (empty)
+                clock.time = deadline + FlowTimingWheelIndexer.DEFAULT_TICK_NANOS
+                flowExpiration.checkFlowsExpiration(clock.tick)
+                removedFlows should have size 1
+                removedFlows.dequeue().absoluteExpirationNanos should be (deadline)
+            }
+            flowExpiration.indexedFlows should be (0)
+        }
+    }
+
+    feature ("Flows are expired with an idle timeout") {
+
+        scenario ("An idle flow is removed before its hard timeout") {
+            val flow = createFlow((1 minute).toNanos)
+            flow.idleTimeoutNanos = (5 seconds).toNanos
+            flowExpiration.registerFlow(flow)
+            clock.time = (5 seconds).toNanos - 1
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should be (empty)
+            clock.time = (5 seconds).toNanos
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows.dequeue() should be (flow)
+        }
+
+        scenario ("Touching a flow postpones its idle expiration") {
+            val flow = createFlow((1 minute).toNanos)
+            flow.idleTimeoutNanos = (5 seconds).toNanos
+            flowExpiration.registerFlow(flow)
+            flowExpiration.touchFlow(flow, (4 seconds).toNanos)
+            clock.time = (5 seconds).toNanos
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should be (empty)
+            clock.time = (9 seconds).toNanos
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows.dequeue() should be (flow)
+        }
+
+        scenario ("The hard timeout applies to used flows") {
+            val flow = createFlow((10 seconds).toNanos)
+            flow.idleTimeoutNanos = (5 seconds).toNanos
+            flowExpiration.registerFlow(flow)
+            flowExpiration.touchFlow(flow, (8 seconds).toNanos)
+            clock.time = (10 seconds).toNanos
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows.dequeue() should be (flow)
+        }
+    }
+
+    feature ("Oversubscription results in removal of excess flows") {
+
+        scenario ("The flows closest to expiring are removed") {
+            val flows = List(
+                createFlow((6 seconds).toNanos),
+                createFlow((5 seconds).toNanos),
+                createFlow((4 minutes).toNanos),
+                createFlow((3 seconds).toNanos),
+                createFlow((2 minutes).toNanos),
+                createFlow((1 second).toNanos))
+            flows foreach flowExpiration.registerFlow
+            flowExpiration.checkFlowsExpiration(0)
+            removedFlows should have size 2
+            removedFlows.dequeue() should be (flows(5))
+            removedFlows.dequeue() should be (flows(3))
+            flowExpiration.indexedFlows should be (4)
+        }
+    }
+
+    private def createFlow(hardDeadline: Long) = {
+        val flow = new ManagedFlow(null)
+        flow.ref()
+        flow.absoluteExpirationNanos = hardDeadline
+        flow.lastUsedNanos = 0
+        flow
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import scala.collection.mutable.ListBuffer
+import scala.concurrent.duration._
+
+import akka.actor.ActorSystem
+import akka.testkit.TestProbe
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.odp.{FlowMatches, Packet}
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+
+@RunWith(classOf[JUnitRunner])
+class PacketHandoffTest extends FeatureSpec
+                        with BeforeAndAfter
+                        with ShouldMatchers
+                        with OneInstancePerTest
+                        with GivenWhenThen {
+
+    implicit val system = ActorSystem.create()
+
+    val worker = TestProbe()
+    val handoff = new PacketHandoff(4)
+    val handled = ListBuffer[Packet]()
+    val handle = (p: Packet) => { handled += p; () }
+
+    after {
+        system.shutdown()
+    }
+
+    private def makePacket(): Packet = {
+        val frame: Ethernet = { eth src MAC.random() dst MAC.random() } <<
+                              { ip4 src IPv4Addr.random dst IPv4Addr.random } <<
+                              { udp src 1234 dst 53 }
+        new Packet(frame, FlowMatches.fromEthernetPacket(frame))
+    }
+
+    private def attach(): Unit = {
+        handoff.attach(worker.ref)
+        worker.expectMsg(CheckBackchannels)
+        handoff.drain(handle)
+    }
+
+    feature("Packets are handed over to the worker") {
+        scenario("The worker is woken up once per drain") {
+            Given("An attached worker and a producer")
+            attach()
+            val producer = handoff.register()
+
+            When("Several batches are handed over before the worker drains")
+            val packets = List.fill(3)(makePacket())
+            producer.offer(packets(0))
+            producer.flush()
+            producer.offer(packets(1))
+            producer.offer(packets(2))
+            producer.flush()
+
+            Then("The worker is woken up once")
+            worker.expectMsg(CheckBackchannels)
+            worker.expectNoMsg(100 millis)
+
+            And("It drains the packets in order")
+            handoff.hasPendingPackets shouldBe true
+            handoff.drain(handle) shouldBe 3
+            handled shouldBe packets
+            handoff.hasPendingPackets shouldBe false
+
+            When("A new batch is handed over")
+            producer.offer(makePacket())
+            producer.flush()
+
+            Then("The worker is woken up again")
+            worker.expectMsg(CheckBackchannels)
+        }
+
+        scenario("Flushing without packets doesn't wake up the worker") {
+            attach()
+            handoff.register().flush()
+            worker.expectNoMsg(100 millis)
+        }
+
+        scenario("Packets from several producers") {
+            attach()
+            val p1 = handoff.register()
+            val p2 = handoff.register()
+            val packets = List.fill(2)(makePacket())
+            p1.offer(packets(0))
+            p2.offer(packets(1))
+            p1.flush()
+            p2.flush()
+
+            worker.expectMsg(CheckBackchannels)
+            handoff.drain(handle) shouldBe 2
+            handled shouldBe packets
+        }
+    }
+
+    feature("Producers are closed") {
+        scenario("The packets of a closed producer are drained") {
+            Given("A producer with pending packets")
+            attach()
+            val producer = handoff.register()
+            val packet = makePacket()
+            producer.offer(packet)
+
+            When("The producer is closed")
+            producer.close()
+
+            Then("The worker drains its packets")
+            worker.expectMsg(CheckBackchannels)
+            handoff.drain(handle) shouldBe 1
+            handled shouldBe List(packet)
+            handoff.hasPendingPackets shouldBe false
+        }
+    }
+
+    feature("Draining is bounded by the ring capacity") {
+        scenario("A full ring accepts packets once drained") {
+            Given("A producer that fills its ring")
+            attach()
+            val producer = handoff.register()
+            val packets = List.fill(4)(makePacket())
+            packets foreach producer.offer
+            producer.flush()
+            worker.expectMsg(CheckBackchannels)
+
+            When("The worker drains the ring")
+            handoff.drain(handle) shouldBe 4
+
+            Then("The producer can offer again")
+            val packet = makePacket()
+            producer.offer(packet)
+            producer.flush()
+            worker.expectMsg(CheckBackchannels)
+            handoff.drain(handle) shouldBe 1
+            handled shouldBe packets :+ packet
+        }
+    }
+}
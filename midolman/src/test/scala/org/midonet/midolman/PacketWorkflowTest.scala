@@ -21,6 +21,7 @@ import scala.concurrent.{Future, Promise}
 
 import akka.actor.Props
 import akka.testkit.TestActorRef
+import com.typesafe.config.ConfigFactory
 import com.typesafe.scalalogging.Logger
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
@@ -70,15 +71,22 @@ class PacketWorkflowTest extends MidolmanSpec {
         createDda()
     }
 
-    def createDda(simulationExpireMillis: Long = 5000L): Unit = {
+    def createDda(simulationExpireMillis: Long = 5000L,
+                  maxParkedDuplicates: Int = 0): Unit = {
         if (ddaRef != null)
             actorSystem.stop(ddaRef)
 
+        val config = injector.getInstance(classOf[MidolmanConfig])
+        val ddaConfig = new MidolmanConfig(
+            ConfigFactory.parseString(
+                s"agent.midolman.max_parked_duplicates : $maxParkedDuplicates")
+                .withFallback(config.conf), config.schema)
+
         val ddaProps = Props {
             new TestableDDA(new CookieGenerator(1, 1),
             mockDpChannel, clusterDataClient,
             (x: Int) => { packetsOut += x },
-            simulationExpireMillis)
+            simulationExpireMillis, ddaConfig)
         }
 
         ddaRef = TestActorRef(ddaProps)(actorSystem)
@@ -173,6 +181,57 @@ class PacketWorkflowTest extends MidolmanSpec {
             packetsOut should be (3)
         }
     }
+
+    feature("PacketWorkflow parks duplicates of postponed packets") {
+        scenario("parked packets are executed with the resulting actions") {
+            Given("a DDA that parks duplicates")
+            createDda(maxParkedDuplicates = 8)
+            val sent = mockDpChannel.packetsSent.size
+
+            When("three packets with the same match are fed to the DDA")
+            val pkts = List(makePacket(1), makePacket(1), makePacket(1))
+            ddaRef ! PacketWorkflow.HandlePackets(pkts.toArray)
+
+            Then("only the first packet is simulated")
+            packetsSeen map (_._1) should be (List(pkts.head))
+            packetsOut should be (1)
+
+            When("the simulation completes")
+            dda.complete(List(output(1)))
+
+            Then("all the packets are executed")
+            mockDpChannel.packetsSent.size - sent should be (3)
+            packetsOut should be (3)
+        }
+
+        scenario("packets beyond the limit are simulated") {
+            Given("a DDA that parks a single duplicate")
+            createDda(maxParkedDuplicates = 1)
+
+            When("three packets with the same match are fed to the DDA")
+            val pkts = List(makePacket(1), makePacket(1), makePacket(1))
+            ddaRef ! PacketWorkflow.HandlePackets(pkts.toArray)
+
+            Then("the first and the third packets are simulated")
+            packetsSeen map (_._1) should be (List(pkts(0), pkts(2)))
+        }
+
+        scenario("parked packets are dropped with their owner") {
+            Given("a DDA that parks duplicates and expires packets")
+            createDda(simulationExpireMillis = 0, maxParkedDuplicates = 8)
+
+            When("two packets with the same match are fed to the DDA")
+            ddaRef ! PacketWorkflow.HandlePackets(
+                Array(makePacket(1), makePacket(1)))
+            packetsOut should be (1)
+
+            And("another packet expires the pending one")
+            ddaRef ! PacketWorkflow.HandlePackets(Array(makePacket(2)))
+
+            Then("packetsOut accounts for the parked packet")
+            packetsOut should be (3)
+        }
+    }
 /*
     feature("A PacketWorkflow handles results from the simulation layer") {
 
@@ -365,8 +424,9 @@ class PacketWorkflowTest extends MidolmanSpec {
                       dpChannel: DatapathChannel,
                       clusterDataClient: DataClient,
                       packetOut: Int => Unit,
-                      override val simulationExpireMillis: Long)
-            extends PacketWorkflow(injector.getInstance(classOf[MidolmanConfig]),
+                      override val simulationExpireMillis: Long,
+                      config: MidolmanConfig)
+            extends PacketWorkflow(config,
                                    hostId, new DatapathStateDriver(new Datapath(0, "midonet")),
                                    cookieGen, clock, dpChannel,
                                    new DhcpConfigFromDataclient(clusterDataClient),
@@ -20,6 +20,7 @@ import java.nio.ByteBuffer
 import java.util.{UUID, ArrayList}
 
 import akka.testkit.TestProbe
+import com.codahale.metrics.MetricRegistry
 import com.lmax.disruptor.RingBuffer
 import org.jctools.queues.SpscArrayQueue
 
@@ -31,15 +32,18 @@ import org.scalatest.concurrent.Eventually._
 
 import org.midonet.midolman.datapath.DisruptorDatapathChannel.PacketContextHolder
 import org.midonet.midolman.flows.{FlowOperation, ManagedFlow}
+import org.midonet.midolman.monitoring.metrics.DatapathMetrics
+import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.netlink.{MockNetlinkChannelFactory, NetlinkMessage}
+import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.odp._
 import org.midonet.odp.family.{DatapathFamily, FlowFamily, PacketFamily, PortFamily}
 import org.midonet.odp.flows.{FlowKey, FlowKeys, FlowAction, FlowActions}
 import org.midonet.packets.util.PacketBuilder._
 import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
 import org.midonet.util.collection.ArrayObjectPool
-import org.midonet.util.concurrent.{EventPollerHandlerAdapter, BackchannelEventProcessor, AggregateEventPollerHandler}
+import org.midonet.util.concurrent.{EventPollerHandlerAdapter, BackchannelEventProcessor, AggregateEventPollerHandler, NanoClock}
 
 @RunWith(classOf[JUnitRunner])
 class DatapathChannelTest extends MidolmanSpec {
@@ -182,6 +186,268 @@ class DatapathChannelTest extends MidolmanSpec {
         }
     }
 
+    feature ("FlowProcessor batches flow creates") {
+        scenario ("Flows are written at the end of a batch") {
+            val batchFactory = new MockNetlinkChannelFactory
+            val batchChannel = batchFactory.channel
+            val batchFp = new FlowProcessor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1024, 2048,
+                batchFactory, clock, maxBatchSize = 4)
+
+            val contexts = (0 until 2) map { _ =>
+                val context = packetContextFor(ethernet, UUID.randomUUID())
+                context.flowActions.addAll(actions)
+                context.flow = new ManagedFlow(null)
+                context
+            }
+
+            batchFp.onEvent(new PacketContextHolder(null, contexts(0)), 0,
+                            endOfBatch = false)
+            batchChannel.packetsWritten.get() should be (0)
+            batchFp.tryEject(0, datapathId, contexts(0).origMatch,
+                             new FlowOperation(TestProbe().ref,
+                                               new ArrayObjectPool(0, _ => null),
+                                               new SpscArrayQueue(16))) should be (false)
+
+            batchFp.onEvent(new PacketContextHolder(null, contexts(1)), 1,
+                            endOfBatch = true)
+            batchChannel.packetsWritten.get() should be (1)
+
+            val bb = batchChannel.written.poll()
+            bb.flip()
+            var i = 0
+            while (bb.remaining() > 0) {
+                val start = bb.position()
+                val len = bb.getInt(start + NetlinkMessage.NLMSG_LEN_OFFSET)
+                bb.getInt(start + NetlinkMessage.NLMSG_SEQ_OFFSET) should be (
+                    Int.MinValue | i)
+                bb.position(start + NetlinkMessage.GENL_HEADER_SIZE)
+                bb.getInt() should be (datapathId)
+                attributeListShouldMatch(bb, OpenVSwitch.Flow.Attr.Key,
+                                         flowMatchParser, contexts(i).origMatch)
+                bb.position(start + len)
+                i += 1
+            }
+            i should be (2)
+        }
+
+        scenario ("A batch is written when it reaches the maximum size") {
+            val batchFactory = new MockNetlinkChannelFactory
+            val batchChannel = batchFactory.channel
+            val batchFp = new FlowProcessor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1024, 2048,
+                batchFactory, clock, maxBatchSize = 2)
+
+            (0 until 4) foreach { seq =>
+                val context = packetContextFor(ethernet, UUID.randomUUID())
+                context.flowActions.addAll(actions)
+                context.flow = new ManagedFlow(null)
+                batchFp.onEvent(new PacketContextHolder(null, context), seq,
+                                endOfBatch = false)
+            }
+
+            batchChannel.packetsWritten.get() should be (2)
+        }
+    }
+
+    feature ("FlowProcessor shards partition the flows") {
+        scenario ("Flows are created and ejected by their shard") {
+            val factories = Array(new MockNetlinkChannelFactory,
+                                  new MockNetlinkChannelFactory)
+            val shards = Array.tabulate(2) { i =>
+                new FlowProcessor(new DatapathStateDriver(datapath),
+                                  ovsFamilies, 1024, 2048, factories(i), clock,
+                                  numShards = 2, shard = i)
+            }
+            shards foreach (_.setShards(shards))
+
+            val contexts = Array.fill(2)(null: PacketContext)
+            while ((contexts(0) eq null) || (contexts(1) eq null)) {
+                val context = packetContextFor(
+                    ({ eth src MAC.random() dst MAC.random() } <<
+                     { ip4 src IPv4Addr.random dst IPv4Addr.random } <<
+                     payload(Array[Byte](0))).packet, UUID.randomUUID())
+                context.flowActions.addAll(actions)
+                context.flow = new ManagedFlow(null)
+                contexts(FlowProcessor.shardOf(context.origMatch, 2)) = context
+            }
+
+            contexts.zipWithIndex foreach { case (context, seq) =>
+                val event = new PacketContextHolder(null, context)
+                shards(1 - seq).onEvent(event, seq, endOfBatch = true)
+                event.flowCreateRef should be (context)
+                shards(seq).onEvent(event, seq, endOfBatch = true)
+                event.flowCreateRef should be (null)
+            }
+
+            factories foreach { factory =>
+                factory.channel.packetsWritten.get() should be (1)
+            }
+            val bb = factories(1).channel.written.poll()
+            bb.position(NetlinkMessage.GENL_HEADER_SIZE)
+            bb.getInt() should be (datapathId)
+            attributeListShouldMatch(bb, OpenVSwitch.Flow.Attr.Key,
+                                     flowMatchParser, contexts(1).origMatch)
+
+            val flowOp = new FlowOperation(TestProbe().ref,
+                                           new ArrayObjectPool(0, _ => null),
+                                           new SpscArrayQueue(16))
+            shards(0).tryEject(1, datapathId, contexts(1).origMatch,
+                               flowOp) should be (true)
+            shards(0).shouldProcess() should be (false)
+            shards(1).shouldProcess() should be (true)
+        }
+    }
+
+    feature ("FlowProcessor counts the masks of the installed flows") {
+        scenario ("A flow whose create fails releases its mask") {
+            val metrics = new DatapathMetrics(new MetricRegistry)
+            val maskFp = new FlowProcessor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1024, 2048,
+                new MockNetlinkChannelFactory, clock, metrics = metrics)
+
+            val context = packetContextFor(ethernet, UUID.randomUUID())
+            context.flowActions.addAll(actions)
+            context.flow = new ManagedFlow(null)
+            maskFp.onEvent(new PacketContextHolder(null, context), 0,
+                           endOfBatch = true)
+            metrics.distinctFlowMasks.getCount should be (1)
+
+            maskFp.defaultObserver.onError(new NetlinkException(
+                NetlinkException.ErrorCode.EEXIST.ordinal(), "File exists",
+                Int.MinValue | 0))
+            metrics.distinctFlowMasks.getCount should be (0)
+
+            maskFp.defaultObserver.onError(new NetlinkException(
+                NetlinkException.ErrorCode.EEXIST.ordinal(), "File exists",
+                Int.MinValue | 0))
+            metrics.distinctFlowMasks.getCount should be (0)
+        }
+
+        scenario ("A deleted flow releases its mask") {
+            val metrics = new DatapathMetrics(new MetricRegistry)
+            val maskFp = new FlowProcessor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1024, 2048,
+                new MockNetlinkChannelFactory, clock, metrics = metrics)
+
+            val context = packetContextFor(ethernet, UUID.randomUUID())
+            context.flowActions.addAll(actions)
+            context.flow = new ManagedFlow(null)
+            maskFp.onEvent(new PacketContextHolder(null, context), 0,
+                           endOfBatch = true)
+            metrics.distinctFlowMasks.getCount should be (1)
+
+            val managedFlow = new ManagedFlow(null)
+            managedFlow.flowMatch.reset(context.origMatch)
+            maskFp.tryEject(0, datapathId, managedFlow.flowMatch,
+                            new FlowOperation(TestProbe().ref,
+                                              new ArrayObjectPool(0, _ => null),
+                                              new SpscArrayQueue(16))) should be (true)
+            metrics.distinctFlowMasks.getCount should be (1)
+
+            maskFp.flowDeleted(managedFlow.flowMatch)
+            metrics.distinctFlowMasks.getCount should be (0)
+        }
+    }
+
+    feature ("PacketExecutor batches packet executions") {
+        scenario ("Packets are executed at the end of a batch") {
+            val batchFactory = new MockNetlinkChannelFactory
+            val batchChannel = batchFactory.channel
+            batchChannel.setPid(10)
+            val pexec = new PacketExecutor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1, 0,
+                batchFactory, maxBatchSize = 8)
+
+            (0 until 3) foreach { seq =>
+                val context = packetContextFor(ethernet, UUID.randomUUID())
+                context.packetActions.addAll(actions)
+                pexec.onEvent(new PacketContextHolder(context, null), seq,
+                              endOfBatch = seq == 2)
+                batchChannel.packetsWritten.get() should be (if (seq == 2) 1 else 0)
+            }
+
+            val bb = batchChannel.written.poll()
+            bb.flip()
+            var messages = 0
+            while (bb.remaining() > 0) {
+                val start = bb.position()
+                bb.getInt(start + NetlinkMessage.NLMSG_PID_OFFSET) should be (10)
+                bb.getInt(start + NetlinkMessage.GENL_HEADER_SIZE) should be (datapathId)
+                bb.position(start + bb.getInt(start + NetlinkMessage.NLMSG_LEN_OFFSET))
+                messages += 1
+            }
+            messages should be (3)
+        }
+
+        scenario ("Only the packets owned by the handler are batched") {
+            val batchFactory = new MockNetlinkChannelFactory
+            val batchChannel = batchFactory.channel
+            val pexec = new PacketExecutor(
+                new DatapathStateDriver(datapath), ovsFamilies, 2, 0,
+                batchFactory, maxBatchSize = 2)
+
+            (0 until 4) foreach { seq =>
+                val context = packetContextFor(ethernet, UUID.randomUUID())
+                context.packetActions.addAll(actions)
+                pexec.onEvent(new PacketContextHolder(context, null), seq,
+                              endOfBatch = false)
+            }
+
+            batchChannel.packetsWritten.get() should be (1)
+        }
+    }
+
+    feature ("The output threads record the latency of each stage") {
+        scenario ("Latencies are recorded for unbatched writes") {
+            val metrics = new DatapathMetrics(new MetricRegistry)
+            val latencyFactory = new MockNetlinkChannelFactory
+            val latencyFp = new FlowProcessor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1024, 2048,
+                latencyFactory, clock, metrics = metrics)
+            val pexec = new PacketExecutor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1, 0,
+                latencyFactory, metrics = metrics)
+
+            val context = packetContextFor(ethernet, UUID.randomUUID())
+            context.packetActions.addAll(actions)
+            context.flowActions.addAll(actions)
+            context.flow = new ManagedFlow(null)
+            context.packet.startTimeNanos = NanoClock.DEFAULT.tick
+            context.handoffNanos = NanoClock.DEFAULT.tick
+
+            val event = new PacketContextHolder(context, context)
+            latencyFp.onEvent(event, 0, endOfBatch = true)
+            pexec.onEvent(event, 0, endOfBatch = true)
+
+            metrics.flowCreationQueueLatency.getCount should be (1)
+            metrics.flowCreationWriteLatency.getCount should be (1)
+            metrics.flowInstallLatency.getCount should be (1)
+            metrics.packetExecutionQueueLatency.getCount should be (1)
+            metrics.packetExecutionWriteLatency.getCount should be (1)
+            metrics.packetExecutionLatency.getCount should be (1)
+        }
+
+        scenario ("Latencies of batched packets are recorded when written") {
+            val metrics = new DatapathMetrics(new MetricRegistry)
+            val pexec = new PacketExecutor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1, 0,
+                new MockNetlinkChannelFactory, maxBatchSize = 8,
+                metrics = metrics)
+
+            (0 until 3) foreach { seq =>
+                val context = packetContextFor(ethernet, UUID.randomUUID())
+                context.packetActions.addAll(actions)
+                context.packet.startTimeNanos = NanoClock.DEFAULT.tick
+                pexec.onEvent(new PacketContextHolder(context, null), seq,
+                              endOfBatch = seq == 2)
+                metrics.packetExecutionLatency.getCount should be (
+                    if (seq == 2) 3 else 0)
+            }
+            metrics.packetExecutionWriteLatency.getCount should be (1)
+        }
+    }
+
     private def flowMatchParser(buf: ByteBuffer): FlowMatch = {
         val keys = new ArrayList[FlowKey](16)
         FlowKeys.buildFrom(buf, keys)
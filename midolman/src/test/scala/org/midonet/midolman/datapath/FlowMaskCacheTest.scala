@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.datapath
+
+import java.nio.ByteBuffer
+
+import com.codahale.metrics.MetricRegistry
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.monitoring.metrics.DatapathMetrics
+import org.midonet.netlink.NetlinkMessage
+import org.midonet.odp.{FlowMask, FlowMatch, FlowMatches}
+import org.midonet.odp.OpenVSwitch.Flow.Attr
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+
+@RunWith(classOf[JUnitRunner])
+class FlowMaskCacheTest extends FeatureSpec with Matchers {
+
+    private def tcpMatch(): FlowMatch = {
+        val fmatch = FlowMatches.fromEthernetPacket(
+            ({ eth src MAC.random() dst MAC.random() } <<
+             { ip4 src IPv4Addr.random dst IPv4Addr.random } <<
+             { tcp src 1000 dst 80 }).packet)
+        fmatch.getEthDst
+        fmatch.getNetworkDstIP
+        fmatch.getDstPort
+        fmatch
+    }
+
+    private def udpMatch(): FlowMatch = {
+        val fmatch = FlowMatches.fromEthernetPacket(
+            ({ eth src MAC.random() dst MAC.random() } <<
+             { ip4 src IPv4Addr.random dst IPv4Addr.random } <<
+             { udp src 1000 dst 53 }).packet)
+        fmatch.getEthDst
+        fmatch.getNetworkDstIP
+        fmatch.getDstPort
+        fmatch
+    }
+
+    private def serializedMask(fmatch: FlowMatch): ByteBuffer = {
+        val mask = new FlowMask()
+        mask.calculateFor(fmatch)
+        val buf = ByteBuffer.allocate(4096)
+        NetlinkMessage.writeAttrNested(buf, Attr.Mask, mask)
+        buf.flip()
+        buf
+    }
+
+    feature ("FlowMaskCache reuses the serialized masks") {
+        scenario ("Matches with the same shape share the mask") {
+            val cache = new FlowMaskCache()
+
+            val first = tcpMatch()
+            val mask = cache.maskFor(first)
+            ByteBuffer.wrap(mask.attr) should be (serializedMask(first))
+            mask.key should be (FlowMask.keyFor(first))
+
+            cache.maskFor(tcpMatch()) should be theSameInstanceAs mask
+            cache.size should be (1)
+        }
+
+        scenario ("Matches with different shapes get different masks") {
+            val cache = new FlowMaskCache()
+
+            val tcp = tcpMatch()
+            val udp = udpMatch()
+            val tcpMask = cache.maskFor(tcp)
+            val udpMask = cache.maskFor(udp)
+
+            udpMask should not be theSameInstanceAs (tcpMask)
+            ByteBuffer.wrap(udpMask.attr) should be (serializedMask(udp))
+            cache.size should be (2)
+            tcpMask.key should be (FlowMask.keyFor(tcp))
+            udpMask.key should be (FlowMask.keyFor(udp))
+        }
+
+        scenario ("Masks are not cached beyond the capacity") {
+            val cache = new FlowMaskCache(capacity = 1)
+            cache.maskFor(tcpMatch())
+            val udp = udpMatch()
+            ByteBuffer.wrap(cache.maskFor(udp).attr) should be (serializedMask(udp))
+            cache.size should be (1)
+        }
+    }
+
+    feature ("The distinct masks of the installed flows are counted") {
+        scenario ("A mask is counted while flows with it are installed") {
+            val metrics = new DatapathMetrics(new MetricRegistry)
+            val tcp = FlowMask.keyFor(tcpMatch())
+            val udp = FlowMask.keyFor(udpMatch())
+
+            metrics.flowMaskInstalled(tcp)
+            metrics.flowMaskInstalled(tcp)
+            metrics.flowMaskInstalled(udp)
+            metrics.distinctFlowMasks.getCount should be (2)
+
+            metrics.flowMaskRemoved(tcp)
+            metrics.distinctFlowMasks.getCount should be (2)
+            metrics.flowMaskRemoved(tcp)
+            metrics.distinctFlowMasks.getCount should be (1)
+            metrics.flowMaskRemoved(udp)
+            metrics.distinctFlowMasks.getCount should be (0)
+
+            metrics.flowMaskInstalled(tcp)
+            metrics.distinctFlowMasks.getCount should be (1)
+        }
+    }
+}
@@ -19,6 +19,7 @@ import org.midonet.midolman.rules._
 import org.midonet.midolman.rules.RuleResult.Action
 import org.midonet.odp.FlowMatch
 import org.midonet.packets.IPAddr
+import org.midonet.util.Range
 
 import java.util.UUID
 import org.junit.runner.RunWith
@@ -188,16 +189,17 @@ class ChainTest extends Suite
         // Can't use makeChain because we need to add a jump target.
         val jumpTargetMap = mutable.Map[UUID, Chain]()
         val chainId = UUID.randomUUID
+        val middleChainId = UUID.randomUUID
         val name = "Chain-" + chainId
         val innerAndOuterChain = new Chain(chainId,
-                                           List[Rule](rejectRule).asJava,
+                                           List[Rule](makeJumpRule(middleChainId),
+                                                      rejectRule).asJava,
                                            jumpTargetMap, name)
         val middleChain = makeChain(List(makeJumpRule(innerAndOuterChain),
                                          acceptRule),
-                                    List(innerAndOuterChain))
+                                    List(innerAndOuterChain), middleChainId)
 
-        // Add a jump from innerAndOuterChain to middleChain.
-        innerAndOuterChain.getRules.add(0, makeJumpRule(middleChain))
+        // Add the jump target of innerAndOuterChain.
         jumpTargetMap(middleChain.id) = middleChain
 
         applyChain(innerAndOuterChain).action should be (Action.ACCEPT)
@@ -214,33 +216,123 @@ class ChainTest extends Suite
         // Can't use makeChain because we need to add a jump target.
         val jumpTargetMap = mutable.Map[UUID, Chain]()
         val chainId = UUID.randomUUID
+        val middleChainId = UUID.randomUUID
         val name = "Chain-" + chainId
         val innerAndOuterChain = new Chain(chainId,
-                                           List[Rule](acceptRule).asJava,
+                                           List[Rule](makeJumpRule(middleChainId),
+                                                      acceptRule).asJava,
                                            jumpTargetMap, name)
         val middleChain = makeChain(List(makeJumpRule(innerAndOuterChain),
                                          rejectRule),
-                                    List(innerAndOuterChain))
+                                    List(innerAndOuterChain), middleChainId)
 
-        // Add a jump from innerAndOuterChain to middleChain.
-        innerAndOuterChain.getRules.add(0, makeJumpRule(middleChain))
+        // Add the jump target of innerAndOuterChain.
         jumpTargetMap(middleChain.id) = middleChain
 
         applyChain(innerAndOuterChain).action should be (Action.REJECT)
     }
 
+    def testResultIsReusedByTheContext() {
+        val rejectChain = makeChain(List(rejectRule))
+        val jumpChain = makeChain(List(makeJumpRule(rejectChain)),
+                                  List(rejectChain))
+        val first = applyChain(jumpChain)
+        first.action should be (Action.REJECT)
+
+        val second = applyChain(makeChain(List(acceptRule)))
+        second should be theSameInstanceAs first
+        second.action should be (Action.ACCEPT)
+        second.jumpToChain should be (null)
+        pktCtx.traversedChains.size should be (1)
+    }
+
+    /*
+     * A chain long enough to be indexed by protocol and destination port:
+     *   tcp/22 -> accept
+     *   udp/53 -> accept
+     *   tcp/80 -> reject
+     *   (false) -> accept
+     *   tcp/1000-2000 -> accept
+     *   tcp/80 -> accept <-- Shadowed.
+     *   udp/* -> reject
+     *   tcp/443 -> accept
+     *   * -> reject
+     */
+    private def makeIndexedChain(): Chain = {
+        val TCP = 6.toByte
+        val UDP = 17.toByte
+        makeChain(List(portRule(TCP, 22, 22, Action.ACCEPT),
+                       portRule(UDP, 53, 53, Action.ACCEPT),
+                       portRule(TCP, 80, 80, Action.REJECT),
+                       continueRule,
+                       portRule(TCP, 1000, 2000, Action.ACCEPT),
+                       portRule(TCP, 80, 80, Action.ACCEPT),
+                       protoRule(UDP, Action.REJECT),
+                       portRule(TCP, 443, 443, Action.ACCEPT),
+                       new LiteralRule(Condition.TRUE, Action.REJECT)))
+    }
+
+    def testIndexedChainMatchesFirstRule() {
+        val c = makeIndexedChain()
+        applyChain(c, 6, 80).action should be (Action.REJECT)
+        applyChain(c, 6, 22).action should be (Action.ACCEPT)
+        applyChain(c, 6, 1500).action should be (Action.ACCEPT)
+        applyChain(c, 6, 443).action should be (Action.ACCEPT)
+        applyChain(c, 17, 53).action should be (Action.ACCEPT)
+        applyChain(c, 17, 54).action should be (Action.REJECT)
+        applyChain(c, 6, 8080).action should be (Action.REJECT)
+        applyChain(c, 1, 0).action should be (Action.REJECT)
+    }
+
+    def testIndexedChainSeesIndexedFields() {
+        applyChain(makeIndexedChain(), 6, 443)
+        pktCtx.wcmatch.isSeen(FlowMatch.Field.NetworkProto) should be (true)
+        pktCtx.wcmatch.isSeen(FlowMatch.Field.DstPort) should be (true)
+    }
+
+    def testIndexedChainWithLeadingWildcardRule() {
+        val rules = (1 to 8).map(port => portRule(6.toByte, port, port,
+                                                  Action.REJECT)).toList
+        val c = makeChain(acceptRule :: rules)
+        applyChain(c, 6, 1).action should be (Action.ACCEPT)
+    }
+
+    private def applyChain(c: Chain, proto: Int, dstPort: Int): RuleResult = {
+        pktMatch.setNetworkProto(proto.toByte)
+        pktMatch.setDstPort(dstPort)
+        pktCtx = new PacketContext(1, null, pktMatch)
+        applyChain(c)
+    }
+
+    private def protoRule(proto: Byte, action: Action): Rule = {
+        val cond = new Condition()
+        cond.nwProto = proto
+        new LiteralRule(cond, action)
+    }
+
+    private def portRule(proto: Byte, start: Int, end: Int,
+                         action: Action): Rule = {
+        val cond = new Condition()
+        cond.nwProto = proto
+        cond.tpDst = new Range[Integer](start, end)
+        new LiteralRule(cond, action)
+    }
+
     private def applyChain(c: Chain) =
         Chain.apply(c, pktCtx, ownerId, false)
 
     private def makeChain(rules: List[Rule],
-                          jumpTargets: List[Chain] = Nil): Chain = {
-        val chainId = UUID.randomUUID
+                          jumpTargets: List[Chain] = Nil,
+                          chainId: UUID = UUID.randomUUID): Chain = {
         val jumpTargetMap = jumpTargets.map(c => (c.id, c)).toMap
         val name = "Chain-" + chainId.toString
         rules.foreach(_.chainId = chainId)
         new Chain(chainId, rules.asJava, jumpTargetMap, name)
     }
 
-    private def makeJumpRule(target: Chain) =
+    private def makeJumpRule(target: Chain): JumpRule =
         new JumpRule(Condition.TRUE, target.id, target.name, null, 0)
+
+    private def makeJumpRule(targetId: UUID): JumpRule =
+        new JumpRule(Condition.TRUE, targetId, "Chain-" + targetId, null, 0)
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.PacketWorkflow.{AddVirtualWildcardFlow, Drop, NoOp, SimulationResult}
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
+import org.midonet.midolman.state.HappyGoLuckyLeaser
+import org.midonet.odp.flows.FlowActions
+import org.midonet.odp.{FlowMatches, Packet}
+import org.midonet.odp.FlowMatch.Field
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.sdn.flows.FlowTagger.FlowStateTag
+import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.util.concurrent.MockClock
+import org.midonet.util.functors.Callback0
+
+@RunWith(classOf[JUnitRunner])
+class SimulationCacheTest extends FeatureSpec
+                          with ShouldMatchers
+                          with OneInstancePerTest
+                          with GivenWhenThen {
+
+    val clock = new MockClock
+    val expiration = 1000L
+    val cache = new SimulationCache(4, expiration, clock)
+    val key = new SimulationCache.Key()
+
+    val srcMac = MAC.random()
+    val dstMac = MAC.random()
+    val dst = IPv4Addr.random
+    val deviceTag = FlowTagger.tagForDevice(UUID.randomUUID())
+
+    class CountingCallback extends ReplayableCallback {
+        var refs = 1
+        override def call(): Unit = refs -= 1
+        override def replay(): Unit = refs += 1
+    }
+
+    private def context(dstIp: IPv4Addr = dst, srcPort: Int = 1234)
+    : PacketContext = {
+        val frame: Ethernet = { eth src srcMac dst dstMac } <<
+                              { ip4 src IPv4Addr.random dst dstIp } <<
+                              { udp src srcPort.toShort dst 53 }
+        val fmatch = FlowMatches.fromEthernetPacket(frame)
+        fmatch.setInputPortNumber(1)
+        val ctx = new PacketContext(1, new Packet(frame, fmatch), fmatch)
+        ctx.initialize(new FlowStateTransaction[ConnTrackKey, ConnTrackValue](null),
+                       new FlowStateTransaction[NatKey, NatBinding](null),
+                       HappyGoLuckyLeaser,
+                       new FlowStateTransaction[TraceKey, TraceContext](null))
+        ctx
+    }
+
+    /* Simulates a packet through a device that forwards it based on its
+     * destination address alone. */
+    private def simulate(ctx: PacketContext,
+                         callback: Callback0 = new CountingCallback) = {
+        ctx.wcmatch.getNetworkDstIP
+        ctx.addVirtualAction(FlowActions.output(2))
+        ctx.addFlowTag(deviceTag)
+        ctx.addFlowRemovedCallback(callback)
+        AddVirtualWildcardFlow
+    }
+
+    private def put(ctx: PacketContext, result: SimulationResult) =
+        cache.put(ctx, result, cache.generation)
+
+    feature("Simulation results are reused") {
+        scenario("A packet that agrees on the fields read reuses the result") {
+            Given("A cached simulation")
+            val callback = new CountingCallback
+            val first = context()
+            put(first, simulate(first, callback)) shouldBe true
+
+            When("A packet differing on a field that wasn't read arrives")
+            val second = context(srcPort = 4321)
+            val entry = cache.get(second.origMatch, key)
+
+            Then("It reuses the cached result")
+            entry should not be null
+            entry.applyTo(second) shouldBe AddVirtualWildcardFlow
+            second.virtualFlowActions.toList shouldBe List(FlowActions.output(2))
+            second.flowTags should contain (deviceTag)
+
+            And("The references of the simulation are taken again")
+            callback.refs shouldBe 2
+            second.flowRemovedCallbacks.toList shouldBe List(callback)
+
+            And("The fields the simulation read are seen")
+            second.wcmatch.getSeenFields shouldBe first.wcmatch.getSeenFields
+            second.wcmatch.isSeen(Field.NetworkDst) shouldBe true
+        }
+
+        scenario("A packet that differs on a field read is simulated") {
+            val first = context()
+            put(first, simulate(first)) shouldBe true
+
+            cache.get(context(dstIp = IPv4Addr.random).origMatch, key) shouldBe null
+        }
+
+        scenario("Drops are cached") {
+            val first = context()
+            first.wcmatch.getNetworkDstIP
+            put(first, Drop) shouldBe true
+
+            cache.get(context().origMatch, key).result shouldBe Drop
+        }
+    }
+
+    feature("Only stateless simulations are cached") {
+        scenario("Results that don't create flows") {
+            val ctx = context()
+            put(ctx, NoOp) shouldBe false
+            cache.size shouldBe 0
+        }
+
+        scenario("Simulations tagged with flow state") {
+            val ctx = context()
+            simulate(ctx)
+            ctx.addFlowTag(new FlowStateTag {})
+            put(ctx, AddVirtualWildcardFlow) shouldBe false
+        }
+
+        scenario("Simulations with callbacks that can't be replayed") {
+            val ctx = context()
+            val callback = new Callback0 {
+                override def call(): Unit = { }
+            }
+            put(ctx, simulate(ctx, callback)) shouldBe false
+        }
+
+        scenario("Simulations that read userspace fields") {
+            val ctx = context()
+            simulate(ctx)
+            ctx.wcmatch.getIcmpIdentifier
+            put(ctx, AddVirtualWildcardFlow) shouldBe false
+        }
+    }
+
+    feature("Cached results are dropped") {
+        scenario("A tag of the simulation is invalidated") {
+            Given("A cached simulation")
+            val first = context()
+            put(first, simulate(first)) shouldBe true
+
+            When("A tag of the simulation is invalidated")
+            cache.invalidate(deviceTag)
+
+            Then("The result is no longer reused")
+            cache.get(context().origMatch, key) shouldBe null
+            cache.size shouldBe 0
+        }
+
+        scenario("A cached result expires") {
+            val first = context()
+            put(first, simulate(first)) shouldBe true
+
+            clock.time = expiration
+            cache.get(context().origMatch, key) shouldBe null
+            cache.size shouldBe 0
+        }
+
+        scenario("A tag is invalidated during a simulation") {
+            Given("A simulation that starts before a tag is invalidated")
+            val ctx = context()
+            val generation = cache.generation
+            val result = simulate(ctx)
+
+            When("Another worker invalidates the tag before it's cached")
+            cache.invalidate(deviceTag)
+
+            Then("The result is not cached")
+            cache.put(ctx, result, generation) shouldBe false
+            cache.get(context().origMatch, key) shouldBe null
+        }
+
+        scenario("The cache is full") {
+            for (i <- 0 until 5) {
+                val ctx = context(dstIp = IPv4Addr.random)
+                put(ctx, simulate(ctx)) shouldBe true
+            }
+            cache.size shouldBe 4
+        }
+    }
+}
@@ -36,7 +36,7 @@ import org.scalatest.junit.JUnitRunner
 
 import org.midonet.midolman.UnderlayResolver
 import org.midonet.midolman.datapath.StatePacketExecutor
-import org.midonet.midolman.simulation.PortGroup
+import org.midonet.midolman.simulation.{PacketContext, PortGroup}
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state.TraceState.{TraceKey, TraceContext}
@@ -169,9 +169,8 @@ class FlowStateReplicatorTest extends MidolmanSpec {
         packetsSeen = List.empty
     }
 
-    private def sendState(ingressPort: UUID, egressPort: UUID,
-                          callbacks: ArrayList[Callback0] = new ArrayList[Callback0])
-    : (Packet, List[FlowAction]) = {
+    private def accumulateState(ingressPort: UUID, egressPort: UUID)
+    : PacketContext = {
         val context = packetContextFor(ethernet, ingressPort)
         context.flowActions.add(FlowActions.output(1))
         context.outPorts.add(egressPort)
@@ -180,15 +179,47 @@ class FlowStateReplicatorTest extends MidolmanSpec {
         natTx.commit()
         connTrackTx.commit()
         traceTx.commit()
+        context
+    }
 
+    private def sendState(ingressPort: UUID, egressPort: UUID,
+                          callbacks: ArrayList[Callback0] = new ArrayList[Callback0])
+    : (Packet, List[FlowAction]) = {
+        val context = accumulateState(ingressPort, egressPort)
         callbacks.addAll(context.flowRemovedCallbacks)
 
-        val packet = if (context.stateMessage ne null) {
-            statePacketExecutor.prepareStatePacket(context.stateMessage)
+        val packet = if (!context.stateMessages.isEmpty) {
+            statePacketExecutor.prepareStatePacket(context.stateMessages.get(0))
         } else null
         (packet, context.stateActions.toList)
     }
 
+    private def acceptAll(context: PacketContext): Unit =
+        for (message <- context.stateMessages) {
+            message.length should be <= FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH
+            acceptPushedState(statePacketExecutor.prepareStatePacket(message))
+        }
+
+    private def natMappingsFor(count: Int): Map[NatKey, NatBinding] =
+        (1 to count).map { i =>
+            NatKey(NatState.FWD_SNAT, IPv4Addr.random, i, IPv4Addr.random, 80,
+                   6, UUID.randomUUID()) -> NatBinding(IPv4Addr.random, i)
+        }.toMap
+
+    private def useFlatEncoding(): Unit =
+        useSender(flat = true, coalesce = false)
+
+    private def useSender(flat: Boolean, coalesce: Boolean): Unit = {
+        sender = new TestableFlowStateReplicator(ports, portGroups,
+                                                 senderUnderlay, flat, coalesce)
+        connTrackTx = new ConnTrackTx(sender.conntrackTable)
+        natTx = new NatTx(sender.natTable)
+        traceTx = new TraceTx(sender.traceTable)
+    }
+
+    private def statePayload(packet: Packet): Array[Byte] =
+        FlowStatePackets.statePayload(Ethernet.deserialize(packet.getData))
+
     private def sendAndAcceptTransactions(): (Packet, List[FlowAction]) = {
         val (packet, actions) = sendState(ingressPort.id, egressPort1.id)
         acceptPushedState(packet)
@@ -322,6 +353,236 @@ class FlowStateReplicatorTest extends MidolmanSpec {
         }
     }
 
+    feature("Flat flow state encoding") {
+        scenario("Replicates conntrack, nat and trace keys") {
+            Given("A sender that uses the flat encoding")
+            useFlatEncoding()
+
+            And("Keys of every kind in a transaction")
+            for (k <- connTrackKeys.take(1)) {
+                connTrackTx.putAndRef(k, ConnTrackState.RETURN_FLOW)
+            }
+            for ((k, v) <- natMappings) {
+                natTx.putAndRef(k, v)
+            }
+            for ((k, v) <- traces) {
+                traceTx.putAndRef(k, v)
+            }
+
+            When("The transaction is added to the replicator and sent")
+            val (packet, _) = sendAndAcceptTransactions()
+
+            Then("The payload should use the flat encoding")
+            FlowStateEncoding.isFlat(statePayload(packet)) shouldBe true
+
+            And("Its peer's stateful tables should contain the keys")
+            recipient.conntrackTable.get(connTrackKeys.head) should equal (
+                ConnTrackState.RETURN_FLOW)
+            for ((k, v) <- natMappings) {
+                recipient.natTable.get(k) should equal (v)
+            }
+            for ((k, v) <- traces) {
+                recipient.traceTable.get(k) should equal (v)
+            }
+
+            And("Flows tagged with the keys should be invalidated")
+            mockFlowInvalidation should haveInvalidated (connTrackKeys.head)
+            mockFlowInvalidation should haveInvalidated (natMappings.head._1)
+        }
+
+        scenario("The flat payload is smaller than the protobuf one") {
+            Given("A nat key sent in protocol buffers")
+            val (k, v) = natMappings.head
+            natTx.putAndRef(k, v)
+            val (protoPacket, _) = sendState(ingressPort.id, egressPort1.id)
+            val protoLength = statePayload(protoPacket).length
+
+            When("The same key is sent in the flat encoding")
+            useFlatEncoding()
+            natTx.putAndRef(k, v)
+            val (flatPacket, _) = sendState(ingressPort.id, egressPort1.id)
+
+            Then("The flat payload should be smaller")
+            statePayload(flatPacket).length should be < protoLength
+        }
+
+        scenario("IPv6 conntrack keys are encoded") {
+            Given("An encoded IPv6 conntrack key")
+            val key = ConnTrackKey(IPv6Addr.fromString("fe80::1"), 1234,
+                                   IPv6Addr.fromString("fe80::2"), 80, 6,
+                                   UUID.randomUUID())
+            val encoder = new FlowStateEncoder(ingressHostId)
+            encoder.startState(ingressPort.id) shouldBe true
+            encoder.addConnTrackKey(key) shouldBe true
+
+            When("The message is decoded")
+            val keys = new ArrayList[ConnTrackKey]()
+            val decoded = FlowStateEncoding.decode(encoder.toByteArray,
+                new FlowStateEncoding.Handler {
+                    override def connTrackKey(k: ConnTrackKey): Unit =
+                        keys.add(k)
+                    override def natEntry(k: NatKey, v: NatBinding) = { }
+                    override def traceEntry(k: TraceKey, ctx: TraceContext) = { }
+                })
+
+            Then("The key should be the same")
+            decoded shouldBe true
+            keys.toList should be (List(key))
+            FlowStateEncoding.sender(encoder.toByteArray) should be (ingressHostId)
+        }
+
+        scenario("Entries that don't fit are left out") {
+            Given("An encoder with room for a single conntrack key")
+            val encoder = new FlowStateEncoder(ingressHostId,
+                FlowStateEncoding.HEADER_LENGTH + 36)
+
+            When("Two keys are added")
+            encoder.addConnTrackKey(connTrackKeys.head) shouldBe true
+            encoder.addConnTrackKey(connTrackKeys(1)) shouldBe false
+
+            Then("The encoder should have overflowed")
+            encoder.overflowed shouldBe true
+            encoder.length should be (FlowStateEncoding.HEADER_LENGTH + 36)
+
+            And("The message should hold the first key")
+            var keys = List[ConnTrackKey]()
+            FlowStateEncoding.decode(encoder.toByteArray,
+                new FlowStateEncoding.Handler {
+                    override def connTrackKey(k: ConnTrackKey) = keys :+= k
+                    override def natEntry(k: NatKey, v: NatBinding) = { }
+                    override def traceEntry(k: TraceKey, ctx: TraceContext) = { }
+                }) shouldBe true
+            keys should be (List(connTrackKeys.head))
+        }
+
+        scenario("Messages with an unknown version or truncated are ignored") {
+            Given("A flat message")
+            val encoder = new FlowStateEncoder(ingressHostId)
+            encoder.addConnTrackKey(connTrackKeys.head)
+            val handler = new FlowStateEncoding.Handler {
+                override def connTrackKey(k: ConnTrackKey) =
+                    fail("Unexpected key")
+                override def natEntry(k: NatKey, v: NatBinding) = { }
+                override def traceEntry(k: TraceKey, ctx: TraceContext) = { }
+            }
+
+            Then("A newer version should not be decoded")
+            val newer = encoder.toByteArray
+            newer(1) = (FlowStateEncoding.VERSION + 1).toByte
+            FlowStateEncoding.decode(newer, handler) shouldBe false
+
+            And("A truncated message should not be decoded")
+            val truncated = java.util.Arrays.copyOf(encoder.toByteArray,
+                                                    encoder.length - 1)
+            FlowStateEncoding.decode(truncated, handler) shouldBe false
+        }
+    }
+
+    feature("State that doesn't fit in a packet is split") {
+        for (flat <- List(false, true)) {
+            val encoding = if (flat) "flat" else "protobuf"
+            scenario(s"Nat keys are split across $encoding packets") {
+                Given("More nat keys than fit in a state packet")
+                useSender(flat, coalesce = false)
+                val mappings = natMappingsFor(100)
+                for ((k, v) <- mappings) {
+                    natTx.putAndRef(k, v)
+                }
+
+                When("The transaction is added to the replicator")
+                val context = accumulateState(ingressPort.id, egressPort1.id)
+
+                Then("The state should be split across several packets")
+                context.stateMessages.size should be > 1
+
+                And("Its peer's stateful tables should contain all the keys")
+                acceptAll(context)
+                for ((k, v) <- mappings) {
+                    recipient.natTable.get(k) should equal (v)
+                }
+            }
+        }
+
+        scenario("Entries larger than a packet are skipped") {
+            Given("A trace key with too many requests for a state packet")
+            useFlatEncoding()
+            val k = traces.head._1
+            val ctx = new TraceContext().enable(UUID.randomUUID)
+            for (i <- 1 to 100) {
+                ctx.addRequest(UUID.randomUUID())
+            }
+            traceTx.putAndRef(k, ctx)
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+
+            When("The transaction is added to the replicator")
+            val context = accumulateState(ingressPort.id, egressPort1.id)
+
+            Then("The rest of the state should be replicated")
+            acceptAll(context)
+            recipient.conntrackTable.get(connTrackKeys.head) should equal (
+                ConnTrackState.RETURN_FLOW)
+            recipient.traceTable.get(k) should be (null)
+        }
+    }
+
+    feature("State is coalesced") {
+        for (flat <- List(false, true)) {
+            val encoding = if (flat) "flat" else "protobuf"
+            scenario(s"State for the same peers shares $encoding packets") {
+                Given("A sender that coalesces state")
+                useSender(flat, coalesce = true)
+
+                When("Two flows to the same peers create state")
+                connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+                val first = accumulateState(ingressPort.id, egressPort1.id)
+                connTrackTx.putAndRef(connTrackKeys(1), ConnTrackState.RETURN_FLOW)
+                val second = accumulateState(ingressPort.id, egressPort1.id)
+
+                Then("The flows should not carry their own state packets")
+                first.stateMessages shouldBe empty
+                second.stateMessages shouldBe empty
+                sender.hasPendingState shouldBe true
+
+                When("The pending state is flushed")
+                val context = packetContextFor(ethernet, ingressPort.id)
+                sender.flushPendingState(context)
+
+                Then("A single packet should carry the state of both flows")
+                sender.hasPendingState shouldBe false
+                context.stateMessages should have size 1
+                context.stateActions should not be empty
+
+                And("Its peer's stateful tables should contain the keys")
+                acceptAll(context)
+                for (k <- connTrackKeys) {
+                    recipient.conntrackTable.get(k) should equal (
+                        ConnTrackState.RETURN_FLOW)
+                }
+            }
+        }
+
+        scenario("State for different peers is sent in different packets") {
+            Given("A sender that coalesces state")
+            useSender(flat = true, coalesce = true)
+
+            When("Two flows to different sets of peers create state")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            accumulateState(ingressPort.id, egressPort1.id)
+            connTrackTx.putAndRef(connTrackKeys(1), ConnTrackState.RETURN_FLOW)
+            accumulateState(ingressPortNoGroup.id, egressPort1.id)
+
+            Then("Each set of peers should get its own packet")
+            val first = packetContextFor(ethernet, ingressPort.id)
+            sender.flushPendingState(first)
+            val second = packetContextFor(ethernet, ingressPort.id)
+            sender.flushPendingState(second)
+            sender.hasPendingState shouldBe false
+            first.stateMessages should have size 1
+            second.stateMessages should have size 1
+            first.stateActions.size should not be second.stateActions.size
+        }
+    }
+
     feature("Unref callbacks are correctly added") {
         scenario("For conntrack keys") {
             Given("A conntrack key and a contrack ref in a transaction")
@@ -465,7 +726,9 @@ class FlowStateReplicatorTest extends MidolmanSpec {
     class TestableFlowStateReplicator(
             val ports: mutable.Map[UUID, Port],
             val portGroups: mutable.Map[UUID, PortGroup],
-            val underlay: UnderlayResolver) extends {
+            val underlay: UnderlayResolver,
+            flat: Boolean = false,
+            coalesce: Boolean = false) extends {
         val conntrackTable = new MockFlowStateTable[ConnTrackKey, ConnTrackValue]()
         val natTable = new MockFlowStateTable[NatKey, NatBinding]()
         val traceTable = new MockFlowStateTable[TraceKey, TraceContext]()
@@ -473,7 +736,7 @@ class FlowStateReplicatorTest extends MidolmanSpec {
                                    Future.successful(new MockStateStorage),
                                    ingressHostId, underlay,
                                    mockFlowInvalidation,
-                                   0) {
+                                   0, flat, coalesce) {
 
         override val log = Logger(LoggerFactory.getLogger(this.getClass))
 
@@ -17,17 +17,20 @@
 package org.midonet.midolman.state
 
 import java.util.UUID
+import java.util.concurrent.ConcurrentLinkedQueue
 
 import scala.collection.JavaConverters._
-import scala.concurrent.Await
+import scala.concurrent.{Await, Future}
 import scala.concurrent.duration._
 
 import akka.actor.ActorSystem
+import com.codahale.metrics.MetricRegistry
 import org.cassandraunit.utils.EmbeddedCassandraServerHelper
 import org.junit.runner.RunWith
 import org.scalatest._
 import org.scalatest.junit.JUnitRunner
 import org.midonet.cluster.backend.cassandra.CassandraClient
+import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.packets.IPv4Addr
@@ -61,6 +64,7 @@ class FlowStateStorageTest extends FeatureSpec
     val egressPorts = List(UUID.randomUUID(), UUID.randomUUID())
 
     var cass: CassandraClient = _
+    var writeBehind: FlowStateWriteBehind = _
     var storage: FlowStateStorage = _
 
     before {
@@ -70,12 +74,21 @@ class FlowStateStorageTest extends FeatureSpec
                                    "MidonetFlowState", 1,
                                    FlowStateStorage.SCHEMA)
         val sessionF = cass.connect()
-        storage = FlowStateStorage(Await.result(sessionF, 10 seconds))
+        val session = Await.result(sessionF, 10 seconds)
+        writeBehind = new FlowStateWriteBehind(session, new MetricRegistry,
+            intervalMillis = 100, queueSize = 65536, maxPending = 65536,
+            batchSize = 64, maxInFlight = 16)
+        writeBehind.start()
+        storage = FlowStateStorage(session, writeBehind)
         eventually {
             storage.asInstanceOf[FlowStateStorageImpl].session should not be null
         }
     }
 
+    after {
+        writeBehind.stop()
+    }
+
     feature("Stores and fetches state from cassandra") {
         scenario("Conntrack keys and NAT bindings") {
             for (k <- connTrackKeys) {
@@ -117,4 +130,97 @@ class FlowStateStorageTest extends FeatureSpec
             }
         }
     }
+
+    feature("Streams the state of a port in pages") {
+        scenario("Each page is handed over as it arrives") {
+            Given("The state of a port in storage")
+            for (k <- connTrackKeys) {
+                storage.touchConnTrackKey(k, ingressPort, egressPorts.asJava.iterator())
+            }
+            for ((k,v) <- natMappings) {
+                storage.touchNatKey(k, v, ingressPort, egressPorts.asJava.iterator())
+            }
+            storage.submit()
+            eventually {
+                storage.fetchStrongNatRefs(ingressPort).await() should
+                    have size natMappings.size
+                storage.fetchStrongConnTrackRefs(ingressPort).await() should
+                    have size connTrackKeys.size
+            }
+
+            When("Streaming the state in pages of a single key")
+            val pages = new ConcurrentLinkedQueue[FlowStateBatch]()
+            val size = storage.streamFlowState(ingressPort, 1, { page =>
+                pages.add(page)
+                Future.successful(page)
+            }).await()
+
+            Then("Every key is handed over in its own page")
+            size shouldBe connTrackKeys.size + natMappings.size
+            pages should have size size
+            pages.asScala foreach { _.size() shouldBe 1 }
+            pages.asScala.flatMap(_.strongConnTrack.asScala).toSet shouldBe
+                connTrackKeys.toSet
+            pages.asScala.flatMap(_.strongNat.asScala).toMap shouldBe natMappings
+            pages.asScala foreach { page =>
+                page.weakConnTrack shouldBe empty
+                page.weakNat shouldBe empty
+            }
+        }
+    }
+
+    feature("Writes state through a write-behind stage") {
+        scenario("Repeated touches are written once") {
+            Given("A storage whose write-behind stage is flushed manually")
+            val session = storage.asInstanceOf[FlowStateStorageImpl].session
+            val writeBehind = new FlowStateWriteBehind(session,
+                new MetricRegistry, intervalMillis = 100, queueSize = 1024,
+                maxPending = 1024, batchSize = 2, maxInFlight = 16)
+            val storage2 = FlowStateStorage(session, writeBehind)
+
+            When("The same keys are touched and submitted several times")
+            for (i <- 1 to 3) {
+                for (k <- connTrackKeys) {
+                    storage2.touchConnTrackKey(k, ingressPort,
+                                               egressPorts.asJava.iterator())
+                }
+                storage2.submit()
+            }
+            writeBehind.queueDepth.getValue shouldBe 3 * connTrackKeys.size * 3
+            writeBehind.flush()
+
+            Then("The repeated touches are deduplicated")
+            writeBehind.touchesDeduplicated.getCount shouldBe 2 * connTrackKeys.size * 3
+            writeBehind.touchesDropped.getCount shouldBe 0
+            writeBehind.queueDepth.getValue shouldBe 0
+
+            And("The keys are written")
+            eventually {
+                writeBehind.writeLatency.getCount shouldBe 3
+                storage.fetchStrongConnTrackRefs(ingressPort).await() should
+                    have size connTrackKeys.size
+                for (port <- egressPorts) {
+                    storage.fetchWeakConnTrackRefs(port).await() should
+                        have size connTrackKeys.size
+                }
+            }
+        }
+
+        scenario("Touches are dropped when the queue is full") {
+            val session = storage.asInstanceOf[FlowStateStorageImpl].session
+            val writeBehind = new FlowStateWriteBehind(session,
+                new MetricRegistry, intervalMillis = 100, queueSize = 4,
+                maxPending = 1024, batchSize = 64, maxInFlight = 16)
+            val storage2 = FlowStateStorage(session, writeBehind)
+
+            for (k <- connTrackKeys) {
+                storage2.touchConnTrackKey(k, ingressPort,
+                                           egressPorts.asJava.iterator())
+            }
+            storage2.submit()
+
+            writeBehind.touchesDropped.getCount shouldBe connTrackKeys.size * 3 - 4
+            writeBehind.queueDepth.getValue shouldBe 4
+        }
+    }
 }
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.io.File
+import java.util.UUID
+import java.util.concurrent.{CountDownLatch, ExecutorService, Executors}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration._
+
+import akka.actor.ActorSystem
+import com.google.common.io.Files
+import com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor
+import org.apache.commons.io.FileUtils
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.packets.{IPAddr, IPv4Addr}
+import org.midonet.util.concurrent.toFutureOps
+
+@RunWith(classOf[JUnitRunner])
+class LocalFlowStateStorageTest extends FeatureSpec
+                                with BeforeAndAfter
+                                with ShouldMatchers
+                                with OneInstancePerTest
+                                with GivenWhenThen {
+
+    implicit def stringToIp(str: String): IPv4Addr = IPv4Addr.fromString(str)
+
+    implicit val actors = ActorSystem.create()
+    import actors.dispatcher
+
+    val connTrackKeys =
+        List(ConnTrackKey("10.0.0.1", 1234, "10.0.0.2", 22, 1, UUID.randomUUID()),
+             ConnTrackKey(IPAddr.fromString("fe80::1"), 4578,
+                          IPAddr.fromString("fe80::2"), 80, 6, UUID.randomUUID()))
+
+    val natMappings = Map(
+        NatKey(NatState.FWD_SNAT, "192.168.10.1", 10001, "17.16.15.1", 80, 1, UUID.randomUUID()) ->
+               NatBinding("1.2.3.4", 54321),
+        NatKey(NatState.FWD_STICKY_DNAT, "192.168.10.2", 10002, "17.16.15.2", 443, 2, UUID.randomUUID()) ->
+               NatBinding("4.3.2.1", 12345))
+
+    val ingressPort = UUID.randomUUID()
+    val egressPorts = List(UUID.randomUUID(), UUID.randomUUID())
+
+    var now = System.currentTimeMillis
+    var directory: File = _
+
+    before {
+        directory = Files.createTempDir()
+    }
+
+    after {
+        FileUtils.deleteDirectory(directory)
+        actors.shutdown()
+    }
+
+    private def openLog(segmentSize: Int = 4096,
+                        compactor: ExecutorService = sameThreadExecutor()) =
+        new FlowStateLog(directory, segmentSize, () => now, compactor)
+
+    private def touchAll(storage: FlowStateStorage): Unit = {
+        for (k <- connTrackKeys) {
+            storage.touchConnTrackKey(k, ingressPort, egressPorts.asJava.iterator())
+        }
+        for ((k, v) <- natMappings) {
+            storage.touchNatKey(k, v, ingressPort, egressPorts.asJava.iterator())
+        }
+        storage.submit()
+    }
+
+    private def checkState(storage: FlowStateStorage): Unit = {
+        storage.fetchStrongConnTrackRefs(ingressPort).await().asScala shouldBe
+            connTrackKeys.toSet
+        storage.fetchStrongNatRefs(ingressPort).await().asScala shouldBe
+            natMappings
+        for (port <- egressPorts) {
+            storage.fetchWeakConnTrackRefs(port).await().asScala shouldBe
+                connTrackKeys.toSet
+            storage.fetchWeakNatRefs(port).await().asScala shouldBe natMappings
+        }
+        storage.fetchWeakConnTrackRefs(ingressPort).await() shouldBe empty
+        storage.fetchStrongNatRefs(egressPorts.head).await() shouldBe empty
+    }
+
+    feature("Stores and fetches state from local segments") {
+        scenario("Conntrack keys and NAT bindings") {
+            val storage = new LocalFlowStateStorage(openLog())
+            touchAll(storage)
+            checkState(storage)
+        }
+
+        scenario("Ports without state") {
+            val storage = new LocalFlowStateStorage(openLog())
+            storage.fetchStrongConnTrackRefs(ingressPort).await() shouldBe empty
+            storage.fetchWeakNatRefs(ingressPort).await() shouldBe empty
+        }
+
+        scenario("Storage instances share the log") {
+            val log = openLog()
+            touchAll(new LocalFlowStateStorage(log))
+            checkState(new LocalFlowStateStorage(log))
+        }
+    }
+
+    feature("State survives restarts") {
+        scenario("The state is restored when the log is reopened") {
+            Given("A log with state")
+            val log = openLog()
+            touchAll(new LocalFlowStateStorage(log))
+            log.close()
+
+            When("Reopening the log")
+            val reopened = openLog()
+
+            Then("The state is restored")
+            checkState(new LocalFlowStateStorage(reopened))
+        }
+
+        scenario("Expired state is dropped when the log is reopened") {
+            Given("A log with state")
+            val log = openLog()
+            touchAll(new LocalFlowStateStorage(log))
+            log.close()
+
+            When("Reopening the log after the conntrack keys have expired")
+            now += (FlowState.DEFAULT_EXPIRATION + 1.second).toMillis
+            val storage = new LocalFlowStateStorage(openLog())
+
+            Then("Only the sticky NAT binding is left")
+            storage.fetchStrongConnTrackRefs(ingressPort).await() shouldBe empty
+            storage.fetchStrongNatRefs(ingressPort).await().asScala shouldBe
+                natMappings.filterKeys(_.keyType == NatState.FWD_STICKY_DNAT)
+
+            When("Reopening the log after all the keys have expired")
+            now += 1.day.toMillis
+            openLog()
+
+            Then("The segments have been deleted")
+            directory.list() shouldBe empty
+        }
+
+        scenario("Unexpected files are ignored") {
+            new File(directory, "foo").createNewFile()
+            val storage = new LocalFlowStateStorage(openLog())
+            touchAll(storage)
+            checkState(storage)
+        }
+    }
+
+    feature("Segments without live state are retired") {
+        scenario("The segments of ports whose state has expired") {
+            Given("A log with state")
+            val log = openLog()
+            val storage = new LocalFlowStateStorage(log)
+            touchAll(storage)
+
+            When("A port is touched after all the keys have expired")
+            now += 1.day.toMillis
+            val port = UUID.randomUUID()
+            storage.touchConnTrackKey(connTrackKeys.head, port,
+                                      List.empty[UUID].asJava.iterator())
+
+            Then("Only the segment of that port is left")
+            directory.list() shouldBe Array(port + LocalFlowStateStorage.SEGMENT_SUFFIX)
+            storage.fetchStrongConnTrackRefs(ingressPort).await() shouldBe empty
+
+            And("The ports whose segments were retired can be touched again")
+            touchAll(storage)
+            checkState(storage)
+        }
+
+        scenario("A segment with live state is kept") {
+            Given("A log with state")
+            val log = openLog()
+            val storage = new LocalFlowStateStorage(log)
+            touchAll(storage)
+
+            When("Retiring the expired segments before the keys expire")
+            log.retireExpired()
+
+            Then("The state is kept")
+            checkState(storage)
+            directory.list() should have size 3
+        }
+
+        scenario("A retired segment takes no more records") {
+            Given("A segment whose state has expired")
+            val log = openLog()
+            touchAll(new LocalFlowStateStorage(log))
+            val segment = log.segment(ingressPort)
+            now += 1.day.toMillis
+
+            When("The segment is retired")
+            log.retireExpired()
+
+            Then("Appends to the segment are refused")
+            segment.append(LocalFlowStateStorage.CONNTRACK_BY_INGRESS,
+                           connTrackKeys.head) shouldBe false
+            log.existingSegment(ingressPort) shouldBe null
+        }
+    }
+
+    feature("Segments are compacted when full") {
+        scenario("Repeated touches of the same keys") {
+            Given("A log with small segments")
+            val log = openLog(segmentSize = 512)
+            val storage = new LocalFlowStateStorage(log)
+
+            When("Touching the same keys many times")
+            for (i <- 1 to 100) {
+                touchAll(storage)
+            }
+
+            Then("The segments stay small")
+            for (file <- directory.listFiles()) {
+                file.length should be <= 512L
+            }
+
+            And("The state is kept")
+            checkState(storage)
+        }
+
+        scenario("Live state that doesn't fit in a segment") {
+            Given("A log with small segments")
+            val log = openLog(segmentSize = 512)
+            val storage = new LocalFlowStateStorage(log)
+            val device = UUID.randomUUID()
+
+            When("Touching many distinct keys")
+            val keys = for (i <- 1 to 100) yield
+                ConnTrackKey("10.0.0.1", i, "10.0.0.2", 80, 6, device)
+            for (k <- keys) {
+                storage.touchConnTrackKey(k, ingressPort,
+                                          List.empty[UUID].asJava.iterator())
+            }
+
+            Then("The segment grows to hold all the keys")
+            new File(directory, ingressPort + LocalFlowStateStorage.SEGMENT_SUFFIX)
+                .length should be > 512L
+            storage.fetchStrongConnTrackRefs(ingressPort).await().asScala shouldBe
+                keys.toSet
+
+            And("The keys survive a restart")
+            log.close()
+            new LocalFlowStateStorage(openLog(segmentSize = 512))
+                .fetchStrongConnTrackRefs(ingressPort).await().asScala shouldBe
+                keys.toSet
+        }
+
+        scenario("Touches don't wait for the compaction") {
+            Given("A log whose compactor is busy")
+            val compactor = Executors.newSingleThreadExecutor()
+            val busy = new CountDownLatch(1)
+            compactor.execute(new Runnable {
+                override def run(): Unit = busy.await()
+            })
+            val log = openLog(segmentSize = 512, compactor)
+            val storage = new LocalFlowStateStorage(log)
+            val device = UUID.randomUUID()
+
+            When("Touching more keys than fit in a segment")
+            val keys = for (i <- 1 to 100) yield
+                ConnTrackKey("10.0.0.1", i, "10.0.0.2", 80, 6, device)
+            for (k <- keys) {
+                storage.touchConnTrackKey(k, ingressPort,
+                                          List.empty[UUID].asJava.iterator())
+            }
+
+            Then("All the keys can be read while the segment is compacted")
+            storage.fetchStrongConnTrackRefs(ingressPort).await().asScala shouldBe
+                keys.toSet
+
+            And("The keys are written to the compacted segment")
+            busy.countDown()
+            log.close()
+            new LocalFlowStateStorage(openLog(segmentSize = 512))
+                .fetchStrongConnTrackRefs(ingressPort).await().asScala shouldBe
+                keys.toSet
+        }
+    }
+}
@@ -340,4 +340,73 @@ class NatLeaserTest extends FeatureSpec
             }
         }
     }
+
+    feature("NatBlocks are pre-leased") {
+        val preleaser = new NatLeaser {
+            override val log = Logger(NOPLogger.NOP_LOGGER)
+            override val allocator = natLeaser.allocator
+            override val clock = NatLeaserTest.this.clock
+            override val preleaseThreshold = NatBlock.BLOCK_SIZE / 2
+        }
+
+        scenario("The next block is leased before the leased ones fill up") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          NatBlock.BLOCK_SIZE,
+                                          3 * NatBlock.BLOCK_SIZE - 1)
+            val ip = IPv4Addr.random
+            intercept[NotYetException] {
+                preleaser.allocateNatBinding(dev, ip, 0, Array(natTarget))
+            }
+
+            val bindings = (1 to NatBlock.BLOCK_SIZE) map { port =>
+                preleaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+            }
+
+            allocatedBlocks should be (mutable.Set(
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 1),
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 2)))
+
+            val next = preleaser.allocateNatBinding(dev, ip, 0, Array(natTarget))
+            blockOf(next.transportPort) should be (2)
+            bindings map (_.transportPort) should not contain (next.transportPort)
+        }
+
+        scenario("A depleted range is not requested for every binding") {
+            var requests = 0
+            val leaser = new NatLeaser {
+                override val log = Logger(NOPLogger.NOP_LOGGER)
+                override val allocator = new NatBlockAllocator {
+                    override def allocateBlockInRange(natRange: NatRange,
+                                                      callback: Callback[NatBlock, Exception]): Unit = {
+                        requests += 1
+                        natLeaser.allocator.allocateBlockInRange(natRange, callback)
+                    }
+
+                    override def freeBlock(natBlock: NatBlock): Unit = {}
+                }
+                override val clock = NatLeaserTest.this.clock
+                override val preleaseThreshold = NatBlock.BLOCK_SIZE
+            }
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          0,
+                                          NatBlock.BLOCK_SIZE - 1)
+            val ip = IPv4Addr.random
+            intercept[NotYetException] {
+                leaser.allocateNatBinding(dev, ip, 0, Array(natTarget))
+            }
+
+            for (port <- 1 to 10) {
+                leaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+            }
+
+            requests should be (2)
+
+            clock.time += (2 seconds).toNanos
+            leaser.allocateNatBinding(dev, ip, 0, Array(natTarget))
+
+            requests should be (3)
+        }
+    }
 }
@@ -45,13 +45,8 @@ class MockDatapathChannel(val flowsTable: JMap[FlowMatch, Flow] = null)
             if (packetExecCb ne null) {
                 packetExecCb(context.packet, context.packetActions)
             }
-            if (context.stateMessage ne null) {
-                val statePacket = prepareStatePacket(context.stateMessage)
-                if (packetExecCb ne null) {
-                    packetExecCb(statePacket, context.stateActions)
-                }
-            }
         }
+        executeStatePackets(context)
 
         if (context.flow ne null) {
             val flow = new Flow(context.origMatch, context.flowActions)
@@ -67,6 +62,18 @@ class MockDatapathChannel(val flowsTable: JMap[FlowMatch, Flow] = null)
         0
     }
 
+    private def executeStatePackets(context: PacketContext): Unit = {
+        val messages = context.stateMessages
+        var i = 0
+        while (i < messages.size) {
+            val statePacket = prepareStatePacket(messages.get(i))
+            if (packetExecCb ne null) {
+                packetExecCb(statePacket, context.stateActions)
+            }
+            i += 1
+        }
+    }
+
     override def start(): Unit = { }
     override def stop(): Unit = { }
 }
@@ -41,6 +41,7 @@ class MockFlowProcessor(val flowsTable: JMap[FlowMatch, Flow] = null)
                               10, 1023, new MockNetlinkChannelFactory,
                               new MockClock) {
     var flowDelCb: Flow => Unit = _
+    var dumps = 0
 
     private val log = Logger(LoggerFactory.getLogger(
         "org.midonet.datapath.mock-flow-processor"))
@@ -75,6 +76,35 @@ class MockFlowProcessor(val flowsTable: JMap[FlowMatch, Flow] = null)
         true
     }
 
+    override def tryDump(datapathId: Int, obs: Observer[ByteBuffer]): Boolean = {
+        dumps += 1
+        if (flowsTable ne null) {
+            val flows = flowsTable.values().iterator()
+            while (flows.hasNext) {
+                val flow = flows.next()
+                val buf = ByteBuffer.allocate(1024)
+                buf.putInt(datapathId)
+                NetlinkMessage.writeAttrSeq(buf, Attr.Key, flow.getMatch.getKeys,
+                                            FlowKeys.writer)
+                NetlinkMessage.writeAttr(buf, Attr.Stats, flow.getStats)
+                buf.flip()
+                obs.onNext(buf)
+            }
+        }
+        obs.onCompleted()
+        true
+    }
+
+    override def tryGetDatapath(datapathId: Int,
+                                obs: Observer[ByteBuffer]): Boolean = {
+        val buf = ByteBuffer.allocate(1024)
+        new Datapath(datapathId, "midonet").serializeInto(buf)
+        buf.flip()
+        obs.onNext(buf)
+        obs.onCompleted()
+        true
+    }
+
     def flowDeleteSubscribe(cb: Flow => Unit): Unit =
         flowDelCb = cb
 }
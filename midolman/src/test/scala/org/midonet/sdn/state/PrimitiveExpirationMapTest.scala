@@ -0,0 +1,205 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import java.util.{HashMap, Random, UUID}
+
+import scala.concurrent.duration._
+
+import com.typesafe.scalalogging.Logger
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers, OneInstancePerTest}
+import org.scalatest.junit.JUnitRunner
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackKeyCodec, ConnTrackValue}
+import org.midonet.midolman.state.NatState
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey, NatKeyCodec}
+import org.midonet.packets.{IPv4Addr, IPv6Addr}
+import org.midonet.util.collection.Reducer
+
+@RunWith(classOf[JUnitRunner])
+class PrimitiveExpirationMapTest extends FeatureSpec
+                                 with Matchers
+                                 with OneInstancePerTest {
+
+    val log = Logger(NOPLogger.NOP_LOGGER)
+    val deviceId = UUID.randomUUID()
+
+    def conntrackKey(port: Int) =
+        ConnTrackKey(IPv4Addr.fromString("10.0.0.1"), port,
+                     IPv4Addr.fromString("10.0.0.2"), 80, 6, deviceId)
+
+    def natKey(keyType: NatState.KeyType, port: Int) =
+        NatKey(keyType, IPv4Addr.fromString("10.0.0.1"), port,
+               IPv4Addr.fromString("192.168.0.1"), 80, 6, deviceId)
+
+    val map = new PrimitiveExpirationMap[ConnTrackKey, ConnTrackValue](
+        ConnTrackKeyCodec, log, initialCapacity = 4)
+
+    val collector = new Reducer[ConnTrackKey, ConnTrackValue, List[ConnTrackKey]] {
+        override def apply(acc: List[ConnTrackKey], key: ConnTrackKey,
+                           value: ConnTrackValue) = key :: acc
+    }
+
+    feature ("The codecs encode keys and values losslessly") {
+        scenario ("Connection tracking keys") {
+            val words = new Array[Long](ConnTrackKeyCodec.keyWords + 1)
+            val key = ConnTrackKey(IPv4Addr.fromString("255.0.0.1"), -2,
+                                   IPv4Addr.fromString("10.0.0.255"), 65535,
+                                   1, deviceId)
+            ConnTrackKeyCodec.encodeKey(key, words, 1) should be (true)
+            ConnTrackKeyCodec.decodeKey(words, 1) should be (key)
+            ConnTrackKeyCodec.decodeValue(
+                ConnTrackKeyCodec.encodeValue(java.lang.Boolean.FALSE)) should be (false)
+            ConnTrackKeyCodec.decodeValue(
+                ConnTrackKeyCodec.encodeValue(java.lang.Boolean.TRUE)) should be (true)
+        }
+
+        scenario ("IPv6 connection tracking keys are not encoded") {
+            val key = ConnTrackKey(IPv6Addr.fromString("::1"), 1,
+                                   IPv6Addr.fromString("::2"), 2, 6, deviceId)
+            ConnTrackKeyCodec.encodeKey(key, new Array[Long](5), 0) should be (false)
+        }
+
+        scenario ("NAT keys and bindings") {
+            val words = new Array[Long](NatKeyCodec.keyWords)
+            for (keyType <- List(NatState.FWD_SNAT, NatState.FWD_DNAT,
+                                 NatState.FWD_STICKY_DNAT, NatState.REV_SNAT,
+                                 NatState.REV_DNAT, NatState.REV_STICKY_DNAT)) {
+                val key = natKey(keyType, 1000)
+                NatKeyCodec.encodeKey(key, words, 0) should be (true)
+                val decoded = NatKeyCodec.decodeKey(words, 0)
+                decoded should be (key)
+                decoded.expiresAfter should be (key.expiresAfter)
+            }
+            val binding = NatBinding(IPv4Addr.fromString("200.0.0.1"), 65535)
+            NatKeyCodec.decodeValue(NatKeyCodec.encodeValue(binding)) should be (binding)
+        }
+    }
+
+    feature ("Entries are reference counted") {
+        scenario ("putAndRef, ref and unref") {
+            val key = conntrackKey(1)
+            map.putAndRef(key, true) should be (null)
+            map.get(key) should be (true)
+            map.getRefCount(key) should be (1)
+
+            map.putAndRef(key, false) should be (true)
+            map.get(key) should be (false)
+            map.getRefCount(key) should be (2)
+
+            map.ref(key) should be (false)
+            map.getRefCount(key) should be (3)
+            map.ref(conntrackKey(2)) should be (null)
+
+            map.unref(key, 0)
+            map.unref(key, 0)
+            map.unref(key, 0)
+            map.getRefCount(key) should be (0)
+            map.unref(key, 0)
+            map.getRefCount(key) should be (0)
+        }
+
+        scenario ("fold") {
+            map.putAndRef(conntrackKey(1), true)
+            map.putAndRef(conntrackKey(2), false)
+            map.fold(List[ConnTrackKey](), collector).toSet should be (
+                Set(conntrackKey(1), conntrackKey(2)))
+        }
+    }
+
+    feature ("Idle entries expire") {
+        scenario ("An entry expires after its idle expiration") {
+            val key = conntrackKey(1)
+            map.putAndRef(key, true)
+            map.unref(key, 0)
+
+            val expiration = key.expiresAfter.toMillis
+            map.obliterateIdleEntries(expiration - 1, Nil, collector) should be (Nil)
+            map.get(key) should be (true)
+            map.obliterateIdleEntries(expiration, Nil, collector) should be (List(key))
+            map.get(key) should be (null)
+            map.size should be (0)
+        }
+
+        scenario ("A referenced entry does not expire") {
+            val key = conntrackKey(1)
+            map.putAndRef(key, true)
+            map.unref(key, 0)
+            map.ref(key)
+            map.obliterateIdleEntries(Long.MaxValue, Nil, collector) should be (Nil)
+            map.get(key) should be (true)
+        }
+
+        scenario ("An entry referenced again expires with the latest unref") {
+            val key = conntrackKey(1)
+            map.putAndRef(key, true)
+            map.unref(key, 0)
+            map.ref(key)
+            map.unref(key, 1000)
+            val expiration = key.expiresAfter.toMillis
+            map.obliterateIdleEntries(expiration, Nil, collector) should be (Nil)
+            map.obliterateIdleEntries(expiration + 1000, Nil, collector) should be (List(key))
+        }
+
+        scenario ("Keys that can't be encoded are stored as objects") {
+            val key = ConnTrackKey(IPv6Addr.fromString("::1"), 1,
+                                   IPv6Addr.fromString("::2"), 2, 6, deviceId)
+            map.putAndRef(key, true) should be (null)
+            map.get(key) should be (true)
+            map.size should be (0)
+            map.unref(key, 0)
+            map.obliterateIdleEntries(1.day.toMillis, Nil, collector) should be (List(key))
+            map.get(key) should be (null)
+        }
+    }
+
+    feature ("The table grows and shrinks") {
+        scenario ("Random operations match a HashMap") {
+            val natMap = new PrimitiveExpirationMap[NatKey, NatBinding](
+                NatKeyCodec, log, initialCapacity = 2)
+            val reference = new HashMap[NatKey, NatBinding]()
+            val expired = new Reducer[NatKey, NatBinding, Int] {
+                override def apply(acc: Int, key: NatKey, value: NatBinding) = {
+                    reference.remove(key) should be (value)
+                    acc + 1
+                }
+            }
+            val random = new Random(42)
+            var now = 0L
+            for (i <- 0 until 20000) {
+                val key = natKey(NatState.FWD_SNAT, random.nextInt(2000))
+                val binding = NatBinding(IPv4Addr.random, random.nextInt(65536))
+                if (random.nextBoolean()) {
+                    natMap.putAndRef(key, binding) should be (reference.put(key, binding))
+                    natMap.unref(key, now)
+                } else {
+                    natMap.get(key) should be (reference.get(key))
+                }
+                now += 10
+                if (i % 100 == 0) {
+                    natMap.obliterateIdleEntries(now, 0, expired)
+                    natMap.size should be (reference.size)
+                }
+            }
+            natMap.obliterateIdleEntries(Long.MaxValue, 0, expired)
+            natMap.size should be (0)
+            reference.isEmpty should be (true)
+        }
+    }
+}
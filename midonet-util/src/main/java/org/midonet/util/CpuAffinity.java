@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.util;
+
+import com.sun.jna.LastErrorException;
+
+/**
+ * Restricts threads to run on specific CPUs through sched_setaffinity(2).
+ */
+public final class CpuAffinity {
+
+    private CpuAffinity() { }
+
+    /**
+     * Pins the calling thread to the specified CPU. On Linux, a pid of 0
+     * makes sched_setaffinity apply to the calling thread only.
+     */
+    public static void pinCurrentThread(int cpu) throws LastErrorException {
+        if (cpu < 0 || cpu >= cLibrary.CPU_SETSIZE) {
+            throw new IllegalArgumentException("Invalid CPU: " + cpu);
+        }
+        long[] mask = new long[cLibrary.CPU_SETSIZE / 64];
+        mask[cpu / 64] |= 1L << (cpu % 64);
+        cLibrary.lib.sched_setaffinity(0, mask.length * 8, mask);
+    }
+}
@@ -89,11 +89,16 @@ public interface cLibrary extends Library {
     public static final int MCL_CURRENT = 1;
     public static final int MCL_FUTURE = 2;
 
+    /* sched.h */
+    public static final int CPU_SETSIZE = 1024;
+
 
     int mlockall(int flags) throws LastErrorException;
 
     int munlockall() throws LastErrorException;
 
+    int sched_setaffinity(int pid, int cpusetsize, long[] mask) throws LastErrorException;
+
     int socket(int domain, int type, int protocol);
 
     int connect(int fd, NetlinkSockAddress addrSockAddress, int size);
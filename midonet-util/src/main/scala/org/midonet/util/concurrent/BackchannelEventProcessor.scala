@@ -18,6 +18,8 @@ package org.midonet.util.concurrent
 
 import java.util.concurrent.atomic.AtomicBoolean
 
+import scala.beans.BeanProperty
+
 import com.lmax.disruptor.EventPoller.PollState
 import com.lmax.disruptor._
 
@@ -25,6 +27,16 @@ import org.midonet.util.concurrent.WakerUpper.Parkable
 
 object BackchannelEventProcessor {
     val DEFAULT_RETRIES = 200
+
+    /**
+     * How the thread waits when there are no events nor work from the
+     * Backchannel. PARK spins, then yields and then parks the thread with the
+     * WakerUpper; YIELD yields the CPU but never parks; BUSY_SPIN keeps
+     * polling without giving up the CPU.
+     */
+    final val PARK = 0
+    final val YIELD = 1
+    final val BUSY_SPIN = 2
 }
 
 /**
@@ -32,7 +44,8 @@ object BackchannelEventProcessor {
  * from a RingBuffer, delegating the available events to the specified eventHandler,
  * and responds to work from a Backchannel. This EventProcessor is gated on the
  * supplied sequences. When there are no events or work from the Backchannel, it
- * registers the underlying thread with WakerUpper.
+ * registers the underlying thread with WakerUpper, unless the waitMode
+ * specifies that it should yield or busy spin instead.
  */
 class BackchannelEventProcessor[T >: Null](ringBuffer: RingBuffer[T],
                                            eventHandler: EventPoller.Handler[T],
@@ -47,6 +60,8 @@ class BackchannelEventProcessor[T >: Null](ringBuffer: RingBuffer[T],
 
     var exceptionHandler = new FatalExceptionHandler
 
+    @BeanProperty var waitMode = PARK
+
     override def getSequence: Sequence =
         poller.getSequence
 
@@ -82,7 +97,7 @@ class BackchannelEventProcessor[T >: Null](ringBuffer: RingBuffer[T],
             while (running.get()) {
                 poller.poll(eventHandler) match {
                     case PollState.GATING | PollState.IDLE =>
-                        retries = park(retries)
+                        retries = idle(retries)
                     case _ =>
                         retries = DEFAULT_RETRIES
                 }
@@ -94,6 +109,16 @@ class BackchannelEventProcessor[T >: Null](ringBuffer: RingBuffer[T],
         }
     }
 
+    private def idle(retries: Int): Int = waitMode match {
+        case BUSY_SPIN =>
+            retries
+        case YIELD =>
+            Thread.`yield`()
+            retries
+        case _ =>
+            park(retries)
+    }
+
     private def notifyStart(): Unit =
         eventHandler match {
             case aware: LifecycleAware =>
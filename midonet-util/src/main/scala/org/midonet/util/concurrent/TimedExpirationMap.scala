@@ -16,8 +16,9 @@
 
 package org.midonet.util.concurrent
 
-import java.util.concurrent.{ConcurrentLinkedQueue, ConcurrentHashMap}
-import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicLongArray,
+                                    AtomicReferenceArray}
 
 import scala.annotation.tailrec
 import scala.concurrent.duration.Duration
@@ -56,15 +57,31 @@ import org.midonet.util.collection.Reducer
  *
  *   + At reference expiration time
  *      - When unref decrements a count to zero, it will calculate the
- *        expiration time and put it in the expiring queue. Because the counts
- *        could vary (to one and back to zero) in the expiration interval, the
- *        canonical expiration time is kept in the ref count map. The queue
- *        simply marks that a key should be checked for expiration when
- *        doDeletions() is invoked. Note that change the expiration interval
- *        associated with the entry races with its removal, so it's possible an
- *        entry will be expired sooner than it should.
+ *        expiration time and schedule the entry in the expiration wheel,
+ *        unless it is already scheduled. Because the counts could vary (to
+ *        one and back to zero) in the expiration interval, the canonical
+ *        expiration time is kept in the entry. The wheel simply marks that
+ *        an entry should be checked for expiration when
+ *        obliterateIdleEntries() is invoked, which schedules it again if it
+ *        is idle but hasn't expired yet. Note that changing the expiration
+ *        interval associated with the entry races with its removal, so it's
+ *        possible an entry will be expired sooner, or later, than it should.
  *
- *      - When obliterateIdleEntries() goes through the queue and sees that
+ *      - The wheel is an array of buckets, each a lock-free stack linked
+ *        through the entries themselves, so scheduling an entry allocates
+ *        nothing. An entry goes to the bucket of its expiration time, and
+ *        each bucket keeps the earliest expiration time of its entries, so
+ *        that obliterateIdleEntries() only takes the buckets that hold
+ *        expired entries. An entry is never in the wheel more than once: the
+ *        scheduled flag is set by the thread that schedules it, and cleared
+ *        by obliterateIdleEntries() when it finds that the entry is
+ *        referenced, after which it checks the ref count again.
+ *
+ *      - obliterateIdleEntries() can be bounded to check a maximum number of
+ *        entries per call. The entries taken from the wheel and not checked
+ *        yet are checked first in the next call.
+ *
+ *      - When obliterateIdleEntries() goes through the wheel and sees that
  *        an entry has a ref count of zero and is expired, it will atomically
  *        set the ref count to -1, conditionally on it being zero. This prevents
  *        a ref() operation from racing with the expiration of a key::
@@ -82,9 +99,17 @@ import org.midonet.util.collection.Reducer
  *            guaranteeing the happens-before relationship described above.
  */
 final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
-                                             expirationFor: K => Duration) {
-
-    case class Metadata(var value: V, refCount: AtomicInteger, var expiration: Long)
+        expirationFor: K => Duration,
+        granularity: Long = TimedExpirationMap.DefaultGranularity) {
+    import TimedExpirationMap._
+
+    final class Metadata(val key: K, var value: V, val refCount: AtomicInteger) {
+        @volatile var expiration = Long.MaxValue
+        val scheduled = new AtomicBoolean()
+        // The next entry in the bucket or in the pending list, published by
+        // the CAS that pushes this entry
+        var next: Metadata = null
+    }
 
     private val refCountMap = new ConcurrentHashMap[K, Metadata]()
 
@@ -92,16 +117,26 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
      * Track entries that need to be deleted and the time at which they
      * should be deleted.
      *
-     * A queue provides traversal using insertion order. Expiring entries means
-     * iterating the queue until an non-expired time is found. When an entry is
-     * taken from the queue, the canonical up-to-date expiration time is found
-     * in the ref count map. The queue is just a flag to say "check this entry,
-     * it's probably expired".
+     * The bucket of an entry is given by its expiration time, in units of
+     * the granularity, modulo the number of buckets. A bucket may thus hold
+     * entries that expire in later turns of the wheel, which the earliest
+     * expiration time of the bucket accounts for.
      *
-     * An entry will only be present in this queue if it is also present
+     * An entry will only be present in the wheel if it is also present
      * in the refCountMap.
      */
-    private val expiring = new ConcurrentLinkedQueue[(K, Long)]
+    private val wheel = new AtomicReferenceArray[Metadata](Buckets)
+    private val earliest = new AtomicLongArray(Buckets)
+    private var pending: Metadata = null
+    private var cursor = 0
+
+    {
+        var i = 0
+        while (i < Buckets) {
+            earliest.set(i, Long.MaxValue)
+            i += 1
+        }
+    }
 
     private def tryIncIfGreaterThan(atomic: AtomicInteger, threshold: Int): Int = {
         do {
@@ -118,7 +153,7 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
     }
 
     private def insert(key: K, v: V) = {
-        val metadata = Metadata(v, new PaddedAtomicInteger(1), Long.MaxValue)
+        val metadata = new Metadata(key, v, new PaddedAtomicInteger(1))
         val old = refCountMap.putIfAbsent(key, metadata)
         if (old eq null)
             log.debug(s"Incrementing reference count of $key to 1")
@@ -126,34 +161,41 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
     }
 
     @tailrec
-    def putAndRef(key: K, value: V): V =
-        refCountMap.get(key) match {
-            case m@Metadata(oldValue, count, _) =>
-                if (ref(key) != null) {
-                    m.value = value
-                    oldValue
-                } else {
-                    /* Retry, a deletion raced with us and won */
-                    putAndRef(key, value)
-                }
-            case _ if insert(key, value) eq null => null
-            case _ => putAndRef(key, value)
+    def putAndRef(key: K, value: V): V = {
+        val m = refCountMap.get(key)
+        if (m ne null) {
+            val oldValue = m.value
+            if (ref(key) != null) {
+                m.value = value
+                oldValue
+            } else {
+                /* Retry, a deletion raced with us and won */
+                putAndRef(key, value)
+            }
+        } else if (insert(key, value) eq null) {
+            null
+        } else {
+            putAndRef(key, value)
         }
+    }
 
     @tailrec
-    def putIfAbsentAndRef(key: K, value: V): V =
-        refCountMap.get(key) match {
-            case m: Metadata =>
-                val oldValue = ref(key)
-                if (oldValue != null) {
-                    oldValue
-                } else {
-                    /* Retry, a deletion raced with us and won */
-                    putIfAbsentAndRef(key, value)
-                }
-            case _ if insert(key, value) eq null => null
-            case _ => putIfAbsentAndRef(key, value)
+    def putIfAbsentAndRef(key: K, value: V): V = {
+        val m = refCountMap.get(key)
+        if (m ne null) {
+            val oldValue = ref(key)
+            if (oldValue != null) {
+                oldValue
+            } else {
+                /* Retry, a deletion raced with us and won */
+                putIfAbsentAndRef(key, value)
+            }
+        } else if (insert(key, value) eq null) {
+            null
+        } else {
+            putIfAbsentAndRef(key, value)
         }
+    }
 
     def get(key: K): V = {
         val metadata = refCountMap.get(key)
@@ -163,7 +205,7 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
 
     def getRefCount(key: K): Int = refCountMap.get(key) match {
         case null => 0
-        case Metadata(_, refCount, _) => refCount.get
+        case metadata => metadata.refCount.get
     }
 
     def fold[U](seed: U, func: Reducer[K, V, U]): U = {
@@ -178,8 +220,10 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
 
     def ref(key: K): V =
         refCountMap.get(key) match {
-            case m@Metadata(oldValue, count, _) =>
-                val newCount = tryIncIfGreaterThan(count, -1)
+            case null => null
+            case m =>
+                val oldValue = m.value
+                val newCount = tryIncIfGreaterThan(m.refCount, -1)
                 if (newCount == -1) {
                     null
                 } else {
@@ -188,8 +232,6 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
                         log.debug(s"Unscheduling removal of $key")
                     oldValue
                 }
-
-            case _ => null
         }
 
     def refCount(key: K) = {
@@ -204,27 +246,47 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
             case null =>
                 null
 
-            case m@Metadata(value, count, _) if count.get <= 0 =>
+            case m if m.refCount.get <= 0 =>
                 log.error(s"Decrement a ref count past 0 for $key")
-                value
+                m.value
 
-            case m@Metadata(value, count, _) =>
-                val newVal = count.decrementAndGet()
+            case m =>
+                val newVal = m.refCount.decrementAndGet()
                 log.debug(s"Decrementing reference count of $key to $newVal")
 
                 if (newVal == 0) {
                     log.debug(s"Scheduling removal of $key")
                     val expiration = expirationFor(key).toMillis
                     m.expiration = currentTimeMillis + expiration
-                    expiring.offer((key, m.expiration))
+                    if (m.scheduled.compareAndSet(false, true))
+                        schedule(m)
                 } else if (newVal < 0) {
                     log.warn(s"Decrement a ref count past 0 for $key")
-                    count.incrementAndGet()
+                    m.refCount.incrementAndGet()
                 }
 
-                value
+                m.value
         }
 
+    /**
+     * Pushes an entry to the bucket of its expiration time. Safe to call
+     * from any thread, and allocation-free.
+     */
+    private def schedule(m: Metadata): Unit = {
+        val expiration = m.expiration
+        val bucket = ((expiration / granularity) & (Buckets - 1)).toInt
+        var head: Metadata = null
+        do {
+            head = wheel.get(bucket)
+            m.next = head
+        } while (!wheel.compareAndSet(bucket, head, m))
+
+        var min = earliest.get(bucket)
+        while (expiration < min &&
+               !earliest.compareAndSet(bucket, min, expiration)) {
+            min = earliest.get(bucket)
+        }
+    }
 
     /**
      * Cleans up resources that have had their reference count at 0 for longer
@@ -241,27 +303,73 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
         obliterateIdleEntries(currentTimeMillis, (), identityReducer)
 
     def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
-                                 reducer: Reducer[K, V, U]): U = {
+                                 reducer: Reducer[K, V, U]): U =
+        obliterateIdleEntries(currentTimeMillis, seed, reducer, Int.MaxValue)
+
+    /**
+     * Cleans up the expired entries like the method above, but checks at
+     * most `maxEntries` of the entries scheduled for expiration, so that the
+     * cost of a call is bounded after a burst of expirations. The remaining
+     * entries are checked by the next calls.
+     */
+    def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                 reducer: Reducer[K, V, U],
+                                 maxEntries: Int): U = {
         var acc = seed
-        while (true) {
-            val pair = expiring.peek()
-            if ((pair eq null) || (pair._2 > currentTimeMillis))
-                return acc
-
-            val metadata = refCountMap.get(pair._1)
-
-            if (metadata != null &&
-                metadata.expiration <= currentTimeMillis &&
-                metadata.refCount.compareAndSet(0, -1)) {
-
-                log.debug(s"Forgetting entry ${pair._1}")
-                /* The following operations are precisely ordered as explained
-                 * in the header. */
-                acc = reducer(acc, pair._1, metadata.value)
-                refCountMap.remove(pair._1)
+        var budget = maxEntries
+        var buckets = 0
+        while (budget > 0 && ((pending ne null) || buckets < Buckets)) {
+            if (pending ne null) {
+                val m = pending
+                pending = m.next
+                m.next = null
+                acc = check(m, currentTimeMillis, acc, reducer)
+                budget -= 1
+            } else {
+                // The earliest time is reset before taking the entries, so
+                // that entries pushed concurrently are accounted for
+                if (earliest.get(cursor) <= currentTimeMillis) {
+                    earliest.set(cursor, Long.MaxValue)
+                    pending = wheel.getAndSet(cursor, null)
+                }
+                cursor = (cursor + 1) & (Buckets - 1)
+                buckets += 1
             }
-            expiring.poll()
         }
         acc
     }
+
+    private def check[U](m: Metadata, currentTimeMillis: Long, seed: U,
+                         reducer: Reducer[K, V, U]): U = {
+        var acc = seed
+        if (m.refCount.get == 0 && m.expiration <= currentTimeMillis &&
+            m.refCount.compareAndSet(0, -1)) {
+
+            log.debug(s"Forgetting entry ${m.key}")
+            /* The following operations are precisely ordered as explained
+             * in the header. */
+            acc = reducer(acc, m.key, m.value)
+            refCountMap.remove(m.key, m)
+        } else if (m.refCount.get == 0) {
+            // Idle, but not expired yet
+            schedule(m)
+        } else {
+            // Referenced again: the next unref will schedule it, unless it
+            // raced with us and it's already idle
+            m.scheduled.set(false)
+            if (m.refCount.get == 0 && m.scheduled.compareAndSet(false, true))
+                schedule(m)
+        }
+        acc
+    }
+}
+
+object TimedExpirationMap {
+    /**
+     * The default width of the buckets of the expiration wheel, in the unit
+     * of the times passed to the map, which is usually milliseconds.
+     */
+    val DefaultGranularity = 1000L
+
+    private val Buckets = 256
 }
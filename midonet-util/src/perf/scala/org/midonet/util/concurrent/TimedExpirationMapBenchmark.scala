@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import java.lang.{Integer => JInt}
+import java.util.concurrent.TimeUnit
+
+import scala.concurrent.duration._
+
+import com.typesafe.scalalogging.Logger
+import org.openjdk.jmh.annotations._
+import org.slf4j.helpers.NOPLogger
+
+object TimedExpirationMapBenchmark {
+    val Expiration = 60 seconds
+    val ExpirationMillis = Expiration.toMillis
+    val Batch = 1024
+}
+
+/**
+ * Measures the life cycle of the entries of a TimedExpirationMap holding a
+ * population of live entries: the reference counting of a live entry, the
+ * insertion and expiration of short-lived entries, and an expiration round
+ * that finds nothing to expire.
+ *
+ * The gc.alloc.rate.norm reported by the GC profiler is the garbage produced
+ * per operation.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Thread)
+class TimedExpirationMapBenchmark {
+    import TimedExpirationMapBenchmark._
+
+    @Param(Array("1024", "131072"))
+    var live: Int = _
+
+    val map = new TimedExpirationMap[JInt, String](
+        Logger(NOPLogger.NOP_LOGGER), _ => Expiration)
+    val value = "value"
+
+    var liveKeys: Array[JInt] = _
+    var idleKeys: Array[JInt] = _
+    var now = 0L
+    var i = 0
+
+    @Setup
+    def setup(): Unit = {
+        liveKeys = new Array(live)
+        var k = 0
+        while (k < live) {
+            liveKeys(k) = new JInt(k)
+            map.putAndRef(liveKeys(k), value)
+            k += 1
+        }
+        idleKeys = new Array(Batch)
+        k = 0
+        while (k < Batch) {
+            idleKeys(k) = new JInt(live + k)
+            k += 1
+        }
+    }
+
+    /**
+     * References and releases a live entry, which keeps it alive.
+     */
+    @Benchmark
+    def refUnref(): String = {
+        i += 1
+        val key = liveKeys(i % live)
+        map.ref(key)
+        map.unref(key, now)
+    }
+
+    /**
+     * Inserts a batch of entries, releases them and expires them once they
+     * have been idle for the expiration time.
+     */
+    @Benchmark
+    @OperationsPerInvocation(Batch)
+    def putUnrefAndExpire(): Unit = {
+        var k = 0
+        while (k < Batch) {
+            map.putAndRef(idleKeys(k), value)
+            map.unref(idleKeys(k), now)
+            k += 1
+        }
+        now += ExpirationMillis
+        map.obliterateIdleEntries(now)
+    }
+
+    /**
+     * Runs an expiration round when no entry is due.
+     */
+    @Benchmark
+    def expireNothing(): Unit =
+        map.obliterateIdleEntries(now)
+}
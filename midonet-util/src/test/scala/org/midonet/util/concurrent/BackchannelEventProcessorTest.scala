@@ -17,6 +17,7 @@
 package org.midonet.util.concurrent
 
 import java.lang.Thread.State
+import java.util.concurrent.atomic.AtomicLong
 import scala.concurrent.duration._
 
 import com.lmax.disruptor._
@@ -121,5 +122,56 @@ class BackchannelEventProcessorTest extends FeatureSpec
             }
         }
     }
-}
 
+    feature ("BackchannelEventProcessor can spin instead of parking") {
+        val ringBuffer = RingBuffer.createSingleProducer(new EventFactory[Object] {
+            override def newInstance(): Object = new Object
+        }, 16)
+
+        val handler = new EventPoller.Handler[Object] {
+            @volatile var handled = 0
+
+            override def onEvent(event: Object, sequence: Long,
+                                 endOfBatch: Boolean): Boolean = {
+                handled += 1
+                true
+            }
+        }
+
+        // Processed on every idle iteration of a processor that spins; one
+        // that parks waits for work without processing the backchannel
+        val backchannel = new Backchannel {
+            val polls = new AtomicLong()
+            override def shouldProcess() = false
+            override def process(): Unit = polls.incrementAndGet()
+        }
+        val manyPolls = 10L * BackchannelEventProcessor.DEFAULT_RETRIES
+
+        scenario ("A busy spinning processor never parks") {
+            val processor = new BackchannelEventProcessor[Object](
+                ringBuffer, handler, backchannel)
+            processor.setWaitMode(BackchannelEventProcessor.BUSY_SPIN)
+            val t = new Thread() {
+                override def run() = processor.run()
+            }
+            t.setDaemon(true)
+            t.start()
+
+            eventually {
+                backchannel.polls.get should be > manyPolls
+            }
+
+            ringBuffer.publish(0)
+            eventually {
+                handler.handled should be (1)
+            }
+            val polls = backchannel.polls.get
+            eventually {
+                backchannel.polls.get should be > (polls + manyPolls)
+            }
+
+            processor.halt()
+            t.join()
+        }
+    }
+}
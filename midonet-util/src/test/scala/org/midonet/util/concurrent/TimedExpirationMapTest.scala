@@ -136,6 +136,64 @@ class TimedExpirationMapTest extends FeatureSpec
         }
     }
 
+    feature("Expiration") {
+        val collector = new Reducer[String, String, List[String]]() {
+            override def apply(acc: List[String], key: String,
+                               value: String): List[String] = key :: acc
+        }
+
+        def timedMap(expiration: Duration) =
+            new TimedExpirationMap[String, String](
+                Logger(NOPLogger.NOP_LOGGER), _ => expiration)
+
+        scenario("Entries expire after their idle expiration") {
+            val map = timedMap(10 millis)
+            map.putAndRef("A", "X")
+            map.unref("A", 0)
+            map.obliterateIdleEntries(9, Nil, collector) should be (Nil)
+            map.obliterateIdleEntries(10, Nil, collector) should be (List("A"))
+            map.get("A") should be (null)
+        }
+
+        scenario("Entries referenced again are not expired") {
+            val map = timedMap(10 millis)
+            map.putAndRef("A", "X")
+            map.unref("A", 0)
+            map.ref("A") should be ("X")
+            map.obliterateIdleEntries(20, Nil, collector) should be (Nil)
+
+            map.unref("A", 30)
+            map.obliterateIdleEntries(39, Nil, collector) should be (Nil)
+            map.obliterateIdleEntries(40, Nil, collector) should be (List("A"))
+        }
+
+        scenario("Entries that expire after a turn of the wheel") {
+            val map = timedMap(1000 seconds)
+            map.putAndRef("A", "X")
+            map.unref("A", 0)
+            map.obliterateIdleEntries(1000000 - 1, Nil, collector) should be (Nil)
+            map.obliterateIdleEntries(1000000, Nil, collector) should be (List("A"))
+        }
+
+        scenario("Expiration is bounded per call") {
+            val keys = (0 until 10) map { _.toString }
+            for (key <- keys) {
+                map.putAndRef(key, key)
+                map.unref(key, 0)
+            }
+
+            val first = map.obliterateIdleEntries(1, Nil, collector, 3)
+            first should have size 3
+            val second = map.obliterateIdleEntries(1, Nil, collector, 3)
+            second should have size 3
+            val rest = map.obliterateIdleEntries(1, Nil, collector)
+            (first ++ second ++ rest).sorted should be (keys.sorted)
+            for (key <- keys) {
+                map.get(key) should be (null)
+            }
+        }
+    }
+
     feature("Correctness test") {
         scenario("control for reference count") {
             val keys = (0 to 5000) map { _.toString } toArray
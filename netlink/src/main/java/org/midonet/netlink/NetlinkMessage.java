@@ -18,6 +18,7 @@ package org.midonet.netlink;
 import org.midonet.packets.Ethernet;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * Helper class for writing and reading Netlink messages and attributes.
@@ -151,6 +152,25 @@ public final class NetlinkMessage {
         return nByte;
     }
 
+    /** Same as writeAttrSeq(), but iterates over the list by index so that no
+     *  Iterator is allocated. Meant for the RandomAccess lists written in the
+     *  flow creation and packet execution paths. */
+    public static <V> int writeAttrList(ByteBuffer buffer, short id,
+                                        List<V> values,
+                                        Writer<V> translator) {
+        int start = buffer.position();
+        int nByte = 4;
+        NetlinkMessage.setAttrHeader(buffer, nested(id), 0);
+
+        for (int i = 0; i < values.size(); ++i) {
+            nByte += writeAttr(buffer, values.get(i), translator);
+        }
+
+        buffer.putShort(start, (short) nByte);
+
+        return nByte;
+    }
+
     /** write a 8B long netlink attribute into a buffer, with header. */
     public static int writeLongAttr(ByteBuffer buf, short id, long value) {
         NetlinkMessage.setAttrHeader(buf, id, 12);
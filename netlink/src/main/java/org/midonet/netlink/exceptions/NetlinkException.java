@@ -68,6 +68,7 @@ public class NetlinkException extends Exception {
     }
 
     int errorCode;
+    int seq;
 
     public static final int ERROR_SENDING_REQUEST = -1;
     public static final int GENERIC_IO_ERROR = -2;
@@ -92,6 +93,12 @@ public class NetlinkException extends Exception {
         this.errorCode = errorCode;
     }
 
+    public NetlinkException(int errorCode, String message, int seq) {
+        super(format(errorCode, message));
+        this.errorCode = errorCode;
+        this.seq = seq;
+    }
+
     public NetlinkException(int errorCode, String message, Throwable cause) {
         super(format(errorCode, message), cause);
         this.errorCode = errorCode;
@@ -119,6 +126,14 @@ public class NetlinkException extends Exception {
         return errorCode;
     }
 
+    /**
+     * The sequence number of the request this error answers, if the
+     * exception was built from a Netlink error message.
+     */
+    public int getSeq() {
+        return seq;
+    }
+
     private static String format(int errorCode, String message) {
         if (message != null)
             return "[" + errorCode + "] " + message;
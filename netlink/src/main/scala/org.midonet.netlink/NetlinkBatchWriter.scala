@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.netlink
+
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * Accumulates Netlink messages into a single buffer so that they are written
+ * into the channel with one system call. The kernel processes each message of
+ * the resulting datagram in turn, so errors are still reported per message and
+ * can be correlated through their sequence numbers.
+ *
+ * Callers add fully formatted messages with add() and decide when to write
+ * the batch by calling flush(), typically when isFull returns true or at the
+ * end of a burst of work. A message that doesn't fit in the remaining space
+ * causes the current batch to be flushed first; a message that doesn't fit in
+ * an empty batch is written on its own.
+ *
+ * This class is not thread-safe.
+ */
+final class NetlinkBatchWriter(writer: NetlinkWriter,
+                               maxMessages: Int,
+                               maxBytes: Int) {
+
+    private val buf = BytesUtil.instance.allocateDirect(maxBytes)
+    private var messages = 0
+
+    /**
+     * The number of messages in the current batch.
+     */
+    def size: Int = messages
+
+    def isEmpty: Boolean = messages == 0
+
+    def isFull: Boolean = messages >= maxMessages
+
+    /**
+     * Copies the message contained between the position and the limit of
+     * the specified buffer into the batch. Returns the number of bytes
+     * written to the channel as a side effect of making room for the message.
+     */
+    @throws(classOf[IOException])
+    def add(msg: ByteBuffer): Int = {
+        var nbytes = 0
+        if (msg.remaining() > buf.remaining()) {
+            nbytes = flush()
+        }
+        if (msg.remaining() > buf.remaining()) {
+            nbytes += writer.write(msg)
+        } else {
+            buf.put(msg)
+            messages += 1
+        }
+        nbytes
+    }
+
+    /**
+     * Writes the current batch into the channel. The batch is cleared even
+     * if the write fails. Returns the number of bytes written.
+     */
+    @throws(classOf[IOException])
+    def flush(): Int =
+        if (messages > 0) {
+            try {
+                buf.flip()
+                writer.write(buf)
+            } finally {
+                buf.clear()
+                messages = 0
+            }
+        } else {
+            0
+        }
+}
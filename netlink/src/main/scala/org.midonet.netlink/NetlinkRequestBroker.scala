@@ -261,7 +261,9 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
         } catch { case e: NetlinkException =>
             val pos = readBuf.getInt(NetlinkMessage.NLMSG_SEQ_OFFSET)
             val obs = getObserver(pos, unhandled)
-            freeObserver(pos)
+            if (isBrokerSequence(pos)) {
+                freeObserver(pos)
+            }
             obs.onError(e)
             0
         } finally {
@@ -291,16 +293,32 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
             }
         }
 
-        freeObserver(pos)
+        if (isBrokerSequence(pos)) {
+            freeObserver(pos)
+        }
         obs.onCompleted()
     }
 
     private def getObserver(pos: Int, unhandled: Observer[ByteBuffer]) =
-        observers(pos) match {
-            case null => unhandled
-            case obs => obs
+        if (isBrokerSequence(pos)) {
+            observers(pos) match {
+                case null => unhandled
+                case obs => obs
+            }
+        } else {
+            unhandled
         }
 
+    /**
+     * Whether a reply's sequence number could correspond to a request made
+     * through this broker. Requests written directly into the channel, such
+     * as the ones that don't expect a reply unless they fail, should use
+     * sequence numbers outside this range so their errors are routed to the
+     * unhandled Observer.
+     */
+    private def isBrokerSequence(pos: Int): Boolean =
+        pos >= 0 && pos < capacity
+
     private def advanceReadSeqAndCheckTimeouts(): Unit = {
         val currentTime = clock.tick
         var seq = readSequence
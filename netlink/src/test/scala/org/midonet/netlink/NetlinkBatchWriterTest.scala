@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.netlink
+
+import java.nio.ByteBuffer
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class NetlinkBatchWriterTest extends FeatureSpec
+                             with ShouldMatchers
+                             with OneInstancePerTest {
+
+    val channel = new MockNetlinkChannel(Netlink.selectorProvider,
+                                         NetlinkProtocol.NETLINK_GENERIC)
+    val writer = new NetlinkWriter(channel)
+
+    private def message(size: Int, seq: Int): ByteBuffer = {
+        val buf = ByteBuffer.allocate(size)
+        NetlinkMessage.writeHeader(buf, size, 16, 0, seq, 0, 0, 0)
+        buf
+    }
+
+    feature ("NetlinkBatchWriter packs messages") {
+        scenario ("Messages are written together on flush") {
+            val batch = new NetlinkBatchWriter(writer, 4, 1024)
+            batch.add(message(64, 1))
+            batch.add(message(64, 2))
+            batch.size should be (2)
+            channel.packetsWritten.get() should be (0)
+
+            batch.flush() should be (128)
+            batch.isEmpty should be (true)
+            channel.packetsWritten.get() should be (1)
+
+            val bb = channel.written.poll()
+            bb.getInt(NetlinkMessage.NLMSG_SEQ_OFFSET) should be (1)
+            bb.getInt(64 + NetlinkMessage.NLMSG_SEQ_OFFSET) should be (2)
+        }
+
+        scenario ("The batch is full after the maximum number of messages") {
+            val batch = new NetlinkBatchWriter(writer, 2, 1024)
+            batch.add(message(64, 1))
+            batch.isFull should be (false)
+            batch.add(message(64, 2))
+            batch.isFull should be (true)
+        }
+
+        scenario ("A message that doesn't fit flushes the batch") {
+            val batch = new NetlinkBatchWriter(writer, 4, 128)
+            batch.add(message(64, 1))
+            batch.add(message(64, 2))
+            batch.add(message(64, 3)) should be (128)
+            channel.packetsWritten.get() should be (1)
+            batch.size should be (1)
+        }
+
+        scenario ("A message larger than the batch is written on its own") {
+            val batch = new NetlinkBatchWriter(writer, 4, 128)
+            batch.add(message(64, 1))
+            batch.add(message(256, 2)) should be (64 + 256)
+            channel.packetsWritten.get() should be (2)
+            batch.isEmpty should be (true)
+        }
+
+        scenario ("Flushing an empty batch doesn't write") {
+            val batch = new NetlinkBatchWriter(writer, 4, 128)
+            batch.flush() should be (0)
+            channel.packetsWritten.get() should be (0)
+        }
+    }
+}
@@ -10,6 +10,7 @@ import org.scalatest.junit.JUnitRunner
 
 import rx.Observer
 
+import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.util.concurrent.MockClock
 import org.midonet.netlink.Netlink.Address
 
@@ -228,6 +229,31 @@ class NetlinkRequestBrokerTest extends FeatureSpec
             obs.onCompletedCalls should be (1)
         }
 
+        scenario ("An error for a foreign sequence is passed into a catch-all Observer") {
+            val obs = new CountingObserver {
+                override def onError(t: Throwable) = {
+                    t.asInstanceOf[NetlinkException].getSeq should be (Int.MinValue)
+                    super.onError(t)
+                }
+            }
+
+            val seq = broker.nextSequence()
+            val pending = new CountingObserver
+            broker.publishRequest(seq, pending)
+            broker.writePublishedRequests()
+
+            val size = NetlinkMessage.NLMSG_ERROR_SIZE + NetlinkMessage.NLMSG_ERROR_HEADER_SIZE
+            NetlinkMessage.writeHeader(replyBuf, size, NLMessageType.ERROR, 0,
+                                       Int.MinValue, 0, 0, 0)
+            replyBuf.putInt(NetlinkMessage.NLMSG_ERROR_OFFSET, -17)
+            replyBuf.limit(size)
+            broker.readReply(obs)
+
+            obs.onErrorCalls should be (1)
+            pending.onErrorCalls should be (0)
+            pending.onCompletedCalls should be (0)
+        }
+
         scenario ("A truncated packet is detected") {
             val obs = new CountingObserver {
                 override def onError(t: Throwable) = {
@@ -120,10 +120,6 @@ public class FlowMask extends NetlinkSerializable
     }
 
     public FlowMask() {
-        clear();
-    }
-
-    public void clear() {
         for (FlowKey k : keys) {
             if (k != null)
                 k.wildcard();
@@ -131,6 +127,21 @@ public class FlowMask extends NetlinkSerializable
         keysWithExactMatch = 1L << OpenVSwitch.FlowKey.Attr.InPort;
     }
 
+    /**
+     * Resets the mask so it can be calculated for another FlowMatch. Only
+     * the keys with an exact match have been modified, so only those need
+     * to be wildcarded again.
+     */
+    public void clear() {
+        long exact = keysWithExactMatch;
+        while (exact != 0) {
+            int id = Long.numberOfTrailingZeros(exact);
+            keys[id].wildcard();
+            exact &= exact - 1;
+        }
+        keysWithExactMatch = 1L << OpenVSwitch.FlowKey.Attr.InPort;
+    }
+
     @SuppressWarnings("unchecked")
     private <T extends FlowKey> T key(short id) {
         return (T)(keys[id]);
@@ -144,6 +155,41 @@ public class FlowMask extends NetlinkSerializable
         return keys[keyId & MASK];
     }
 
+    /**
+     * Returns a key that identifies the mask calculateFor() produces for the
+     * specified FlowMatch: FlowMatches with the same key have the same mask.
+     * The mask depends on the fields that were seen, which include the
+     * tunnel and VLAN fields, and on the network and transport protocols,
+     * which select the FlowKeys holding the higher layer fields. The lower
+     * bits hold the seen fields; the protocols are encoded above them.
+     * Reading the protocols marks them as seen, as calculateFor() does, but
+     * their masks are exact regardless, so they are always included in the
+     * key to make it stable.
+     */
+    public static long keyFor(FlowMatch fmatch) {
+        long seen = fmatch.getSeenFields() & fmatch.getUsedFields();
+        short highestLayer = fmatch.highestLayerSeen();
+        long key = seen;
+        if (highestLayer >= 3) {
+            short ethertype = fmatch.getEtherType();
+            long l3 = ethertype == org.midonet.packets.IPv4.ETHERTYPE ? 1
+                    : ethertype == org.midonet.packets.ARP.ETHERTYPE ? 2
+                    : ethertype == org.midonet.packets.IPv6.ETHERTYPE ? 3
+                    : 0;
+            key |= (1L << FlowMatch.Field.EtherType.ordinal()) | (l3 << 48);
+            if (highestLayer >= 4 && (l3 == 1 || l3 == 3)) {
+                key |= 1L << FlowMatch.Field.NetworkProto.ordinal();
+                byte proto = fmatch.getNetworkProto();
+                long l4 = proto == org.midonet.packets.UDP.PROTOCOL_NUMBER ? 1
+                        : proto == org.midonet.packets.TCP.PROTOCOL_NUMBER ? 2
+                        : proto == org.midonet.packets.ICMP.PROTOCOL_NUMBER ? 3
+                        : 0;
+                key |= l4 << 50;
+            }
+        }
+        return key;
+    }
+
     /**
      * Calculate the flow mask from the specified FlowMatch.
      * The input port is always an exact match.
@@ -323,14 +369,16 @@ public class FlowMask extends NetlinkSerializable
     /**
      * Serializes the current flow mask to the specified buffer, taking
      * advantage of the fact that any omitted FlowKeys are understood
-     * as being totally wildcarded.
+     * as being totally wildcarded. The mask keys are preallocated and
+     * written in place, so this doesn't allocate.
      */
     public int serializeInto(ByteBuffer buffer) {
         int bytes = 0;
-        for (int i = 0; i < keys.length; ++i) {
-            if (((1L << i) & keysWithExactMatch) != 0) {
-                bytes += NetlinkMessage.writeAttr(buffer, keys[i], FlowKeys.writer);
-            }
+        long exact = keysWithExactMatch;
+        while (exact != 0) {
+            int id = Long.numberOfTrailingZeros(exact);
+            bytes += NetlinkMessage.writeAttr(buffer, keys[id], FlowKeys.writer);
+            exact &= exact - 1;
         }
         return bytes;
     }
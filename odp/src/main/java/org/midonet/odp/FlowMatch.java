@@ -434,6 +434,13 @@ public class FlowMatch {
         seenFields |= that.seenFields;
     }
 
+    /**
+     * Marks the specified set of fields as seen, as if they had been read.
+     */
+    public void markSeenFields(long fields) {
+        seenFields |= fields;
+    }
+
     /**
      * @return the set of Fields that have been set in this instance.
      */
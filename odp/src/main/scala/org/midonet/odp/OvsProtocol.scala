@@ -129,7 +129,7 @@ sealed class OvsProtocol(pid: Int,
 
         val message = messageFor(buf, datapathId, flowFamily.contextGet)
             .withFlags(NLFlag.REQUEST)
-        NetlinkMessage.writeAttrSeq(buf, Attr.Key, fmatch.getKeys, FlowKeys.writer)
+        NetlinkMessage.writeAttrList(buf, Attr.Key, fmatch.getKeys, FlowKeys.writer)
         message.finalize(pid)
     }
 
@@ -143,17 +143,34 @@ sealed class OvsProtocol(pid: Int,
 
         val message = messageFor(buf, datapathId, flowFamily.contextNew)
             .withFlags((nlFlags | NLFlag.REQUEST | NLFlag.New.CREATE).toShort)
-        NetlinkMessage.writeAttrSeq(buf, Attr.Key, keys, FlowKeys.writer)
+        NetlinkMessage.writeAttrList(buf, Attr.Key, keys, FlowKeys.writer)
         // the actions list is allowed to be empty (drop flow). Nevertheless the
         // actions nested attribute header needs to be written otherwise the
         // datapath will answer back with EINVAL
-        NetlinkMessage.writeAttrSeq(buf, Attr.Actions, actions, FlowActions.writer)
+        NetlinkMessage.writeAttrList(buf, Attr.Actions, actions, FlowActions.writer)
         if (flowMask ne null) {
             NetlinkMessage.writeAttrNested(buf, Attr.Mask, flowMask)
         }
         message.finalize(pid)
     }
 
+    /**
+     * Same as prepareFlowCreate(), but with a mask that has already been
+     * serialized as a complete Attr.Mask attribute.
+     */
+    def prepareMaskedFlowCreate(datapathId: Int, keys: JList[FlowKey],
+                                actions: JList[FlowAction], maskAttr: Array[Byte],
+                                buf: ByteBuffer): Unit = {
+        import org.midonet.odp.OpenVSwitch.Flow.Attr
+
+        val message = messageFor(buf, datapathId, flowFamily.contextNew)
+            .withFlags((NLFlag.REQUEST | NLFlag.New.CREATE).toShort)
+        NetlinkMessage.writeAttrList(buf, Attr.Key, keys, FlowKeys.writer)
+        NetlinkMessage.writeAttrList(buf, Attr.Actions, actions, FlowActions.writer)
+        buf.put(maskAttr)
+        message.finalize(pid)
+    }
+
     def prepareFlowSet(datapathId: Int, supportsFlowMask: Boolean,
                        flow: Flow, buf: ByteBuffer): Unit = {
         import org.midonet.odp.OpenVSwitch.Flow.Attr
@@ -198,8 +215,8 @@ sealed class OvsProtocol(pid: Int,
         // datapathId. I examined the ByteBuffers constructed with that
         // ordering of attributes and compared it to this one, and found
         // only the expected difference.
-        NetlinkMessage.writeAttrSeq(buf, Attr.Key, packet.getMatch.getKeys, FlowKeys.writer)
-        NetlinkMessage.writeAttrSeq(buf, Attr.Actions, actions, FlowActions.writer)
+        NetlinkMessage.writeAttrList(buf, Attr.Key, packet.getMatch.getKeys, FlowKeys.writer)
+        NetlinkMessage.writeAttrList(buf, Attr.Actions, actions, FlowActions.writer)
         NetlinkMessage.writeRawAttribute(buf, Attr.Packet, packet.getEthernet.serialize())
 
         message.finalize(pid)
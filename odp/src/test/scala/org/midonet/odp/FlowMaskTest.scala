@@ -180,4 +180,24 @@ class FlowMaskTest  extends FlatSpec with ShouldMatchers {
             verify(fmatch, maskedFlowKeys(fmatch), expected)
         }
     }
+
+    "A cleared mask" should "serialize the same as a new one" in {
+        val reused = new FlowMask
+        (0 to 1000) map { _ =>
+            FlowMatches.generateFlowMatch(ThreadLocalRandom.current())
+        } map seeSomeFields foreach { case (fmatch, _) =>
+            reused.clear()
+            reused.calculateFor(fmatch)
+            val fresh = new FlowMask
+            fresh.calculateFor(fmatch)
+
+            val reusedBuf = ByteBuffer.allocate(1024*8)
+            val freshBuf = ByteBuffer.allocate(1024*8)
+            reused.serializeInto(reusedBuf)
+            fresh.serializeInto(freshBuf)
+            reusedBuf.flip()
+            freshBuf.flip()
+            reusedBuf should be (freshBuf)
+        }
+    }
 }